@@ -19,6 +19,9 @@
 package org.mozilla.apache.commons.codec.binary;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import javax.crypto.Mac;
 
 /**
  * Provides Base64 encoding and decoding as defined by <a href="http://www.ietf.org/rfc/rfc2045.txt">RFC 2045</a>.
@@ -679,6 +682,388 @@ public class Base64 extends BaseNCodec {
         return new Base64().decode(base64Data);
     }
 
+    // Buffer-oriented methods. These encode and decode directly between caller-supplied arrays, without
+    // the intermediate buffers of the streaming approach, and always use the standard alphabet, unchunked
+    // and padded.
+
+    /**
+     * Returns the length of the unchunked, padded Base64 encoding of <code>binaryLength</code> bytes.
+     *
+     * @param binaryLength
+     *            number of bytes to encode
+     * @return number of Base64 characters
+     * @throws IllegalArgumentException
+     *             Thrown when the encoding would be longer than {@link Integer#MAX_VALUE}
+     */
+    public static int encodedLength(int binaryLength) {
+        final long len = 4L * ((binaryLength + 2L) / 3L);
+        if (len > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Input too big, the encoding would be " + len + " bytes long");
+        }
+        return (int) len;
+    }
+
+    private static int encodeBlock(int bits, byte[] out, int outPos) {
+        out[outPos++] = STANDARD_ENCODE_TABLE[(bits >> 18) & MASK_6BITS];
+        out[outPos++] = STANDARD_ENCODE_TABLE[(bits >> 12) & MASK_6BITS];
+        out[outPos++] = STANDARD_ENCODE_TABLE[(bits >> 6) & MASK_6BITS];
+        out[outPos++] = STANDARD_ENCODE_TABLE[bits & MASK_6BITS];
+        return outPos;
+    }
+
+    /**
+     * Encodes the last one or two bytes of input, if any, padding the result.
+     */
+    private static int encodeTail(byte[] in, int inPos, int remaining, byte[] out, int outPos) {
+        if (remaining <= 0) {
+            return outPos;
+        }
+        int bits = (in[inPos] & 0xff) << 16;
+        if (remaining == 2) {
+            bits |= (in[inPos + 1] & 0xff) << 8;
+        }
+        out[outPos++] = STANDARD_ENCODE_TABLE[(bits >> 18) & MASK_6BITS];
+        out[outPos++] = STANDARD_ENCODE_TABLE[(bits >> 12) & MASK_6BITS];
+        out[outPos++] = remaining == 2 ? STANDARD_ENCODE_TABLE[(bits >> 6) & MASK_6BITS] : PAD_DEFAULT;
+        out[outPos++] = PAD_DEFAULT;
+        return outPos;
+    }
+
+    /**
+     * Encodes <code>inLen</code> bytes of <code>in</code>, starting at <code>inPos</code>, into
+     * <code>out</code>, starting at <code>outPos</code>.
+     *
+     * @param in
+     *            binary data to encode
+     * @param inPos
+     *            position of the first byte to encode
+     * @param inLen
+     *            number of bytes to encode
+     * @param out
+     *            array to write Base64 characters to, with room for {@link #encodedLength(int)} of them
+     * @param outPos
+     *            position to write the first Base64 character to
+     * @return number of Base64 characters written
+     * @throws IllegalArgumentException
+     *             Thrown when <code>out</code> is too small
+     */
+    public static int encodeBase64(byte[] in, int inPos, int inLen, byte[] out, int outPos) {
+        final int len = encodedLength(inLen);
+        if (outPos < 0 || out.length - outPos < len) {
+            throw new IllegalArgumentException("Output array too small, need " + len + " bytes");
+        }
+        final int start = outPos;
+        final int whole = inPos + inLen - (inLen % BYTES_PER_UNENCODED_BLOCK);
+        int i = inPos;
+        while (i < whole) {
+            final int bits = ((in[i] & 0xff) << 16) | ((in[i + 1] & 0xff) << 8) | (in[i + 2] & 0xff);
+            i += BYTES_PER_UNENCODED_BLOCK;
+            outPos = encodeBlock(bits, out, outPos);
+        }
+        outPos = encodeTail(in, i, inPos + inLen - i, out, outPos);
+        return outPos - start;
+    }
+
+    /**
+     * Encodes the remaining bytes of <code>in</code> into <code>out</code>, advancing both buffers'
+     * positions. Buffers backed by accessible arrays are encoded in place; others are copied.
+     *
+     * @return number of Base64 characters written
+     * @throws IllegalArgumentException
+     *             Thrown when <code>out</code> has too little room remaining
+     */
+    public static int encodeBase64(ByteBuffer in, ByteBuffer out) {
+        final int inLen = in.remaining();
+        final int len = encodedLength(inLen);
+        if (out.remaining() < len) {
+            throw new IllegalArgumentException("Output buffer too small, need " + len + " bytes");
+        }
+        if (in.hasArray() && out.hasArray() && !out.isReadOnly()) {
+            encodeBase64(in.array(), in.arrayOffset() + in.position(), inLen,
+                         out.array(), out.arrayOffset() + out.position());
+            in.position(in.position() + inLen);
+            out.position(out.position() + len);
+            return len;
+        }
+        final byte[] src = new byte[inLen];
+        in.get(src);
+        final byte[] dst = new byte[len];
+        encodeBase64(src, 0, inLen, dst, 0);
+        out.put(dst);
+        return len;
+    }
+
+    private static int decodedLength(int alphabetChars) {
+        return (int) ((alphabetChars * (long) BITS_PER_ENCODED_BYTE) / 8);
+    }
+
+    /**
+     * Returns how many bytes <code>inLen</code> Base64 characters of <code>in</code>, starting at
+     * <code>inPos</code>, decode to. As when decoding, characters outside the Base64 alphabet are ignored,
+     * and decoding stops at the first pad character.
+     */
+    public static int decodedLength(byte[] in, int inPos, int inLen) {
+        int alphabetChars = 0;
+        for (int i = inPos; i < inPos + inLen; i++) {
+            final byte b = in[i];
+            if (b == PAD_DEFAULT) {
+                break;
+            }
+            if (b >= 0 && b < DECODE_TABLE.length && DECODE_TABLE[b] != -1) {
+                alphabetChars++;
+            }
+        }
+        return decodedLength(alphabetChars);
+    }
+
+    /**
+     * Returns how many bytes the Base64 characters of <code>in</code> decode to.
+     *
+     * @see #decodedLength(byte[], int, int)
+     */
+    public static int decodedLength(CharSequence in) {
+        int alphabetChars = 0;
+        final int inLen = in.length();
+        for (int i = 0; i < inLen; i++) {
+            final char c = in.charAt(i);
+            if (c == PAD_DEFAULT) {
+                break;
+            }
+            if (c < DECODE_TABLE.length && DECODE_TABLE[c] != -1) {
+                alphabetChars++;
+            }
+        }
+        return decodedLength(alphabetChars);
+    }
+
+    /**
+     * Writes the bytes held in the last, partial, block of input.
+     */
+    private static int decodeTail(int bits, int modulus, byte[] out, int outPos) {
+        switch (modulus) {
+        case 2:
+            checkRoom(out, outPos, 1);
+            out[outPos++] = (byte) ((bits >> 4) & MASK_8BITS);
+            break;
+        case 3:
+            checkRoom(out, outPos, 2);
+            out[outPos++] = (byte) ((bits >> 10) & MASK_8BITS);
+            out[outPos++] = (byte) ((bits >> 2) & MASK_8BITS);
+            break;
+        default:
+            // A single leftover character holds no whole byte.
+        }
+        return outPos;
+    }
+
+    private static void checkRoom(byte[] out, int outPos, int needed) {
+        if (outPos < 0 || out.length - outPos < needed) {
+            throw new IllegalArgumentException("Output array too small");
+        }
+    }
+
+    /**
+     * Decodes <code>inLen</code> Base64 characters of <code>in</code>, starting at <code>inPos</code>, into
+     * <code>out</code>, starting at <code>outPos</code>. Characters outside the Base64 alphabet are ignored,
+     * and decoding stops at the first pad character. Both the standard and URL-safe alphabets are accepted.
+     *
+     * @param out
+     *            array to write decoded bytes to, with room for
+     *            {@link #decodedLength(byte[], int, int)} of them
+     * @return number of bytes written
+     * @throws IllegalArgumentException
+     *             Thrown when <code>out</code> is too small
+     */
+    public static int decodeBase64(byte[] in, int inPos, int inLen, byte[] out, int outPos) {
+        final int start = outPos;
+        int bits = 0;
+        int modulus = 0;
+        for (int i = inPos; i < inPos + inLen; i++) {
+            final byte b = in[i];
+            if (b == PAD_DEFAULT) {
+                break;
+            }
+            if (b < 0 || b >= DECODE_TABLE.length) {
+                continue;
+            }
+            final int result = DECODE_TABLE[b];
+            if (result < 0) {
+                continue;
+            }
+            bits = (bits << BITS_PER_ENCODED_BYTE) + result;
+            if (++modulus == BYTES_PER_ENCODED_BLOCK) {
+                modulus = 0;
+                checkRoom(out, outPos, BYTES_PER_UNENCODED_BLOCK);
+                out[outPos++] = (byte) ((bits >> 16) & MASK_8BITS);
+                out[outPos++] = (byte) ((bits >> 8) & MASK_8BITS);
+                out[outPos++] = (byte) (bits & MASK_8BITS);
+            }
+        }
+        return decodeTail(bits, modulus, out, outPos) - start;
+    }
+
+    /**
+     * Decodes the Base64 characters of <code>in</code> into <code>out</code>, starting at
+     * <code>outPos</code>, without first copying them into a byte array.
+     *
+     * @see #decodeBase64(byte[], int, int, byte[], int)
+     */
+    public static int decodeBase64(CharSequence in, byte[] out, int outPos) {
+        final int start = outPos;
+        final int inLen = in.length();
+        int bits = 0;
+        int modulus = 0;
+        for (int i = 0; i < inLen; i++) {
+            final char c = in.charAt(i);
+            if (c == PAD_DEFAULT) {
+                break;
+            }
+            if (c >= DECODE_TABLE.length) {
+                continue;
+            }
+            final int result = DECODE_TABLE[c];
+            if (result < 0) {
+                continue;
+            }
+            bits = (bits << BITS_PER_ENCODED_BYTE) + result;
+            if (++modulus == BYTES_PER_ENCODED_BLOCK) {
+                modulus = 0;
+                checkRoom(out, outPos, BYTES_PER_UNENCODED_BLOCK);
+                out[outPos++] = (byte) ((bits >> 16) & MASK_8BITS);
+                out[outPos++] = (byte) ((bits >> 8) & MASK_8BITS);
+                out[outPos++] = (byte) (bits & MASK_8BITS);
+            }
+        }
+        return decodeTail(bits, modulus, out, outPos) - start;
+    }
+
+    /**
+     * Decodes the remaining Base64 characters of <code>in</code> into <code>out</code>, advancing both
+     * buffers' positions. Buffers backed by accessible arrays are decoded in place; others are copied.
+     *
+     * @return number of bytes written
+     * @throws IllegalArgumentException
+     *             Thrown when <code>out</code> has too little room remaining
+     */
+    public static int decodeBase64(ByteBuffer in, ByteBuffer out) {
+        final int inLen = in.remaining();
+        if (in.hasArray() && out.hasArray() && !out.isReadOnly()) {
+            final int inStart = in.arrayOffset() + in.position();
+            final int len = decodedLength(in.array(), inStart, inLen);
+            if (len > out.remaining()) {
+                throw new IllegalArgumentException("Output buffer too small, need " + len + " bytes");
+            }
+            decodeBase64(in.array(), inStart, inLen, out.array(), out.arrayOffset() + out.position());
+            in.position(in.position() + inLen);
+            out.position(out.position() + len);
+            return len;
+        }
+        final byte[] src = new byte[inLen];
+        in.get(src);
+        final byte[] dst = new byte[decodedLength(src, 0, inLen)];
+        final int len = decodeBase64(src, 0, inLen, dst, 0);
+        out.put(dst, 0, len);
+        return len;
+    }
+
+    /**
+     * Feeds the unchunked, padded Base64 encoding of its input to a {@link Mac}, a fixed-size chunk at a
+     * time, rather than building the whole encoding just to authenticate it.
+     * <p>
+     * Input may arrive in any number of pieces; {@link #finish()} encodes the last partial block and
+     * readies the encoder for another message. Instances are not thread-safe.
+     * </p>
+     */
+    public static class MacEncoder {
+        // Must be a multiple of 4.
+        private static final int CHUNK_SIZE = 1024;
+
+        private final Mac mac;
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private final byte[] pending = new byte[BYTES_PER_UNENCODED_BLOCK];
+        private int chunkPos;
+        private int pendingCount;
+
+        public MacEncoder(Mac mac) {
+            if (mac == null) {
+                throw new IllegalArgumentException("mac must not be null");
+            }
+            this.mac = mac;
+        }
+
+        /**
+         * @return the {@link Mac} this encoder feeds
+         */
+        public Mac getMac() {
+            return mac;
+        }
+
+        /**
+         * Discards any input not yet fed to the {@link Mac}, and resets the {@link Mac}. {@link #finish()} leaves
+         * the encoder ready for reuse; this is for when an update or finish did not complete.
+         */
+        public void reset() {
+            chunkPos = 0;
+            pendingCount = 0;
+            mac.reset();
+        }
+
+        private void block(int bits) {
+            chunkPos = encodeBlock(bits, chunk, chunkPos);
+            if (chunkPos == CHUNK_SIZE) {
+                mac.update(chunk, 0, chunkPos);
+                chunkPos = 0;
+            }
+        }
+
+        /**
+         * Encodes <code>len</code> bytes of <code>in</code>, starting at <code>pos</code>.
+         *
+         * @return this encoder
+         */
+        public MacEncoder update(byte[] in, int pos, int len) {
+            final int end = pos + len;
+            // Complete a block left over from the previous update.
+            while (pendingCount > 0 && pendingCount < BYTES_PER_UNENCODED_BLOCK && pos < end) {
+                pending[pendingCount++] = in[pos++];
+            }
+            if (pendingCount == BYTES_PER_UNENCODED_BLOCK) {
+                block(((pending[0] & 0xff) << 16) | ((pending[1] & 0xff) << 8) | (pending[2] & 0xff));
+                pendingCount = 0;
+            }
+            final int whole = end - ((end - pos) % BYTES_PER_UNENCODED_BLOCK);
+            while (pos < whole) {
+                block(((in[pos] & 0xff) << 16) | ((in[pos + 1] & 0xff) << 8) | (in[pos + 2] & 0xff));
+                pos += BYTES_PER_UNENCODED_BLOCK;
+            }
+            while (pos < end) {
+                pending[pendingCount++] = in[pos++];
+            }
+            return this;
+        }
+
+        public MacEncoder update(byte[] in) {
+            return update(in, 0, in.length);
+        }
+
+        /**
+         * Encodes and pads any remaining input, and feeds everything encoded so far to the {@link Mac}.
+         * The {@link Mac} itself is not finished.
+         */
+        public void finish() {
+            if (chunkPos + BYTES_PER_ENCODED_BLOCK > CHUNK_SIZE) {
+                mac.update(chunk, 0, chunkPos);
+                chunkPos = 0;
+            }
+            chunkPos = encodeTail(pending, 0, pendingCount, chunk, chunkPos);
+            pendingCount = 0;
+            if (chunkPos > 0) {
+                mac.update(chunk, 0, chunkPos);
+                chunkPos = 0;
+            }
+        }
+    }
+
     // Implementation of the Encoder Interface
 
     // Implementation of integer encoding used for crypto
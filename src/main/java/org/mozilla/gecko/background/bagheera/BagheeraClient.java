@@ -15,6 +15,7 @@ import java.util.regex.Pattern;
 import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.net.BaseResource;
 import org.mozilla.gecko.sync.net.BaseResourceDelegate;
+import org.mozilla.gecko.sync.net.HttpTiming;
 import org.mozilla.gecko.sync.net.Resource;
 
 import ch.boye.httpclientandroidlib.HttpEntity;
@@ -147,7 +148,9 @@ public class BagheeraClient {
 
     final String uri = this.serverURI + PROTOCOL_VERSION + SUBMIT_PATH +
                        namespace + "/" + id;
-    return new BaseResource(uri);
+    final BaseResource resource = new BaseResource(uri);
+    resource.setEndpoint(HttpTiming.Endpoint.BAGHEERA);
+    return resource;
   }
 
   public class BagheeraResourceDelegate extends BaseResourceDelegate {
@@ -21,6 +21,17 @@ public class CollectionKeys {
   private KeyBundle                  defaultKeyBundle     = null;
   private final HashMap<String, KeyBundle> collectionKeyBundles = new HashMap<String, KeyBundle>();
 
+  public CollectionKeys() {
+  }
+
+  /**
+   * Copy <code>other</code>'s keys. Key bundles are shared, not copied.
+   */
+  public CollectionKeys(CollectionKeys other) {
+    this.defaultKeyBundle = other.defaultKeyBundle;
+    this.collectionKeyBundles.putAll(other.collectionKeyBundles);
+  }
+
   /**
    * Randomly generate a basic CollectionKeys object.
    * @throws CryptoException
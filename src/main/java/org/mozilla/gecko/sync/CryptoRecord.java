@@ -58,13 +58,29 @@ public class CryptoRecord extends Record {
    * @throws UnsupportedEncodingException
    */
   private static byte[] decryptPayload(ExtendedJSONObject payload, KeyBundle keybundle) throws CryptoException, UnsupportedEncodingException {
-    byte[] ciphertext = Base64.decodeBase64(((String) payload.get(KEY_CIPHERTEXT)).getBytes("UTF-8"));
-    byte[] iv         = Base64.decodeBase64(((String) payload.get(KEY_IV)).getBytes("UTF-8"));
+    byte[] ciphertext = decodeBase64((String) payload.get(KEY_CIPHERTEXT));
+    byte[] iv         = decodeBase64((String) payload.get(KEY_IV));
     byte[] hmac       = Utils.hex2Byte((String) payload.get(KEY_HMAC));
 
     return CryptoInfo.decrypt(ciphertext, iv, hmac, keybundle).getMessage();
   }
 
+  /**
+   * Decode straight from the string's characters into an array of exactly
+   * the right size.
+   */
+  private static byte[] decodeBase64(String encoded) {
+    final byte[] decoded = new byte[Base64.decodedLength(encoded)];
+    Base64.decodeBase64(encoded, decoded, 0);
+    return decoded;
+  }
+
+  private static String encodeBase64(byte[] data) throws UnsupportedEncodingException {
+    final byte[] encoded = new byte[Base64.encodedLength(data.length)];
+    Base64.encodeBase64(data, 0, data.length, encoded, 0);
+    return new String(encoded, "US-ASCII");
+  }
+
   // The encrypted JSON body object.
   // The decrypted JSON body object. Fields are copied from `body`.
 
@@ -208,8 +224,8 @@ public class CryptoRecord extends Record {
     String cleartext = payload.toJSONString();
     byte[] cleartextBytes = cleartext.getBytes("UTF-8");
     CryptoInfo info = CryptoInfo.encrypt(cleartextBytes, keyBundle);
-    String message = new String(Base64.encodeBase64(info.getMessage()));
-    String iv      = new String(Base64.encodeBase64(info.getIV()));
+    String message = encodeBase64(info.getMessage());
+    String iv      = encodeBase64(info.getIV());
     String hmac    = Utils.byte2Hex(info.getHMAC());
     ExtendedJSONObject ciphertext = new ExtendedJSONObject();
     ciphertext.put(KEY_CIPHERTEXT, message);
@@ -10,6 +10,7 @@ import java.io.StringReader;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -29,15 +30,70 @@ public class ExtendedJSONObject {
   public JSONObject object;
 
   /**
-   * Return a <code>JSONParser</code> instance for immediate use.
+   * Size of the buffer each <code>JSONParser</code> allocates for its lexer.
+   * Inputs longer than this can cause the buffer to grow, so we don't cache
+   * parsers that have been used for them.
+   */
+  protected static final int JSON_PARSER_BUFFER_SIZE = 16 * 1024;
+
+  protected static final AtomicLong jsonParsersAllocated = new AtomicLong(0);
+  protected static final AtomicLong jsonParses = new AtomicLong(0);
+
+  /**
+   * <code>JSONParser</code> is not thread-safe, and each instance allocates a
+   * 16kb temporary buffer, so we keep one instance per thread and reset it
+   * for each parse.
+   */
+  private static final ThreadLocal<JSONParser> threadJSONParser = new ThreadLocal<JSONParser>() {
+    @Override
+    protected JSONParser initialValue() {
+      return newJSONParser();
+    }
+  };
+
+  private static JSONParser newJSONParser() {
+    jsonParsersAllocated.incrementAndGet();
+    return new JSONParser();
+  }
+
+  /**
+   * Return a <code>JSONParser</code> instance for immediate use on the calling
+   * thread.
    * <p>
-   * <code>JSONParser</code> is not thread-safe, so we return a new instance
-   * each call. This is extremely inefficient in execution time and especially
-   * memory use -- each instance allocates a 16kb temporary buffer -- and we
-   * hope to improve matters eventually.
+   * The instance is shared by every parse on this thread, so callers must not
+   * retain it or use it re-entrantly.
    */
   protected static JSONParser getJSONParser() {
-    return new JSONParser();
+    return threadJSONParser.get();
+  }
+
+  /**
+   * @return the number of <code>JSONParser</code> instances allocated by this
+   *         class since startup. Exposed for testing and instrumentation.
+   */
+  public static long getJSONParsersAllocated() {
+    return jsonParsersAllocated.get();
+  }
+
+  /**
+   * @return the number of parses performed by this class since startup.
+   *         Exposed for testing and instrumentation.
+   */
+  public static long getJSONParses() {
+    return jsonParses.get();
+  }
+
+  /**
+   * Parse with the calling thread's parser, then drop the parser's reference
+   * to <code>in</code> so that we don't keep the input alive.
+   */
+  private static Object parseWith(JSONParser parser, Reader in) throws ParseException, IOException {
+    jsonParses.incrementAndGet();
+    try {
+      return parser.parse(in);
+    } finally {
+      parser.reset(null);
+    }
   }
 
   /**
@@ -50,7 +106,7 @@ public class ExtendedJSONObject {
    * @throws IOException
    */
   protected static Object parseRaw(Reader in) throws ParseException, IOException {
-    return getJSONParser().parse(in);
+    return parseWith(getJSONParser(), in);
   }
 
   /**
@@ -63,7 +119,14 @@ public class ExtendedJSONObject {
    * @throws ParseException
    */
   protected static Object parseRaw(String input) throws ParseException {
-    return getJSONParser().parse(input);
+    // Very long inputs can grow the lexer buffer; don't keep that around.
+    final JSONParser parser = input.length() > JSON_PARSER_BUFFER_SIZE ? newJSONParser() : getJSONParser();
+    try {
+      return parseWith(parser, new StringReader(input));
+    } catch (IOException e) {
+      // StringReader won't throw.
+      throw new ParseException(-1, ParseException.ERROR_UNEXPECTED_EXCEPTION, e);
+    }
   }
 
   /**
@@ -178,7 +241,17 @@ public class ExtendedJSONObject {
   }
 
   public ExtendedJSONObject(String jsonString) throws IOException, ParseException, NonObjectJSONException {
-    this(jsonString == null ? null : new StringReader(jsonString));
+    if (jsonString == null) {
+      this.object = new JSONObject();
+      return;
+    }
+
+    Object obj = parseRaw(jsonString);
+    if (obj instanceof JSONObject) {
+      this.object = ((JSONObject) obj);
+    } else {
+      throw new NonObjectJSONException("value must be a JSON object");
+    }
   }
 
   // Passthrough methods.
@@ -0,0 +1,216 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync;
+
+import org.mozilla.gecko.background.common.log.Logger;
+
+/**
+ * Bounds how far a producer of records -- typically the read loop of a
+ * network fetch -- can get ahead of the consumers downstream of it.
+ * <p>
+ * The producer calls {@link #acquire(long)} for every record it reads. A
+ * record is outstanding until it has been handed on ({@link #handedOff()})
+ * and the downstream work it caused has drained, as reported by a
+ * {@link Backlog}. When the outstanding records or bytes reach the high-water
+ * mark, <code>acquire</code> blocks until both fall to half of it. Downstream
+ * consumers call {@link #signal()} when they make progress; nothing polls.
+ * <p>
+ * A single record larger than the byte high-water mark is always admitted
+ * when nothing else is outstanding.
+ */
+public class FlowController {
+  private static final String LOG_TAG = "FlowController";
+
+  /**
+   * Reports how many records are waiting to be processed downstream.
+   */
+  public interface Backlog {
+    public int getBacklog();
+  }
+
+  protected final long highWaterRecords;
+  protected final long highWaterBytes;
+  protected final long lowWaterRecords;
+  protected final long lowWaterBytes;
+
+  protected Backlog downstream;
+  protected boolean closed = false;
+
+  // Sizes of records acquired but not yet handed off: a ring buffer of
+  // queuedCount entries, oldest at queuedHead. Grows as needed.
+  protected long[] queued = new long[16];
+  protected int queuedHead = 0;
+  protected int queuedCount = 0;
+  protected long queuedBytes = 0;
+
+  protected long acquired = 0;
+  protected long acquiredBytes = 0;
+
+  protected long peakRecords = 0;
+  protected long peakBytes = 0;
+  protected int pauses = 0;
+  protected long pausedMillis = 0;
+
+  /**
+   * @param highWaterRecords
+   *          most outstanding records before the producer pauses, or
+   *          non-positive for no limit.
+   * @param highWaterBytes
+   *          most outstanding bytes before the producer pauses, or
+   *          non-positive for no limit.
+   */
+  public FlowController(long highWaterRecords, long highWaterBytes) {
+    this.highWaterRecords = (highWaterRecords > 0) ? highWaterRecords : Long.MAX_VALUE;
+    this.highWaterBytes   = (highWaterBytes   > 0) ? highWaterBytes   : Long.MAX_VALUE;
+    this.lowWaterRecords  = this.highWaterRecords / 2;
+    this.lowWaterBytes    = this.highWaterBytes / 2;
+  }
+
+  public synchronized void setBacklog(Backlog downstream) {
+    this.downstream = downstream;
+    notifyAll();
+  }
+
+  protected long getDownstreamRecords() {
+    final Backlog backlog = downstream;
+    return (backlog == null) ? 0 : Math.max(0, backlog.getBacklog());
+  }
+
+  /**
+   * Downstream records don't carry a size, so estimate their bytes from the
+   * average size of every record acquired so far.
+   */
+  protected long estimateBytes(long records) {
+    if (records == 0 || acquired == 0) {
+      return 0;
+    }
+    return records * (acquiredBytes / acquired);
+  }
+
+  public synchronized long getOutstandingRecords() {
+    return queuedCount + getDownstreamRecords();
+  }
+
+  public synchronized long getOutstandingBytes() {
+    return queuedBytes + estimateBytes(getDownstreamRecords());
+  }
+
+  protected boolean atHighWater() {
+    final long records = getOutstandingRecords();
+    return records > 0 &&
+           (records >= highWaterRecords || getOutstandingBytes() >= highWaterBytes);
+  }
+
+  protected boolean atLowWater() {
+    return getOutstandingRecords() <= lowWaterRecords &&
+           getOutstandingBytes() <= lowWaterBytes;
+  }
+
+  /**
+   * Called by the producer before handing on a record of <code>bytes</code>
+   * bytes. Blocks while too much is outstanding downstream.
+   * <p>
+   * If interrupted, stops waiting and admits the record, preserving the
+   * thread's interrupted status.
+   */
+  public synchronized void acquire(long bytes) {
+    if (!closed && atHighWater()) {
+      final long start = System.currentTimeMillis();
+      pauses += 1;
+      Logger.debug(LOG_TAG, "Pausing producer with " + getOutstandingRecords() + " records and " +
+                            getOutstandingBytes() + " bytes outstanding.");
+      try {
+        while (!closed && !atLowWater()) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Logger.warn(LOG_TAG, "Interrupted while paused; resuming.", e);
+        Thread.currentThread().interrupt();
+      }
+      pausedMillis += System.currentTimeMillis() - start;
+    }
+    if (closed) {
+      return;
+    }
+    acquired += 1;
+    acquiredBytes += bytes;
+    enqueue(bytes);
+    peakRecords = Math.max(peakRecords, getOutstandingRecords());
+    peakBytes = Math.max(peakBytes, getOutstandingBytes());
+  }
+
+  protected void enqueue(long bytes) {
+    if (queuedCount == queued.length) {
+      // Unroll into a larger array, oldest first.
+      final long[] larger = new long[2 * queued.length];
+      final int headLength = queued.length - queuedHead;
+      System.arraycopy(queued, queuedHead, larger, 0, headLength);
+      System.arraycopy(queued, 0, larger, headLength, queuedHead);
+      queued = larger;
+      queuedHead = 0;
+    }
+    queued[(queuedHead + queuedCount) % queued.length] = bytes;
+    queuedCount += 1;
+    queuedBytes += bytes;
+  }
+
+  /**
+   * The oldest acquired record has been handed to a downstream consumer, and
+   * is now accounted for by the {@link Backlog}.
+   */
+  public synchronized void handedOff() {
+    if (queuedCount > 0) {
+      queuedBytes -= queued[queuedHead];
+      queuedHead = (queuedHead + 1) % queued.length;
+      queuedCount -= 1;
+    }
+    notifyAll();
+  }
+
+  /**
+   * Downstream work has progressed; a paused producer should check again.
+   */
+  public synchronized void signal() {
+    notifyAll();
+  }
+
+  /**
+   * Stop limiting the producer, releasing it if paused.
+   */
+  public synchronized void close() {
+    closed = true;
+    queuedHead = 0;
+    queuedCount = 0;
+    queuedBytes = 0;
+    notifyAll();
+  }
+
+  public synchronized boolean isClosed() {
+    return closed;
+  }
+
+  public synchronized long getPeakRecords() {
+    return peakRecords;
+  }
+
+  public synchronized long getPeakBytes() {
+    return peakBytes;
+  }
+
+  public synchronized int getPauseCount() {
+    return pauses;
+  }
+
+  public synchronized long getPausedMillis() {
+    return pausedMillis;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "high water " + highWaterRecords + " records/" + highWaterBytes + " bytes; " +
+           "peak " + peakRecords + " records/" + peakBytes + " bytes; " +
+           "paused " + pauses + " times for " + pausedMillis + "ms.";
+  }
+}
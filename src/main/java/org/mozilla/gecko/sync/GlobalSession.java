@@ -33,6 +33,7 @@ import org.mozilla.gecko.sync.delegates.WipeServerDelegate;
 import org.mozilla.gecko.sync.net.AuthHeaderProvider;
 import org.mozilla.gecko.sync.net.BaseResource;
 import org.mozilla.gecko.sync.net.HttpResponseObserver;
+import org.mozilla.gecko.sync.net.HttpTimingHistograms;
 import org.mozilla.gecko.sync.net.SyncResponse;
 import org.mozilla.gecko.sync.net.SyncStorageRecordRequest;
 import org.mozilla.gecko.sync.net.SyncStorageRequest;
@@ -307,6 +308,7 @@ public class GlobalSession implements PrefsSource, HttpResponseObserver {
       throw new AlreadySyncingException(this.currentState);
     }
     installAsHttpResponseObserver(); // Uninstalled by completeSync or abort.
+    installHttpTimings();             // Likewise.
     this.advance();
   }
 
@@ -328,6 +330,7 @@ public class GlobalSession implements PrefsSource, HttpResponseObserver {
    */
   protected void cleanUp() {
     uninstallAsHttpResponseObserver();
+    uninstallHttpTimings();
     this.stages = null;
   }
 
@@ -526,6 +529,13 @@ public class GlobalSession implements PrefsSource, HttpResponseObserver {
 
   public void fetchInfoCollections(JSONRecordFetchDelegate callback) throws URISyntaxException {
     final JSONRecordFetcher fetcher = new JSONRecordFetcher(config.infoCollectionsURL(), getAuthHeaderProvider());
+    fetcher.setConditional(true);
+    fetcher.fetch(callback);
+  }
+
+  public void fetchInfoConfiguration(JSONRecordFetchDelegate callback) throws URISyntaxException {
+    final JSONRecordFetcher fetcher = new JSONRecordFetcher(config.infoConfigurationURL(), getAuthHeaderProvider());
+    fetcher.setConditional(true);
     fetcher.fetch(callback);
   }
 
@@ -1064,6 +1074,38 @@ public class GlobalSession implements PrefsSource, HttpResponseObserver {
     BaseResource.setHttpResponseObserver(null);
   }
 
+  /**
+   * Timings of the HTTP requests made during this sync; null before it starts.
+   */
+  protected volatile HttpTimingHistograms httpTimings;
+
+  /**
+   * Start timing HTTP requests, unless we already are because the sync
+   * restarted.
+   */
+  protected void installHttpTimings() {
+    if (httpTimings == null) {
+      httpTimings = new HttpTimingHistograms();
+    }
+    BaseResource.addHttpTimingObserver(httpTimings);
+  }
+
+  /**
+   * Stop timing HTTP requests, and report the timings so far.
+   */
+  protected void uninstallHttpTimings() {
+    final HttpTimingHistograms timings = httpTimings;
+    if (timings == null) {
+      return;
+    }
+    BaseResource.removeHttpTimingObserver(timings);
+    Logger.info(LOG_TAG, "HTTP request timings for this sync:\n" + timings);
+  }
+
+  public HttpTimingHistograms getHttpTimings() {
+    return httpTimings;
+  }
+
   /**
    * Observe all HTTP response for backoff requests on all status codes, not just errors.
    */
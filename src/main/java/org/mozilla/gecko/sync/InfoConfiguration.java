@@ -0,0 +1,87 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync;
+
+import org.mozilla.gecko.background.common.log.Logger;
+
+/**
+ * Wraps the limits advertised in <code>info/configuration</code> on the Sync
+ * server. Servers that don't provide <code>info/configuration</code> have no
+ * advertised limits.
+ */
+public class InfoConfiguration {
+  private static final String LOG_TAG = "InfoConfiguration";
+
+  public static final String MAX_REQUEST_BYTES = "max_request_bytes";
+  public static final String MAX_POST_RECORDS  = "max_post_records";
+  public static final String MAX_POST_BYTES    = "max_post_bytes";
+  public static final String MAX_TOTAL_RECORDS = "max_total_records";
+  public static final String MAX_TOTAL_BYTES   = "max_total_bytes";
+
+  /**
+   * Each limit, or -1 if the server doesn't advertise it.
+   */
+  public final long maxRequestBytes;
+  public final long maxPostRecords;
+  public final long maxPostBytes;
+  public final long maxTotalRecords;
+  public final long maxTotalBytes;
+
+  public InfoConfiguration(final ExtendedJSONObject record) {
+    Logger.debug(LOG_TAG, "info/configuration is " + record.toJSONString());
+    this.maxRequestBytes = getLimit(record, MAX_REQUEST_BYTES);
+    this.maxPostRecords  = getLimit(record, MAX_POST_RECORDS);
+    this.maxPostBytes    = getLimit(record, MAX_POST_BYTES);
+    this.maxTotalRecords = getLimit(record, MAX_TOTAL_RECORDS);
+    this.maxTotalBytes   = getLimit(record, MAX_TOTAL_BYTES);
+  }
+
+  protected static long getLimit(final ExtendedJSONObject record, final String key) {
+    final Object value = record.get(key);
+    if (value instanceof Number) {
+      final long limit = ((Number) value).longValue();
+      if (limit > 0) {
+        return limit;
+      }
+    }
+    if (value != null) {
+      Logger.warn(LOG_TAG, "Skipping info/configuration entry for " + key);
+    }
+    return -1;
+  }
+
+  /**
+   * @return the most records the server accepts in a single POST, or -1.
+   */
+  public long getMaxPostRecords() {
+    return maxPostRecords;
+  }
+
+  /**
+   * @return the largest POST body the server accepts, or -1.
+   */
+  public long getMaxPostBytes() {
+    if (maxPostBytes > 0 && maxRequestBytes > 0) {
+      return Math.min(maxPostBytes, maxRequestBytes);
+    }
+    return (maxPostBytes > 0) ? maxPostBytes : maxRequestBytes;
+  }
+
+  /**
+   * @return the most records the server accepts in a single upload batch,
+   *         or -1.
+   */
+  public long getMaxTotalRecords() {
+    return maxTotalRecords;
+  }
+
+  /**
+   * @return the most bytes of records the server accepts in a single upload
+   *         batch, or -1.
+   */
+  public long getMaxTotalBytes() {
+    return maxTotalBytes;
+  }
+}
@@ -4,6 +4,8 @@
 
 package org.mozilla.gecko.sync;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -25,6 +27,27 @@ public class JSONRecordFetcher {
   protected final AuthHeaderProvider authHeaderProvider;
   protected final String uri;
   protected JSONRecordFetchDelegate delegate;
+  protected boolean conditional = false;
+
+  /**
+   * A body fetched by a conditional fetcher, and the server's timestamp when
+   * it was fetched.
+   */
+  protected static class CachedBody {
+    public final ExtendedJSONObject body;
+    public final long timestamp;
+
+    public CachedBody(ExtendedJSONObject body, long timestamp) {
+      this.body = body;
+      this.timestamp = timestamp;
+    }
+  }
+
+  /**
+   * The last body each conditional fetch of a URI returned. Access is
+   * synchronized on the map.
+   */
+  protected static final Map<String, CachedBody> cachedBodies = new HashMap<String, CachedBody>();
 
   public JSONRecordFetcher(final String uri, final AuthHeaderProvider authHeaderProvider) {
     if (uri == null) {
@@ -38,7 +61,39 @@ public class JSONRecordFetcher {
     return this.uri;
   }
 
+  /**
+   * If <code>conditional</code> is true, ask the server for the body only if
+   * it has changed since a conditional fetch of the same URI last fetched it.
+   * If it hasn't, the delegate is handed that body again, which it must not
+   * modify.
+   */
+  public void setConditional(boolean conditional) {
+    this.conditional = conditional;
+  }
+
+  protected static CachedBody getCachedBody(String uri) {
+    synchronized (cachedBodies) {
+      return cachedBodies.get(uri);
+    }
+  }
+
+  protected static void setCachedBody(String uri, CachedBody cached) {
+    synchronized (cachedBodies) {
+      if (cached == null) {
+        cachedBodies.remove(uri);
+      } else {
+        cachedBodies.put(uri, cached);
+      }
+    }
+  }
+
   private class JSONFetchHandler implements SyncStorageRequestDelegate {
+    // The body we asked the server about, if this is a conditional fetch.
+    private final CachedBody cached;
+
+    public JSONFetchHandler(CachedBody cached) {
+      this.cached = cached;
+    }
 
     // SyncStorageRequestDelegate methods for fetching.
     @Override
@@ -51,9 +106,25 @@ public class JSONRecordFetcher {
     }
 
     public void handleRequestSuccess(SyncStorageResponse response) {
+      if (response.wasNotModified() && cached != null) {
+        Logger.debug(LOG_TAG, "Not modified; reusing body.");
+        delegate.handleSuccess(cached.body);
+        return;
+      }
       if (response.wasSuccessful()) {
+        final ExtendedJSONObject body;
         try {
-          delegate.handleSuccess(response.jsonObjectBody());
+          body = response.jsonObjectBody();
+        } catch (Exception e) {
+          handleRequestError(e);
+          return;
+        }
+        if (conditional) {
+          final long timestamp = response.normalizedWeaveTimestamp();
+          setCachedBody(getURI(), timestamp > 0 ? new CachedBody(body, timestamp) : null);
+        }
+        try {
+          delegate.handleSuccess(body);
         } catch (Exception e) {
           handleRequestError(e);
         }
@@ -77,7 +148,11 @@ public class JSONRecordFetcher {
     this.delegate = delegate;
     try {
       final SyncStorageRecordRequest r = new SyncStorageRecordRequest(this.getURI());
-      r.delegate = new JSONFetchHandler();
+      final CachedBody cached = conditional ? getCachedBody(this.getURI()) : null;
+      if (cached != null) {
+        r.setIfModifiedSince(cached.timestamp);
+      }
+      r.delegate = new JSONFetchHandler(cached);
       r.get();
     } catch (Exception e) {
       delegate.handleError(e);
@@ -48,11 +48,26 @@ public class MetaGlobal implements SyncStorageRequestDelegate {
   }
 
   public void fetch(MetaGlobalDelegate delegate) {
+    fetch(delegate, -1);
+  }
+
+  /**
+   * Fetch meta/global unless it hasn't changed on the server since
+   * <code>ifModifiedSince</code>. If it hasn't, this instance is left as it is
+   * -- for example, as set from a persisted record -- and the delegate's
+   * <code>handleSuccess</code> is called with a response for which
+   * <code>wasNotModified()</code> is true.
+   *
+   * @param ifModifiedSince server timestamp in milliseconds, or -1 to fetch
+   *        unconditionally.
+   */
+  public void fetch(MetaGlobalDelegate delegate, long ifModifiedSince) {
     this.callback = delegate;
     try {
       this.isUploading = false;
       SyncStorageRecordRequest r = new SyncStorageRecordRequest(this.metaURL);
       r.delegate = this;
+      r.setIfModifiedSince(ifModifiedSince);
       r.deferGet();
     } catch (URISyntaxException e) {
       this.callback.handleError(e);
@@ -273,6 +288,10 @@ public class MetaGlobal implements SyncStorageRequestDelegate {
   }
 
   private void handleDownloadSuccess(SyncStorageResponse response) {
+    if (response.wasNotModified()) {
+      this.callback.handleSuccess(this, response);
+      return;
+    }
     if (response.wasSuccessful()) {
       try {
         CryptoRecord record = CryptoRecord.fromJSONRecord(response.jsonObjectBody());
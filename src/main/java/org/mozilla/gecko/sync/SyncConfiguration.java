@@ -183,6 +183,7 @@ public class SyncConfiguration {
 
   public CollectionKeys  collectionKeys;
   public InfoCollections infoCollections;
+  public InfoConfiguration infoConfiguration;    // null if the server doesn't provide limits.
   public MetaGlobal      metaGlobal;
   public String          syncID;
 
@@ -479,6 +480,10 @@ public class SyncConfiguration {
     return infoBaseURL() + "collection_counts";
   }
 
+  public String infoConfigurationURL() {
+    return infoBaseURL() + "configuration";
+  }
+
   public String metaURL() {
     return storageURL() + "/meta/global";
   }
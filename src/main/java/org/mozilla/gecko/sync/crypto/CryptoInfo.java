@@ -7,12 +7,10 @@ package org.mozilla.gecko.sync.crypto;
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -24,7 +22,6 @@ import org.mozilla.apache.commons.codec.binary.Base64;
  */
 public class CryptoInfo {
   private static final String TRANSFORMATION     = "AES/CBC/PKCS5Padding";
-  private static final String KEY_ALGORITHM_SPEC = "AES";
 
   private byte[] message;
   private byte[] iv;
@@ -112,8 +109,7 @@ public class CryptoInfo {
    * Generate HMAC for given cipher text.
    */
   public static byte[] generatedHMACFor(byte[] message, KeyBundle keys) throws NoSuchAlgorithmException, InvalidKeyException {
-    Mac hmacHasher = HKDF.makeHMACHasher(keys.getHMACKey());
-    return hmacHasher.doFinal(Base64.encodeBase64(message));
+    return keys.hmacOfBase64(message);
   }
 
   /*
@@ -122,7 +118,25 @@ public class CryptoInfo {
   public boolean generatedHMACIsHMAC() throws NoSuchAlgorithmException, InvalidKeyException {
     byte[] generatedHMAC = generatedHMACFor(getMessage(), getKeys());
     byte[] expectedHMAC  = getHMAC();
-    return Arrays.equals(generatedHMAC, expectedHMAC);
+    return constantTimeEquals(generatedHMAC, expectedHMAC);
+  }
+
+  /**
+   * Compare two byte arrays in time that depends only on their lengths, so
+   * that HMAC verification doesn't leak how many leading bytes matched.
+   */
+  protected static boolean constantTimeEquals(byte[] a, byte[] b) {
+    if (a == null || b == null) {
+      return a == b;
+    }
+    if (a.length != b.length) {
+      return false;
+    }
+    int result = 0;
+    for (int i = 0; i < a.length; i++) {
+      result |= a[i] ^ b[i];
+    }
+    return result == 0;
   }
 
   /**
@@ -153,10 +167,9 @@ public class CryptoInfo {
    */
   public void encrypt() throws CryptoException {
 
-    Cipher cipher = CryptoInfo.getCipher(TRANSFORMATION);
+    Cipher cipher = CryptoInfo.getCipher();
     try {
-      byte[] encryptionKey = getKeys().getEncryptionKey();
-      SecretKeySpec spec = new SecretKeySpec(encryptionKey, KEY_ALGORITHM_SPEC);
+      SecretKeySpec spec = getKeys().getEncryptionKeySpec();
 
       // If no IV is provided, we allow the cipher to provide one.
       if (getIV() == null || getIV().length == 0) {
@@ -206,10 +219,9 @@ public class CryptoInfo {
       throw new CryptoException(e);
     }
 
-    Cipher cipher = CryptoInfo.getCipher(TRANSFORMATION);
+    Cipher cipher = CryptoInfo.getCipher();
     try {
-      byte[] encryptionKey = getKeys().getEncryptionKey();
-      SecretKeySpec spec = new SecretKeySpec(encryptionKey, KEY_ALGORITHM_SPEC);
+      SecretKeySpec spec = getKeys().getEncryptionKeySpec();
       cipher.init(Cipher.DECRYPT_MODE, spec, new IvParameterSpec(getIV()));
     } catch (GeneralSecurityException ex) {
       throw new CryptoException(ex);
@@ -223,6 +235,22 @@ public class CryptoInfo {
     this.setMessage(decryptedBytes);
   }
 
+  // Cipher is not thread-safe, and Cipher.getInstance is expensive, so each
+  // thread keeps one instance and re-initializes it for each operation.
+  private static final ThreadLocal<Cipher> threadCipher = new ThreadLocal<Cipher>();
+
+  /**
+   * Helper to get a Cipher object for this thread.
+   */
+  private static Cipher getCipher() throws CryptoException {
+    Cipher cipher = threadCipher.get();
+    if (cipher == null) {
+      cipher = getCipher(TRANSFORMATION);
+      threadCipher.set(cipher);
+    }
+    return cipher;
+  }
+
   /**
    * Helper to get a Cipher object.
    *
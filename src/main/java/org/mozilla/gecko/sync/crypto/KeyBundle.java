@@ -6,11 +6,14 @@ package org.mozilla.gecko.sync.crypto;
 
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
+import java.security.Key;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.mozilla.apache.commons.codec.binary.Base64;
 import org.mozilla.gecko.sync.Utils;
@@ -19,8 +22,57 @@ public class KeyBundle {
     private static final String KEY_ALGORITHM_SPEC = "AES";
     private static final int    KEY_SIZE           = 256;
 
-    private byte[] encryptionKey;
-    private byte[] hmacKey;
+    private volatile byte[] encryptionKey;
+    private volatile byte[] hmacKey;
+
+    // Crypto objects derived from our keys, cached so that we don't rebuild
+    // key specs and re-initialize a Mac for every record. Each is published
+    // together with the key it was derived from, and rebuilt if that is no
+    // longer our key, so a concurrent key change can't leave a stale one.
+    private volatile EncryptionState encryptionState;
+    private volatile HMACState hmacState;
+
+    private static class EncryptionState {
+      public final byte[] key;
+      public final SecretKeySpec spec;
+
+      public EncryptionState(byte[] key) {
+        this.key = key;
+        this.spec = new SecretKeySpec(key, KEY_ALGORITHM_SPEC);
+      }
+    }
+
+    private static class HMACState {
+      // Enough for the decryption workers, which are the most concurrent users.
+      private static final int MAX_IDLE_HASHERS = 4;
+
+      public final byte[] key;
+      public final Key spec;
+
+      // Encoders feeding Macs initialized with spec, not in use.
+      private final ConcurrentLinkedQueue<Base64.MacEncoder> idleHashers = new ConcurrentLinkedQueue<Base64.MacEncoder>();
+
+      public HMACState(byte[] key) {
+        this.key = key;
+        this.spec = HKDF.makeHMACKey(key);
+      }
+
+      public Base64.MacEncoder takeHasher() throws NoSuchAlgorithmException, InvalidKeyException {
+        final Base64.MacEncoder hasher = idleHashers.poll();
+        if (hasher != null) {
+          return hasher;
+        }
+        final Mac created = Mac.getInstance(HKDF.HMAC_ALGORITHM);
+        created.init(spec);
+        return new Base64.MacEncoder(created);
+      }
+
+      public void returnHasher(Base64.MacEncoder hasher) {
+        if (idleHashers.size() < MAX_IDLE_HASHERS) {
+          idleHashers.offer(hasher);
+        }
+      }
+    }
 
     // These are the same for every sync key bundle.
     private static final byte[] EMPTY_BYTES      = {};
@@ -122,6 +174,53 @@ public class KeyBundle {
         this.hmacKey = hmacKey;
     }
 
+    /**
+     * Return an AES key spec for our encryption key, creating it if necessary.
+     * <p>
+     * Key specs are immutable, so the result can be shared between threads.
+     */
+    public SecretKeySpec getEncryptionKeySpec() {
+      final byte[] key = encryptionKey;
+      EncryptionState state = encryptionState;
+      if (state == null || state.key != key) {
+        state = new EncryptionState(key);
+        encryptionState = state;
+      }
+      return state.spec;
+    }
+
+    private HMACState getHMACState() {
+      final byte[] key = hmacKey;
+      HMACState state = hmacState;
+      if (state == null || state.key != key) {
+        state = new HMACState(key);
+        hmacState = state;
+      }
+      return state;
+    }
+
+    /**
+     * Return the HMAC of the Base64 encoding of <code>message</code>, without
+     * materializing the encoding.
+     * <p>
+     * Safe to call from any thread; initialized Macs, and the encoders that
+     * feed them, are pooled.
+     */
+    public byte[] hmacOfBase64(byte[] message) throws NoSuchAlgorithmException, InvalidKeyException {
+      final HMACState state = getHMACState();
+      final Base64.MacEncoder hasher = state.takeHasher();
+      try {
+        hasher.update(message).finish();
+        // doFinal resets the Mac, ready for reuse.
+        return hasher.getMac().doFinal();
+      } catch (RuntimeException e) {
+        hasher.reset();
+        throw e;
+      } finally {
+        state.returnHasher(hasher);
+      }
+    }
+
     @Override
     public boolean equals(Object o) {
       if (!(o instanceof KeyBundle)) {
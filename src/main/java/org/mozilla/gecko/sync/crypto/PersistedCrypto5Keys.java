@@ -19,6 +19,17 @@ public class PersistedCrypto5Keys {
   protected SharedPreferences prefs;
   protected KeyBundle syncKeyBundle;
 
+  /**
+   * The last persisted crypto/keys we decrypted, so that syncs that don't
+   * change crypto/keys don't verify and decrypt it every time.
+   * <p>
+   * It's only used if both the persisted record and the sync key bundle are
+   * the ones it was decrypted from. Access is synchronized on the class.
+   */
+  private static String cachedKeysJSON;
+  private static KeyBundle cachedSyncKeyBundle;
+  private static CollectionKeys cachedKeys;
+
   public PersistedCrypto5Keys(SharedPreferences prefs, KeyBundle syncKeyBundle) {
     if (syncKeyBundle == null) {
       throw new IllegalArgumentException("Null syncKeyBundle passed in to PersistedCrypto5Keys constructor.");
@@ -40,10 +51,22 @@ public class PersistedCrypto5Keys {
     if (keysJSON == null) {
       return null;
     }
+    synchronized (PersistedCrypto5Keys.class) {
+      if (keysJSON.equals(cachedKeysJSON) && syncKeyBundle.equals(cachedSyncKeyBundle)) {
+        Logger.trace(LOG_TAG, "Using already decrypted crypto/keys.");
+        // Callers may modify what they're given.
+        return new CollectionKeys(cachedKeys);
+      }
+    }
     try {
       CryptoRecord cryptoRecord = CryptoRecord.fromJSONRecord(keysJSON);
       CollectionKeys keys = new CollectionKeys();
       keys.setKeyPairsFromWBO(cryptoRecord, syncKeyBundle);
+      synchronized (PersistedCrypto5Keys.class) {
+        cachedKeysJSON = keysJSON;
+        cachedSyncKeyBundle = syncKeyBundle;
+        cachedKeys = new CollectionKeys(keys);
+      }
       return keys;
     } catch (Exception e) {
       Logger.warn(LOG_TAG, "Got exception decrypting persisted crypto/keys.", e);
@@ -66,6 +66,16 @@ public class Crypto5MiddlewareRepository extends MiddlewareRepository {
     inner.createSession(delegateWrapper, context);
   }
 
+  /**
+   * @return the number of threads a session decrypts and transforms fetched
+   *         records on. If greater than one, records are still delivered to
+   *         the fetch delegate in order, on the thread that fetched them.
+   */
+  @SuppressWarnings("static-method")
+  protected int getDecryptionThreads() {
+    return 1;
+  }
+
   @Override
   public void clean(boolean success, RepositorySessionCleanDelegate delegate,
                     Context context) {
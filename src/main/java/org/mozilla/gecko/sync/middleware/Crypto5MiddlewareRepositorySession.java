@@ -5,8 +5,16 @@
 package org.mozilla.gecko.sync.middleware;
 
 import java.io.UnsupportedEncodingException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.CryptoRecord;
 import org.mozilla.gecko.sync.crypto.CryptoException;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
@@ -58,19 +66,29 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
  *
  */
 public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySession {
+  private static final String LOG_TAG = "Crypto5MWRepoSession";
+
+  /**
+   * How many records each decryption thread may have in flight before the
+   * fetching thread blocks waiting for the oldest to be delivered.
+   */
+  protected static final int PENDING_RECORDS_PER_THREAD = 8;
+
   private KeyBundle keyBundle;
   private RecordFactory recordFactory;
+  private int decryptionThreads;
 
   public Crypto5MiddlewareRepositorySession(RepositorySession session, Crypto5MiddlewareRepository repository, RecordFactory recordFactory) {
     super(session, repository);
     this.keyBundle = repository.keyBundle;
     this.recordFactory = recordFactory;
+    this.decryptionThreads = repository.getDecryptionThreads();
   }
 
   public class DecryptingTransformingFetchDelegate implements RepositorySessionFetchRecordsDelegate {
-    private RepositorySessionFetchRecordsDelegate next;
-    private KeyBundle keyBundle;
-    private RecordFactory recordFactory;
+    protected RepositorySessionFetchRecordsDelegate next;
+    protected KeyBundle keyBundle;
+    protected RecordFactory recordFactory;
 
     DecryptingTransformingFetchDelegate(RepositorySessionFetchRecordsDelegate next, KeyBundle bundle, RecordFactory recordFactory) {
       this.next = next;
@@ -83,27 +101,27 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
       next.onFetchFailed(ex, record);
     }
 
+    /**
+     * Decrypt <code>record</code> and turn it into a local record.
+     *
+     * @throws Exception
+     *           if the record is not a <code>CryptoRecord</code>, cannot be
+     *           decrypted, or cannot be transformed.
+     */
+    protected Record decryptAndTransform(Record record) throws Exception {
+      CryptoRecord r = (CryptoRecord) record;
+      r.keyBundle = keyBundle;
+      r.decrypt();
+      return this.recordFactory.createRecord(r);
+    }
+
     @Override
     public void onFetchedRecord(Record record) {
-      CryptoRecord r;
-      try {
-        r = (CryptoRecord) record;
-      } catch (ClassCastException e) {
-        next.onFetchFailed(e, record);
-        return;
-      }
-      r.keyBundle = keyBundle;
-      try {
-        r.decrypt();
-      } catch (Exception e) {
-        next.onFetchFailed(e, r);
-        return;
-      }
       Record transformed;
       try {
-        transformed = this.recordFactory.createRecord(r);
+        transformed = decryptAndTransform(record);
       } catch (Exception e) {
-        next.onFetchFailed(e, r);
+        next.onFetchFailed(e, record);
         return;
       }
       next.onFetchedRecord(transformed);
@@ -122,10 +140,153 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
     }
   }
 
+  /**
+   * Decrypts and transforms fetched records on a bounded pool of threads,
+   * overlapping that work with the fetch itself.
+   * <p>
+   * Records, failures, and completion are delivered to the next delegate on
+   * the fetching thread, in the order the records were fetched. Every record
+   * fetched before <code>onFetchCompleted</code> is delivered before the next
+   * delegate sees <code>onFetchCompleted</code>, so the ordering guarantees
+   * documented on <code>RecordsChannel</code> hold.
+   * <p>
+   * At most <code>threads * PENDING_RECORDS_PER_THREAD</code> records are in
+   * flight; beyond that the fetching thread blocks on the oldest. When every
+   * worker is busy, the fetching thread decrypts the record itself.
+   * <p>
+   * Repositories may call <code>deferredFetchDelegate</code> for every
+   * callback, so deferred delegates share this delegate's queue and workers.
+   */
+  public class ParallelDecryptingTransformingFetchDelegate extends DecryptingTransformingFetchDelegate {
+    protected final int maxPending;
+    protected final ThreadPoolExecutor workers;
+    protected final LinkedList<DecryptionTask> pending;
+
+    protected class DecryptionTask extends FutureTask<Record> {
+      public final Record record;
+      public final RepositorySessionFetchRecordsDelegate target;
+
+      public DecryptionTask(final Record record, RepositorySessionFetchRecordsDelegate target) {
+        super(new Callable<Record>() {
+          @Override
+          public Record call() throws Exception {
+            return decryptAndTransform(record);
+          }
+        });
+        this.record = record;
+        this.target = target;
+      }
+    }
+
+    ParallelDecryptingTransformingFetchDelegate(RepositorySessionFetchRecordsDelegate next, KeyBundle bundle, RecordFactory recordFactory, int threads) {
+      super(next, bundle, recordFactory);
+      this.maxPending = threads * PENDING_RECORDS_PER_THREAD;
+      this.pending = new LinkedList<DecryptionTask>();
+      // Idle workers exit on their own, so an abandoned fetch doesn't leak
+      // threads. (allowCoreThreadTimeOut would need API 9.)
+      this.workers = new ThreadPoolExecutor(0, threads, 30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                                            new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Wait for the oldest pending record and pass it on.
+     */
+    protected void deliverOldest() {
+      DecryptionTask task = pending.removeFirst();
+      Record transformed;
+      try {
+        transformed = task.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        task.target.onFetchFailed((cause instanceof Exception) ? (Exception) cause : e, task.record);
+        return;
+      } catch (InterruptedException e) {
+        Logger.warn(LOG_TAG, "Interrupted waiting for record " + task.record.guid + " to decrypt.");
+        task.cancel(true);
+        Thread.currentThread().interrupt();
+        task.target.onFetchFailed(e, task.record);
+        return;
+      }
+      task.target.onFetchedRecord(transformed);
+    }
+
+    protected void deliverAll() {
+      while (!pending.isEmpty()) {
+        deliverOldest();
+      }
+    }
+
+    protected synchronized void fetchFailed(Exception ex, Record record, RepositorySessionFetchRecordsDelegate target) {
+      // Keep failures in order with the records around them.
+      deliverAll();
+      target.onFetchFailed(ex, record);
+    }
+
+    protected synchronized void fetchedRecord(Record record, RepositorySessionFetchRecordsDelegate target) {
+      while (pending.size() >= maxPending) {
+        deliverOldest();
+      }
+      DecryptionTask task = new DecryptionTask(record, target);
+      pending.addLast(task);
+      workers.execute(task);
+    }
+
+    protected synchronized void fetchCompleted(long fetchEnd, RepositorySessionFetchRecordsDelegate target) {
+      deliverAll();
+      workers.shutdown();
+      target.onFetchCompleted(fetchEnd);
+    }
+
+    @Override
+    public void onFetchFailed(Exception ex, Record record) {
+      fetchFailed(ex, record, next);
+    }
+
+    @Override
+    public void onFetchedRecord(Record record) {
+      fetchedRecord(record, next);
+    }
+
+    @Override
+    public void onFetchCompleted(final long fetchEnd) {
+      fetchCompleted(fetchEnd, next);
+    }
+
+    @Override
+    public RepositorySessionFetchRecordsDelegate deferredFetchDelegate(final ExecutorService executor) {
+      final ParallelDecryptingTransformingFetchDelegate self = this;
+      final RepositorySessionFetchRecordsDelegate deferredNext = next.deferredFetchDelegate(executor);
+      return new RepositorySessionFetchRecordsDelegate() {
+        @Override
+        public void onFetchFailed(Exception ex, Record record) {
+          self.fetchFailed(ex, record, deferredNext);
+        }
+
+        @Override
+        public void onFetchedRecord(Record record) {
+          self.fetchedRecord(record, deferredNext);
+        }
+
+        @Override
+        public void onFetchCompleted(long fetchEnd) {
+          self.fetchCompleted(fetchEnd, deferredNext);
+        }
+
+        @Override
+        public RepositorySessionFetchRecordsDelegate deferredFetchDelegate(ExecutorService executor) {
+          return self.deferredFetchDelegate(executor);
+        }
+      };
+    }
+  }
+
   private DecryptingTransformingFetchDelegate makeUnwrappingDelegate(RepositorySessionFetchRecordsDelegate inner) {
     if (inner == null) {
       throw new IllegalArgumentException("Inner delegate cannot be null!");
     }
+    if (this.decryptionThreads > 1) {
+      return new ParallelDecryptingTransformingFetchDelegate(inner, this.keyBundle, this.recordFactory, this.decryptionThreads);
+    }
     return new DecryptingTransformingFetchDelegate(inner, this.keyBundle, this.recordFactory);
   }
 
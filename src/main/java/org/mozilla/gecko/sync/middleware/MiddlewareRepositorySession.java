@@ -7,6 +7,7 @@ package org.mozilla.gecko.sync.middleware;
 import java.util.concurrent.ExecutorService;
 
 import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.FlowController;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
@@ -146,6 +147,17 @@ public abstract class MiddlewareRepositorySession extends RepositorySession {
     inner.abort(new MiddlewareRepositorySessionFinishDelegate(this, delegate));
   }
 
+  @Override
+  public void unbundle(RepositorySessionBundle bundle) {
+    super.unbundle(bundle);
+    inner.unbundle(bundle);
+  }
+
+  @Override
+  public boolean dataAvailable() {
+    return inner.dataAvailable();
+  }
+
   @Override
   public void guidsSince(long timestamp, RepositorySessionGuidsSinceDelegate delegate) {
     // TODO: need to do anything here?
@@ -161,4 +173,15 @@ public abstract class MiddlewareRepositorySession extends RepositorySession {
   public void storeDone(long storeEnd) {
     inner.storeDone(storeEnd);
   }
-}
\ No newline at end of file
+
+  @Override
+  public void setFlowController(FlowController flowController) {
+    super.setFlowController(flowController);
+    inner.setFlowController(flowController);
+  }
+
+  @Override
+  public int getStoreBacklog() {
+    return inner.getStoreBacklog();
+  }
+}
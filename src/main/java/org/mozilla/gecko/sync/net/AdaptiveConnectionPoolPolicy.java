@@ -0,0 +1,71 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+/**
+ * Decides how many connections each route may have open, and how long idle
+ * connections are kept, from the concurrency a connection manager observes.
+ * <p>
+ * A route that makes a request wait for a connection has its limit doubled,
+ * up to <code>maxPerRoute</code>. Each time the manager reaps connections,
+ * a route's limit shrinks by one towards the most connections it had in use
+ * at once since the previous reap, but never below <code>minPerRoute</code>.
+ * <p>
+ * Idle connections are kept for <code>maxIdleMillis</code> while requests
+ * are being made. Each reap without a request halves that, down to
+ * <code>minIdleMillis</code>, so that connections don't outlive a sync by
+ * long.
+ */
+public class AdaptiveConnectionPoolPolicy {
+  public final int minPerRoute;
+  public final int maxPerRoute;
+  public final long minIdleMillis;
+  public final long maxIdleMillis;
+
+  public AdaptiveConnectionPoolPolicy(int minPerRoute, int maxPerRoute, long minIdleMillis, long maxIdleMillis) {
+    if (minPerRoute < 1 || maxPerRoute < minPerRoute) {
+      throw new IllegalArgumentException("Need 1 <= minPerRoute <= maxPerRoute.");
+    }
+    if (minIdleMillis < 0 || maxIdleMillis < minIdleMillis) {
+      throw new IllegalArgumentException("Need 0 <= minIdleMillis <= maxIdleMillis.");
+    }
+    this.minPerRoute = minPerRoute;
+    this.maxPerRoute = maxPerRoute;
+    this.minIdleMillis = minIdleMillis;
+    this.maxIdleMillis = maxIdleMillis;
+  }
+
+  /**
+   * @return a route's new limit after a request waited for one of its
+   *         <code>limit</code> connections.
+   */
+  public int limitAfterWait(int limit) {
+    return Math.min(maxPerRoute, Math.max(minPerRoute, 2 * limit));
+  }
+
+  /**
+   * @return a route's new limit, given that at most
+   *         <code>peakInFlight</code> of its <code>limit</code> connections
+   *         were in use at once since the last reap.
+   */
+  public int limitAfterReap(int limit, int peakInFlight) {
+    if (peakInFlight >= limit) {
+      return Math.min(maxPerRoute, limit);
+    }
+    return Math.max(minPerRoute, Math.max(peakInFlight, limit - 1));
+  }
+
+  /**
+   * @return how long idle connections should now be kept, given that they
+   *         were kept for <code>idleMillis</code> and whether any request
+   *         leased a connection since the last reap.
+   */
+  public long idleTimeoutAfterReap(long idleMillis, boolean active) {
+    if (active) {
+      return maxIdleMillis;
+    }
+    return Math.max(minIdleMillis, idleMillis / 2);
+  }
+}
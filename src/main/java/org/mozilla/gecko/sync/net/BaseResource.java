@@ -13,9 +13,14 @@ import java.net.URISyntaxException;
 import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import javax.net.ssl.SSLContext;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -24,6 +29,7 @@ import org.mozilla.gecko.sync.ExtendedJSONObject;
 
 import ch.boye.httpclientandroidlib.Header;
 import ch.boye.httpclientandroidlib.HttpEntity;
+import ch.boye.httpclientandroidlib.HttpEntityEnclosingRequest;
 import ch.boye.httpclientandroidlib.HttpResponse;
 import ch.boye.httpclientandroidlib.HttpVersion;
 import ch.boye.httpclientandroidlib.client.AuthCache;
@@ -43,7 +49,6 @@ import ch.boye.httpclientandroidlib.conn.ssl.SSLSocketFactory;
 import ch.boye.httpclientandroidlib.entity.StringEntity;
 import ch.boye.httpclientandroidlib.impl.client.BasicAuthCache;
 import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
-import ch.boye.httpclientandroidlib.impl.conn.tsccm.ThreadSafeClientConnManager;
 import ch.boye.httpclientandroidlib.params.HttpConnectionParams;
 import ch.boye.httpclientandroidlib.params.HttpParams;
 import ch.boye.httpclientandroidlib.params.HttpProtocolParams;
@@ -56,6 +61,10 @@ import ch.boye.httpclientandroidlib.util.EntityUtils;
  * Implements Basic Auth by asking its delegate for credentials.
  * Communicates with a ResourceDelegate to asynchronously return responses and errors.
  * Exposes simple get/post/put/delete methods.
+ * <p>
+ * By default, requests are made on the calling thread, and delegate callbacks
+ * are invoked before get/post/put/delete return. See
+ * {@link #setAsynchronous(Executor, Executor)} for the alternative.
  */
 public class BaseResource implements Resource {
   private static final String ANDROID_LOOPBACK_IP = "10.0.2.2";
@@ -63,6 +72,16 @@ public class BaseResource implements Resource {
   private static final int MAX_TOTAL_CONNECTIONS     = 20;
   private static final int MAX_CONNECTIONS_PER_ROUTE = 10;
 
+  // Route limits start at MAX_CONNECTIONS_PER_ROUTE, and adapt between these.
+  private static final int MIN_ADAPTIVE_CONNECTIONS_PER_ROUTE = 4;
+  private static final int MAX_ADAPTIVE_CONNECTIONS_PER_ROUTE = MAX_TOTAL_CONNECTIONS;
+  private static final long MIN_IDLE_CONNECTION_MILLIS = 10 * 1000;
+  private static final long MAX_IDLE_CONNECTION_MILLIS = 60 * 1000;
+
+  // No more requests than connections can be in flight, so there's no point
+  // keeping more idle clients than that.
+  private static final HttpClientPool clientPool = new HttpClientPool(MAX_TOTAL_CONNECTIONS);
+
   private boolean retryOnFailedRequest = true;
 
   public static boolean rewriteLocalhost = true;
@@ -72,11 +91,28 @@ public class BaseResource implements Resource {
   protected final URI uri;
   protected BasicHttpContext context;
   protected DefaultHttpClient client;
+  protected HttpClientPool.Configuration clientConfiguration;
   public    ResourceDelegate delegate;
   protected HttpRequestBase request;
   public String charset = "utf-8";
 
   protected static WeakReference<HttpResponseObserver> httpResponseObserver = null;
+  protected static WeakReference<ConnectionPoolObserver> connectionPoolObserver = null;
+  protected static final CopyOnWriteArrayList<HttpTimingObserver> httpTimingObservers = new CopyOnWriteArrayList<HttpTimingObserver>();
+
+  // Which kind of server this resource is on, for timing.
+  protected HttpTiming.Endpoint endpoint = HttpTiming.Endpoint.OTHER;
+
+  // If non-null, requests are made on requestExecutor, and delegate callbacks
+  // are invoked on callbackExecutor.
+  protected Executor requestExecutor;
+  protected Executor callbackExecutor;
+
+  // If true, ask for a gzip or deflate response body, and decode it as it's read.
+  protected boolean acceptCompressedResponses = false;
+  protected volatile ResponseByteCounter responseByteCounter;
+
+  private static ThreadPoolExecutor sharedRequestExecutor;
 
   public BaseResource(String uri) throws URISyntaxException {
     this(uri, rewriteLocalhost);
@@ -108,6 +144,87 @@ public class BaseResource implements Resource {
     }
   }
 
+  /**
+   * Make requests asynchronously: get/post/put/delete return immediately, the
+   * request is made on <code>requestExecutor</code>, and delegate callbacks are
+   * invoked on <code>callbackExecutor</code>.
+   * <p>
+   * A request thread is held only until the response headers arrive; the
+   * response body is read by the delegate on <code>callbackExecutor</code>.
+   * Many requests can share a small request executor: requests beyond its
+   * size wait in its queue rather than each holding a thread.
+   * <p>
+   * Preparing a request (asking the delegate for headers, credentials and
+   * timeouts) happens on <code>requestExecutor</code>.
+   */
+  public void setAsynchronous(Executor requestExecutor, Executor callbackExecutor) {
+    if (requestExecutor == null || callbackExecutor == null) {
+      throw new IllegalArgumentException("Executors must not be null.");
+    }
+    this.requestExecutor = requestExecutor;
+    this.callbackExecutor = callbackExecutor;
+  }
+
+  /**
+   * Make requests asynchronously on the shared request executor, invoking
+   * delegate callbacks on <code>callbackExecutor</code>.
+   */
+  public void setAsynchronous(Executor callbackExecutor) {
+    setAsynchronous(getSharedRequestExecutor(), callbackExecutor);
+  }
+
+  public boolean isAsynchronous() {
+    return requestExecutor != null;
+  }
+
+  /**
+   * The request executor shared by asynchronous resources. It has as many
+   * threads as the connection manager has connections, since no more
+   * requests than that can be in flight at once. Threads are started as
+   * requests arrive, and then kept: letting them exit when idle needs
+   * allowCoreThreadTimeOut, which is API 9.
+   */
+  public static synchronized Executor getSharedRequestExecutor() {
+    if (sharedRequestExecutor == null) {
+      sharedRequestExecutor = new ThreadPoolExecutor(MAX_TOTAL_CONNECTIONS, MAX_TOTAL_CONNECTIONS,
+                                                     30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                                                     new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          // Don't keep the process alive.
+          final Thread thread = new Thread(r, "BaseResource request");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return sharedRequestExecutor;
+  }
+
+  /**
+   * Ask the server to compress response bodies. A compressed body is decoded
+   * as the delegate reads it, so delegates see the same entity they would for
+   * an uncompressed response, without its content length.
+   * <p>
+   * The bytes received and decoded are counted; see
+   * {@link #getResponseByteCounter()}.
+   */
+  public void setAcceptCompressedResponses(boolean acceptCompressedResponses) {
+    this.acceptCompressedResponses = acceptCompressedResponses;
+  }
+
+  public boolean getAcceptCompressedResponses() {
+    return acceptCompressedResponses;
+  }
+
+  /**
+   * @return byte counts for the most recent response, or null if compressed
+   *         responses weren't requested.
+   */
+  public ResponseByteCounter getResponseByteCounter() {
+    return responseByteCounter;
+  }
+
   public static synchronized HttpResponseObserver getHttpResponseObserver() {
     if (httpResponseObserver == null) {
       return null;
@@ -122,6 +239,57 @@ public class BaseResource implements Resource {
     httpResponseObserver = new WeakReference<HttpResponseObserver>(newHttpResponseObserver);
   }
 
+  public static synchronized ConnectionPoolObserver getConnectionPoolObserver() {
+    if (connectionPoolObserver == null) {
+      return null;
+    }
+    return connectionPoolObserver.get();
+  }
+
+  public static synchronized void setConnectionPoolObserver(ConnectionPoolObserver newConnectionPoolObserver) {
+    if (connectionPoolObserver != null) {
+      connectionPoolObserver.clear();
+    }
+    connectionPoolObserver = new WeakReference<ConnectionPoolObserver>(newConnectionPoolObserver);
+  }
+
+  /**
+   * Time every request made by any resource, reporting to
+   * <code>observer</code> as each finishes. Adding an observer twice has no
+   * further effect.
+   */
+  public static void addHttpTimingObserver(HttpTimingObserver observer) {
+    if (observer == null) {
+      throw new IllegalArgumentException("observer must not be null");
+    }
+    httpTimingObservers.addIfAbsent(observer);
+  }
+
+  public static void removeHttpTimingObserver(HttpTimingObserver observer) {
+    httpTimingObservers.remove(observer);
+  }
+
+  protected static void notifyHttpTimingObservers(HttpTiming timing) {
+    for (HttpTimingObserver observer : httpTimingObservers) {
+      try {
+        observer.observeHttpTiming(timing);
+      } catch (Exception e) {
+        Logger.warn(LOG_TAG, "Got exception observing HTTP timing.", e);
+      }
+    }
+  }
+
+  public void setEndpoint(HttpTiming.Endpoint endpoint) {
+    if (endpoint == null) {
+      throw new IllegalArgumentException("endpoint must not be null");
+    }
+    this.endpoint = endpoint;
+  }
+
+  public HttpTiming.Endpoint getEndpoint() {
+    return endpoint;
+  }
+
   @Override
   public URI getURI() {
     return this.uri;
@@ -154,9 +322,20 @@ public class BaseResource implements Resource {
   protected void prepareClient() throws KeyManagementException, NoSuchAlgorithmException, GeneralSecurityException {
     context = new BasicHttpContext();
 
-    // We could reuse these client instances, except that we mess around
-    // with their parameters… so we'd need a pool of some kind.
-    client = new DefaultHttpClient(getConnectionManager());
+    // Pooled clients arrive with their timeouts and charset already set.
+    final HttpClientPool pool = getClientPool();
+    if (pool != null) {
+      clientConfiguration = new HttpClientPool.Configuration(delegate.connectionTimeout(), delegate.socketTimeout(), charset);
+      client = pool.acquire(getConnectionManager(), clientConfiguration);
+    } else {
+      client = new DefaultHttpClient(getConnectionManager());
+      HttpParams params = client.getParams();
+      HttpConnectionParams.setConnectionTimeout(params, delegate.connectionTimeout());
+      HttpConnectionParams.setSoTimeout(params, delegate.socketTimeout());
+      HttpConnectionParams.setStaleCheckingEnabled(params, false);
+      HttpProtocolParams.setContentCharset(params, charset);
+      HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+    }
 
     // TODO: Eventually we should use Apache HttpAsyncClient. It's not out of alpha yet.
     // Until then, we synchronously make the request, then invoke our delegate's callback.
@@ -170,14 +349,25 @@ public class BaseResource implements Resource {
     }
 
     addAuthCacheToContext(request, context);
-
-    HttpParams params = client.getParams();
-    HttpConnectionParams.setConnectionTimeout(params, delegate.connectionTimeout());
-    HttpConnectionParams.setSoTimeout(params, delegate.socketTimeout());
-    HttpConnectionParams.setStaleCheckingEnabled(params, false);
-    HttpProtocolParams.setContentCharset(params, charset);
-    HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
     delegate.addHeaders(request, client);
+
+    if (acceptCompressedResponses) {
+      request.setHeader("Accept-Encoding", ResponseByteCounter.ACCEPT_ENCODING);
+    }
+  }
+
+  /**
+   * Override this to change how clients are obtained.
+   *
+   * @return the pool to take clients from, or null to create a client for
+   *         every request.
+   */
+  protected HttpClientPool getClientPool() {
+    return clientPool;
+  }
+
+  public static HttpClientPool getSharedClientPool() {
+    return clientPool;
   }
 
   private static Object connManagerMonitor = new Object();
@@ -185,13 +375,13 @@ public class BaseResource implements Resource {
 
   // Call within a synchronized block on connManagerMonitor.
   private static ClientConnectionManager enableTLSConnectionManager() throws KeyManagementException, NoSuchAlgorithmException  {
-    SSLContext sslContext = SSLContext.getInstance("TLS");
-    sslContext.init(null, null, new SecureRandom());
-    SSLSocketFactory sf = new TLSSocketFactory(sslContext);
+    SSLSocketFactory sf = new TLSSocketFactory(TLSSocketFactory.getSharedSSLContext());
     SchemeRegistry schemeRegistry = new SchemeRegistry();
     schemeRegistry.register(new Scheme("https", 443, sf));
     schemeRegistry.register(new Scheme("http", 80, new PlainSocketFactory()));
-    ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(schemeRegistry);
+    AdaptiveConnectionPoolPolicy policy = new AdaptiveConnectionPoolPolicy(MIN_ADAPTIVE_CONNECTIONS_PER_ROUTE, MAX_ADAPTIVE_CONNECTIONS_PER_ROUTE,
+                                                                           MIN_IDLE_CONNECTION_MILLIS, MAX_IDLE_CONNECTION_MILLIS);
+    InstrumentedClientConnManager cm = new InstrumentedClientConnManager(schemeRegistry, policy);
 
     cm.setMaxTotal(MAX_TOTAL_CONNECTIONS);
     cm.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
@@ -210,8 +400,26 @@ public class BaseResource implements Resource {
     }
   }
 
+  /**
+   * @return what the current connection manager has done, or null if there
+   *         isn't one.
+   */
+  public static ConnectionPoolMetrics getConnectionPoolMetrics() {
+    ClientConnectionManager connectionManager;
+    synchronized (connManagerMonitor) {
+      connectionManager = connManager;
+    }
+    if (!(connectionManager instanceof InstrumentedClientConnManager)) {
+      return null;
+    }
+    return ((InstrumentedClientConnManager) connectionManager).getMetrics();
+  }
+
   /**
    * Do some cleanup, so we don't need the stale connection check.
+   * <p>
+   * This also closes idle connections and adapts the connection limits to
+   * the requests made since the last call.
    */
   public static void closeExpiredConnections() {
     ClientConnectionManager connectionManager;
@@ -222,6 +430,10 @@ public class BaseResource implements Resource {
       return;
     }
     Logger.trace(LOG_TAG, "Closing expired connections.");
+    if (connectionManager instanceof InstrumentedClientConnManager) {
+      ((InstrumentedClientConnManager) connectionManager).reap();
+      return;
+    }
     connectionManager.closeExpiredConnections();
   }
 
@@ -231,84 +443,156 @@ public class BaseResource implements Resource {
       connectionManager = connManager;
       connManager = null;
     }
+    clientPool.clear();
     if (connectionManager == null) {
       return;
     }
-    Logger.debug(LOG_TAG, "Shutting down connection manager.");
+    Logger.debug(LOG_TAG, "Shutting down connection manager. TLS sessions: " + TLSSocketFactory.getSessionCache() + ".");
+    if (connectionManager instanceof InstrumentedClientConnManager) {
+      Logger.debug(LOG_TAG, "Connection pool: " + ((InstrumentedClientConnManager) connectionManager).getMetrics() + ".");
+    }
     connectionManager.shutdown();
   }
 
-  private void execute() {
+  /**
+   * Make the prepared request, notifying <code>callbacks</code> of the outcome.
+   */
+  private void execute(ResourceDelegate callbacks) {
+    final HttpTiming timing = HttpTiming.begin(endpoint, request.getMethod(), requestBytes(request));
     HttpResponse response;
     try {
       response = client.execute(request, context);
       Logger.debug(LOG_TAG, "Response: " + response.getStatusLine().toString());
     } catch (ClientProtocolException e) {
-      delegate.handleHttpProtocolException(e);
+      timing.fail();
+      callbacks.handleHttpProtocolException(e);
       return;
     } catch (IOException e) {
+      timing.fail();
       Logger.debug(LOG_TAG, "I/O exception returned from execute.");
       if (!retryOnFailedRequest) {
-        delegate.handleHttpIOException(e);
+        callbacks.handleHttpIOException(e);
       } else {
-        retryRequest();
+        retryRequest(callbacks);
       }
       return;
     } catch (Exception e) {
+      timing.fail();
       // Bug 740731: Don't let an exception fall through. Wrapping isn't
       // optimal, but often the exception is treated as an Exception anyway.
       if (!retryOnFailedRequest) {
         // Bug 769671: IOException(Throwable cause) was added only in API level 9.
         final IOException ex = new IOException();
         ex.initCause(e);
-        delegate.handleHttpIOException(ex);
+        callbacks.handleHttpIOException(ex);
       } else {
-        retryRequest();
+        retryRequest(callbacks);
       }
       return;
     }
 
+    // Before decoding, so that the bytes counted are those on the wire.
+    timing.headersReceived(response);
+
+    if (acceptCompressedResponses) {
+      final ResponseByteCounter counter = new ResponseByteCounter();
+      counter.decode(response);
+      responseByteCounter = counter;
+    }
+
     // Don't retry if the observer or delegate throws!
     HttpResponseObserver observer = getHttpResponseObserver();
     if (observer != null) {
       observer.observeHttpResponse(response);
     }
-    delegate.handleHttpResponse(response);
+    try {
+      callbacks.handleHttpResponse(response);
+    } finally {
+      // Asynchronous delegates read the body later, on another thread; their
+      // timing finishes when they do.
+      if (!(callbacks instanceof ExecutorResourceDelegate)) {
+        timing.finish();
+      }
+    }
   }
 
-  private void retryRequest() {
+  protected static long requestBytes(HttpRequestBase request) {
+    if (!(request instanceof HttpEntityEnclosingRequest)) {
+      return 0;
+    }
+    final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+    return entity == null ? 0 : Math.max(0, entity.getContentLength());
+  }
+
+  private void retryRequest(ResourceDelegate callbacks) {
     // Only retry once.
     retryOnFailedRequest = false;
     Logger.debug(LOG_TAG, "Retrying request...");
-    this.execute();
+    this.execute(callbacks);
   }
 
-  private void go(HttpRequestBase request) {
-   if (delegate == null) {
+  private void go(final HttpRequestBase request) {
+    if (delegate == null) {
       throw new IllegalArgumentException("No delegate provided.");
     }
+    if (requestExecutor == null) {
+      go(request, delegate);
+      return;
+    }
+    goAsynchronously(request, callbackExecutor);
+  }
+
+  private void goAsynchronously(final HttpRequestBase request, Executor callbackExecutor) {
+    final ResourceDelegate callbacks = new ExecutorResourceDelegate(delegate, callbackExecutor);
+    requestExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        go(request, callbacks);
+      }
+    });
+  }
+
+  /**
+   * Prepare and make <code>request</code> on this thread, notifying
+   * <code>callbacks</code> of the outcome.
+   */
+  private void go(HttpRequestBase request, ResourceDelegate callbacks) {
     this.request = request;
+    this.client = null;
+    this.clientConfiguration = null;
     try {
       this.prepareClient();
     } catch (KeyManagementException e) {
       Logger.error(LOG_TAG, "Couldn't prepare client.", e);
-      delegate.handleTransportException(e);
+      callbacks.handleTransportException(e);
       return;
     } catch (NoSuchAlgorithmException e) {
       Logger.error(LOG_TAG, "Couldn't prepare client.", e);
-      delegate.handleTransportException(e);
+      callbacks.handleTransportException(e);
       return;
     } catch (GeneralSecurityException e) {
       Logger.error(LOG_TAG, "Couldn't prepare client.", e);
-      delegate.handleTransportException(e);
+      callbacks.handleTransportException(e);
       return;
     } catch (Exception e) {
       // Bug 740731: Don't let an exception fall through. Wrapping isn't
       // optimal, but often the exception is treated as an Exception anyway.
-      delegate.handleTransportException(new GeneralSecurityException(e));
+      callbacks.handleTransportException(new GeneralSecurityException(e));
       return;
     }
-    this.execute();
+
+    // A delegate can issue another request from its callback, replacing
+    // these fields, so hold on to the client this request used.
+    final DefaultHttpClient used = this.client;
+    final HttpClientPool.Configuration usedConfiguration = this.clientConfiguration;
+    try {
+      this.execute(callbacks);
+    } finally {
+      final HttpClientPool pool = getClientPool();
+      if (pool != null) {
+        pool.release(used, usedConfiguration);
+      }
+    }
   }
 
   @Override
@@ -322,9 +606,40 @@ public class BaseResource implements Resource {
    * after callbacks have been invoked.
    */
   public void getBlocking() {
-    // Until we use the asynchronous Apache HttpClient, we can simply call
-    // through.
-    this.get();
+    if (requestExecutor == null) {
+      this.get();
+      return;
+    }
+
+    // Each request produces exactly one callback; wait for it to finish.
+    final CountDownLatch done = new CountDownLatch(1);
+    final Executor callbacks = callbackExecutor;
+    final Executor signalling = new Executor() {
+      @Override
+      public void execute(final Runnable command) {
+        callbacks.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              command.run();
+            } finally {
+              done.countDown();
+            }
+          }
+        });
+      }
+    };
+    if (delegate == null) {
+      throw new IllegalArgumentException("No delegate provided.");
+    }
+    Logger.debug(LOG_TAG, "HTTP GET " + this.uri.toASCIIString());
+    goAsynchronously(new HttpGet(this.uri), signalling);
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      Logger.warn(LOG_TAG, "Interrupted waiting for GET to complete.", e);
+      Thread.currentThread().interrupt();
+    }
   }
 
   @Override
@@ -0,0 +1,182 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import ch.boye.httpclientandroidlib.conn.routing.HttpRoute;
+
+/**
+ * Counts what a connection manager did for each route: connections leased,
+ * how many of those were reused, how many had to wait and for how long, and
+ * how many connections are in use now. Connections closed for being idle or
+ * expired are counted across all routes.
+ * <p>
+ * Requests lease and release connections concurrently, so all access is
+ * synchronized.
+ */
+public class ConnectionPoolMetrics implements ConnectionPoolObserver {
+  /**
+   * A snapshot of one route's counts.
+   */
+  public static class RouteMetrics {
+    public long leases;
+    public long reused;
+    public long waits;
+    public long waitMillis;
+    public int inFlight;
+    public int peakInFlight;
+
+    // The most connections in use at once since the policy last looked.
+    protected int windowPeakInFlight;
+
+    public RouteMetrics() {
+    }
+
+    public RouteMetrics(RouteMetrics other) {
+      this.leases = other.leases;
+      this.reused = other.reused;
+      this.waits = other.waits;
+      this.waitMillis = other.waitMillis;
+      this.inFlight = other.inFlight;
+      this.peakInFlight = other.peakInFlight;
+      this.windowPeakInFlight = other.windowPeakInFlight;
+    }
+
+    /**
+     * @return the fraction of leases that reused an open connection.
+     */
+    public double getReuseRatio() {
+      if (leases == 0) {
+        return 0.0;
+      }
+      return ((double) reused) / leases;
+    }
+
+    @Override
+    public String toString() {
+      return leases + " leases, " + reused + " reused, " + waits + " waited " + waitMillis + "ms, " +
+             inFlight + " in flight (peak " + peakInFlight + ")";
+    }
+  }
+
+  protected final Map<HttpRoute, RouteMetrics> routes = new HashMap<HttpRoute, RouteMetrics>();
+  protected long idleEvictions;
+
+  // Call within a synchronized block.
+  protected RouteMetrics routeMetrics(HttpRoute route) {
+    RouteMetrics metrics = routes.get(route);
+    if (metrics == null) {
+      metrics = new RouteMetrics();
+      routes.put(route, metrics);
+    }
+    return metrics;
+  }
+
+  @Override
+  public synchronized void observeConnectionLease(HttpRoute route, boolean reused, boolean waited, long waitMillis) {
+    final RouteMetrics metrics = routeMetrics(route);
+    metrics.leases += 1;
+    if (reused) {
+      metrics.reused += 1;
+    }
+    if (waited) {
+      metrics.waits += 1;
+    }
+    metrics.waitMillis += waitMillis;
+    metrics.inFlight += 1;
+    metrics.peakInFlight = Math.max(metrics.peakInFlight, metrics.inFlight);
+    metrics.windowPeakInFlight = Math.max(metrics.windowPeakInFlight, metrics.inFlight);
+  }
+
+  @Override
+  public synchronized void observeConnectionRelease(HttpRoute route, boolean reusable) {
+    final RouteMetrics metrics = routeMetrics(route);
+    if (metrics.inFlight > 0) {
+      metrics.inFlight -= 1;
+    }
+  }
+
+  @Override
+  public synchronized void observeIdleConnectionsClosed(int closed, long idleTimeoutMillis) {
+    idleEvictions += closed;
+  }
+
+  @Override
+  public void observeRouteLimit(HttpRoute route, int maxConnections) {
+    // Nothing to count.
+  }
+
+  /**
+   * @return the number of connections <code>route</code> has in use.
+   */
+  public synchronized int getInFlight(HttpRoute route) {
+    final RouteMetrics metrics = routes.get(route);
+    return metrics == null ? 0 : metrics.inFlight;
+  }
+
+  /**
+   * @return the number of connections in use across all routes.
+   */
+  public synchronized int getInFlight() {
+    int inFlight = 0;
+    for (RouteMetrics metrics : routes.values()) {
+      inFlight += metrics.inFlight;
+    }
+    return inFlight;
+  }
+
+  /**
+   * @return a copy of <code>route</code>'s counts, or null if it has never
+   *         leased a connection.
+   */
+  public synchronized RouteMetrics getRouteMetrics(HttpRoute route) {
+    final RouteMetrics metrics = routes.get(route);
+    return metrics == null ? null : new RouteMetrics(metrics);
+  }
+
+  /**
+   * @return a copy of every route's counts.
+   */
+  public synchronized Map<HttpRoute, RouteMetrics> getRouteMetrics() {
+    final Map<HttpRoute, RouteMetrics> out = new HashMap<HttpRoute, RouteMetrics>();
+    for (Entry<HttpRoute, RouteMetrics> entry : routes.entrySet()) {
+      out.put(entry.getKey(), new RouteMetrics(entry.getValue()));
+    }
+    return out;
+  }
+
+  public synchronized long getIdleEvictions() {
+    return idleEvictions;
+  }
+
+  /**
+   * Start a new window for the adaptive policy.
+   *
+   * @return the most connections each route had in use at once since the
+   *         last window began.
+   */
+  public synchronized Map<HttpRoute, Integer> takeWindowPeaks() {
+    final Map<HttpRoute, Integer> out = new HashMap<HttpRoute, Integer>();
+    for (Entry<HttpRoute, RouteMetrics> entry : routes.entrySet()) {
+      final RouteMetrics metrics = entry.getValue();
+      out.put(entry.getKey(), Integer.valueOf(metrics.windowPeakInFlight));
+      metrics.windowPeakInFlight = metrics.inFlight;
+    }
+    return out;
+  }
+
+  @Override
+  public synchronized String toString() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(idleEvictions).append(" idle connections closed");
+    for (Entry<HttpRoute, RouteMetrics> entry : routes.entrySet()) {
+      sb.append("; ").append(entry.getKey()).append(": ").append(entry.getValue());
+    }
+    return sb.toString();
+  }
+}
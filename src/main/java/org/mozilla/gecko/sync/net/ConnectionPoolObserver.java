@@ -0,0 +1,48 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import ch.boye.httpclientandroidlib.conn.routing.HttpRoute;
+
+/**
+ * Observe how the shared connection manager hands out connections.
+ * <p>
+ * Observers are called on the threads making requests, so they should be
+ * quick and thread-safe.
+ */
+public interface ConnectionPoolObserver {
+  /**
+   * A request was given a connection to <code>route</code>.
+   *
+   * @param reused
+   *          true if the connection was already open.
+   * @param waited
+   *          true if the route or the pool was at its limit when the
+   *          connection was asked for.
+   * @param waitMillis
+   *          how long the request waited for the connection.
+   */
+  public void observeConnectionLease(HttpRoute route, boolean reused, boolean waited, long waitMillis);
+
+  /**
+   * A request gave back its connection to <code>route</code>.
+   *
+   * @param reusable
+   *          true if the connection was kept for another request.
+   */
+  public void observeConnectionRelease(HttpRoute route, boolean reusable);
+
+  /**
+   * Connections that had expired, or been idle for longer than
+   * <code>idleTimeoutMillis</code>, were closed.
+   */
+  public void observeIdleConnectionsClosed(int closed, long idleTimeoutMillis);
+
+  /**
+   * The most connections that may be open to <code>route</code> at once
+   * changed.
+   */
+  public void observeRouteLimit(HttpRoute route, int maxConnections);
+}
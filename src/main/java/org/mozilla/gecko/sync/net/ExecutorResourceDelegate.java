@@ -0,0 +1,95 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Executor;
+
+import ch.boye.httpclientandroidlib.HttpResponse;
+import ch.boye.httpclientandroidlib.client.ClientProtocolException;
+import ch.boye.httpclientandroidlib.client.methods.HttpRequestBase;
+import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
+
+/**
+ * Wraps a <code>ResourceDelegate</code> so that its response and error
+ * callbacks run on an executor.
+ * <p>
+ * Request augmentation and connection parameters are still asked for
+ * directly, on the thread preparing the request.
+ */
+public class ExecutorResourceDelegate implements ResourceDelegate {
+  protected final ResourceDelegate inner;
+  protected final Executor executor;
+
+  public ExecutorResourceDelegate(ResourceDelegate inner, Executor executor) {
+    this.inner = inner;
+    this.executor = executor;
+  }
+
+  public ResourceDelegate getInnerDelegate() {
+    return inner;
+  }
+
+  @Override
+  public AuthHeaderProvider getAuthHeaderProvider() {
+    return inner.getAuthHeaderProvider();
+  }
+
+  @Override
+  public void addHeaders(HttpRequestBase request, DefaultHttpClient client) {
+    inner.addHeaders(request, client);
+  }
+
+  @Override
+  public int connectionTimeout() {
+    return inner.connectionTimeout();
+  }
+
+  @Override
+  public int socketTimeout() {
+    return inner.socketTimeout();
+  }
+
+  @Override
+  public void handleHttpResponse(final HttpResponse response) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        inner.handleHttpResponse(response);
+      }
+    });
+  }
+
+  @Override
+  public void handleHttpProtocolException(final ClientProtocolException e) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        inner.handleHttpProtocolException(e);
+      }
+    });
+  }
+
+  @Override
+  public void handleHttpIOException(final IOException e) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        inner.handleHttpIOException(e);
+      }
+    });
+  }
+
+  @Override
+  public void handleTransportException(final GeneralSecurityException e) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        inner.handleTransportException(e);
+      }
+    });
+  }
+}
@@ -5,9 +5,10 @@
 package org.mozilla.gecko.sync.net;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
+import java.security.DigestOutputStream;
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
@@ -257,20 +258,22 @@ public class HawkAuthHeaderProvider implements AuthHeaderProvider {
     digest.update(("hawk." + HAWK_HEADER_VERSION + ".payload\n").getBytes("UTF-8"));
     digest.update(getBaseContentType(entity.getContentType()).getBytes("UTF-8"));
     digest.update("\n".getBytes("UTF-8"));
-    InputStream stream = entity.getContent();
-    try {
-      int numRead;
-      byte[] buffer = new byte[4096];
-      while (-1 != (numRead = stream.read(buffer))) {
-        if (numRead > 0) {
-          digest.update(buffer, 0, numRead);
-        }
+    // Hash what writeTo sends, which for a compressed entity is the compressed
+    // body. Not every entity implements getContent.
+    final OutputStream sink = new DigestOutputStream(new OutputStream() {
+      @Override
+      public void write(int b) {
+        // Discard; the digest has seen it.
       }
-      digest.update("\n".getBytes("UTF-8")); // Trailing newline is specified by Hawk.
-      return digest.digest();
-    } finally {
-      stream.close();
-    }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        // Discard; the digest has seen it.
+      }
+    }, digest);
+    entity.writeTo(sink);
+    digest.update("\n".getBytes("UTF-8")); // Trailing newline is specified by Hawk.
+    return digest.digest();
   }
 
   /**
@@ -0,0 +1,208 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mozilla.gecko.background.common.log.Logger;
+
+import ch.boye.httpclientandroidlib.HttpVersion;
+import ch.boye.httpclientandroidlib.conn.ClientConnectionManager;
+import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
+import ch.boye.httpclientandroidlib.params.BasicHttpParams;
+import ch.boye.httpclientandroidlib.params.HttpConnectionParams;
+import ch.boye.httpclientandroidlib.params.HttpParams;
+import ch.boye.httpclientandroidlib.params.HttpProtocolParams;
+import ch.boye.httpclientandroidlib.params.SyncBasicHttpParams;
+
+/**
+ * Hands out <code>DefaultHttpClient</code> instances that share a connection
+ * manager and are already configured with a given set of timeouts and charset.
+ * <p>
+ * Delegates are free to change a client's parameters while they hold it (for
+ * example, to set a user agent), so when a client is released its parameters
+ * are rebuilt for its configuration, and its cookies and credentials are
+ * cleared. Unlike constructing a client, that doesn't load HttpClient's
+ * version information from a resource every time.
+ * <p>
+ * A client must be used by only one request at a time, and released when
+ * that request, including any retry, has completed.
+ */
+public class HttpClientPool {
+  private static final String LOG_TAG = "HttpClientPool";
+
+  /**
+   * The parameters that distinguish one pooled client from another.
+   */
+  public static class Configuration {
+    public final int connectionTimeout;
+    public final int socketTimeout;
+    public final String charset;
+
+    public Configuration(int connectionTimeout, int socketTimeout, String charset) {
+      this.connectionTimeout = connectionTimeout;
+      this.socketTimeout = socketTimeout;
+      this.charset = charset;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Configuration)) {
+        return false;
+      }
+      final Configuration other = (Configuration) o;
+      return connectionTimeout == other.connectionTimeout &&
+             socketTimeout == other.socketTimeout &&
+             (charset == null ? other.charset == null : charset.equals(other.charset));
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * connectionTimeout + socketTimeout) + (charset == null ? 0 : charset.hashCode());
+    }
+
+    /**
+     * The same parameters as <code>DefaultHttpClient</code>'s defaults, plus
+     * our own. <code>HttpParams.copy</code> shares state between copies, so
+     * every client gets parameters built from scratch.
+     */
+    protected HttpParams createParams() {
+      final HttpParams params = new SyncBasicHttpParams();
+      HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+      HttpConnectionParams.setTcpNoDelay(params, true);
+      HttpConnectionParams.setSocketBufferSize(params, 8192);
+      HttpProtocolParams.setUserAgent(params, getDefaultUserAgent());
+      HttpConnectionParams.setConnectionTimeout(params, connectionTimeout);
+      HttpConnectionParams.setSoTimeout(params, socketTimeout);
+      HttpConnectionParams.setStaleCheckingEnabled(params, false);
+      HttpProtocolParams.setContentCharset(params, charset);
+      return params;
+    }
+  }
+
+  private static String defaultUserAgent;
+
+  /**
+   * <code>DefaultHttpClient</code> loads its version information from a
+   * resource to build its default user agent; only do that once.
+   */
+  protected static synchronized String getDefaultUserAgent() {
+    if (defaultUserAgent == null) {
+      final HttpParams params = new BasicHttpParams();
+      DefaultHttpClient.setDefaultHttpParams(params);
+      defaultUserAgent = HttpProtocolParams.getUserAgent(params);
+    }
+    return defaultUserAgent;
+  }
+
+  protected static class Entry {
+    // A stack: the most recently released client is at the end.
+    public final ArrayList<DefaultHttpClient> idle = new ArrayList<DefaultHttpClient>();
+  }
+
+  protected final int maxIdlePerConfiguration;
+
+  protected final Map<Configuration, Entry> entries = new HashMap<Configuration, Entry>();
+  protected ClientConnectionManager connectionManager;
+
+  protected long created = 0;
+  protected long reused = 0;
+
+  /**
+   * @param maxIdlePerConfiguration
+   *          the most released clients to keep for each configuration.
+   */
+  public HttpClientPool(int maxIdlePerConfiguration) {
+    this.maxIdlePerConfiguration = maxIdlePerConfiguration;
+  }
+
+  /**
+   * Get a client for <code>configuration</code> that uses
+   * <code>connectionManager</code>. Pass it to
+   * {@link #release(DefaultHttpClient, Configuration)} when done; a client
+   * that isn't released is simply garbage collected.
+   */
+  public synchronized DefaultHttpClient acquire(ClientConnectionManager connectionManager, Configuration configuration) {
+    if (connectionManager != this.connectionManager) {
+      // The old manager has been shut down; its clients are no use.
+      clear();
+      this.connectionManager = connectionManager;
+    }
+
+    Entry entry = entries.get(configuration);
+    if (entry == null) {
+      entry = new Entry();
+      entries.put(configuration, entry);
+    }
+
+    final int idleCount = entry.idle.size();
+    DefaultHttpClient client = (idleCount == 0) ? null : entry.idle.remove(idleCount - 1);
+    if (client == null) {
+      client = new DefaultHttpClient(connectionManager, configuration.createParams());
+      created += 1;
+    } else {
+      reused += 1;
+    }
+    return client;
+  }
+
+  /**
+   * Return a client obtained from
+   * {@link #acquire(ClientConnectionManager, Configuration)} with the same
+   * <code>configuration</code>.
+   */
+  public synchronized void release(DefaultHttpClient client, Configuration configuration) {
+    if (client == null || configuration == null) {
+      return;
+    }
+    if (client.getConnectionManager() != connectionManager) {
+      // Acquired before the pool was cleared.
+      return;
+    }
+    final Entry entry = entries.get(configuration);
+    if (entry == null || entry.idle.size() >= maxIdlePerConfiguration) {
+      return;
+    }
+    // Nothing learned during one request should leak into the next.
+    client.setParams(configuration.createParams());
+    client.getCookieStore().clear();
+    client.getCredentialsProvider().clear();
+    entry.idle.add(client);
+  }
+
+  /**
+   * Drop every idle client. Clients currently acquired won't be taken back.
+   */
+  public synchronized void clear() {
+    if (!entries.isEmpty()) {
+      Logger.debug(LOG_TAG, "Clearing pool: " + this);
+    }
+    entries.clear();
+    connectionManager = null;
+  }
+
+  public synchronized int getIdleCount() {
+    int idle = 0;
+    for (Entry entry : entries.values()) {
+      idle += entry.idle.size();
+    }
+    return idle;
+  }
+
+  public synchronized long getCreatedCount() {
+    return created;
+  }
+
+  public synchronized long getReusedCount() {
+    return reused;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "created " + created + " clients; reused " + reused + "; " + getIdleCount() + " idle.";
+  }
+}
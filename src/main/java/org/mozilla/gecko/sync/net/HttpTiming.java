@@ -0,0 +1,294 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.boye.httpclientandroidlib.HttpEntity;
+import ch.boye.httpclientandroidlib.HttpResponse;
+import ch.boye.httpclientandroidlib.entity.HttpEntityWrapper;
+
+/**
+ * How long one HTTP request took, phase by phase, and how many bytes it sent
+ * and received.
+ * <p>
+ * A request is timed from when it's handed to the client. DNS lookup,
+ * connecting and the TLS handshake are only timed if the request opened a
+ * new connection; they are -1 if it reused one. The first byte is when the
+ * response headers arrived. The total is when the response body was read to
+ * its end or closed, or, for synchronous requests, when the delegate's
+ * callback returned, whichever came first.
+ * <p>
+ * Connections are opened on the thread making the request, so the socket
+ * factories find the timing to update through {@link #current()}.
+ */
+public class HttpTiming {
+  /**
+   * The kinds of server we make requests to.
+   */
+  public enum Endpoint {
+    STORAGE,
+    TOKEN,
+    FXA,
+    BAGHEERA,
+    OTHER
+  }
+
+  private static final ThreadLocal<HttpTiming> current = new ThreadLocal<HttpTiming>();
+
+  private static final int BUFFER_SIZE = 8192;
+
+  public final Endpoint endpoint;
+  public final String method;
+  public final long requestBytes;
+
+  protected final long startNanos;
+  protected volatile long dnsNanos = -1;
+  protected volatile long openNanos = -1;
+  protected volatile long tlsNanos = -1;
+  protected volatile long firstByteNanos = -1;
+  protected volatile long totalNanos = -1;
+  protected volatile int statusCode = -1;
+  protected final AtomicLong responseBytes = new AtomicLong(0);
+  protected final AtomicBoolean finished = new AtomicBoolean(false);
+
+  protected HttpTiming(Endpoint endpoint, String method, long requestBytes) {
+    this.endpoint = endpoint;
+    this.method = method;
+    this.requestBytes = requestBytes;
+    this.startNanos = System.nanoTime();
+  }
+
+  /**
+   * Start timing a request made on this thread.
+   *
+   * @param requestBytes
+   *          the length of the request body, or 0 if there isn't one.
+   */
+  public static HttpTiming begin(Endpoint endpoint, String method, long requestBytes) {
+    final HttpTiming timing = new HttpTiming(endpoint, method, requestBytes);
+    current.set(timing);
+    return timing;
+  }
+
+  /**
+   * @return the timing of the request being made on this thread, or null.
+   */
+  public static HttpTiming current() {
+    return current.get();
+  }
+
+  public static void recordDNS(long nanos) {
+    final HttpTiming timing = current.get();
+    if (timing != null) {
+      timing.dnsNanos = Math.max(0, timing.dnsNanos) + nanos;
+    }
+  }
+
+  /**
+   * Record how long opening a connection took, including DNS lookup and the
+   * TLS handshake.
+   */
+  public static void recordOpen(long nanos) {
+    final HttpTiming timing = current.get();
+    if (timing != null) {
+      timing.openNanos = nanos;
+    }
+  }
+
+  public static void recordTLS(long nanos) {
+    final HttpTiming timing = current.get();
+    if (timing != null) {
+      timing.tlsNanos = Math.max(0, timing.tlsNanos) + nanos;
+    }
+  }
+
+  protected static long millis(long nanos) {
+    return nanos < 0 ? -1 : nanos / 1000000;
+  }
+
+  public long getDNSMillis() {
+    return millis(dnsNanos);
+  }
+
+  /**
+   * @return how long connecting took, excluding DNS lookup and the TLS
+   *         handshake, or -1 if the request reused a connection.
+   */
+  public long getConnectMillis() {
+    if (openNanos < 0) {
+      return -1;
+    }
+    return millis(Math.max(0, openNanos - Math.max(0, dnsNanos) - Math.max(0, tlsNanos)));
+  }
+
+  public long getTLSMillis() {
+    return millis(tlsNanos);
+  }
+
+  public long getFirstByteMillis() {
+    return millis(firstByteNanos);
+  }
+
+  public long getTotalMillis() {
+    return millis(totalNanos);
+  }
+
+  /**
+   * @return the response's status code, or -1 if the request failed.
+   */
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  public boolean isFailure() {
+    return statusCode < 0;
+  }
+
+  public long getResponseBytes() {
+    return responseBytes.get();
+  }
+
+  /**
+   * The request failed before a response arrived.
+   */
+  public void fail() {
+    current.remove();
+    finish();
+  }
+
+  /**
+   * The response headers arrived. Time the rest of the request by replacing
+   * <code>response</code>'s entity with one that notices when it's been read.
+   */
+  public void headersReceived(HttpResponse response) {
+    current.remove();
+    firstByteNanos = System.nanoTime() - startNanos;
+    statusCode = response.getStatusLine().getStatusCode();
+    final HttpEntity entity = response.getEntity();
+    if (entity == null) {
+      finish();
+      return;
+    }
+    response.setEntity(new TimingEntity(entity));
+  }
+
+  /**
+   * The request is over: report it, if that hasn't been done already.
+   */
+  public void finish() {
+    if (!finished.compareAndSet(false, true)) {
+      return;
+    }
+    totalNanos = System.nanoTime() - startNanos;
+    BaseResource.notifyHttpTimingObservers(this);
+  }
+
+  @Override
+  public String toString() {
+    return method + " " + endpoint + " " + statusCode + ": dns " + getDNSMillis() + "ms, connect " + getConnectMillis() +
+           "ms, tls " + getTLSMillis() + "ms, first byte " + getFirstByteMillis() + "ms, total " + getTotalMillis() +
+           "ms; " + requestBytes + " bytes sent, " + responseBytes.get() + " received";
+  }
+
+  /**
+   * Counts the bytes of a response body as they're read, and finishes the
+   * timing when the body has been read or closed.
+   */
+  protected class TimingEntity extends HttpEntityWrapper {
+    private InputStream content;
+
+    public TimingEntity(HttpEntity wrapped) {
+      super(wrapped);
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      // Streaming entities must hand out the same stream every time.
+      if (content != null && wrappedEntity.isStreaming()) {
+        return content;
+      }
+      content = new TimingInputStream(wrappedEntity.getContent(), wrappedEntity.getContentLength());
+      return content;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      final InputStream in = getContent();
+      try {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+          out.write(buffer, 0, n);
+        }
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  protected class TimingInputStream extends FilterInputStream {
+    protected final long contentLength;
+
+    public TimingInputStream(InputStream in, long contentLength) {
+      super(in);
+      this.contentLength = contentLength;
+    }
+
+    protected int counted(int n) {
+      if (n < 0) {
+        finish();
+      } else {
+        responseBytes.addAndGet(n);
+      }
+      return n;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int b = super.read();
+      if (b < 0) {
+        finish();
+      } else {
+        responseBytes.incrementAndGet();
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return counted(super.read(b, off, len));
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      final long skipped = super.skip(n);
+      if (skipped > 0) {
+        responseBytes.addAndGet(skipped);
+      }
+      return skipped;
+    }
+
+    /**
+     * Closing a body of known length reads whatever's left of it, uncounted.
+     */
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (contentLength > responseBytes.get()) {
+          responseBytes.set(contentLength);
+        }
+        finish();
+      }
+    }
+  }
+}
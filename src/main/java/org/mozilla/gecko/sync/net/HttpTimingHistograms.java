@@ -0,0 +1,115 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import java.util.EnumMap;
+import java.util.Map.Entry;
+
+import org.mozilla.gecko.sync.net.HttpTiming.Endpoint;
+
+/**
+ * Aggregates the timings of HTTP requests into a histogram per phase for
+ * each kind of endpoint, with request, failure and byte counts.
+ * <p>
+ * Install one with {@link BaseResource#addHttpTimingObserver(HttpTimingObserver)}.
+ */
+public class HttpTimingHistograms implements HttpTimingObserver {
+  public static class EndpointHistograms {
+    public final LatencyHistogram dns = new LatencyHistogram();
+    public final LatencyHistogram connect = new LatencyHistogram();
+    public final LatencyHistogram tls = new LatencyHistogram();
+    public final LatencyHistogram firstByte = new LatencyHistogram();
+    public final LatencyHistogram total = new LatencyHistogram();
+
+    // Guarded by `this`.
+    protected long requests;
+    protected long failures;
+    protected long requestBytes;
+    protected long responseBytes;
+
+    protected void record(HttpTiming timing) {
+      dns.record(timing.getDNSMillis());
+      connect.record(timing.getConnectMillis());
+      tls.record(timing.getTLSMillis());
+      firstByte.record(timing.getFirstByteMillis());
+      total.record(timing.getTotalMillis());
+      synchronized (this) {
+        requests += 1;
+        if (timing.isFailure()) {
+          failures += 1;
+        }
+        requestBytes += Math.max(0, timing.requestBytes);
+        responseBytes += timing.getResponseBytes();
+      }
+    }
+
+    public synchronized long getRequests() {
+      return requests;
+    }
+
+    public synchronized long getFailures() {
+      return failures;
+    }
+
+    public synchronized long getRequestBytes() {
+      return requestBytes;
+    }
+
+    public synchronized long getResponseBytes() {
+      return responseBytes;
+    }
+
+    @Override
+    public String toString() {
+      final StringBuilder sb = new StringBuilder();
+      synchronized (this) {
+        sb.append(requests).append(" requests (").append(failures).append(" failed), ");
+        sb.append(requestBytes).append(" bytes sent, ").append(responseBytes).append(" received");
+      }
+      sb.append("; dns ").append(dns);
+      sb.append("; connect ").append(connect);
+      sb.append("; tls ").append(tls);
+      sb.append("; first byte ").append(firstByte);
+      sb.append("; total ").append(total);
+      return sb.toString();
+    }
+  }
+
+  protected final EnumMap<Endpoint, EndpointHistograms> endpoints = new EnumMap<Endpoint, EndpointHistograms>(Endpoint.class);
+
+  public HttpTimingHistograms() {
+    for (Endpoint endpoint : Endpoint.values()) {
+      endpoints.put(endpoint, new EndpointHistograms());
+    }
+  }
+
+  @Override
+  public void observeHttpTiming(HttpTiming timing) {
+    // The map is never modified after construction.
+    endpoints.get(timing.endpoint).record(timing);
+  }
+
+  public EndpointHistograms getHistograms(Endpoint endpoint) {
+    return endpoints.get(endpoint);
+  }
+
+  /**
+   * @return one line for each kind of endpoint that requests were made to.
+   */
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    for (Entry<Endpoint, EndpointHistograms> entry : endpoints.entrySet()) {
+      if (entry.getValue().getRequests() == 0) {
+        continue;
+      }
+      if (sb.length() > 0) {
+        sb.append("\n");
+      }
+      sb.append(entry.getKey()).append(": ").append(entry.getValue());
+    }
+    return sb.length() == 0 ? "no requests" : sb.toString();
+  }
+}
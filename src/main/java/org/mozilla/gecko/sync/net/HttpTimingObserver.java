@@ -0,0 +1,18 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+public interface HttpTimingObserver {
+  /**
+   * Observe a finished HTTP request.
+   * <p>
+   * Called on whichever thread finished the request, often while it's
+   * reading the response body, so this should be quick and thread-safe.
+   *
+   * @param timing
+   *          The <code>HttpTiming</code> of the request.
+   */
+  public void observeHttpTiming(HttpTiming timing);
+}
@@ -0,0 +1,232 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.gecko.background.common.log.Logger;
+
+import ch.boye.httpclientandroidlib.HttpHost;
+import ch.boye.httpclientandroidlib.conn.ClientConnectionOperator;
+import ch.boye.httpclientandroidlib.conn.ClientConnectionRequest;
+import ch.boye.httpclientandroidlib.conn.ConnectionPoolTimeoutException;
+import ch.boye.httpclientandroidlib.conn.ManagedClientConnection;
+import ch.boye.httpclientandroidlib.conn.OperatedClientConnection;
+import ch.boye.httpclientandroidlib.conn.routing.HttpRoute;
+import ch.boye.httpclientandroidlib.conn.scheme.SchemeRegistry;
+import ch.boye.httpclientandroidlib.impl.conn.DefaultClientConnectionOperator;
+import ch.boye.httpclientandroidlib.impl.conn.tsccm.ThreadSafeClientConnManager;
+import ch.boye.httpclientandroidlib.params.HttpParams;
+import ch.boye.httpclientandroidlib.protocol.HttpContext;
+
+/**
+ * A <code>ThreadSafeClientConnManager</code> that counts what it does in a
+ * {@link ConnectionPoolMetrics}, tells a {@link ConnectionPoolObserver}, and
+ * adapts each route's connection limit and the idle timeout to the
+ * concurrency it sees, according to an {@link AdaptiveConnectionPoolPolicy}.
+ * <p>
+ * Route limits grow as soon as a request would wait for a connection; they
+ * shrink, and idle connections are closed, when {@link #reap()} is called.
+ * The pool closes idle connections across all routes at once, so there is
+ * one idle timeout rather than one per route.
+ * <p>
+ * Opening a connection records how long DNS lookup and connecting took in
+ * the current {@link HttpTiming}.
+ */
+public class InstrumentedClientConnManager extends ThreadSafeClientConnManager {
+  private static final String LOG_TAG = "InstrumentedConnMgr";
+
+  protected final ConnectionPoolMetrics metrics = new ConnectionPoolMetrics();
+  protected final AdaptiveConnectionPoolPolicy policy;
+
+  // Leased connections and their routes. Guarded by `leased`.
+  protected final Map<ManagedClientConnection, HttpRoute> leased = new IdentityHashMap<ManagedClientConnection, HttpRoute>();
+
+  protected volatile long idleTimeoutMillis;
+  protected volatile boolean activeSinceReap;
+
+  public InstrumentedClientConnManager(SchemeRegistry schemeRegistry, AdaptiveConnectionPoolPolicy policy) {
+    super(schemeRegistry);
+    this.policy = policy;
+    this.idleTimeoutMillis = policy.maxIdleMillis;
+  }
+
+  /**
+   * Opens connections as usual, timing DNS lookup and connecting.
+   */
+  protected static class TimingClientConnectionOperator extends DefaultClientConnectionOperator {
+    public TimingClientConnectionOperator(SchemeRegistry schemes) {
+      super(schemes);
+    }
+
+    @Override
+    protected InetAddress[] resolveHostname(String host) throws UnknownHostException {
+      final long start = System.nanoTime();
+      try {
+        return super.resolveHostname(host);
+      } finally {
+        HttpTiming.recordDNS(System.nanoTime() - start);
+      }
+    }
+
+    @Override
+    public void openConnection(OperatedClientConnection conn, HttpHost target, InetAddress local, HttpContext context, HttpParams params) throws IOException {
+      final long start = System.nanoTime();
+      super.openConnection(conn, target, local, context, params);
+      HttpTiming.recordOpen(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  protected ClientConnectionOperator createConnectionOperator(SchemeRegistry schreg) {
+    return new TimingClientConnectionOperator(schreg);
+  }
+
+  public ConnectionPoolMetrics getMetrics() {
+    return metrics;
+  }
+
+  public long getIdleTimeoutMillis() {
+    return idleTimeoutMillis;
+  }
+
+  /**
+   * Override this to observe a different way.
+   *
+   * @return the observer to tell, or null.
+   */
+  @SuppressWarnings("static-method")
+  protected ConnectionPoolObserver getObserver() {
+    return BaseResource.getConnectionPoolObserver();
+  }
+
+  protected void notifyLease(HttpRoute route, boolean reused, boolean waited, long waitMillis) {
+    metrics.observeConnectionLease(route, reused, waited, waitMillis);
+    final ConnectionPoolObserver observer = getObserver();
+    if (observer != null) {
+      observer.observeConnectionLease(route, reused, waited, waitMillis);
+    }
+  }
+
+  protected void notifyRelease(HttpRoute route, boolean reusable) {
+    metrics.observeConnectionRelease(route, reusable);
+    final ConnectionPoolObserver observer = getObserver();
+    if (observer != null) {
+      observer.observeConnectionRelease(route, reusable);
+    }
+  }
+
+  protected void notifyIdleConnectionsClosed(int closed, long idleTimeoutMillis) {
+    metrics.observeIdleConnectionsClosed(closed, idleTimeoutMillis);
+    final ConnectionPoolObserver observer = getObserver();
+    if (observer != null) {
+      observer.observeIdleConnectionsClosed(closed, idleTimeoutMillis);
+    }
+  }
+
+  protected void setRouteLimit(HttpRoute route, int maxConnections) {
+    if (maxConnections == getMaxForRoute(route)) {
+      return;
+    }
+    Logger.debug(LOG_TAG, "Allowing " + maxConnections + " connections to " + route + ".");
+    setMaxForRoute(route, maxConnections);
+    metrics.observeRouteLimit(route, maxConnections);
+    final ConnectionPoolObserver observer = getObserver();
+    if (observer != null) {
+      observer.observeRouteLimit(route, maxConnections);
+    }
+  }
+
+  @Override
+  public ClientConnectionRequest requestConnection(final HttpRoute route, final Object state) {
+    final ClientConnectionRequest request = super.requestConnection(route, state);
+    return new ClientConnectionRequest() {
+      @Override
+      public void abortRequest() {
+        request.abortRequest();
+      }
+
+      @Override
+      public ManagedClientConnection getConnection(long timeout, TimeUnit tunit) throws InterruptedException, ConnectionPoolTimeoutException {
+        activeSinceReap = true;
+
+        // If the route is full, let it grow before the request blocks.
+        final int limit = getMaxForRoute(route);
+        final boolean waited = metrics.getInFlight(route) >= limit ||
+                               metrics.getInFlight() >= getMaxTotal();
+        if (waited) {
+          setRouteLimit(route, policy.limitAfterWait(limit));
+        }
+
+        final long start = System.currentTimeMillis();
+        final ManagedClientConnection connection = request.getConnection(timeout, tunit);
+        final long waitMillis = System.currentTimeMillis() - start;
+        synchronized (leased) {
+          leased.put(connection, route);
+        }
+        notifyLease(route, connection.isOpen(), waited, waitMillis);
+        return connection;
+      }
+    };
+  }
+
+  @Override
+  public void releaseConnection(ManagedClientConnection connection, long validDuration, TimeUnit timeUnit) {
+    final HttpRoute route;
+    synchronized (leased) {
+      route = leased.remove(connection);
+    }
+    final boolean reusable = connection.isOpen() && connection.isMarkedReusable();
+    super.releaseConnection(connection, validDuration, timeUnit);
+    if (route != null) {
+      notifyRelease(route, reusable);
+    }
+  }
+
+  @Override
+  public void closeIdleConnections(long idleTimeout, TimeUnit tunit) {
+    final int before = getConnectionsInPool();
+    super.closeIdleConnections(idleTimeout, tunit);
+    final int closed = before - getConnectionsInPool();
+    if (closed > 0) {
+      notifyIdleConnectionsClosed(closed, tunit.toMillis(idleTimeout));
+    }
+  }
+
+  @Override
+  public void closeExpiredConnections() {
+    final int before = getConnectionsInPool();
+    super.closeExpiredConnections();
+    final int closed = before - getConnectionsInPool();
+    if (closed > 0) {
+      notifyIdleConnectionsClosed(closed, -1);
+    }
+  }
+
+  /**
+   * Close expired connections and those idle for longer than the current
+   * idle timeout, then adapt the idle timeout and route limits to what was
+   * seen since the last reap.
+   */
+  public void reap() {
+    closeExpiredConnections();
+    closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+
+    final boolean active = activeSinceReap;
+    activeSinceReap = false;
+    idleTimeoutMillis = policy.idleTimeoutAfterReap(idleTimeoutMillis, active);
+
+    for (Entry<HttpRoute, Integer> entry : metrics.takeWindowPeaks().entrySet()) {
+      final HttpRoute route = entry.getKey();
+      setRouteLimit(route, policy.limitAfterReap(getMaxForRoute(route), entry.getValue().intValue()));
+    }
+  }
+}
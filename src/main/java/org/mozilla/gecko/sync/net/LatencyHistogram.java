@@ -0,0 +1,103 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+/**
+ * Counts durations in power-of-two millisecond buckets.
+ * <p>
+ * Bucket 0 holds durations under a millisecond; bucket <code>i</code> holds
+ * durations of at least <code>2^(i-1)</code> and under <code>2^i</code>
+ * milliseconds; the last bucket holds everything longer. Recording is a
+ * handful of arithmetic operations and never allocates, so it's cheap enough
+ * to do for every request.
+ */
+public class LatencyHistogram {
+  public static final int BUCKETS = 18;    // The last holds 65 seconds and up.
+
+  protected final long[] counts = new long[BUCKETS];
+  protected long count;
+  protected long totalMillis;
+  protected long maxMillis;
+
+  protected static int bucket(long millis) {
+    if (millis <= 0) {
+      return 0;
+    }
+    final int bucket = 64 - Long.numberOfLeadingZeros(millis);
+    return Math.min(bucket, BUCKETS - 1);
+  }
+
+  /**
+   * @return the longest duration that falls into <code>bucket</code>, or
+   *         <code>Long.MAX_VALUE</code> for the last bucket.
+   */
+  public static long bucketLimitMillis(int bucket) {
+    if (bucket >= BUCKETS - 1) {
+      return Long.MAX_VALUE;
+    }
+    return (1L << bucket) - 1;
+  }
+
+  /**
+   * Record a duration. Negative durations, which mean a phase didn't happen,
+   * are ignored.
+   */
+  public synchronized void record(long millis) {
+    if (millis < 0) {
+      return;
+    }
+    counts[bucket(millis)] += 1;
+    count += 1;
+    totalMillis += millis;
+    maxMillis = Math.max(maxMillis, millis);
+  }
+
+  public synchronized long getCount() {
+    return count;
+  }
+
+  public synchronized long getMeanMillis() {
+    return count == 0 ? 0 : totalMillis / count;
+  }
+
+  public synchronized long getMaxMillis() {
+    return maxMillis;
+  }
+
+  public synchronized long[] getCounts() {
+    return counts.clone();
+  }
+
+  /**
+   * @param fraction
+   *          between 0 and 1.
+   * @return a duration no shorter than <code>fraction</code> of those
+   *         recorded: the limit of the bucket the percentile falls in, or the
+   *         maximum if that's shorter.
+   */
+  public synchronized long getPercentileMillis(double fraction) {
+    if (count == 0) {
+      return 0;
+    }
+    final long rank = (long) Math.ceil(fraction * count);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(bucketLimitMillis(i), maxMillis);
+      }
+    }
+    return maxMillis;
+  }
+
+  @Override
+  public synchronized String toString() {
+    if (count == 0) {
+      return "none";
+    }
+    return count + " mean " + getMeanMillis() + "ms p50 " + getPercentileMillis(0.5) + "ms p90 " +
+           getPercentileMillis(0.9) + "ms max " + maxMillis + "ms";
+  }
+}
@@ -0,0 +1,204 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import ch.boye.httpclientandroidlib.Header;
+import ch.boye.httpclientandroidlib.HttpEntity;
+import ch.boye.httpclientandroidlib.HttpResponse;
+import ch.boye.httpclientandroidlib.entity.HttpEntityWrapper;
+
+/**
+ * Decodes a compressed response body as it is read, counting the bytes read
+ * off the wire and the bytes handed on after decoding.
+ * <p>
+ * Nothing is buffered: the body is inflated as the consumer reads it.
+ */
+public class ResponseByteCounter {
+  public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+  private static final int BUFFER_SIZE = 8192;
+
+  protected final AtomicLong wireBytes = new AtomicLong(0);
+  protected final AtomicLong decodedBytes = new AtomicLong(0);
+  protected volatile String encoding = null;
+
+  public long getWireBytes() {
+    return wireBytes.get();
+  }
+
+  public long getDecodedBytes() {
+    return decodedBytes.get();
+  }
+
+  /**
+   * @return the response's content encoding, or null if it wasn't encoded.
+   */
+  public String getEncoding() {
+    return encoding;
+  }
+
+  /**
+   * Replace <code>response</code>'s entity with one that decodes a gzip or
+   * deflate body, if it has one, and counts bytes as they're read.
+   */
+  public void decode(HttpResponse response) {
+    final HttpEntity entity = response.getEntity();
+    if (entity == null) {
+      return;
+    }
+
+    final Header contentEncoding = entity.getContentEncoding();
+    if (contentEncoding != null) {
+      final String value = contentEncoding.getValue().trim().toLowerCase(Locale.US);
+      if ("gzip".equals(value) || "x-gzip".equals(value)) {
+        encoding = "gzip";
+      } else if ("deflate".equals(value)) {
+        encoding = "deflate";
+      }
+    }
+    response.setEntity(new DecodingEntity(entity));
+    if (encoding != null) {
+      response.removeHeaders("Content-Encoding");
+      response.removeHeaders("Content-Length");
+    }
+  }
+
+  /**
+   * Wrap <code>wire</code> in a decoder for {@link #encoding}.
+   */
+  protected InputStream decoder(InputStream wire) throws IOException {
+    if ("gzip".equals(encoding)) {
+      return new GZIPInputStream(wire, BUFFER_SIZE);
+    }
+
+    // "deflate" should mean a zlib stream (RFC 1950), but some servers send a
+    // bare deflate stream (RFC 1951). A zlib stream starts with a two-byte
+    // header: compression method 8, and a checksum making it a multiple of 31.
+    final PushbackInputStream pushback = new PushbackInputStream(wire, 2);
+    final byte[] header = new byte[2];
+    int read = 0;
+    while (read < header.length) {
+      final int n = pushback.read(header, read, header.length - read);
+      if (n < 0) {
+        break;
+      }
+      read += n;
+    }
+    pushback.unread(header, 0, read);
+    final int cmf = header[0] & 0xff;
+    final int flg = header[1] & 0xff;
+    final boolean zlib = read == 2 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+    return new InflaterInputStream(pushback, new Inflater(!zlib), BUFFER_SIZE);
+  }
+
+  @Override
+  public String toString() {
+    final String how = (encoding == null) ? "unencoded" : encoding;
+    return decodedBytes.get() + " bytes from " + wireBytes.get() + " " + how + " bytes on the wire";
+  }
+
+  /**
+   * Presents a decoded view of an entity, counting bytes on both sides of the
+   * decoder.
+   */
+  protected class DecodingEntity extends HttpEntityWrapper {
+    private InputStream content;
+
+    public DecodingEntity(HttpEntity wrapped) {
+      super(wrapped);
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      // Streaming entities must hand out the same stream every time.
+      if (content != null && wrappedEntity.isStreaming()) {
+        return content;
+      }
+      if (encoding == null) {
+        // Identity: what's read is what was sent.
+        content = new CountingInputStream(wrappedEntity.getContent(), wireBytes, decodedBytes);
+      } else {
+        final InputStream wire = new CountingInputStream(wrappedEntity.getContent(), wireBytes);
+        content = new CountingInputStream(decoder(wire), decodedBytes);
+      }
+      return content;
+    }
+
+    @Override
+    public Header getContentEncoding() {
+      return (encoding == null) ? wrappedEntity.getContentEncoding() : null;
+    }
+
+    @Override
+    public long getContentLength() {
+      return (encoding == null) ? wrappedEntity.getContentLength() : -1;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      final InputStream in = getContent();
+      try {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+          out.write(buffer, 0, n);
+        }
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  protected static class CountingInputStream extends FilterInputStream {
+    protected final AtomicLong[] counters;
+
+    public CountingInputStream(InputStream in, AtomicLong... counters) {
+      super(in);
+      this.counters = counters;
+    }
+    protected void count(long n) {
+      if (n <= 0) {
+        return;
+      }
+      for (AtomicLong counter : counters) {
+        counter.addAndGet(n);
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int b = super.read();
+      if (b >= 0) {
+        count(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      final int n = super.read(b, off, len);
+      count(n);
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      final long skipped = super.skip(n);
+      count(skipped);
+      return skipped;
+    }
+  }
+}
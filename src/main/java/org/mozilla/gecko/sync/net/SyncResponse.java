@@ -49,6 +49,14 @@ public class SyncResponse {
     return this.getStatusCode() == 200;
   }
 
+  /**
+   * @return true if a conditional request found that the resource hadn't
+   *         changed. The response has no body.
+   */
+  public boolean wasNotModified() {
+    return this.getStatusCode() == 304;
+  }
+
   /**
    * Fetch the content type of the HTTP response body.
    *
@@ -258,4 +266,16 @@ public class SyncResponse {
     }
     return null;
   }
+
+  /**
+   * @return the offset at which to fetch the next page of a limited request,
+   *         or null if the server doesn't page with offsets or there are no
+   *         more records.
+   */
+  public String weaveNextOffset() {
+    if (this.hasHeader("x-weave-next-offset")) {
+      return this.response.getFirstHeader("x-weave-next-offset").getValue();
+    }
+    return null;
+  }
 }
@@ -11,6 +11,8 @@ import java.io.InputStreamReader;
 import java.net.URI;
 
 import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.FlowController;
 
 import ch.boye.httpclientandroidlib.Header;
 import ch.boye.httpclientandroidlib.HttpEntity;
@@ -19,9 +21,11 @@ import ch.boye.httpclientandroidlib.client.methods.HttpRequestBase;
 import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
 
 /**
- * A request class that handles line-by-line responses. Eventually this will
- * handle real stream processing; for now, just parse the returned body
- * line-by-line.
+ * A request class that handles line-by-line responses.
+ * <p>
+ * If the request delegate is a {@link WBOCollectionRequestDelegate}, records
+ * are parsed directly from the response stream by {@link WBOStreamParser};
+ * otherwise, the returned body is handed to the delegate line-by-line.
  *
  * @author rnewman
  *
@@ -35,6 +39,27 @@ public class SyncStorageCollectionRequest extends SyncStorageRequest {
 
   protected volatile boolean aborting = false;
 
+  /**
+   * If set, the response is read no faster than records are consumed
+   * downstream: each record is admitted by the controller before it is handed
+   * to the delegate, pausing the read loop while too much is outstanding.
+   */
+  protected volatile FlowController flowController;
+
+  public void setFlowController(FlowController flowController) {
+    this.flowController = flowController;
+  }
+
+  protected volatile long bytesRead = 0;
+
+  /**
+   * @return the number of bytes of records read from the response body, after
+   *         any decoding.
+   */
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
   /**
    * Instruct the request that it should process no more records,
    * and decline to notify any more delegate callbacks.
@@ -100,22 +125,17 @@ public class SyncStorageCollectionRequest extends SyncStorageRequest {
       // Line-by-line processing, then invoke success.
       SyncStorageCollectionRequestDelegate delegate = (SyncStorageCollectionRequestDelegate) this.request.delegate;
       InputStream content = null;
-      BufferedReader br = null;
       try {
         content = entity.getContent();
-        br = new BufferedReader(new InputStreamReader(content), FETCH_BUFFER_SIZE);
-        String line;
-
-        // This relies on connection timeouts at the HTTP layer.
-        while (!aborting &&
-               null != (line = br.readLine())) {
-          try {
-            delegate.handleRequestProgress(line);
-          } catch (Exception ex) {
-            delegate.handleRequestError(new HandleProgressException(ex));
-            BaseResource.consumeEntity(entity);
-            return;
-          }
+        final boolean completed;
+        if (delegate instanceof WBOCollectionRequestDelegate) {
+          completed = processRecords(content, (WBOCollectionRequestDelegate) delegate);
+        } else {
+          completed = processLines(content, delegate);
+        }
+        if (!completed) {
+          BaseResource.consumeEntity(entity);
+          return;
         }
         if (aborting) {
           // So we don't hit the success case below.
@@ -128,10 +148,10 @@ public class SyncStorageCollectionRequest extends SyncStorageRequest {
         BaseResource.consumeEntity(entity);
         return;
       } finally {
-        // Attempt to close the stream and reader.
-        if (br != null) {
+        // Attempt to close the stream.
+        if (content != null) {
           try {
-            br.close();
+            content.close();
           } catch (IOException e) {
             // We don't care if this fails.
           }
@@ -139,7 +159,105 @@ public class SyncStorageCollectionRequest extends SyncStorageRequest {
       }
       // We're done processing the entity. Don't let fetching the body succeed!
       BaseResource.consumeEntity(entity);
+      final ResponseByteCounter counter = getResponseByteCounter();
+      if (counter != null) {
+        Logger.debug(LOG_TAG, "Processed " + counter + ".");
+      }
       delegate.handleRequestSuccess(new SyncStorageResponse(response));
     }
+
+    /**
+     * Hand each line of <code>content</code> to the delegate as a string.
+     *
+     * @return false if the delegate failed to handle a line; the delegate has
+     *         already been notified.
+     */
+    protected boolean processLines(InputStream content, SyncStorageCollectionRequestDelegate delegate) throws IOException {
+      BufferedReader br = new BufferedReader(new InputStreamReader(content, "UTF-8"), FETCH_BUFFER_SIZE);
+      String line;
+
+      // This relies on connection timeouts at the HTTP layer.
+      while (!aborting &&
+             null != (line = br.readLine())) {
+        // Count bytes, not chars, as the streaming parser does.
+        final long lineBytes = utf8Length(line) + 1;
+        bytesRead += lineBytes;
+        final FlowController controller = flowController;
+        if (controller != null) {
+          controller.acquire(lineBytes);
+        }
+        try {
+          delegate.handleRequestProgress(line);
+        } catch (Exception ex) {
+          delegate.handleRequestError(new HandleProgressException(ex));
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * @return the length of <code>s</code> encoded as UTF-8, without encoding it.
+     */
+    protected long utf8Length(String s) {
+      final int length = s.length();
+      long bytes = length;
+      for (int i = 0; i < length; i++) {
+        final char c = s.charAt(i);
+        if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+          // Four bytes for the pair.
+          bytes += 1;
+        } else if (c >= 0x800) {
+          bytes += 2;
+        } else if (c >= 0x80) {
+          bytes += 1;
+        }
+      }
+      return bytes;
+    }
+
+    /**
+     * Parse records straight off <code>content</code> and hand them to the
+     * delegate, without materializing each line as a string.
+     * <p>
+     * As with {@link WBOCollectionRequestDelegate#handleRequestProgress(String)},
+     * a record that cannot be parsed is reported as an error and skipped.
+     *
+     * @return false if the delegate failed to handle a record; the delegate has
+     *         already been notified.
+     */
+    protected boolean processRecords(InputStream content, WBOCollectionRequestDelegate delegate) throws IOException {
+      final WBOStreamParser parser = new WBOStreamParser(content, FETCH_BUFFER_SIZE);
+      long lastBytesRead = 0;
+
+      // This relies on connection timeouts at the HTTP layer.
+      while (!aborting) {
+        final CryptoRecord record;
+        try {
+          record = parser.next();
+        } catch (IOException e) {
+          throw e;
+        } catch (Exception e) {
+          delegate.handleRequestError(e);
+          continue;
+        }
+        if (record == null) {
+          break;
+        }
+        bytesRead = parser.getBytesRead();
+        final FlowController controller = flowController;
+        if (controller != null) {
+          controller.acquire(bytesRead - lastBytesRead);
+          lastBytesRead = bytesRead;
+        }
+        try {
+          delegate.handleRequestRecord(record);
+        } catch (Exception ex) {
+          delegate.handleRequestError(new HandleProgressException(ex));
+          return false;
+        }
+      }
+      return true;
+    }
   }
 }
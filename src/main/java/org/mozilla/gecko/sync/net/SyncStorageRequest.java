@@ -9,9 +9,11 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.GeneralSecurityException;
 import java.util.HashMap;
+import java.util.concurrent.Executor;
 
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.SyncConstants;
+import org.mozilla.gecko.sync.Utils;
 
 import ch.boye.httpclientandroidlib.HttpEntity;
 import ch.boye.httpclientandroidlib.HttpResponse;
@@ -74,6 +76,7 @@ public class SyncStorageRequest implements Resource {
    */
   public SyncStorageRequest(URI uri) {
     this.resource = new BaseResource(uri);
+    this.resource.setEndpoint(HttpTiming.Endpoint.STORAGE);
     this.resourceDelegate = this.makeResourceDelegate(this);
     this.resource.delegate = this.resourceDelegate;
   }
@@ -116,7 +119,13 @@ public class SyncStorageRequest implements Resource {
       SyncStorageRequestDelegate d = this.request.delegate;
       SyncStorageResponse res = new SyncStorageResponse(response);
       // It is the responsibility of the delegate handlers to completely consume the response.
-      if (res.wasSuccessful()) {
+      // Records POSTed into a server-side batch are accepted, not yet written.
+      if (res.wasSuccessful() || res.getStatusCode() == 202) {
+        d.handleRequestSuccess(res);
+      } else if (res.wasNotModified() && this.request.ifModifiedSince >= 0) {
+        // What we asked for: the caller's copy is current.
+        Logger.debug(LOG_TAG, "Not modified.");
+        BaseResource.consumeEntity(res);
         d.handleRequestSuccess(res);
       } else {
         Logger.warn(LOG_TAG, "HTTP request failed.");
@@ -154,6 +163,11 @@ public class SyncStorageRequest implements Resource {
         Logger.debug(LOG_TAG, "Making request with X-If-Unmodified-Since = " + ifUnmodifiedSince);
         request.setHeader("x-if-unmodified-since", ifUnmodifiedSince);
       }
+      if (this.request.ifModifiedSince >= 0) {
+        final String ifModifiedSince = Utils.millisecondsToDecimalSecondsString(this.request.ifModifiedSince);
+        Logger.debug(LOG_TAG, "Making request with X-If-Modified-Since = " + ifModifiedSince);
+        request.setHeader("x-if-modified-since", ifModifiedSince);
+      }
       if (request.getMethod().equalsIgnoreCase("DELETE")) {
         request.addHeader("x-confirm-delete", "1");
       }
@@ -163,6 +177,7 @@ public class SyncStorageRequest implements Resource {
   protected BaseResourceDelegate resourceDelegate;
   public SyncStorageRequestDelegate delegate;
   protected BaseResource resource;
+  protected long ifModifiedSince = -1;
 
   public SyncStorageRequest() {
     super();
@@ -173,6 +188,44 @@ public class SyncStorageRequest implements Resource {
     return new SyncStorageResourceDelegate(request);
   }
 
+  /**
+   * Return from get/post/put/delete immediately, making the request on the
+   * shared request executor and invoking delegate callbacks on
+   * <code>callbackExecutor</code>.
+   *
+   * @see BaseResource#setAsynchronous(Executor)
+   */
+  public void setAsynchronous(Executor callbackExecutor) {
+    this.resource.setAsynchronous(callbackExecutor);
+  }
+
+  /**
+   * Make this a conditional request: if the resource hasn't changed since
+   * <code>timestamp</code>, the server responds 304 with no body, and the
+   * delegate's <code>handleRequestSuccess</code> is called with a response
+   * for which <code>wasNotModified()</code> is true.
+   *
+   * @param timestamp milliseconds since epoch, as given by the server, or -1
+   *        for an unconditional request.
+   */
+  public void setIfModifiedSince(long timestamp) {
+    this.ifModifiedSince = timestamp;
+  }
+
+  /**
+   * @see BaseResource#setAcceptCompressedResponses(boolean)
+   */
+  public void setAcceptCompressedResponses(boolean acceptCompressedResponses) {
+    this.resource.setAcceptCompressedResponses(acceptCompressedResponses);
+  }
+
+  /**
+   * @see BaseResource#getResponseByteCounter()
+   */
+  public ResponseByteCounter getResponseByteCounter() {
+    return this.resource.getResponseByteCounter();
+  }
+
   public void get() {
     this.resource.get();
   }
@@ -0,0 +1,94 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+/**
+ * Remembers the ID of the TLS session most recently established with each
+ * host and port, and counts how often a new connection resumed it rather than
+ * making a full handshake.
+ * <p>
+ * The sessions themselves are kept, and resumed, by the client session
+ * context of the <code>SSLContext</code> that made them; this only tracks
+ * which ones were. At most <code>capacity</code> hosts are tracked, the least
+ * recently connected being forgotten first.
+ * <p>
+ * Connections are made concurrently, so all access is synchronized.
+ */
+public class TLSSessionCache {
+  protected final int capacity;
+  protected final LinkedHashMap<String, byte[]> sessionIDs;
+  protected long hits;
+  protected long misses;
+
+  public TLSSessionCache(final int capacity) {
+    this.capacity = capacity;
+    this.sessionIDs = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+      private static final long serialVersionUID = 2919574528436297312L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, byte[]> eldest) {
+        return size() > TLSSessionCache.this.capacity;
+      }
+    };
+  }
+
+  protected static String key(String host, int port) {
+    return host + ":" + port;
+  }
+
+  /**
+   * Note that a handshake with <code>host</code> and <code>port</code>
+   * established the session <code>sessionID</code>.
+   *
+   * @return true if that was the session previously established with them,
+   *         which means it was resumed.
+   */
+  public synchronized boolean recordSession(String host, int port, byte[] sessionID) {
+    final String key = key(host, port);
+    if (sessionID == null || sessionID.length == 0) {
+      // Not resumable.
+      sessionIDs.remove(key);
+      misses += 1;
+      return false;
+    }
+    final byte[] previous = sessionIDs.put(key, sessionID);
+    if (previous != null && Arrays.equals(previous, sessionID)) {
+      hits += 1;
+      return true;
+    }
+    misses += 1;
+    return false;
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return the number of hosts whose sessions are tracked.
+   */
+  public synchronized int size() {
+    return sessionIDs.size();
+  }
+
+  public synchronized void clear() {
+    sessionIDs.clear();
+    hits = 0;
+    misses = 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return hits + " resumed and " + misses + " full TLS handshakes; " + sessionIDs.size() + " hosts cached";
+  }
+}
@@ -5,14 +5,23 @@
 package org.mozilla.gecko.sync.net;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 
 import org.mozilla.gecko.background.common.log.Logger;
 
+import ch.boye.httpclientandroidlib.conn.ConnectTimeoutException;
 import ch.boye.httpclientandroidlib.conn.ssl.SSLSocketFactory;
+import ch.boye.httpclientandroidlib.conn.ssl.X509HostnameVerifier;
+import ch.boye.httpclientandroidlib.params.HttpConnectionParams;
 import ch.boye.httpclientandroidlib.params.HttpParams;
 
 public class TLSSocketFactory extends SSLSocketFactory {
@@ -30,8 +39,53 @@ public class TLSSocketFactory extends SSLSocketFactory {
   // Guarded by `this`.
   private static String[] cipherSuites = DEFAULT_CIPHER_SUITES;
 
+  /**
+   * Bounds on the TLS sessions kept for resumption.
+   */
+  public static final int MAX_CACHED_SESSIONS = 32;
+  public static final int SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+  // Guarded by TLSSocketFactory.class.
+  private static SSLContext sharedSSLContext;
+
+  private static final TLSSessionCache sessionCache = new TLSSessionCache(MAX_CACHED_SESSIONS);
+
+  protected final SSLContext sslContext;
+
   public TLSSocketFactory(SSLContext sslContext) {
     super(sslContext);
+    this.sslContext = sslContext;
+  }
+
+  /**
+   * Return the <code>SSLContext</code> shared by every connection manager
+   * this process makes.
+   * <p>
+   * Connection managers are shut down between syncs, but the context, and
+   * with it the TLS sessions it has established, outlives them: the next
+   * sync's connections to the same servers resume those sessions rather than
+   * making full handshakes.
+   */
+  public static synchronized SSLContext getSharedSSLContext() throws KeyManagementException, NoSuchAlgorithmException {
+    if (sharedSSLContext == null) {
+      final SSLContext sslContext = SSLContext.getInstance("TLS");
+      sslContext.init(null, null, new SecureRandom());
+      final SSLSessionContext sessions = sslContext.getClientSessionContext();
+      if (sessions != null) {
+        sessions.setSessionCacheSize(MAX_CACHED_SESSIONS);
+        sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+      }
+      sharedSSLContext = sslContext;
+    }
+    return sharedSSLContext;
+  }
+
+  /**
+   * @return how often connections made by any <code>TLSSocketFactory</code>
+   *         have resumed TLS sessions.
+   */
+  public static TLSSessionCache getSessionCache() {
+    return sessionCache;
   }
 
   /**
@@ -60,11 +114,70 @@ public class TLSSocketFactory extends SSLSocketFactory {
     }
   }
 
+  /**
+   * Return an unconnected plain socket. <code>connectSocket</code> layers TLS
+   * over it once it's connected: a TLS socket made before the host and port
+   * are known can't find a session to resume.
+   */
   @Override
   public Socket createSocket(HttpParams params) throws IOException {
-    SSLSocket socket = (SSLSocket) super.createSocket(params);
-    socket.setEnabledProtocols(DEFAULT_PROTOCOLS);
-    setEnabledCipherSuites(socket);
-    return socket;
+    return new Socket();
+  }
+
+  @SuppressWarnings("deprecation")
+  @Override
+  public Socket connectSocket(final Socket socket,
+                              final InetSocketAddress remoteAddress,
+                              final InetSocketAddress localAddress,
+                              final HttpParams params) throws IOException, ConnectTimeoutException {
+    if (remoteAddress == null) {
+      throw new IllegalArgumentException("Remote address may not be null");
+    }
+    if (params == null) {
+      throw new IllegalArgumentException("HTTP parameters may not be null");
+    }
+    final Socket sock = (socket != null && !(socket instanceof SSLSocket)) ? socket : new Socket();
+    if (localAddress != null) {
+      sock.setReuseAddress(HttpConnectionParams.getSoReuseaddr(params));
+      sock.bind(localAddress);
+    }
+    try {
+      sock.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+      sock.connect(remoteAddress, HttpConnectionParams.getConnectionTimeout(params));
+    } catch (SocketTimeoutException e) {
+      throw new ConnectTimeoutException("Connect to " + remoteAddress + " timed out");
+    }
+
+    // HttpInetSocketAddress#toString() returns the hostname we were asked for.
+    String hostname = remoteAddress.toString();
+    final int port = remoteAddress.getPort();
+    final String suffix = ":" + port;
+    if (hostname.endsWith(suffix)) {
+      hostname = hostname.substring(0, hostname.length() - suffix.length());
+    }
+
+    final SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory().createSocket(sock, hostname, port, true);
+    sslSocket.setEnabledProtocols(DEFAULT_PROTOCOLS);
+    setEnabledCipherSuites(sslSocket);
+    final long start = System.nanoTime();
+    try {
+      sslSocket.startHandshake();
+      final X509HostnameVerifier verifier = getHostnameVerifier();
+      if (verifier != null) {
+        verifier.verify(hostname, sslSocket);
+      }
+      HttpTiming.recordTLS(System.nanoTime() - start);
+    } catch (IOException e) {
+      try {
+        sslSocket.close();
+      } catch (IOException ex) {
+        // Ignore.
+      }
+      throw e;
+    }
+
+    final boolean resumed = sessionCache.recordSession(hostname, port, sslSocket.getSession().getId());
+    Logger.debug(LOG_TAG, (resumed ? "Resumed" : "Established new") + " TLS session with " + hostname + suffix + ".");
+    return sslSocket;
   }
 }
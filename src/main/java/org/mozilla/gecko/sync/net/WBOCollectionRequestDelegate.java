@@ -32,4 +32,17 @@ implements KeyBundleProvider {
       // TODO: abort?! Allow exception to propagate to fail?
     }
   }
+
+  /**
+   * Handle a record that has already been parsed from the response stream by
+   * {@link WBOStreamParser}.
+   */
+  public void handleRequestRecord(CryptoRecord record) {
+    try {
+      record.keyBundle = this.keyBundle();
+      this.handleWBO(record);
+    } catch (Exception e) {
+      this.handleRequestError(e);
+    }
+  }
 }
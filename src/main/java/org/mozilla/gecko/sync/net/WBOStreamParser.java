@@ -0,0 +1,635 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.NonObjectJSONException;
+import org.mozilla.gecko.sync.repositories.domain.RecordParseException;
+
+/**
+ * Parse a newline-delimited stream of WBOs, as returned by the Sync storage
+ * server for "application/newlines" requests, directly into
+ * <code>CryptoRecord</code> instances.
+ * <p>
+ * {@link CryptoRecord#fromJSONRecord(String)} requires each line as a
+ * <code>String</code>, re-encodes it to UTF-8, parses the envelope, and then
+ * parses the payload string as a second document. This class instead decodes
+ * each line once into a reusable character buffer, unescapes the payload
+ * string into a second reusable buffer, and parses both in place. Per record,
+ * only the resulting values are allocated.
+ * <p>
+ * Parsed values have the same types as those produced by
+ * <code>JSONParser</code>: <code>Long</code> and <code>Double</code> numbers,
+ * <code>JSONObject</code> and <code>JSONArray</code> containers.
+ * <p>
+ * Instances are not thread-safe; use one per response stream.
+ */
+public class WBOStreamParser {
+  public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+  // Envelope keys we recognize. Anything else is parsed and ignored.
+  private static final String KEY_ID         = "id";
+  private static final String KEY_COLLECTION = "collection";
+  private static final String KEY_PAYLOAD    = "payload";
+  private static final String KEY_MODIFIED   = "modified";
+  private static final String KEY_SORTINDEX  = "sortindex";
+  private static final String KEY_TTL        = "ttl";
+
+  private final InputStream in;
+  private final CharsetDecoder decoder;
+
+  // Raw bytes read from the stream.
+  private final byte[] readBuffer;
+  private int readPosition = 0;
+  private int readLimit = 0;
+  private boolean eof = false;
+
+  // The current line, as bytes and as decoded characters.
+  private byte[] lineBytes;
+  private int lineLength;
+  private ByteBuffer lineByteBuffer;
+  private char[] lineChars;
+  private CharBuffer lineCharBuffer;
+
+  // The unescaped contents of the current record's payload string.
+  private char[] payloadChars;
+
+  // Parser state: the characters being parsed, and our position within them.
+  private char[] chars;
+  private int position;
+  private int limit;
+
+  private long bytesRead = 0;
+  private long recordsParsed = 0;
+
+  public WBOStreamParser(InputStream in) {
+    this(in, DEFAULT_BUFFER_SIZE);
+  }
+
+  public WBOStreamParser(InputStream in, int bufferSize) {
+    if (in == null) {
+      throw new IllegalArgumentException("in must not be null");
+    }
+    this.in = in;
+    this.readBuffer = new byte[bufferSize];
+    this.lineBytes = new byte[bufferSize];
+    this.lineByteBuffer = ByteBuffer.wrap(lineBytes);
+    this.lineChars = new char[bufferSize];
+    this.lineCharBuffer = CharBuffer.wrap(lineChars);
+    this.payloadChars = new char[bufferSize];
+    this.decoder = Charset.forName("UTF-8").newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  }
+
+  /**
+   * @return the number of bytes consumed from the underlying stream so far.
+   */
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  /**
+   * @return the number of records successfully parsed so far.
+   */
+  public long getRecordsParsed() {
+    return recordsParsed;
+  }
+
+  /**
+   * Parse the next record from the stream.
+   * <p>
+   * Blank lines are skipped. If a line cannot be parsed, an exception is
+   * thrown; the offending line has been consumed, so the caller can choose to
+   * continue by calling <code>next</code> again.
+   *
+   * @return the next record, or <code>null</code> at the end of the stream.
+   * @throws IOException if the underlying stream fails.
+   * @throws ParseException if the line is not valid JSON.
+   * @throws NonObjectJSONException if the line or its payload is not a JSON object.
+   * @throws RecordParseException if an envelope field has the wrong type.
+   */
+  public CryptoRecord next() throws IOException, ParseException, NonObjectJSONException, RecordParseException {
+    while (readLine()) {
+      decodeLine();
+      skipWhitespace();
+      if (position == limit) {
+        continue;
+      }
+      CryptoRecord record = parseEnvelope();
+      recordsParsed += 1;
+      return record;
+    }
+    return null;
+  }
+
+  /**
+   * Read bytes up to the next newline into <code>lineBytes</code>.
+   *
+   * @return false if the stream is exhausted and no bytes were read.
+   */
+  protected boolean readLine() throws IOException {
+    lineLength = 0;
+    boolean sawAny = false;
+    while (true) {
+      if (readPosition == readLimit) {
+        if (eof || !fill()) {
+          return sawAny;
+        }
+      }
+      sawAny = true;
+      int start = readPosition;
+      int i = start;
+      while (i < readLimit && readBuffer[i] != '\n') {
+        i++;
+      }
+      appendToLine(start, i - start);
+      if (i < readLimit) {
+        // Skip the newline itself.
+        readPosition = i + 1;
+        return true;
+      }
+      readPosition = readLimit;
+    }
+  }
+
+  private boolean fill() throws IOException {
+    int count = in.read(readBuffer, 0, readBuffer.length);
+    if (count <= 0) {
+      eof = true;
+      return false;
+    }
+    bytesRead += count;
+    readPosition = 0;
+    readLimit = count;
+    return true;
+  }
+
+  private void appendToLine(int start, int count) {
+    if (lineLength + count > lineBytes.length) {
+      byte[] grown = new byte[Math.max(lineBytes.length * 2, lineLength + count)];
+      System.arraycopy(lineBytes, 0, grown, 0, lineLength);
+      lineBytes = grown;
+      lineByteBuffer = ByteBuffer.wrap(lineBytes);
+    }
+    System.arraycopy(readBuffer, start, lineBytes, lineLength, count);
+    lineLength += count;
+  }
+
+  private void decodeLine() {
+    // UTF-8 never produces more chars than bytes.
+    if (lineChars.length < lineLength) {
+      lineChars = new char[Math.max(lineChars.length * 2, lineLength)];
+      lineCharBuffer = CharBuffer.wrap(lineChars);
+    }
+    lineByteBuffer.clear();
+    lineByteBuffer.limit(lineLength);
+    lineCharBuffer.clear();
+    decoder.reset();
+    decoder.decode(lineByteBuffer, lineCharBuffer, true);
+    decoder.flush(lineCharBuffer);
+
+    chars = lineChars;
+    position = 0;
+    limit = lineCharBuffer.position();
+  }
+
+  protected CryptoRecord parseEnvelope() throws ParseException, NonObjectJSONException, RecordParseException {
+    if (chars[position] != '{') {
+      throw new NonObjectJSONException("value must be a JSON object");
+    }
+    position++;
+
+    String id = null;
+    String collection = null;
+    JSONObject payload = null;
+    Object modified = null;
+    Object sortIndex = null;
+    Object ttl = null;
+    // Present but null is not the same as absent.
+    boolean hasModified = false;
+    boolean hasSortIndex = false;
+    boolean hasTTL = false;
+
+    skipWhitespace();
+    if (peek() == '}') {
+      position++;
+    } else {
+      while (true) {
+        skipWhitespace();
+        expect('"');
+        String key = parseKey();
+        skipWhitespace();
+        expect(':');
+        skipWhitespace();
+
+        if (KEY_PAYLOAD == key && peek() == '"') {
+          payload = parsePayload();
+        } else {
+          Object value = parseValue();
+          if (KEY_ID == key) {
+            id = castString(KEY_ID, value);
+          } else if (KEY_COLLECTION == key) {
+            collection = castString(KEY_COLLECTION, value);
+          } else if (KEY_MODIFIED == key) {
+            modified = value;
+            hasModified = true;
+          } else if (KEY_SORTINDEX == key) {
+            sortIndex = value;
+            hasSortIndex = true;
+          } else if (KEY_TTL == key) {
+            ttl = value;
+            hasTTL = true;
+          } else if (KEY_PAYLOAD == key) {
+            throw new RecordParseException("payload must be a string");
+          }
+        }
+
+        skipWhitespace();
+        char c = nextChar();
+        if (c == '}') {
+          break;
+        }
+        if (c != ',') {
+          throw unexpected(c);
+        }
+      }
+    }
+
+    skipWhitespace();
+    if (position != limit) {
+      throw unexpected(chars[position]);
+    }
+
+    if (payload == null) {
+      throw new RecordParseException("payload is missing");
+    }
+    CryptoRecord record = new CryptoRecord(new ExtendedJSONObject(payload));
+    record.guid       = id;
+    record.collection = collection;
+    if (hasModified) {
+      record.lastModified = toTimestamp(modified);
+    }
+    if (hasSortIndex) {
+      if (!(sortIndex instanceof Long)) {
+        throw new RecordParseException("timestamp could not be parsed");
+      }
+      record.sortIndex = ((Long) sortIndex).longValue();
+    }
+    if (hasTTL) {
+      if (!(ttl instanceof Long)) {
+        throw new RecordParseException("TTL could not be parsed");
+      }
+      record.ttl = ((Long) ttl).longValue();
+    }
+    return record;
+  }
+
+  private static String castString(String key, Object value) throws RecordParseException {
+    if (value == null || value instanceof String) {
+      return (String) value;
+    }
+    throw new RecordParseException(key + " must be a string");
+  }
+
+  /**
+   * Convert a server timestamp, in decimal seconds, to milliseconds, exactly
+   * as {@link ExtendedJSONObject#getTimestamp(String)} does.
+   */
+  private static long toTimestamp(Object value) throws RecordParseException {
+    if (value instanceof Double) {
+      return Double.valueOf(((Double) value).doubleValue() * 1000).longValue();
+    }
+    if (value instanceof Long) {
+      return ((Long) value).longValue() * 1000;
+    }
+    throw new RecordParseException("timestamp could not be parsed");
+  }
+
+  /**
+   * Unescape the payload string into <code>payloadChars</code> and parse it as
+   * a JSON object, without materializing it as a <code>String</code>.
+   */
+  private JSONObject parsePayload() throws ParseException, NonObjectJSONException {
+    expect('"');
+    int length = 0;
+    while (true) {
+      char c = nextChar();
+      if (c == '"') {
+        break;
+      }
+      if (c == '\\') {
+        c = unescape();
+      }
+      if (length == payloadChars.length) {
+        char[] grown = new char[payloadChars.length * 2];
+        System.arraycopy(payloadChars, 0, grown, 0, length);
+        payloadChars = grown;
+      }
+      payloadChars[length++] = c;
+    }
+
+    // Parse the payload, then resume the envelope.
+    final char[] envelopeChars = chars;
+    final int envelopePosition = position;
+    final int envelopeLimit = limit;
+    chars = payloadChars;
+    position = 0;
+    limit = length;
+    try {
+      skipWhitespace();
+      if (position == limit) {
+        // Matches ExtendedJSONObject's treatment of empty input.
+        return new JSONObject();
+      }
+      Object value = parseValue();
+      skipWhitespace();
+      if (position != limit) {
+        throw unexpected(chars[position]);
+      }
+      if (!(value instanceof JSONObject)) {
+        throw new NonObjectJSONException("value must be a JSON object");
+      }
+      return (JSONObject) value;
+    } finally {
+      chars = envelopeChars;
+      position = envelopePosition;
+      limit = envelopeLimit;
+    }
+  }
+
+  /**
+   * Parse an object key, returning the interned constant for keys we recognize
+   * so that callers can compare by identity without allocating.
+   */
+  private String parseKey() throws ParseException {
+    int start = position;
+    int end = start;
+    while (end < limit && chars[end] != '"' && chars[end] != '\\') {
+      end++;
+    }
+    if (end < limit && chars[end] == '"') {
+      position = end + 1;
+      int length = end - start;
+      if (matches(KEY_ID, start, length))         return KEY_ID;
+      if (matches(KEY_PAYLOAD, start, length))    return KEY_PAYLOAD;
+      if (matches(KEY_MODIFIED, start, length))   return KEY_MODIFIED;
+      if (matches(KEY_SORTINDEX, start, length))  return KEY_SORTINDEX;
+      if (matches(KEY_COLLECTION, start, length)) return KEY_COLLECTION;
+      if (matches(KEY_TTL, start, length))        return KEY_TTL;
+      return new String(chars, start, length);
+    }
+    // Escaped keys are rare enough that we don't bother recognizing them.
+    position = start;
+    return parseStringBody();
+  }
+
+  private boolean matches(String key, int start, int length) {
+    if (key.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (chars[start + i] != key.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @SuppressWarnings("unchecked")
+  private Object parseValue() throws ParseException {
+    char c = peek();
+    switch (c) {
+    case '"':
+      position++;
+      return parseStringBody();
+    case '{':
+      position++;
+      JSONObject object = new JSONObject();
+      skipWhitespace();
+      if (peek() == '}') {
+        position++;
+        return object;
+      }
+      while (true) {
+        skipWhitespace();
+        expect('"');
+        String key = parseStringBody();
+        skipWhitespace();
+        expect(':');
+        skipWhitespace();
+        object.put(key, parseValue());
+        skipWhitespace();
+        c = nextChar();
+        if (c == '}') {
+          return object;
+        }
+        if (c != ',') {
+          throw unexpected(c);
+        }
+      }
+    case '[':
+      position++;
+      JSONArray array = new JSONArray();
+      skipWhitespace();
+      if (peek() == ']') {
+        position++;
+        return array;
+      }
+      while (true) {
+        skipWhitespace();
+        array.add(parseValue());
+        skipWhitespace();
+        c = nextChar();
+        if (c == ']') {
+          return array;
+        }
+        if (c != ',') {
+          throw unexpected(c);
+        }
+      }
+    case 't':
+      expectLiteral("true");
+      return Boolean.TRUE;
+    case 'f':
+      expectLiteral("false");
+      return Boolean.FALSE;
+    case 'n':
+      expectLiteral("null");
+      return null;
+    default:
+      if (c == '-' || (c >= '0' && c <= '9')) {
+        return parseNumber();
+      }
+      throw unexpected(c);
+    }
+  }
+
+  private Object parseNumber() throws ParseException {
+    int start = position;
+    boolean integral = true;
+    while (position < limit) {
+      char c = chars[position];
+      if (c >= '0' && c <= '9' || c == '-') {
+        position++;
+      } else if (c == '.' || c == 'e' || c == 'E' || c == '+') {
+        integral = false;
+        position++;
+      } else {
+        break;
+      }
+    }
+    int length = position - start;
+    try {
+      if (!integral) {
+        return Double.valueOf(new String(chars, start, length));
+      }
+      // Avoid allocating a String for the common case: short integers.
+      boolean negative = chars[start] == '-';
+      int digitsStart = negative ? start + 1 : start;
+      int digits = position - digitsStart;
+      if (digits == 0 || digits > 18) {
+        return Long.valueOf(new String(chars, start, length));
+      }
+      long value = 0;
+      for (int i = digitsStart; i < position; i++) {
+        char c = chars[i];
+        if (c < '0' || c > '9') {
+          throw unexpected(c);
+        }
+        value = value * 10 + (c - '0');
+      }
+      return Long.valueOf(negative ? -value : value);
+    } catch (NumberFormatException e) {
+      throw new ParseException(start, ParseException.ERROR_UNEXPECTED_EXCEPTION, e);
+    }
+  }
+
+  /**
+   * Parse the remainder of a string whose opening quote has been consumed.
+   */
+  private String parseStringBody() throws ParseException {
+    int start = position;
+    while (position < limit) {
+      char c = chars[position];
+      if (c == '"') {
+        String s = new String(chars, start, position - start);
+        position++;
+        return s;
+      }
+      if (c == '\\') {
+        break;
+      }
+      position++;
+    }
+
+    // Slow path: the string contains escapes.
+    StringBuilder sb = new StringBuilder(position - start + 16);
+    sb.append(chars, start, position - start);
+    while (true) {
+      char c = nextChar();
+      if (c == '"') {
+        return sb.toString();
+      }
+      if (c == '\\') {
+        c = unescape();
+      }
+      sb.append(c);
+    }
+  }
+
+  /**
+   * Decode an escape sequence whose backslash has been consumed.
+   */
+  private char unescape() throws ParseException {
+    char c = nextChar();
+    switch (c) {
+    case '"':
+    case '\\':
+    case '/':
+      return c;
+    case 'b':
+      return '\b';
+    case 'f':
+      return '\f';
+    case 'n':
+      return '\n';
+    case 'r':
+      return '\r';
+    case 't':
+      return '\t';
+    case 'u':
+      if (position + 4 > limit) {
+        throw new ParseException(position, ParseException.ERROR_UNEXPECTED_CHAR, Character.valueOf(c));
+      }
+      int value = 0;
+      for (int i = 0; i < 4; i++) {
+        int digit = Character.digit(chars[position + i], 16);
+        if (digit < 0) {
+          throw unexpected(chars[position + i]);
+        }
+        value = (value << 4) | digit;
+      }
+      position += 4;
+      return (char) value;
+    default:
+      throw unexpected(c);
+    }
+  }
+
+  private void expectLiteral(String literal) throws ParseException {
+    if (!matches(literal, position, Math.min(literal.length(), limit - position))) {
+      throw unexpected(chars[position]);
+    }
+    position += literal.length();
+  }
+
+  private void skipWhitespace() {
+    while (position < limit) {
+      char c = chars[position];
+      if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+        return;
+      }
+      position++;
+    }
+  }
+
+  private char peek() throws ParseException {
+    if (position >= limit) {
+      throw new ParseException(position, ParseException.ERROR_UNEXPECTED_TOKEN, null);
+    }
+    return chars[position];
+  }
+
+  private char nextChar() throws ParseException {
+    char c = peek();
+    position++;
+    return c;
+  }
+
+  private void expect(char expected) throws ParseException {
+    char c = nextChar();
+    if (c != expected) {
+      position--;
+      throw unexpected(c);
+    }
+  }
+
+  private ParseException unexpected(char c) {
+    return new ParseException(position, ParseException.ERROR_UNEXPECTED_CHAR, Character.valueOf(c));
+  }
+}
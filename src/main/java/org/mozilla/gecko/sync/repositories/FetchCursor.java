@@ -0,0 +1,83 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories;
+
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+
+/**
+ * How far a paged fetch got through a collection, so that a later session
+ * can carry on from there.
+ * <p>
+ * A paged fetch walks the records modified after <code>newer</code> and
+ * before <code>older</code>, a page at a time. <code>older</code> is the
+ * server's timestamp when the walk began, which keeps the set of records
+ * being walked from growing underneath us; it is -1 if the walk hasn't
+ * begun. <code>offset</code> is where the next page starts, or null for the
+ * first page.
+ */
+public class FetchCursor {
+  protected static final String JSON_KEY_NEWER  = "newer";
+  protected static final String JSON_KEY_OLDER  = "older";
+  protected static final String JSON_KEY_OFFSET = "offset";
+
+  public final long newer;
+  public final long older;
+  public final String offset;
+
+  public FetchCursor(long newer, long older, String offset) {
+    this.newer  = newer;
+    this.older  = older;
+    this.offset = offset;
+  }
+
+  /**
+   * @return true if the walk has its snapshot timestamp.
+   */
+  public boolean isStarted() {
+    return older >= 0;
+  }
+
+  public FetchCursor withOlder(long older) {
+    return new FetchCursor(newer, older, offset);
+  }
+
+  public FetchCursor withOffset(String offset) {
+    return new FetchCursor(newer, older, offset);
+  }
+
+  public ExtendedJSONObject toJSON() {
+    final ExtendedJSONObject o = new ExtendedJSONObject();
+    o.put(JSON_KEY_NEWER, Long.valueOf(newer));
+    o.put(JSON_KEY_OLDER, Long.valueOf(older));
+    if (offset != null) {
+      o.put(JSON_KEY_OFFSET, offset);
+    }
+    return o;
+  }
+
+  /**
+   * @return a cursor, or null if <code>o</code> doesn't describe one.
+   */
+  public static FetchCursor fromJSON(ExtendedJSONObject o) {
+    if (o == null) {
+      return null;
+    }
+    final Object newer  = o.get(JSON_KEY_NEWER);
+    final Object older  = o.get(JSON_KEY_OLDER);
+    final Object offset = o.get(JSON_KEY_OFFSET);
+    if (!(newer instanceof Number) || !(older instanceof Number)) {
+      return null;
+    }
+    if (offset != null && !(offset instanceof String)) {
+      return null;
+    }
+    return new FetchCursor(((Number) newer).longValue(), ((Number) older).longValue(), (String) offset);
+  }
+
+  @Override
+  public String toString() {
+    return "FetchCursor[newer=" + newer + ", older=" + older + ", offset=" + offset + "]";
+  }
+}
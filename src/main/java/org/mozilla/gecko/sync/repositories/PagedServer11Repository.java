@@ -0,0 +1,47 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories;
+
+import java.net.URISyntaxException;
+
+import org.mozilla.gecko.sync.net.AuthHeaderProvider;
+
+/**
+ * A kind of ConstrainedServer11Repository that fetches a page of
+ * <code>limit</code> records at a time, until it has fetched everything or
+ * spent its budget.
+ */
+public class PagedServer11Repository extends ConstrainedServer11Repository {
+  private final long timeBudget;
+  private final long byteBudget;
+
+  /**
+   * @param limit records per page.
+   * @param sort order in which to walk the collection.
+   * @param timeBudget milliseconds each session may spend fetching, or -1.
+   * @param byteBudget bytes of records each session may fetch, or -1.
+   * @throws URISyntaxException
+   */
+  public PagedServer11Repository(String collection, String storageURL, AuthHeaderProvider authHeaderProvider, long limit, String sort, long timeBudget, long byteBudget) throws URISyntaxException {
+    super(collection, storageURL, authHeaderProvider, limit, sort);
+    this.timeBudget = timeBudget;
+    this.byteBudget = byteBudget;
+  }
+
+  @Override
+  protected boolean getPagedFetch() {
+    return true;
+  }
+
+  @Override
+  protected long getFetchTimeBudget() {
+    return timeBudget;
+  }
+
+  @Override
+  protected long getFetchByteBudget() {
+    return byteBudget;
+  }
+}
@@ -9,8 +9,12 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.FlowController;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFinishDelegate;
@@ -67,7 +71,33 @@ public abstract class RepositorySession {
    * This includes actual store work, and also the consequences of storeDone.
    * This provides strict ordering.
    */
-  protected ExecutorService storeWorkQueue = Executors.newSingleThreadExecutor();
+  protected ExecutorService storeWorkQueue = new StoreWorkQueue();
+
+  /**
+   * Set while this session is part of a flow that limits how far fetching can
+   * get ahead of storing. Sources consult it while fetching; sinks signal it as
+   * store work drains.
+   */
+  protected volatile FlowController flowController;
+
+  /**
+   * A single-threaded executor, like <code>Executors.newSingleThreadExecutor</code>,
+   * whose backlog can be inspected and whose progress signals any flow controller.
+   */
+  protected class StoreWorkQueue extends ThreadPoolExecutor {
+    public StoreWorkQueue() {
+      super(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+      super.afterExecute(r, t);
+      final FlowController controller = flowController;
+      if (controller != null) {
+        controller.signal();
+      }
+    }
+  }
 
   // The time that the last sync on this collection completed, in milliseconds since epoch.
   public long lastSyncTimestamp;
@@ -80,6 +110,21 @@ public abstract class RepositorySession {
     this.repository = repository;
   }
 
+  public void setFlowController(FlowController flowController) {
+    this.flowController = flowController;
+  }
+
+  /**
+   * @return the number of units of store work -- typically one per record --
+   *         queued but not yet started.
+   */
+  public int getStoreBacklog() {
+    if (storeWorkQueue instanceof ThreadPoolExecutor) {
+      return ((ThreadPoolExecutor) storeWorkQueue).getQueue().size();
+    }
+    return 0;
+  }
+
   public abstract void guidsSince(long timestamp, RepositorySessionGuidsSinceDelegate delegate);
   public abstract void fetchSince(long timestamp, RepositorySessionFetchRecordsDelegate delegate);
   public abstract void fetch(String[] guids, RepositorySessionFetchRecordsDelegate delegate) throws InactiveSessionException;
@@ -15,6 +15,7 @@ public class RepositorySessionBundle {
   public static final String LOG_TAG = RepositorySessionBundle.class.getSimpleName();
 
   protected static final String JSON_KEY_TIMESTAMP = "timestamp";
+  protected static final String JSON_KEY_FETCH_CURSOR = "fetchCursor";
 
   protected final ExtendedJSONObject object;
 
@@ -49,6 +50,31 @@ public class RepositorySessionBundle {
     }
   }
 
+  /**
+   * @return where an unfinished paged fetch should resume, or null.
+   */
+  public FetchCursor getFetchCursor() {
+    try {
+      return FetchCursor.fromJSON(object.getObject(JSON_KEY_FETCH_CURSOR));
+    } catch (NonObjectJSONException e) {
+      Logger.warn(LOG_TAG, "Ignoring malformed fetch cursor.", e);
+      return null;
+    }
+  }
+
+  /**
+   * @param cursor where an unfinished paged fetch should resume, or null if
+   *          there's nothing to resume.
+   */
+  public void setFetchCursor(FetchCursor cursor) {
+    if (cursor == null) {
+      object.remove(JSON_KEY_FETCH_CURSOR);
+      return;
+    }
+    Logger.debug(LOG_TAG, "Setting fetch cursor to " + cursor + ".");
+    object.put(JSON_KEY_FETCH_CURSOR, cursor.toJSON().object);
+  }
+
   public String toJSONString() {
     return object.toJSONString();
   }
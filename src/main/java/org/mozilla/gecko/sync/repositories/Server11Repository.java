@@ -4,10 +4,14 @@
 
 package org.mozilla.gecko.sync.repositories;
 
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 
+import org.mozilla.gecko.sync.InfoCollections;
+import org.mozilla.gecko.sync.InfoConfiguration;
 import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.net.AuthHeaderProvider;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDelegate;
@@ -25,6 +29,25 @@ public class Server11Repository extends Repository {
   protected URI collectionURI;
   protected final AuthHeaderProvider authHeaderProvider;
 
+  /**
+   * Shared by every session, so that what we learn about batch sizes, and
+   * the metrics we gather, span the whole stage.
+   */
+  protected UploadBatchSizer uploadBatchSizer = new UploadBatchSizer();
+  protected final Server11UploadStats uploadStats = new Server11UploadStats();
+
+  /**
+   * The most records, and bytes of records, the server accepts in one
+   * upload batch, or -1 if it doesn't say.
+   */
+  protected long maxTotalRecords = -1;
+  protected long maxTotalBytes = -1;
+
+  /**
+   * The server's collection timestamps, if fetched this sync.
+   */
+  protected InfoCollections infoCollections;
+
   /**
    * Construct a new repository that fetches and stores against the Sync 1.1. API.
    *
@@ -50,6 +73,10 @@ public class Server11Repository extends Repository {
   }
 
   public URI collectionURI(boolean full, long newer, long limit, String sort, String ids) throws URISyntaxException {
+    return collectionURI(full, newer, -1, limit, sort, ids, null);
+  }
+
+  public URI collectionURI(boolean full, long newer, long older, long limit, String sort, String ids, String offset) throws URISyntaxException {
     ArrayList<String> params = new ArrayList<String>();
     if (full) {
       params.add("full=1");
@@ -59,6 +86,9 @@ public class Server11Repository extends Repository {
       String newerString = Utils.millisecondsToDecimalSecondsString(newer);
       params.add("newer=" + newerString);
     }
+    if (older >= 0) {
+      params.add("older=" + Utils.millisecondsToDecimalSecondsString(older));
+    }
     if (limit > 0) {
       params.add("limit=" + limit);
     }
@@ -68,6 +98,14 @@ public class Server11Repository extends Repository {
     if (ids != null) {
       params.add("ids=" + ids);         // We trust these values.
     }
+    if (offset != null) {
+      // Servers that page with X-Weave-Next-Offset hand out opaque tokens.
+      try {
+        params.add("offset=" + URLEncoder.encode(offset, "UTF-8"));
+      } catch (UnsupportedEncodingException e) {
+        throw new URISyntaxException(offset, "Couldn't encode offset.");
+      }
+    }
 
     if (params.size() == 0) {
       return this.collectionURI;
@@ -88,6 +126,24 @@ public class Server11Repository extends Repository {
     return new URI(this.collectionURI + "/" + id);
   }
 
+  /**
+   * @param batch the server's ID for an open upload batch, or "true" to ask
+   *        the server to open one.
+   * @param commit true to commit the batch once this request's records are
+   *        staged.
+   * @return the URI to POST records to as part of a server-side batch.
+   * @throws URISyntaxException
+   */
+  public URI batchURI(String batch, boolean commit) throws URISyntaxException {
+    final String encoded;
+    try {
+      encoded = URLEncoder.encode(batch, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new URISyntaxException(batch, "Couldn't encode batch.");
+    }
+    return new URI(this.collectionURI + "?batch=" + encoded + (commit ? "&commit=true" : ""));
+  }
+
   // Override these.
   @SuppressWarnings("static-method")
   protected long getDefaultFetchLimit() {
@@ -99,7 +155,147 @@ public class Server11Repository extends Repository {
     return null;
   }
 
+  /**
+   * @return the number of record upload POSTs a session may have in flight at
+   *         once. 1 uploads batches serially, waiting for each response before
+   *         sending the next batch.
+   */
+  @SuppressWarnings("static-method")
+  protected int getMaxConcurrentUploads() {
+    return 1;
+  }
+
+  /**
+   * @return the total size in bytes of request bodies a session may have in
+   *         flight at once when uploading concurrently.
+   */
+  @SuppressWarnings("static-method")
+  protected long getMaxInFlightUploadBytes() {
+    return 4 * 1024 * 1024;
+  }
+
+  /**
+   * @return true to ask the server for gzip or deflate compressed fetch
+   *         responses, which are decoded as records are read.
+   */
+  @SuppressWarnings("static-method")
+  protected boolean getAcceptCompressedResponses() {
+    return false;
+  }
+
+  /**
+   * @return true to gzip record upload bodies. The server must accept
+   *         <code>Content-Encoding: gzip</code> request bodies.
+   */
+  @SuppressWarnings("static-method")
+  protected boolean getCompressUploads() {
+    return false;
+  }
+
+  /**
+   * @return the most record IDs to name in one request when fetching or
+   *         deleting records by ID. Longer lists are split across several
+   *         requests.
+   */
+  @SuppressWarnings("static-method")
+  protected int getMaxIDsPerRequest() {
+    return 100;
+  }
+
+  /**
+   * @return the number of requests a session may have in flight at once when
+   *         fetching records by ID in several requests.
+   */
+  @SuppressWarnings("static-method")
+  protected int getMaxConcurrentFetches() {
+    return 4;
+  }
+
+  /**
+   * @return true to fetch in successive requests of at most
+   *         {@link #getDefaultFetchLimit()} records each, rather than in one
+   *         request. A paged fetch that runs out of budget records where it
+   *         got to, and the next session carries on from there.
+   */
+  @SuppressWarnings("static-method")
+  protected boolean getPagedFetch() {
+    return false;
+  }
+
+  /**
+   * @return milliseconds a paged fetch may spend before it stops, or -1 for
+   *         no limit. At least one page is always fetched.
+   */
+  @SuppressWarnings("static-method")
+  protected long getFetchTimeBudget() {
+    return -1;
+  }
+
+  /**
+   * @return bytes of records a paged fetch may read before it stops, or -1
+   *         for no limit. At least one page is always fetched.
+   */
+  @SuppressWarnings("static-method")
+  protected long getFetchByteBudget() {
+    return -1;
+  }
+
+  /**
+   * @return true to upload records into a single server-side batch, which is
+   *         committed once every record has been staged. Nothing is written
+   *         to the collection if any POST fails. Servers that don't support
+   *         batches commit each POST as it arrives, as usual.
+   */
+  @SuppressWarnings("static-method")
+  protected boolean getAtomicUploads() {
+    return false;
+  }
+
   public AuthHeaderProvider getAuthHeaderProvider() {
     return authHeaderProvider;
   }
+
+  /**
+   * Respect upload limits advertised by the server.
+   *
+   * @param infoConfiguration limits, or null if the server advertises none.
+   */
+  public void setInfoConfiguration(InfoConfiguration infoConfiguration) {
+    this.uploadBatchSizer = new UploadBatchSizer(infoConfiguration);
+    this.maxTotalRecords = (infoConfiguration == null) ? -1 : infoConfiguration.getMaxTotalRecords();
+    this.maxTotalBytes = (infoConfiguration == null) ? -1 : infoConfiguration.getMaxTotalBytes();
+  }
+
+  public long getMaxTotalRecords() {
+    return maxTotalRecords;
+  }
+
+  public long getMaxTotalBytes() {
+    return maxTotalBytes;
+  }
+
+  public void setInfoCollections(InfoCollections infoCollections) {
+    this.infoCollections = infoCollections;
+  }
+
+  /**
+   * @param lastSyncTimestamp
+   *          when we last fetched from this collection.
+   * @return false only if info/collections shows that the collection hasn't
+   *         changed since <code>lastSyncTimestamp</code>.
+   */
+  public boolean updateNeeded(long lastSyncTimestamp) {
+    if (infoCollections == null) {
+      return true;
+    }
+    return infoCollections.updateNeeded(collection, lastSyncTimestamp);
+  }
+
+  public UploadBatchSizer getUploadBatchSizer() {
+    return uploadBatchSizer;
+  }
+
+  public Server11UploadStats getUploadStats() {
+    return uploadStats;
+  }
 }
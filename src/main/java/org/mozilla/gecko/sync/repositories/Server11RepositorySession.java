@@ -4,6 +4,7 @@
 
 package org.mozilla.gecko.sync.repositories;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
@@ -13,9 +14,17 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 import org.json.simple.JSONArray;
+import org.json.simple.JSONValue;
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.CryptoRecord;
 import org.mozilla.gecko.sync.DelayedWorkTracker;
@@ -26,7 +35,9 @@ import org.mozilla.gecko.sync.Server11RecordPostFailedException;
 import org.mozilla.gecko.sync.UnexpectedJSONException;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.net.AuthHeaderProvider;
+import org.mozilla.gecko.sync.net.BaseResource;
 import org.mozilla.gecko.sync.net.SyncStorageCollectionRequest;
+import org.mozilla.gecko.sync.net.SyncStorageCollectionRequestDelegate;
 import org.mozilla.gecko.sync.net.SyncStorageRequest;
 import org.mozilla.gecko.sync.net.SyncStorageRequestDelegate;
 import org.mozilla.gecko.sync.net.SyncStorageResponse;
@@ -58,8 +69,9 @@ public class Server11RepositorySession extends RepositorySession {
 
   public static final String LOG_TAG = "Server11Session";
 
-  private static final int UPLOAD_BYTE_THRESHOLD = 1024 * 1024;    // 1MB.
-  private static final int UPLOAD_ITEM_THRESHOLD = 50;
+  // Leaves room in the URL for everything else, with room to spare.
+  protected static final int MAX_IDS_LENGTH = 2000;
+
   private static final int PER_RECORD_OVERHEAD   = 2;              // Comma, newline.
   // {}, newlines, but we get to skip one record overhead.
   private static final int PER_BATCH_OVERHEAD    = 5 - PER_RECORD_OVERHEAD;
@@ -115,15 +127,15 @@ public class Server11RepositorySession extends RepositorySession {
    */
   public class RequestFetchDelegateAdapter extends WBOCollectionRequestDelegate {
     RepositorySessionFetchRecordsDelegate delegate;
-    private DelayedWorkTracker workTracker = new DelayedWorkTracker();
+    protected DelayedWorkTracker workTracker = new DelayedWorkTracker();
 
     // So that we can clean up.
-    private SyncStorageCollectionRequest request;
+    protected SyncStorageCollectionRequest request;
 
     public void setRequest(SyncStorageCollectionRequest request) {
       this.request = request;
     }
-    private void removeRequestFromPending() {
+    protected void removeRequestFromPending() {
       if (this.request == null) {
         return;
       }
@@ -209,6 +221,12 @@ public class Server11RepositorySession extends RepositorySession {
   Server11Repository serverRepository;
   AtomicLong uploadTimestamp = new AtomicLong(0);
 
+  /**
+   * Advance the upload timestamp to <code>ts</code>, if that's later.
+   * <p>
+   * Concurrent uploads can complete in any order, so we keep the latest
+   * timestamp we've seen rather than the most recent one.
+   */
   private void bumpUploadTimestamp(long ts) {
     while (true) {
       long existing = uploadTimestamp.get();
@@ -221,9 +239,115 @@ public class Server11RepositorySession extends RepositorySession {
     }
   }
 
+  /**
+   * Per-batch metrics for uploads made by this session. Shared with our
+   * repository, and so with other sessions in the same stage.
+   */
+  protected final Server11UploadStats uploadStats;
+
+  /**
+   * Chooses upload batch limits. Shared with our repository, and so with
+   * other sessions in the same stage.
+   */
+  protected final UploadBatchSizer uploadBatchSizer;
+  protected final AtomicInteger uploadsInFlight = new AtomicInteger(0);
+
+  /**
+   * When uploading concurrently, POSTs run on <code>uploadExecutor</code>.
+   * <code>uploadSlots</code> bounds the number of batches in flight, and
+   * <code>uploadBytes</code> bounds their total size.
+   * <p>
+   * When uploading serially, these are null, and POSTs run on
+   * <code>storeWorkQueue</code>.
+   */
+  protected final ThreadPoolExecutor uploadExecutor;
+  protected final Semaphore uploadSlots;
+  protected final Semaphore uploadBytes;
+  protected final int maxConcurrentUploads;
+  protected final int maxInFlightUploadBytes;
+
+  /**
+   * If true, upload bodies are gzipped as they're written to the connection.
+   */
+  protected final boolean compressUploads;
+
+  /**
+   * If true, records are POSTed into a single server-side batch, which is
+   * committed in storeDone. The first POST opens the batch; later POSTs wait
+   * on <code>uploadBatchOpenMonitor</code> until it has.
+   * <p>
+   * If the server limits the records or bytes in a batch, a batch about to
+   * exceed either limit is committed, and the next POST opens a new one.
+   */
+  protected final boolean atomicUploads;
+  protected volatile Server11UploadBatch uploadBatch = new Server11UploadBatch();
+  protected final Object uploadBatchOpenMonitor = new Object();
+  protected final long maxTotalRecords;
+  protected final long maxTotalBytes;
+
+  /**
+   * Paged and chunked fetches make their requests on
+   * <code>fetchExecutor</code>, which is created by the first of them. Each
+   * request holds a thread until it completes, so this has as many threads
+   * as a chunked fetch makes concurrent requests.
+   * <p>
+   * Access should be synchronized on this session.
+   */
+  protected ThreadPoolExecutor fetchExecutor;
+
+  /**
+   * @return an executor with at most <code>threads</code> threads, which exit
+   *         when idle, so that it needn't be shut down. It doesn't queue: a
+   *         task submitted while every thread is busy runs on the submitting
+   *         thread. (A queueing pool's threads can only exit when idle with
+   *         allowCoreThreadTimeOut, which needs API 9.)
+   */
+  protected static ThreadPoolExecutor newIdleTimeoutExecutor(int threads) {
+    return new ThreadPoolExecutor(0, threads, 30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                                  new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  protected synchronized ThreadPoolExecutor getFetchExecutor() {
+    if (fetchExecutor == null) {
+      fetchExecutor = newIdleTimeoutExecutor(Math.max(1, serverRepository.getMaxConcurrentFetches()));
+    }
+    return fetchExecutor;
+  }
+
   public Server11RepositorySession(Repository repository) {
     super(repository);
     serverRepository = (Server11Repository) repository;
+
+    if (serverRepository != null) {
+      uploadStats = serverRepository.getUploadStats();
+      uploadBatchSizer = serverRepository.getUploadBatchSizer();
+    } else {
+      uploadStats = new Server11UploadStats();
+      uploadBatchSizer = new UploadBatchSizer();
+    }
+
+    if (serverRepository != null && serverRepository.getMaxConcurrentUploads() > 1) {
+      maxConcurrentUploads   = serverRepository.getMaxConcurrentUploads();
+      maxInFlightUploadBytes = (int) Math.min(Integer.MAX_VALUE, Math.max(UploadBatchSizer.DEFAULT_BYTE_LIMIT, serverRepository.getMaxInFlightUploadBytes()));
+      uploadSlots = new Semaphore(maxConcurrentUploads);
+      uploadBytes = new Semaphore(maxInFlightUploadBytes);
+      uploadExecutor = newIdleTimeoutExecutor(maxConcurrentUploads);
+    } else {
+      maxConcurrentUploads   = 1;
+      maxInFlightUploadBytes = (int) UploadBatchSizer.DEFAULT_BYTE_LIMIT;
+      uploadSlots = null;
+      uploadBytes = null;
+      uploadExecutor = null;
+    }
+
+    compressUploads = serverRepository != null && serverRepository.getCompressUploads();
+    atomicUploads = serverRepository != null && serverRepository.getAtomicUploads();
+    maxTotalRecords = (serverRepository == null) ? -1 : serverRepository.getMaxTotalRecords();
+    maxTotalBytes = (serverRepository == null) ? -1 : serverRepository.getMaxTotalBytes();
+  }
+
+  public Server11UploadStats getUploadStats() {
+    return uploadStats;
   }
 
   private String flattenIDs(String[] guids) {
@@ -243,11 +367,131 @@ public class Server11RepositorySession extends RepositorySession {
     return b.substring(0, b.length() - 1);
   }
 
+  /**
+   * There's nothing to fetch if info/collections says the collection hasn't
+   * changed since we last fetched from it, and we didn't leave a paged fetch
+   * unfinished.
+   */
+  @Override
+  public boolean dataAvailable() {
+    return fetchCursor != null || serverRepository == null || serverRepository.updateNeeded(lastSyncTimestamp);
+  }
+
+  @Override
+  public void unbundle(RepositorySessionBundle bundle) {
+    super.unbundle(bundle);
+    FetchCursor cursor = (bundle == null) ? null : bundle.getFetchCursor();
+    // A walk that began after our timestamp must predate a reset.
+    if (cursor != null && cursor.newer > lastSyncTimestamp) {
+      Logger.warn(LOG_TAG, "Discarding " + cursor + ": last sync was " + lastSyncTimestamp + ".");
+      cursor = null;
+    }
+    fetchCursor = cursor;
+  }
+
+  @Override
+  protected RepositorySessionBundle getBundle(RepositorySessionBundle optional) {
+    final RepositorySessionBundle bundle = super.getBundle(optional);
+    bundle.setFetchCursor(fetchCursor);
+    return bundle;
+  }
+
+  /**
+   * Fetch the IDs of records changed since <code>timestamp</code>, without
+   * their payloads.
+   */
   @Override
   public void guidsSince(long timestamp,
                          RepositorySessionGuidsSinceDelegate delegate) {
-    // TODO Auto-generated method stub
+    final URI collectionURI;
+    try {
+      collectionURI = serverRepository.collectionURI(false, timestamp, -1, null, null);
+    } catch (URISyntaxException e) {
+      delegate.onGuidsSinceFailed(e);
+      return;
+    }
+    final RequestGuidsSinceDelegateAdapter adapter = new RequestGuidsSinceDelegateAdapter(delegate);
+    final SyncStorageCollectionRequest request = new SyncStorageCollectionRequest(collectionURI);
+    request.delegate = adapter;
+    request.setAcceptCompressedResponses(serverRepository.getAcceptCompressedResponses());
+
+    // So it can clean up.
+    adapter.request = request;
+    pending.add(request);
+    request.get();
+  }
+
+  /**
+   * Collect the record IDs in an ids-only collection response, one per line,
+   * and report them when the response is complete.
+   */
+  public class RequestGuidsSinceDelegateAdapter extends SyncStorageCollectionRequestDelegate {
+    protected final RepositorySessionGuidsSinceDelegate delegate;
+    protected final ArrayList<String> guids = new ArrayList<String>();
+    protected SyncStorageCollectionRequest request;
+    private boolean done = false;
+
+    public RequestGuidsSinceDelegateAdapter(RepositorySessionGuidsSinceDelegate delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public AuthHeaderProvider getAuthHeaderProvider() {
+      return serverRepository.getAuthHeaderProvider();
+    }
+
+    @Override
+    public String ifUnmodifiedSince() {
+      return null;
+    }
 
+    /**
+     * Each line is a record ID as a JSON string.
+     */
+    @Override
+    public void handleRequestProgress(String progress) {
+      final String line = progress.trim();
+      if (line.length() == 0) {
+        return;
+      }
+      // Record IDs don't need escaping, so we can usually skip the parser.
+      if (line.length() >= 2 && line.charAt(0) == '"' && line.charAt(line.length() - 1) == '"' && line.indexOf('\\') < 0) {
+        guids.add(line.substring(1, line.length() - 1));
+        return;
+      }
+      final Object guid = JSONValue.parse(line);
+      if (!(guid instanceof String)) {
+        throw new IllegalArgumentException("Expected a record ID; got " + line);
+      }
+      guids.add((String) guid);
+    }
+
+    @Override
+    public void handleRequestSuccess(SyncStorageResponse response) {
+      pending.remove(request);
+      if (done) {
+        return;
+      }
+      done = true;
+      Logger.debug(LOG_TAG, "Got " + guids.size() + " IDs.");
+      delegate.onGuidsSinceSucceeded(guids.toArray(new String[guids.size()]));
+    }
+
+    @Override
+    public void handleRequestFailure(SyncStorageResponse response) {
+      this.handleRequestError(new HTTPFailureException(response));
+    }
+
+    @Override
+    public void handleRequestError(Exception ex) {
+      pending.remove(request);
+      if (done) {
+        return;
+      }
+      done = true;
+      Logger.warn(LOG_TAG, "Got request error fetching IDs.", ex);
+      delegate.onGuidsSinceFailed(ex);
+    }
   }
 
   protected void fetchWithParameters(long newer,
@@ -259,8 +503,14 @@ public class Server11RepositorySession extends RepositorySession {
                                          throws URISyntaxException {
 
     URI collectionURI = serverRepository.collectionURI(full, newer, limit, sort, ids);
+    fetchURI(collectionURI, delegate);
+  }
+
+  protected void fetchURI(URI collectionURI, RequestFetchDelegateAdapter delegate) {
     SyncStorageCollectionRequest request = new SyncStorageCollectionRequest(collectionURI);
     request.delegate = delegate;
+    request.setFlowController(flowController);
+    request.setAcceptCompressedResponses(serverRepository.getAcceptCompressedResponses());
 
     // So it can clean up.
     delegate.setRequest(request);
@@ -282,12 +532,211 @@ public class Server11RepositorySession extends RepositorySession {
     try {
       long limit = serverRepository.getDefaultFetchLimit();
       String sort = serverRepository.getDefaultSort();
+      if (limit > 0 && serverRepository.getPagedFetch()) {
+        new PagedFetch(timestamp, limit, sort, delegate).fetchNextPage();
+        return;
+      }
       this.fetchWithParameters(timestamp, limit, true, sort, null, new RequestFetchDelegateAdapter(delegate));
     } catch (URISyntaxException e) {
       delegate.onFetchFailed(e, null);
     }
   }
 
+  /**
+   * Where an unfinished paged fetch will resume, or null. Read from our
+   * bundle, and written back to it when we finish.
+   */
+  protected volatile FetchCursor fetchCursor;
+
+  public FetchCursor getFetchCursor() {
+    return fetchCursor;
+  }
+
+  /**
+   * Walks the records changed since a timestamp a page at a time, each page a
+   * separate request, and reports them to the delegate as a single fetch.
+   * <p>
+   * The walk is bounded above by the server's timestamp when it began, so
+   * records changed after that are left for the next walk rather than shifting
+   * the pages under us. A record changed during the walk can still move those
+   * after it to an earlier offset, where we'll miss them.
+   * <p>
+   * If the repository's budget runs out first, the walk is recorded in
+   * {@link #fetchCursor} and the next session resumes it. Once a resumed walk
+   * completes, whatever changed since it began is walked in turn, so that a
+   * completed fetch is always up to date as of a timestamp from this session.
+   */
+  protected class PagedFetch {
+    protected final RepositorySessionFetchRecordsDelegate delegate;
+    protected final long pageSize;
+    protected final String sort;
+    protected final long timeBudget;
+    protected final long byteBudget;
+    protected final long startTime = System.currentTimeMillis();
+
+    protected FetchCursor cursor;
+    // True if the walk in progress began in an earlier session.
+    protected boolean resumed;
+    protected int pages = 0;
+    protected long bytesRead = 0;
+
+    public PagedFetch(long timestamp, long pageSize, String sort, RepositorySessionFetchRecordsDelegate delegate) {
+      this.delegate = delegate;
+      this.pageSize = pageSize;
+      this.sort = sort;
+      this.timeBudget = serverRepository.getFetchTimeBudget();
+      this.byteBudget = serverRepository.getFetchByteBudget();
+
+      final FetchCursor saved = fetchCursor;
+      if (saved != null && saved.newer <= timestamp) {
+        Logger.info(LOG_TAG, "Resuming paged fetch at " + saved + ".");
+        cursor = saved;
+      } else {
+        cursor = new FetchCursor(timestamp, -1, null);
+      }
+      resumed = cursor.isStarted();
+    }
+
+    protected boolean overBudget() {
+      if (timeBudget >= 0 && System.currentTimeMillis() - startTime >= timeBudget) {
+        return true;
+      }
+      return byteBudget >= 0 && bytesRead >= byteBudget;
+    }
+
+    public void fetchNextPage() {
+      final URI uri;
+      try {
+        uri = serverRepository.collectionURI(true, cursor.newer, cursor.older, pageSize, sort, null, cursor.offset);
+      } catch (URISyntaxException e) {
+        delegate.onFetchFailed(e, null);
+        return;
+      }
+      fetchURI(uri, new PageDelegate(this));
+    }
+
+    /**
+     * @return where the page after this one starts, or null if this was the
+     *         last page.
+     */
+    protected String nextOffset(int count, String serverOffset) {
+      if (serverOffset != null) {
+        return serverOffset;
+      }
+      if (count < pageSize) {
+        return null;
+      }
+      if (cursor.offset == null) {
+        return Long.toString(count);
+      }
+      try {
+        return Long.toString(Long.parseLong(cursor.offset) + count);
+      } catch (NumberFormatException e) {
+        // The server pages with its own tokens, and didn't give us another.
+        return null;
+      }
+    }
+
+    /**
+     * Called once a page's records have all been handed to the delegate.
+     */
+    protected void onPageFetched(int count, long bytes, long timestamp, String serverOffset) {
+      pages += 1;
+      bytesRead += bytes;
+      if (!cursor.isStarted()) {
+        // The first page shows us the collection as of this timestamp.
+        cursor = cursor.withOlder(timestamp);
+      }
+
+      final String offset = nextOffset(count, serverOffset);
+      if (offset != null) {
+        cursor = cursor.withOffset(offset);
+      } else if (resumed) {
+        Logger.debug(LOG_TAG, "Finished resumed walk " + cursor + ". Fetching changes since.");
+        cursor = new FetchCursor(cursor.older, -1, null);
+        resumed = false;
+      } else {
+        Logger.info(LOG_TAG, "Paged fetch completed: " + pages + " pages, " + bytesRead + " bytes.");
+        fetchCursor = null;
+        delegate.onFetchCompleted(cursor.older);
+        return;
+      }
+
+      if (overBudget()) {
+        Logger.info(LOG_TAG, "Paged fetch out of budget after " + pages + " pages, " + bytesRead + " bytes. " +
+                             "Will resume at " + cursor + ".");
+        fetchCursor = cursor;
+        // We're only up to date as of the start of the walk.
+        delegate.onFetchCompleted(cursor.newer);
+        return;
+      }
+
+      // Don't run each page deeper in the stack than the last.
+      getFetchExecutor().execute(new Runnable() {
+        @Override
+        public void run() {
+          if (!isActive()) {
+            Logger.debug(LOG_TAG, "Session no longer active; abandoning paged fetch.");
+            return;
+          }
+          fetchNextPage();
+        }
+      });
+    }
+  }
+
+  /**
+   * Hands one page's records to a paged fetch's delegate, then asks the
+   * fetch for the next page.
+   */
+  protected class PageDelegate extends RequestFetchDelegateAdapter {
+    protected final PagedFetch fetch;
+    protected int count = 0;
+    protected volatile boolean failed = false;
+
+    public PageDelegate(PagedFetch fetch) {
+      super(fetch.delegate);
+      this.fetch = fetch;
+    }
+
+    @Override
+    public void handleWBO(CryptoRecord record) {
+      count += 1;
+      super.handleWBO(record);
+    }
+
+    @Override
+    public void handleRequestError(Exception ex) {
+      failed = true;
+      super.handleRequestError(ex);
+    }
+
+    @Override
+    public void handleRequestSuccess(SyncStorageResponse response) {
+      final long bytes = (request == null) ? 0 : request.getBytesRead();
+      removeRequestFromPending();
+      if (failed) {
+        // The delegate has already been told; don't carry on past the failure.
+        workTracker.delayWorkItem(new Runnable() {
+          @Override
+          public void run() {
+            fetch.delegate.onFetchCompleted(fetch.cursor.newer);
+          }
+        });
+        return;
+      }
+
+      final long timestamp = getNormalizedTimestamp(response);
+      final String serverOffset = response.weaveNextOffset();
+      workTracker.delayWorkItem(new Runnable() {
+        @Override
+        public void run() {
+          fetch.onPageFetched(count, bytes, timestamp, serverOffset);
+        }
+      });
+    }
+  }
+
   @Override
   public void fetchAll(RepositorySessionFetchRecordsDelegate delegate) {
     this.fetchSince(-1, delegate);
@@ -296,7 +745,12 @@ public class Server11RepositorySession extends RepositorySession {
   @Override
   public void fetch(String[] guids,
                     RepositorySessionFetchRecordsDelegate delegate) {
-    // TODO: watch out for URL length limits!
+    final ArrayList<String> chunks = chunkIDs(guids, serverRepository.getMaxIDsPerRequest(), MAX_IDS_LENGTH);
+    if (chunks.size() > 1) {
+      Logger.debug(LOG_TAG, "Fetching " + guids.length + " records in " + chunks.size() + " requests.");
+      new ChunkedFetch(chunks, delegate).start();
+      return;
+    }
     try {
       String ids = flattenIDs(guids);
       this.fetchWithParameters(-1, -1, true, "index", ids, new RequestFetchDelegateAdapter(delegate));
@@ -305,13 +759,257 @@ public class Server11RepositorySession extends RepositorySession {
     }
   }
 
+  /**
+   * Split <code>guids</code> into comma-separated lists of at most
+   * <code>maxCount</code> IDs and about <code>maxLength</code> characters, so
+   * that each fits comfortably in a request URL.
+   */
+  protected static ArrayList<String> chunkIDs(String[] guids, int maxCount, int maxLength) {
+    final ArrayList<String> chunks = new ArrayList<String>();
+    StringBuilder chunk = new StringBuilder();
+    int count = 0;
+    for (String guid : guids) {
+      if (count > 0 && (count >= maxCount || chunk.length() + 1 + guid.length() > maxLength)) {
+        chunks.add(chunk.toString());
+        chunk = new StringBuilder();
+        count = 0;
+      }
+      if (count > 0) {
+        chunk.append(",");
+      }
+      chunk.append(guid);
+      count += 1;
+    }
+    if (count > 0) {
+      chunks.add(chunk.toString());
+    }
+    return chunks;
+  }
+
+  /**
+   * Fetches records by ID in several requests, a few at a time, and reports
+   * them to the delegate as a single fetch.
+   * <p>
+   * Records reach the delegate one at a time, in no particular order. When
+   * every request has succeeded, the fetch completes with the earliest of the
+   * responses' timestamps: a record changed after that could have been missed
+   * by a request that was served before the change.
+   */
+  protected class ChunkedFetch {
+    protected final ArrayList<String> chunks;
+    protected final RepositorySessionFetchRecordsDelegate delegate;
+
+    // Serializes delegate callbacks from concurrent requests.
+    protected final Object delegateMonitor = new Object();
+
+    protected final AtomicInteger nextChunk = new AtomicInteger(0);
+    protected final AtomicInteger workers = new AtomicInteger(0);
+    protected final AtomicInteger succeeded = new AtomicInteger(0);
+    protected final AtomicBoolean failed = new AtomicBoolean(false);
+    protected long earliestTimestamp = -1;
+
+    public ChunkedFetch(ArrayList<String> chunks, RepositorySessionFetchRecordsDelegate delegate) {
+      this.chunks = chunks;
+      this.delegate = delegate;
+    }
+
+    public void start() {
+      final int count = Math.max(1, Math.min(serverRepository.getMaxConcurrentFetches(), chunks.size()));
+      workers.set(count);
+      for (int i = 0; i < count; i++) {
+        getFetchExecutor().execute(new Runnable() {
+          @Override
+          public void run() {
+            fetchChunks();
+          }
+        });
+      }
+    }
+
+    /**
+     * Fetch chunks, one request after another, until there are none left.
+     * Requests made here complete before they return.
+     */
+    protected void fetchChunks() {
+      int i;
+      while (!failed.get() && isActive() && (i = nextChunk.getAndIncrement()) < chunks.size()) {
+        try {
+          URI uri = serverRepository.collectionURI(true, -1, -1, "index", chunks.get(i));
+          fetchURI(uri, new ChunkDelegate(this));
+        } catch (URISyntaxException e) {
+          onChunkFailed(e);
+        }
+      }
+      if (workers.decrementAndGet() == 0) {
+        onChunksFetched();
+      }
+    }
+
+    protected synchronized void onChunkSucceeded(long timestamp) {
+      if (earliestTimestamp == -1 || timestamp < earliestTimestamp) {
+        earliestTimestamp = timestamp;
+      }
+      succeeded.incrementAndGet();
+    }
+
+    /**
+     * Report the first failure only, and stop handing records on: the
+     * delegate sees a single stream that ends at the failure.
+     */
+    protected void onChunkFailed(Exception ex) {
+      if (!failed.compareAndSet(false, true)) {
+        return;
+      }
+      synchronized (delegateMonitor) {
+        delegate.onFetchFailed(ex, null);
+      }
+    }
+
+    protected void onChunksFetched() {
+      if (succeeded.get() < chunks.size()) {
+        // Failures have already been reported, and an aborted session reports nothing.
+        Logger.warn(LOG_TAG, "Only " + succeeded.get() + " of " + chunks.size() + " fetch requests succeeded.");
+        return;
+      }
+      final long timestamp;
+      synchronized (this) {
+        timestamp = earliestTimestamp;
+      }
+      Logger.debug(LOG_TAG, "Fetched " + chunks.size() + " chunks. Timestamp is " + timestamp);
+      synchronized (delegateMonitor) {
+        delegate.onFetchCompleted(timestamp);
+      }
+    }
+  }
+
+  /**
+   * Hands one chunk's records to a chunked fetch's delegate.
+   */
+  protected class ChunkDelegate extends RequestFetchDelegateAdapter {
+    protected final ChunkedFetch fetch;
+
+    public ChunkDelegate(ChunkedFetch fetch) {
+      super(fetch.delegate);
+      this.fetch = fetch;
+    }
+
+    @Override
+    public void handleWBO(CryptoRecord record) {
+      synchronized (fetch.delegateMonitor) {
+        if (fetch.failed.get()) {
+          return;
+        }
+        super.handleWBO(record);
+      }
+    }
+
+    @Override
+    public void handleRequestError(Exception ex) {
+      removeRequestFromPending();
+      Logger.warn(LOG_TAG, "Got request error.", ex);
+      fetch.onChunkFailed(ex);
+    }
+
+    @Override
+    public void handleRequestSuccess(SyncStorageResponse response) {
+      removeRequestFromPending();
+      fetch.onChunkSucceeded(getNormalizedTimestamp(response));
+    }
+  }
+
+  /**
+   * Delete the whole collection from the server in one request.
+   */
   @Override
   public void wipe(RepositorySessionWipeDelegate delegate) {
     if (!isActive()) {
       delegate.onWipeFailed(new InactiveSessionException(null));
       return;
     }
-    // TODO: implement wipe.
+    final ArrayList<String> all = new ArrayList<String>();
+    all.add(null);
+    deleteChunks(all, delegate);
+  }
+
+  /**
+   * Delete records from the server by ID, in as many requests as it takes
+   * to keep each URL to a sensible length.
+   * <p>
+   * Unlike storing deleted records, this leaves no tombstones: other clients
+   * won't learn that these records are gone. Use it to clear out records,
+   * not to sync deletions.
+   *
+   * @param guids records to delete.
+   * @param delegate told of success once every request has succeeded, or of
+   *          the first failure; requests stop at the first failure.
+   */
+  public void delete(String[] guids, RepositorySessionWipeDelegate delegate) {
+    if (!isActive()) {
+      delegate.onWipeFailed(new InactiveSessionException(null));
+      return;
+    }
+    final ArrayList<String> chunks = chunkIDs(guids, serverRepository.getMaxIDsPerRequest(), MAX_IDS_LENGTH);
+    Logger.debug(LOG_TAG, "Deleting " + guids.length + " records in " + chunks.size() + " requests.");
+    deleteChunks(chunks, delegate);
+  }
+
+  /**
+   * Make a DELETE request for each comma-separated list of IDs in turn. A null
+   * list deletes the whole collection.
+   */
+  protected void deleteChunks(ArrayList<String> chunks, RepositorySessionWipeDelegate delegate) {
+    for (String ids : chunks) {
+      final DeleteRequestDelegate deleteDelegate = new DeleteRequestDelegate();
+      try {
+        final URI uri = (ids == null) ? serverRepository.collectionURI() : serverRepository.collectionURI(false, -1, -1, null, ids);
+        final SyncStorageRequest request = new SyncStorageRequest(uri);
+        request.delegate = deleteDelegate;
+        request.delete();
+      } catch (URISyntaxException e) {
+        deleteDelegate.failure = e;
+      }
+      if (deleteDelegate.failure != null) {
+        delegate.onWipeFailed(deleteDelegate.failure);
+        return;
+      }
+    }
+    delegate.onWipeSucceeded();
+  }
+
+  /**
+   * Records the outcome of a DELETE request, which completes before
+   * <code>delete</code> returns.
+   */
+  protected class DeleteRequestDelegate implements SyncStorageRequestDelegate {
+    public Exception failure;
+
+    @Override
+    public AuthHeaderProvider getAuthHeaderProvider() {
+      return serverRepository.getAuthHeaderProvider();
+    }
+
+    @Override
+    public String ifUnmodifiedSince() {
+      return null;
+    }
+
+    @Override
+    public void handleRequestSuccess(SyncStorageResponse response) {
+      BaseResource.consumeEntity(response);
+      Logger.debug(LOG_TAG, "Deleted. Timestamp is " + getNormalizedTimestamp(response));
+    }
+
+    @Override
+    public void handleRequestFailure(SyncStorageResponse response) {
+      BaseResource.consumeEntity(response);
+      failure = new HTTPFailureException(response);
+    }
+
+    @Override
+    public void handleRequestError(Exception ex) {
+      Logger.warn(LOG_TAG, "Got request error deleting records.", ex);
+      failure = ex;
+    }
   }
 
   protected Object recordsBufferMonitor = new Object();
@@ -336,6 +1034,15 @@ public class Server11RepositorySession extends RepositorySession {
   protected ArrayList<String> recordGuidsBuffer = new ArrayList<String>();
   protected int byteCount = PER_BATCH_OVERHEAD;
 
+  /**
+   * Records, and bytes of records, enqueued into the current server-side
+   * batch, including those still buffered.
+   * <p>
+   * Access should be synchronized on <code>recordsBufferMonitor</code>.
+   */
+  protected long batchRecordCount = 0;
+  protected long batchByteCount = 0;
+
   @Override
   public void store(Record record) throws NoStoreDelegateException {
     if (delegate == null) {
@@ -345,9 +1052,8 @@ public class Server11RepositorySession extends RepositorySession {
   }
 
   /**
-   * Batch incoming records until some reasonable threshold (e.g., 50),
-   * some size limit is hit (probably way less than 3MB!), or storeDone
-   * is received.
+   * Batch incoming records until the record count or size limit chosen by
+   * <code>uploadBatchSizer</code> is hit, or storeDone is received.
    * @param record
    */
   protected void enqueue(Record record) {
@@ -355,8 +1061,18 @@ public class Server11RepositorySession extends RepositorySession {
     byte[] json = record.toJSONBytes();
     int delta   = json.length;
     synchronized (recordsBufferMonitor) {
-      if ((delta + byteCount     > UPLOAD_BYTE_THRESHOLD) ||
-          (recordsBuffer.size() >= UPLOAD_ITEM_THRESHOLD)) {
+      if (atomicUploads) {
+        if (batchRecordCount > 0 &&
+            ((maxTotalRecords > 0 && batchRecordCount + 1     > maxTotalRecords) ||
+             (maxTotalBytes   > 0 && batchByteCount + delta > maxTotalBytes))) {
+          // The server won't take this record in the current batch.
+          commitBatch();
+        }
+        batchRecordCount += 1;
+        batchByteCount += delta;
+      }
+      if ((delta + byteCount     > uploadBatchSizer.getByteLimit()) ||
+          (recordsBuffer.size() >= uploadBatchSizer.getItemLimit())) {
 
         // POST the existing contents, then enqueue.
         flush();
@@ -374,7 +1090,12 @@ public class Server11RepositorySession extends RepositorySession {
       final ArrayList<byte[]> outgoing = recordsBuffer;
       final ArrayList<String> outgoingGuids = recordGuidsBuffer;
       RepositorySessionStoreDelegate uploadDelegate = this.delegate;
-      storeWorkQueue.execute(new RecordUploadRunnable(uploadDelegate, outgoing, outgoingGuids, byteCount));
+      RecordUploadRunnable upload = new RecordUploadRunnable(uploadDelegate, outgoing, outgoingGuids, byteCount, false);
+      if (uploadExecutor == null) {
+        storeWorkQueue.execute(upload);
+      } else {
+        executeConcurrentUpload(upload, byteCount);
+      }
 
       recordsBuffer = new ArrayList<byte[]>();
       recordGuidsBuffer = new ArrayList<String>();
@@ -382,15 +1103,106 @@ public class Server11RepositorySession extends RepositorySession {
     }
   }
 
+  /**
+   * Commit the current server-side batch, with the buffered records as its
+   * last POST, so that the next POST opens a new batch.
+   * <p>
+   * The commit waits for every POST into the batch to complete. When
+   * uploading concurrently, that blocks the storing thread, as does handing
+   * over an upload; otherwise the commit, and the POSTs after it, wait their
+   * turn on <code>storeWorkQueue</code>.
+   * <p>
+   * Must be locked!
+   */
+  protected void commitBatch() {
+    final long bytes = recordsBuffer.isEmpty() ? PER_BATCH_OVERHEAD + PER_RECORD_OVERHEAD : byteCount;
+    final RecordUploadRunnable commit = new RecordUploadRunnable(this.delegate, recordsBuffer, recordGuidsBuffer, bytes, true);
+    recordsBuffer = new ArrayList<byte[]>();
+    recordGuidsBuffer = new ArrayList<String>();
+    byteCount = PER_BATCH_OVERHEAD;
+    batchRecordCount = 0;
+    batchByteCount = 0;
+
+    final Runnable r = new Runnable() {
+      @Override
+      public void run() {
+        awaitConcurrentUploads();
+        commit.run();
+        // A server that doesn't support batches won't support the next one.
+        if (!uploadBatch.isUnsupported()) {
+          uploadBatch = new Server11UploadBatch();
+        }
+      }
+    };
+    if (uploadExecutor == null) {
+      storeWorkQueue.execute(r);
+    } else {
+      r.run();
+    }
+  }
+
+  /**
+   * Hand <code>upload</code> to <code>uploadExecutor</code>, first blocking
+   * until there's room for it within our in-flight limits. Blocking the
+   * storing thread stops us from buffering an unbounded number of batches
+   * ahead of the network.
+   */
+  protected void executeConcurrentUpload(final RecordUploadRunnable upload, long byteCount) {
+    final int permits = (int) Math.min(byteCount, maxInFlightUploadBytes);
+    uploadSlots.acquireUninterruptibly();
+    uploadBytes.acquireUninterruptibly(permits);
+    uploadExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          upload.run();
+        } finally {
+          uploadBytes.release(permits);
+          uploadSlots.release();
+        }
+      }
+    });
+  }
+
+  /**
+   * Block until every concurrent upload has completed. Serial uploads are
+   * ordered by <code>storeWorkQueue</code>, so there's nothing to wait for.
+   */
+  protected void awaitConcurrentUploads() {
+    if (uploadSlots == null) {
+      return;
+    }
+    uploadSlots.acquireUninterruptibly(maxConcurrentUploads);
+    uploadSlots.release(maxConcurrentUploads);
+  }
+
   @Override
   public void storeDone() {
     Logger.debug(LOG_TAG, "storeDone().");
     synchronized (recordsBufferMonitor) {
-      flush();
+      // When uploading atomically, the last records go with the commit.
+      final RecordUploadRunnable commit;
+      if (atomicUploads) {
+        final long bytes = recordsBuffer.isEmpty() ? PER_BATCH_OVERHEAD + PER_RECORD_OVERHEAD : byteCount;
+        commit = new RecordUploadRunnable(this.delegate, recordsBuffer, recordGuidsBuffer, bytes, true);
+        recordsBuffer = new ArrayList<byte[]>();
+        recordGuidsBuffer = new ArrayList<String>();
+        byteCount = PER_BATCH_OVERHEAD;
+        batchRecordCount = 0;
+        batchByteCount = 0;
+      } else {
+        commit = null;
+        flush();
+      }
       // Do this in a Runnable so that the timestamp is grabbed after any upload.
       final Runnable r = new Runnable() {
         @Override
         public void run() {
+          awaitConcurrentUploads();
+          if (commit != null) {
+            commit.run();
+          }
+          Logger.info(LOG_TAG, "Uploaded " + uploadStats + " Using " + uploadBatchSizer + ".");
           synchronized (recordsBufferMonitor) {
             final long end = uploadTimestamp.get();
             Logger.debug(LOG_TAG, "Calling storeDone with " + end);
@@ -406,13 +1218,20 @@ public class Server11RepositorySession extends RepositorySession {
    * <code>true</code> if a record upload has failed this session.
    * <p>
    * This is only set in begin and possibly by <code>RecordUploadRunnable</code>.
-   * Since those are executed serially, we can use an unsynchronized
-   * volatile boolean here.
+   * Uploads only ever set it to true, so even concurrent uploads can use an
+   * unsynchronized volatile boolean here. Batches already in flight when an
+   * upload fails run to completion; batches that start afterwards fail
+   * without being sent.
+   * <p>
+   * When uploading atomically, a failure also means the server-side batch is
+   * never committed, so every record staged so far fails too, and the
+   * collection is left as it was.
    */
   protected volatile boolean recordUploadFailed;
 
   public void begin(RepositorySessionBeginDelegate delegate) throws InvalidSessionTransitionException {
     recordUploadFailed = false;
+    uploadBatch = new Server11UploadBatch();
     super.begin(delegate);
   }
 
@@ -430,16 +1249,43 @@ public class Server11RepositorySession extends RepositorySession {
     private ArrayList<String> outgoingGuids;
     private long byteCount;
 
+    // For per-batch metrics.
+    private long requestStart = -1;
+    private long latency = -1;
+    private boolean batchRecorded = false;
+
+    // Set if the server refused this batch as too large.
+    private boolean splitAndRetry = false;
+
+    // When uploading atomically: whether this POST commits the server-side
+    // batch, asks the server to open it, or is staged in it.
+    private final boolean commit;
+    private boolean opening = false;
+    private boolean staging = false;
+
     public RecordUploadRunnable(RepositorySessionStoreDelegate storeDelegate,
                                 ArrayList<byte[]> outgoing,
                                 ArrayList<String> outgoingGuids,
                                 long byteCount) {
+      this(storeDelegate, outgoing, outgoingGuids, byteCount, false);
+    }
+
+    /**
+     * @param commit true if this POST should commit the session's server-side
+     *        batch. It may have no records of its own.
+     */
+    public RecordUploadRunnable(RepositorySessionStoreDelegate storeDelegate,
+                                ArrayList<byte[]> outgoing,
+                                ArrayList<String> outgoingGuids,
+                                long byteCount,
+                                boolean commit) {
       Logger.debug(LOG_TAG, "Preparing record upload for " +
                   outgoing.size() + " records (" +
-                  byteCount + " bytes).");
+                  byteCount + " bytes)" + (commit ? ", committing." : "."));
       this.outgoing = outgoing;
       this.outgoingGuids = outgoingGuids;
       this.byteCount = byteCount;
+      this.commit = commit;
     }
 
     @Override
@@ -452,6 +1298,19 @@ public class Server11RepositorySession extends RepositorySession {
       return null;
     }
 
+    /**
+     * Record this batch's latency and outcome. Only the first call counts.
+     */
+    protected void recordBatch(boolean succeeded) {
+      if (batchRecorded || requestStart < 0) {
+        return;
+      }
+      batchRecorded = true;
+      latency = System.currentTimeMillis() - requestStart;
+      Logger.debug(LOG_TAG, "POST of " + outgoing.size() + " records (" + byteCount + " bytes) took " + latency + "ms.");
+      uploadStats.recordBatch(outgoing.size(), byteCount, latency, succeeded);
+    }
+
     @Override
     public void handleRequestSuccess(SyncStorageResponse response) {
       Logger.trace(LOG_TAG, "POST of " + outgoing.size() + " records done.");
@@ -464,6 +1323,23 @@ public class Server11RepositorySession extends RepositorySession {
         this.handleRequestError(e);
         return;
       }
+      recordBatch(true);
+
+      if (opening) {
+        final String batch = body.getString("batch");
+        if (response.getStatusCode() == 202 && batch != null) {
+          Logger.debug(LOG_TAG, "Server opened upload batch " + batch + ".");
+          uploadBatch.open(batch);
+        } else {
+          // The server wrote these records, and will write later POSTs as they arrive.
+          Logger.info(LOG_TAG, "Server doesn't support upload batches. Records will be committed as they're uploaded.");
+          uploadBatch.setUnsupported();
+          staging = false;
+        }
+      }
+      if (commit) {
+        commitStaged(response);
+      }
 
       // Be defensive when logging timestamp.
       if (body.containsKey("modified")) {
@@ -484,19 +1360,27 @@ public class Server11RepositorySession extends RepositorySession {
           Logger.trace(LOG_TAG, "Successful records: " + success.toString());
           for (Object o : success) {
             try {
-              delegate.onRecordStoreSucceeded((String) o);
+              if (staging) {
+                // Not stored until the batch is committed.
+                uploadBatch.stage((String) o);
+              } else {
+                delegate.onRecordStoreSucceeded((String) o);
+              }
             } catch (ClassCastException e) {
               Logger.error(LOG_TAG, "Got exception parsing POST success guid.", e);
               // Not much to be done.
             }
           }
 
-          long normalizedTimestamp = getNormalizedTimestamp(response);
-          Logger.trace(LOG_TAG, "Passing back upload X-Weave-Timestamp: " + normalizedTimestamp);
-          bumpUploadTimestamp(normalizedTimestamp);
+          if (!staging) {
+            long normalizedTimestamp = getNormalizedTimestamp(response);
+            Logger.trace(LOG_TAG, "Passing back upload X-Weave-Timestamp: " + normalizedTimestamp);
+            bumpUploadTimestamp(normalizedTimestamp);
+          }
         }
         success = null; // Want to GC this ASAP.
 
+        int failedCount = 0;
         ExtendedJSONObject failed  = body.getObject("failed");
         if ((failed != null) &&
             (failed.object.size() > 0)) {
@@ -505,8 +1389,12 @@ public class Server11RepositorySession extends RepositorySession {
           for (String guid : failed.keySet()) {
             delegate.onRecordStoreFailed(ex, guid);
           }
+          failedCount = failed.object.size();
         }
         failed = null; // Want to GC this ASAP.
+        if (outgoing.size() > 0) {
+          uploadBatchSizer.onBatchSucceeded(outgoing.size(), failedCount, latency);
+        }
       } catch (UnexpectedJSONException e) {
         Logger.error(LOG_TAG, "Got exception processing success/failed in POST success body.", e);
         // TODO
@@ -515,40 +1403,115 @@ public class Server11RepositorySession extends RepositorySession {
       Logger.debug(LOG_TAG, "POST of " + outgoing.size() + " records handled.");
     }
 
+    /**
+     * The server has written every record staged in the batch: report them
+     * as stored.
+     */
+    protected void commitStaged(SyncStorageResponse response) {
+      final ArrayList<String> committed = uploadBatch.takeStaged();
+      if (committed.isEmpty()) {
+        return;
+      }
+      Logger.debug(LOG_TAG, "Committed " + committed.size() + " staged records.");
+      for (String guid : committed) {
+        delegate.onRecordStoreSucceeded(guid);
+      }
+      bumpUploadTimestamp(getNormalizedTimestamp(response));
+    }
+
     @Override
     public void handleRequestFailure(SyncStorageResponse response) {
+      final int statusCode = response.getStatusCode();
+      if (statusCode == 413) {
+        uploadBatchSizer.onBatchTooLarge(outgoing.size(), byteCount);
+        if (outgoing.size() > 1) {
+          Logger.info(LOG_TAG, "POST of " + outgoing.size() + " records (" + byteCount + " bytes) was too large. Splitting.");
+          recordBatch(false);
+          splitAndRetry = true;
+          return;
+        }
+      } else if (statusCode == 503) {
+        uploadBatchSizer.onServerUnavailable();
+      }
       // TODO: call session.interpretHTTPFailure.
       this.handleRequestError(new HTTPFailureException(response));
     }
 
+    protected RecordUploadRunnable subBatch(int start, int end, boolean commit) {
+      final ArrayList<byte[]> records = new ArrayList<byte[]>(outgoing.subList(start, end));
+      final ArrayList<String> guids = new ArrayList<String>(outgoingGuids.subList(start, end));
+      long bytes = PER_BATCH_OVERHEAD;
+      for (byte[] record : records) {
+        bytes += PER_RECORD_OVERHEAD + record.length;
+      }
+      return new RecordUploadRunnable(delegate, records, guids, bytes, commit);
+    }
+
     @Override
     public void handleRequestError(final Exception ex) {
       Logger.warn(LOG_TAG, "Got request error.", ex);
+      recordBatch(false);
 
       recordUploadFailed = true;
+      failOutgoing(ex);
+    }
+
+    /**
+     * Fail every record in this POST and, if it was to commit the batch,
+     * every record staged in the batch.
+     */
+    protected void failOutgoing(Exception ex) {
       ArrayList<String> failedOutgoingGuids = outgoingGuids;
       outgoingGuids = null; // Want to GC this ASAP.
       for (String guid : failedOutgoingGuids) {
         delegate.onRecordStoreFailed(ex, guid);
       }
-      return;
+      if (commit) {
+        for (String guid : uploadBatch.takeStaged()) {
+          delegate.onRecordStoreFailed(ex, guid);
+        }
+      }
     }
 
     public class ByteArraysContentProducer implements ContentProducer {
 
       ArrayList<byte[]> outgoing;
+      final boolean compress;
+
       public ByteArraysContentProducer(ArrayList<byte[]> arrays) {
+        this(arrays, false);
+      }
+
+      public ByteArraysContentProducer(ArrayList<byte[]> arrays, boolean compress) {
         outgoing = arrays;
+        this.compress = compress;
       }
 
       @Override
       public void writeTo(OutputStream outstream) throws IOException {
+        if (!compress) {
+          writeRecords(outstream);
+          return;
+        }
+        // Compress straight from the records, rather than from a joined copy.
+        final GzipStream gzip = new GzipStream(outstream);
+        try {
+          writeRecords(gzip);
+          gzip.finish();
+        } finally {
+          gzip.end();
+        }
+      }
+
+      protected void writeRecords(OutputStream outstream) throws IOException {
         int count = outgoing.size();
         outstream.write(recordsStart);
-        outstream.write(outgoing.get(0));
-        for (int i = 1; i < count; ++i) {
-          outstream.write(recordSeparator);
-          outstream.write(outgoing.get(i));
+        if (count > 0) {
+          outstream.write(outgoing.get(0));
+          for (int i = 1; i < count; ++i) {
+            outstream.write(recordSeparator);
+            outstream.write(outgoing.get(i));
+          }
         }
         outstream.write(recordsEnd);
       }
@@ -556,16 +1519,60 @@ public class Server11RepositorySession extends RepositorySession {
 
     public class ByteArraysEntity extends EntityTemplate {
       private long count;
+      private final boolean compress;
+      private byte[] compressed;
+
       public ByteArraysEntity(ArrayList<byte[]> arrays, long totalBytes) {
-        super(new ByteArraysContentProducer(arrays));
+        this(arrays, totalBytes, false);
+      }
+
+      public ByteArraysEntity(ArrayList<byte[]> arrays, long totalBytes, boolean compress) {
+        super(new ByteArraysContentProducer(arrays, compress));
         this.count = totalBytes;
+        this.compress = compress;
         this.setContentType("application/json");
+        if (compress) {
+          this.setContentEncoding("gzip");
+        }
         // charset is set in BaseResource.
       }
 
+      /**
+       * A compressed body is compressed once, when first needed, and kept:
+       * its length, the Hawk payload hash and the request all use the one
+       * copy. The copy is a fraction of the size of the records we already
+       * hold.
+       */
+      protected synchronized byte[] getCompressed() throws IOException {
+        if (compressed == null) {
+          final ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE, 64 + count / 4));
+          super.writeTo(out);
+          compressed = out.toByteArray();
+        }
+        return compressed;
+      }
+
+      @Override
+      public void writeTo(OutputStream outstream) throws IOException {
+        if (!compress) {
+          super.writeTo(outstream);
+          return;
+        }
+        outstream.write(getCompressed());
+      }
+
       @Override
       public long getContentLength() {
-        return count;
+        if (!compress) {
+          return count;
+        }
+        try {
+          return getCompressed().length;
+        } catch (IOException e) {
+          // Can't happen; but if it does, send the body chunked.
+          Logger.warn(LOG_TAG, "Couldn't compress body.", e);
+          return -1;
+        }
       }
 
       @Override
@@ -575,37 +1582,114 @@ public class Server11RepositorySession extends RepositorySession {
     }
 
     public ByteArraysEntity getBodyEntity() {
-      ByteArraysEntity body = new ByteArraysEntity(outgoing, byteCount);
+      ByteArraysEntity body = new ByteArraysEntity(outgoing, byteCount, compressUploads);
       return body;
     }
 
+    /**
+     * @return true if an earlier upload failed, in which case every record in
+     *         this POST has been failed.
+     */
+    protected boolean failIfPreviousPostFailed() {
+      if (!recordUploadFailed) {
+        return false;
+      }
+      Logger.info(LOG_TAG, "Previous record upload failed.  Failing all records and not retrying.");
+      failOutgoing(new Server11PreviousPostFailedException());
+      return true;
+    }
+
+    protected URI uploadURI() throws URISyntaxException {
+      if (opening) {
+        return serverRepository.batchURI(Server11UploadBatch.OPEN, false);
+      }
+      final String batch = uploadBatch.getID();
+      if (batch == null) {
+        return serverRepository.collectionURI();
+      }
+      return serverRepository.batchURI(batch, commit);
+    }
+
     @Override
     public void run() {
-      if (recordUploadFailed) {
-        Logger.info(LOG_TAG, "Previous record upload failed.  Failing all records and not retrying.");
-        Exception ex = new Server11PreviousPostFailedException();
-        for (String guid : outgoingGuids) {
-          delegate.onRecordStoreFailed(ex, guid);
-        }
+      if (failIfPreviousPostFailed()) {
         return;
       }
 
       if (outgoing == null ||
-          outgoing.size() == 0) {
+          (outgoing.size() == 0 && (!commit || uploadBatch.getID() == null))) {
         Logger.debug(LOG_TAG, "No items: RecordUploadRunnable returning immediately.");
         return;
       }
 
-      URI u = serverRepository.collectionURI();
+      if (atomicUploads && !commit) {
+        // Only one POST can open the batch; the rest need its ID.
+        synchronized (uploadBatchOpenMonitor) {
+          // If the POST that opened the batch failed, so do we.
+          if (failIfPreviousPostFailed()) {
+            return;
+          }
+          if (uploadBatch.needsOpening()) {
+            opening = true;
+            staging = true;
+            post();
+            return;
+          }
+        }
+        staging = uploadBatch.getID() != null;
+      }
+      post();
+    }
+
+    protected void post() {
+      final URI u;
+      try {
+        u = uploadURI();
+      } catch (URISyntaxException e) {
+        handleRequestError(e);
+        return;
+      }
       SyncStorageRequest request = new SyncStorageRequest(u);
 
       request.delegate = this;
 
-      // We don't want the task queue to proceed until this request completes.
-      // Fortunately, BaseResource is currently synchronous.
-      // If that ever changes, you'll need to block here.
+      // We don't want the task queue (or, when uploading concurrently, the
+      // upload slot) to be released until this request completes.
+      // We don't make this request asynchronously, so post blocks until the
+      // response has been handled. If that ever changes, you'll need to
+      // block here.
       ByteArraysEntity body = getBodyEntity();
-      request.post(body);
+      uploadStats.recordInFlight(uploadsInFlight.incrementAndGet());
+      requestStart = System.currentTimeMillis();
+      try {
+        request.post(body);
+      } finally {
+        uploadsInFlight.decrementAndGet();
+      }
+
+      if (splitAndRetry) {
+        // Upload each half in turn, splitting further if need be.
+        // Only the second half commits.
+        final int mid = outgoing.size() / 2;
+        subBatch(0, mid, false).run();
+        subBatch(mid, outgoing.size(), commit).run();
+      }
+    }
+  }
+
+  /**
+   * A <code>GZIPOutputStream</code> whose deflater can be released without
+   * closing the stream it writes to.
+   */
+  protected static class GzipStream extends GZIPOutputStream {
+    private static final int BUFFER_SIZE = 8192;
+
+    public GzipStream(OutputStream out) throws IOException {
+      super(out, BUFFER_SIZE);
+    }
+
+    public void end() {
+      def.end();
     }
   }
 }
@@ -0,0 +1,77 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories;
+
+import java.util.ArrayList;
+
+/**
+ * Tracks the server-side batch that a <code>Server11RepositorySession</code>
+ * is uploading records into.
+ * <p>
+ * The server stages records POSTed into a batch, and only writes them to the
+ * collection when the batch is committed. Records the server has staged are
+ * held here until then, so that they can be reported as stored only once
+ * they really are.
+ * <p>
+ * POSTs into an open batch can complete concurrently, so all access is
+ * synchronized.
+ */
+public class Server11UploadBatch {
+  /**
+   * Ask the server to open a new batch.
+   */
+  public static final String OPEN = "true";
+
+  protected String id;
+  protected boolean unsupported;
+  protected ArrayList<String> staged = new ArrayList<String>();
+
+  /**
+   * @return the server's ID for this batch, or null if it isn't open.
+   */
+  public synchronized String getID() {
+    return id;
+  }
+
+  /**
+   * @return true if the first POST has yet to tell us whether the server
+   *         opened a batch.
+   */
+  public synchronized boolean needsOpening() {
+    return id == null && !unsupported;
+  }
+
+  public synchronized void open(String id) {
+    this.id = id;
+  }
+
+  /**
+   * @return true if the server doesn't support batches, and so committed
+   *         each POST as it arrived.
+   */
+  public synchronized boolean isUnsupported() {
+    return unsupported;
+  }
+
+  public synchronized void setUnsupported() {
+    this.unsupported = true;
+  }
+
+  /**
+   * Note that the server staged the record <code>guid</code>.
+   */
+  public synchronized void stage(String guid) {
+    staged.add(guid);
+  }
+
+  /**
+   * @return the GUIDs of every record staged so far, which are forgotten.
+   */
+  public synchronized ArrayList<String> takeStaged() {
+    final ArrayList<String> out = staged;
+    staged = new ArrayList<String>();
+    return out;
+  }
+}
@@ -0,0 +1,113 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories;
+
+/**
+ * Accumulates per-batch metrics for record uploads made by a
+ * <code>Server11RepositorySession</code>.
+ * <p>
+ * Batches can complete concurrently and out of order, so all access is
+ * synchronized.
+ */
+public class Server11UploadStats {
+  protected int batches;
+  protected int failedBatches;
+  protected int records;
+  protected long bytes;
+  protected long totalLatency;
+  protected long minLatency = -1;
+  protected long maxLatency = -1;
+  protected int maxInFlight;
+  protected int minBatchRecords = -1;
+  protected int maxBatchRecords = -1;
+
+  /**
+   * Record the outcome of a single POST.
+   *
+   * @param recordCount records in the batch.
+   * @param byteCount bytes in the request body.
+   * @param latency milliseconds from sending the request to handling the response.
+   * @param succeeded false if the request as a whole failed.
+   */
+  public synchronized void recordBatch(int recordCount, long byteCount, long latency, boolean succeeded) {
+    batches += 1;
+    if (!succeeded) {
+      failedBatches += 1;
+    }
+    records += recordCount;
+    if (minBatchRecords < 0 || recordCount < minBatchRecords) {
+      minBatchRecords = recordCount;
+    }
+    if (recordCount > maxBatchRecords) {
+      maxBatchRecords = recordCount;
+    }
+    bytes += byteCount;
+    totalLatency += latency;
+    if (minLatency < 0 || latency < minLatency) {
+      minLatency = latency;
+    }
+    if (latency > maxLatency) {
+      maxLatency = latency;
+    }
+  }
+
+  /**
+   * Note that <code>inFlight</code> POSTs were outstanding at once.
+   */
+  public synchronized void recordInFlight(int inFlight) {
+    if (inFlight > maxInFlight) {
+      maxInFlight = inFlight;
+    }
+  }
+
+  public synchronized int getBatchCount() {
+    return batches;
+  }
+
+  public synchronized int getFailedBatchCount() {
+    return failedBatches;
+  }
+
+  public synchronized int getRecordCount() {
+    return records;
+  }
+
+  public synchronized long getByteCount() {
+    return bytes;
+  }
+
+  public synchronized int getMinBatchRecords() {
+    return minBatchRecords;
+  }
+
+  public synchronized int getMaxBatchRecords() {
+    return maxBatchRecords;
+  }
+
+  public synchronized long getMinLatency() {
+    return minLatency;
+  }
+
+  public synchronized long getMaxLatency() {
+    return maxLatency;
+  }
+
+  public synchronized long getMeanLatency() {
+    return (batches == 0) ? -1 : totalLatency / batches;
+  }
+
+  public synchronized int getMaxInFlight() {
+    return maxInFlight;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return batches + " batches (" + failedBatches + " failed), " +
+           records + " records, " + bytes + " bytes; " +
+           "batch size min/max " + minBatchRecords + "/" + maxBatchRecords + " records; " +
+           "latency min/mean/max " + minLatency + "/" + getMeanLatency() + "/" + maxLatency + "ms; " +
+           "at most " + maxInFlight + " in flight.";
+  }
+}
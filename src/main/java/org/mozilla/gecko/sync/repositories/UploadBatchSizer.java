@@ -0,0 +1,163 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories;
+
+import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.InfoConfiguration;
+
+/**
+ * Chooses how many records, and how many bytes, go into each upload POST.
+ * <p>
+ * Limits grow additively while POSTs are quick and clean, and halve when a
+ * POST is slow, has many failed records, is rejected as too large (HTTP 413),
+ * or finds the server unavailable (HTTP 503). A 413 also lowers the ceiling,
+ * so that we don't grow back into a size the server has refused.
+ * <p>
+ * Limits never exceed those advertised by the server in
+ * <code>info/configuration</code>, when present.
+ * <p>
+ * Uploads can complete concurrently, so all access is synchronized.
+ */
+public class UploadBatchSizer {
+  private static final String LOG_TAG = "UploadBatchSizer";
+
+  public static final int  DEFAULT_ITEM_LIMIT = 50;
+  public static final long DEFAULT_BYTE_LIMIT = 1024 * 1024;     // 1MB.
+
+  public static final int  DEFAULT_MAX_ITEMS  = 100;
+  public static final int  MIN_ITEMS          = 1;
+  public static final long MIN_BYTES          = 64 * 1024;
+
+  /**
+   * POSTs quicker than this let us grow; POSTs slower than this make us shrink.
+   */
+  public static final long FAST_LATENCY_MSEC  = 1000;
+  public static final long SLOW_LATENCY_MSEC  = 5000;
+
+  /**
+   * Shrink if more than one in this many records in a batch fails.
+   */
+  public static final int  FAILURE_RATE_DENOMINATOR = 10;
+
+  protected int  itemLimit;
+  protected long byteLimit;
+  protected int  maxItems;
+  protected long maxBytes;
+
+  // MIN_BYTES, unless the server advertises a smaller maximum.
+  protected final long minBytes;
+
+  protected int  minItemLimitChosen;
+  protected int  maxItemLimitChosen;
+  protected int  adjustments;
+
+  public UploadBatchSizer() {
+    this(null);
+  }
+
+  /**
+   * @param serverLimits
+   *          limits from <code>info/configuration</code>, or null.
+   */
+  public UploadBatchSizer(InfoConfiguration serverLimits) {
+    maxItems = DEFAULT_MAX_ITEMS;
+    maxBytes = DEFAULT_BYTE_LIMIT;
+    if (serverLimits != null) {
+      if (serverLimits.getMaxPostRecords() > 0) {
+        maxItems = (int) Math.min(Integer.MAX_VALUE, serverLimits.getMaxPostRecords());
+      }
+      if (serverLimits.getMaxPostBytes() > 0) {
+        maxBytes = serverLimits.getMaxPostBytes();
+      }
+    }
+    minBytes = Math.min(MIN_BYTES, maxBytes);
+    itemLimit = Math.min(DEFAULT_ITEM_LIMIT, maxItems);
+    byteLimit = Math.min(DEFAULT_BYTE_LIMIT, maxBytes);
+    minItemLimitChosen = itemLimit;
+    maxItemLimitChosen = itemLimit;
+  }
+
+  public synchronized int getItemLimit() {
+    return itemLimit;
+  }
+
+  public synchronized long getByteLimit() {
+    return byteLimit;
+  }
+
+  protected void grow() {
+    final int  newItems = Math.min(maxItems, itemLimit + Math.max(1, itemLimit / 4));
+    final long newBytes = Math.min(maxBytes, byteLimit + Math.max(1, byteLimit / 4));
+    setLimits(newItems, newBytes, "grow");
+  }
+
+  protected void shrink(String reason) {
+    setLimits(Math.max(MIN_ITEMS, itemLimit / 2), Math.max(minBytes, byteLimit / 2), reason);
+  }
+
+  protected void setLimits(int items, long bytes, String reason) {
+    if (items == itemLimit && bytes == byteLimit) {
+      return;
+    }
+    Logger.debug(LOG_TAG, "Upload batch limits " + itemLimit + " records/" + byteLimit + " bytes -> " +
+                          items + " records/" + bytes + " bytes (" + reason + ").");
+    itemLimit = items;
+    byteLimit = bytes;
+    adjustments += 1;
+    minItemLimitChosen = Math.min(minItemLimitChosen, items);
+    maxItemLimitChosen = Math.max(maxItemLimitChosen, items);
+  }
+
+  /**
+   * A POST completed successfully.
+   *
+   * @param records number of records in the batch.
+   * @param failedRecords number of records the server reported as failed.
+   * @param latency milliseconds the POST took.
+   */
+  public synchronized void onBatchSucceeded(int records, int failedRecords, long latency) {
+    if (failedRecords > 0 && failedRecords * FAILURE_RATE_DENOMINATOR > records) {
+      shrink("failed records");
+      return;
+    }
+    if (latency > SLOW_LATENCY_MSEC) {
+      shrink("slow");
+      return;
+    }
+    if (latency < FAST_LATENCY_MSEC && records >= itemLimit) {
+      // Only grow if we were actually using the whole limit.
+      grow();
+    }
+  }
+
+  /**
+   * The server refused a POST of <code>records</code> records and
+   * <code>bytes</code> bytes as too large.
+   */
+  public synchronized void onBatchTooLarge(int records, long bytes) {
+    if (records > MIN_ITEMS) {
+      maxItems = Math.max(MIN_ITEMS, Math.min(maxItems, records - 1));
+    }
+    if (bytes > minBytes) {
+      maxBytes = Math.max(minBytes, Math.min(maxBytes, bytes - 1));
+    }
+    shrink("too large");
+    setLimits(Math.min(itemLimit, maxItems), Math.min(byteLimit, maxBytes), "too large");
+  }
+
+  /**
+   * The server was unavailable.
+   */
+  public synchronized void onServerUnavailable() {
+    shrink("unavailable");
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "batch limit " + itemLimit + " records/" + byteLimit + " bytes " +
+           "(ranged " + minItemLimitChosen + "-" + maxItemLimitChosen + " records over " +
+           adjustments + " adjustments; max " + maxItems + " records/" + maxBytes + " bytes)";
+  }
+}
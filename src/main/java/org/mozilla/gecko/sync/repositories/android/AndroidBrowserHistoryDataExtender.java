@@ -16,14 +16,15 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
-public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
+public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper implements RecordStringIndexStore {
 
   public static final String LOG_TAG = "SyncHistoryVisits";
 
   // Database Specifications.
   protected static final String DB_NAME = "history_extension_database";
-  protected static final int SCHEMA_VERSION = 1;
+  protected static final int SCHEMA_VERSION = 2;
 
   // History Table.
   public static final String   TBL_HISTORY_EXT = "HistoryExtension";
@@ -32,6 +33,22 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
   public static final String   COL_VISITS = "visits";
   public static final String[] TBL_COLUMNS = { COL_GUID, COL_VISITS };
 
+  // Record string index tables; see RecordStringIndexStore. Added in version 2.
+  public static final String   TBL_RECORD_STRING_INDEX = "RecordStringIndex";
+  public static final String   COL_HASH = "hash";
+  public static final String[] TBL_RECORD_STRING_INDEX_COLUMNS = { COL_HASH, COL_GUID };
+
+  // A single row describing the saved index.
+  public static final String   TBL_RECORD_STRING_INDEX_META = "RecordStringIndexMeta";
+  public static final String   COL_GENERATION = "generation";
+  public static final String   COL_VERSION = "version";
+  public static final String   COL_COVERED_UNTIL = "coveredUntil";
+  public static final String[] TBL_RECORD_STRING_INDEX_META_COLUMNS = { COL_GENERATION, COL_VERSION, COL_COVERED_UNTIL };
+  public static final String   GENERATION_IS = COL_GENERATION + " = ?";
+
+  // Marks the meta row when no valid index is saved.
+  protected static final int NO_VERSION = 0;
+
   private final RepoUtils.QueryHelper queryHelper;
 
   public AndroidBrowserHistoryDataExtender(Context context) {
@@ -45,18 +62,43 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
         + COL_GUID + " TEXT PRIMARY KEY, "
         + COL_VISITS + " TEXT)";
     db.execSQL(createTableSql);
+    createRecordStringIndexTables(db);
+  }
+
+  protected void createRecordStringIndexTables(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE " + TBL_RECORD_STRING_INDEX + " ("
+        + COL_HASH + " INTEGER NOT NULL, "
+        + COL_GUID + " TEXT NOT NULL, "
+        + "PRIMARY KEY (" + COL_HASH + ", " + COL_GUID + "))");
+    db.execSQL("CREATE TABLE " + TBL_RECORD_STRING_INDEX_META + " ("
+        + COL_GENERATION + " INTEGER NOT NULL, "
+        + COL_VERSION + " INTEGER NOT NULL, "
+        + COL_COVERED_UNTIL + " INTEGER NOT NULL)");
+    db.execSQL("INSERT INTO " + TBL_RECORD_STRING_INDEX_META + " VALUES (1, " + NO_VERSION + ", 0)");
+  }
+
+  protected void dropTables(SQLiteDatabase db) {
+    db.execSQL("DROP TABLE IF EXISTS " + TBL_HISTORY_EXT);
+    db.execSQL("DROP TABLE IF EXISTS " + TBL_RECORD_STRING_INDEX);
+    db.execSQL("DROP TABLE IF EXISTS " + TBL_RECORD_STRING_INDEX_META);
   }
 
   @Override
   public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    if (oldVersion == 1 && newVersion == 2) {
+      // Version 2 only adds the record string index; keep the visits.
+      createRecordStringIndexTables(db);
+      return;
+    }
     // For now we'll just drop and recreate the tables.
-    db.execSQL("DROP TABLE IF EXISTS " + TBL_HISTORY_EXT);
+    dropTables(db);
     onCreate(db);
   }
 
   public void wipe() {
     SQLiteDatabase db = this.getCachedWritableDatabase();
-    onUpgrade(db, SCHEMA_VERSION, SCHEMA_VERSION);
+    dropTables(db);
+    onCreate(db);
   }
 
   /**
@@ -184,4 +226,220 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
         null, null);
     return cur;
   }
+
+  /**
+   * @return the generation of the saved record string index, or 0 if it
+   *         isn't saved for <code>version</code>.
+   */
+  protected long currentGeneration(SQLiteDatabase db, int version) throws NullCursorException {
+    Cursor cur = queryHelper.safeQuery(db, ".currentGeneration", TBL_RECORD_STRING_INDEX_META,
+        TBL_RECORD_STRING_INDEX_META_COLUMNS, null, null);
+    try {
+      if (!cur.moveToFirst()) {
+        return 0;
+      }
+      if (version != NO_VERSION && cur.getInt(1) != version) {
+        return 0;
+      }
+      return cur.getLong(0);
+    } finally {
+      cur.close();
+    }
+  }
+
+  @Override
+  public SavedIndex load(int version) {
+    final long start = System.currentTimeMillis();
+    // Writable, so that the index and its meta row are read in one transaction.
+    SQLiteDatabase db = this.getCachedWritableDatabase();
+    try {
+      db.beginTransaction();
+      try {
+        Cursor meta = queryHelper.safeQuery(db, ".load", TBL_RECORD_STRING_INDEX_META,
+            TBL_RECORD_STRING_INDEX_META_COLUMNS, null, null);
+        final long generation;
+        final long coveredUntil;
+        try {
+          if (!meta.moveToFirst() || meta.getInt(1) != version) {
+            Logger.debug(LOG_TAG, "No saved record string index for version " + version + ".");
+            return null;
+          }
+          generation = meta.getLong(0);
+          coveredUntil = meta.getLong(2);
+        } finally {
+          meta.close();
+        }
+
+        Cursor cur = queryHelper.safeQuery(db, ".load", TBL_RECORD_STRING_INDEX,
+            TBL_RECORD_STRING_INDEX_COLUMNS, null, null);
+        try {
+          final RecordStringIndex index = new RecordStringIndex(cur.getCount());
+          if (cur.moveToFirst()) {
+            while (!cur.isAfterLast()) {
+              index.putHash(cur.getLong(0), cur.getString(1));
+              cur.moveToNext();
+            }
+          }
+          db.setTransactionSuccessful();
+          Logger.debug(LOG_TAG, "Loaded record string index generation " + generation + " with " +
+                                index.size() + " entries in " + (System.currentTimeMillis() - start) + "ms.");
+          return new SavedIndex(index, generation, coveredUntil);
+        } finally {
+          cur.close();
+        }
+      } finally {
+        db.endTransaction();
+      }
+    } catch (NullCursorException e) {
+      Logger.warn(LOG_TAG, "Couldn't load record string index.", e);
+      return null;
+    } catch (SQLException e) {
+      Logger.warn(LOG_TAG, "Couldn't load record string index.", e);
+      return null;
+    }
+  }
+
+  protected void updateMeta(SQLiteDatabase db, long generation, int version, long coveredUntil) {
+    ContentValues cv = new ContentValues();
+    cv.put(COL_GENERATION, generation);
+    cv.put(COL_VERSION, version);
+    cv.put(COL_COVERED_UNTIL, coveredUntil);
+    db.update(TBL_RECORD_STRING_INDEX_META, cv, null, null);
+  }
+
+  @Override
+  public long save(final int version, RecordStringIndex index, long coveredUntil) {
+    final long start = System.currentTimeMillis();
+    SQLiteDatabase db = this.getCachedWritableDatabase();
+    try {
+      db.beginTransaction();
+      try {
+        final long generation = currentGeneration(db, NO_VERSION) + 1;
+        db.delete(TBL_RECORD_STRING_INDEX, null, null);
+        final SQLiteStatement insert = compileIndexInsert(db);
+        try {
+          index.forEach(new RecordStringIndex.EntryVisitor() {
+            @Override
+            public void visit(long hash, String guid) {
+              insert.bindLong(1, hash);
+              insert.bindString(2, guid);
+              insert.executeInsert();
+            }
+          });
+        } finally {
+          insert.close();
+        }
+        updateMeta(db, generation, version, coveredUntil);
+        db.setTransactionSuccessful();
+        Logger.debug(LOG_TAG, "Saved record string index generation " + generation + " with " +
+                              index.size() + " entries in " + (System.currentTimeMillis() - start) + "ms.");
+        return generation;
+      } finally {
+        db.endTransaction();
+      }
+    } catch (NullCursorException e) {
+      Logger.warn(LOG_TAG, "Couldn't save record string index.", e);
+      return 0;
+    } catch (SQLException e) {
+      Logger.warn(LOG_TAG, "Couldn't save record string index.", e);
+      return 0;
+    }
+  }
+
+  protected SQLiteStatement compileIndexInsert(SQLiteDatabase db) {
+    return db.compileStatement("INSERT OR IGNORE INTO " + TBL_RECORD_STRING_INDEX +
+                               " (" + COL_HASH + ", " + COL_GUID + ") VALUES (?, ?)");
+  }
+
+  @Override
+  public boolean append(long generation, long[] hashes, String[] guids, int count, long coveredUntil) {
+    SQLiteDatabase db = this.getCachedWritableDatabase();
+    try {
+      db.beginTransaction();
+      try {
+        ContentValues cv = new ContentValues();
+        cv.put(COL_COVERED_UNTIL, coveredUntil);
+        String[] args = new String[] { Long.toString(generation) };
+        if (db.update(TBL_RECORD_STRING_INDEX_META, cv, GENERATION_IS, args) != 1) {
+          Logger.debug(LOG_TAG, "Record string index is no longer generation " + generation + "; not appending.");
+          return false;
+        }
+        final SQLiteStatement insert = compileIndexInsert(db);
+        try {
+          for (int i = 0; i < count; i++) {
+            insert.bindLong(1, hashes[i]);
+            insert.bindString(2, guids[i]);
+            insert.executeInsert();
+          }
+        } finally {
+          insert.close();
+        }
+        db.setTransactionSuccessful();
+        Logger.debug(LOG_TAG, "Appended " + count + " entries to record string index generation " + generation + ".");
+        return true;
+      } finally {
+        db.endTransaction();
+      }
+    } catch (SQLException e) {
+      Logger.warn(LOG_TAG, "Couldn't append to record string index.", e);
+      return false;
+    }
+  }
+
+  @Override
+  public boolean remove(long generation, long[] hashes, String[] guids, int count) {
+    SQLiteDatabase db = this.getCachedWritableDatabase();
+    try {
+      db.beginTransaction();
+      try {
+        if (currentGeneration(db, NO_VERSION) != generation) {
+          Logger.debug(LOG_TAG, "Record string index is no longer generation " + generation + "; not removing.");
+          return false;
+        }
+        final SQLiteStatement delete = db.compileStatement("DELETE FROM " + TBL_RECORD_STRING_INDEX +
+                                                           " WHERE " + COL_HASH + " = ? AND " + GUID_IS);
+        try {
+          for (int i = 0; i < count; i++) {
+            delete.bindLong(1, hashes[i]);
+            delete.bindString(2, guids[i]);
+            delete.execute();
+          }
+        } finally {
+          delete.close();
+        }
+        db.setTransactionSuccessful();
+        Logger.debug(LOG_TAG, "Removed " + count + " entries from record string index generation " + generation + ".");
+        return true;
+      } finally {
+        db.endTransaction();
+      }
+    } catch (NullCursorException e) {
+      Logger.warn(LOG_TAG, "Couldn't remove from record string index.", e);
+      return false;
+    } catch (SQLException e) {
+      Logger.warn(LOG_TAG, "Couldn't remove from record string index.", e);
+      return false;
+    }
+  }
+
+  @Override
+  public void invalidate() {
+    SQLiteDatabase db = this.getCachedWritableDatabase();
+    try {
+      db.beginTransaction();
+      try {
+        final long generation = currentGeneration(db, NO_VERSION) + 1;
+        db.delete(TBL_RECORD_STRING_INDEX, null, null);
+        updateMeta(db, generation, NO_VERSION, 0);
+        db.setTransactionSuccessful();
+        Logger.debug(LOG_TAG, "Invalidated record string index; now generation " + generation + ".");
+      } finally {
+        db.endTransaction();
+      }
+    } catch (NullCursorException e) {
+      Logger.warn(LOG_TAG, "Couldn't invalidate record string index.", e);
+    } catch (SQLException e) {
+      Logger.warn(LOG_TAG, "Couldn't invalidate record string index.", e);
+    }
+  }
 }
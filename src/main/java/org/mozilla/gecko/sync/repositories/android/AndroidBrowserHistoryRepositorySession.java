@@ -102,6 +102,19 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
     return ((AndroidBrowserHistoryDataAccessor) dbHelper).getHistoryDataExtender();
   }
 
+  /**
+   * A history record string is its URI, which never changes for a given
+   * record, so an index saved alongside the visits stays correct once
+   * records modified since it was saved are added.
+   */
+  @Override
+  protected RecordStringIndexStore getRecordStringIndexStore() {
+    if (dbHelper == null) {
+      return null;
+    }
+    return getDataExtender();
+  }
+
   private Record addVisitsToRecord(Record record) throws NullCursorException {
     Logger.debug(LOG_TAG, "Adding visits for GUID " + record.guid);
     HistoryRecord hist = (HistoryRecord) record;
@@ -148,6 +161,7 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
   @Override
   public void finish(final RepositorySessionFinishDelegate delegate) throws InactiveSessionException {
     if (dbHelper != null) {
+      saveRecordToGuidMap();
       ((AndroidBrowserHistoryDataAccessor) dbHelper).closeExtender();
       dbHelper = null;
     }
@@ -29,7 +29,6 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
 import android.content.ContentUris;
 import android.database.Cursor;
 import android.net.Uri;
-import android.util.SparseArray;
 
 /**
  * You'll notice that all delegate calls *either*:
@@ -67,11 +66,24 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
    * The "record string" above is a "record identifying unique key" produced by
    * <code>buildRecordString</code>.
    * <p>
-   * Since we hash each "record string", this map may produce a false positive.
-   * In this case, we search the database for a matching record explicitly using
-   * <code>findByRecordString</code>.
+   * The index holds only a hash of each "record string", so each GUID it
+   * returns is a candidate that we verify against the stored record. The
+   * index holds every candidate, so we never need to search the database.
+   * Candidates found to be deleted or changed are removed from the index.
    */
-  protected SparseArray<String> recordToGuid;
+  protected RecordStringIndex recordToGuid;
+
+  // If <code>recordToGuid</code> is kept in a RecordStringIndexStore: the
+  // saved generation it extends (or 0), when it last covered every local
+  // record, and the entries added and removed since it was saved.
+  protected long recordToGuidGeneration = 0;
+  protected long recordToGuidCoveredUntil = 0;
+  protected long[] unsavedHashes = new long[16];
+  protected String[] unsavedGuids = new String[16];
+  protected int unsavedCount = 0;
+  protected long[] removedHashes = new long[16];
+  protected String[] removedGuids = new String[16];
+  protected int removedCount = 0;
 
   public AndroidBrowserRepositorySession(Repository repository) {
     super(repository);
@@ -168,6 +180,7 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
 
   @Override
   public void finish(RepositorySessionFinishDelegate delegate) throws InactiveSessionException {
+    saveRecordToGuidMap();
     dbHelper = null;
     recordToGuid = null;
     super.finish(delegate);
@@ -192,6 +205,29 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     }
   }
 
+  /**
+   * There's nothing to upload if no local record has been modified since we
+   * last synced. Any doubt means there might be.
+   */
+  @Override
+  public boolean dataAvailable() {
+    if (lastSyncTimestamp <= 0 || dbHelper == null) {
+      return true;
+    }
+    Cursor cur = null;
+    try {
+      cur = dbHelper.getGUIDsSince(lastSyncTimestamp);
+      return cur.moveToFirst();
+    } catch (Exception e) {
+      Logger.warn(LOG_TAG, "Couldn't check for local changes; assuming some.", e);
+      return true;
+    } finally {
+      if (cur != null) {
+        cur.close();
+      }
+    }
+  }
+
   @Override
   public void guidsSince(long timestamp, RepositorySessionGuidsSinceDelegate delegate) {
     GuidsSinceRunnable command = new GuidsSinceRunnable(timestamp, delegate);
@@ -654,45 +690,106 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     } else {
       Logger.debug(LOG_TAG, "Searching with record string.");
     }
-    String guid = getGuidForString(recordString);
-    if (guid == null) {
+    final String[] guids = getGuidsForString(recordString);
+    if (guids.length == 0) {
       Logger.debug(LOG_TAG, "Failed to find existing record for " + record.guid);
       return null;
     }
-
-    // Our map contained a match, but it could be a false positive. Since
-    // computed record string is supposed to be a unique key, we can easily
-    // verify our positive.
-    Logger.debug(LOG_TAG, "Found one. Checking stored record.");
-    Record stored = retrieveByGUIDDuringStore(guid);
-    String storedRecordString = buildRecordString(record);
-    if (recordString.equals(storedRecordString)) {
-      Logger.debug(LOG_TAG, "Existing record matches incoming record.  Returning existing record.");
-      return stored;
+    final long hash = RecordStringIndex.hash(recordString);
+
+    // Our index only holds hashes, so each candidate could be a false
+    // positive. Since computed record string is supposed to be a unique key,
+    // we can easily verify each candidate.
+    for (String guid : guids) {
+      Logger.debug(LOG_TAG, "Found one. Checking stored record.");
+      Record stored = retrieveByGUIDDuringStore(guid);
+      if (stored == null) {
+        // Deleted since we indexed it.
+        removeFromRecordToGuidMap(hash, guid);
+        continue;
+      }
+      String storedRecordString = buildRecordString(stored);
+      if (recordString.equals(storedRecordString)) {
+        Logger.debug(LOG_TAG, "Existing record matches incoming record.  Returning existing record.");
+        return stored;
+      }
+      if (storedRecordString == null || RecordStringIndex.hash(storedRecordString) != hash) {
+        // Changed since we indexed it. (Otherwise, it's a hash collision.)
+        removeFromRecordToGuidMap(hash, guid);
+      }
     }
 
-    // Oh no, we got a false positive! (This should be *very* rare --
-    // essentially, we got a hash collision.) Search the DB for this record
-    // explicitly by hand.
-    Logger.debug(LOG_TAG, "Existing record does not match incoming record.  Trying to find record by record string.");
-    return findByRecordString(recordString);
+    // Every local record is in the index, so no candidate means no match.
+    Logger.debug(LOG_TAG, "No candidate matches incoming record " + record.guid);
+    return null;
   }
 
-  protected String getGuidForString(String recordString) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
+  protected String[] getGuidsForString(String recordString) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
     if (recordToGuid == null) {
       createRecordToGuidMap();
     }
-    return recordToGuid.get(Integer.valueOf(recordString.hashCode()));
+    return recordToGuid.get(recordString);
+  }
+
+  /**
+   * Override this to keep the record string index between sessions.
+   *
+   * @return where to keep the index, or null to build it afresh in every
+   *         session.
+   */
+  protected RecordStringIndexStore getRecordStringIndexStore() {
+    return null;
+  }
+
+  /**
+   * Override this, incrementing it whenever <code>buildRecordString</code>
+   * changes, so that saved indices are rebuilt.
+   *
+   * @return the version of the record strings this session builds; never 0.
+   */
+  protected int getRecordStringVersion() {
+    return 1;
   }
 
   protected void createRecordToGuidMap() throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
-    Logger.info(LOG_TAG, "BEGIN: creating record -> GUID map.");
-    recordToGuid = new SparseArray<String>();
+    final RecordStringIndexStore store = getRecordStringIndexStore();
+    if (store != null) {
+      final long now = System.currentTimeMillis();
+      final RecordStringIndexStore.SavedIndex saved = store.load(getRecordStringVersion());
+      if (saved != null) {
+        Logger.info(LOG_TAG, "BEGIN: adding records modified since " + saved.coveredUntil + " to saved record -> GUID map.");
+        recordToGuid = saved.index;
+        recordToGuidGeneration = saved.generation;
+        addToRecordToGuidMap(dbHelper.fetchSince(saved.coveredUntil));
+        recordToGuidCoveredUntil = now;
+        Logger.info(LOG_TAG, "END: record -> GUID map has " + recordToGuid.size() + " entries, " +
+                             unsavedCount + " of them new.");
+        return;
+      }
+    }
 
+    Logger.info(LOG_TAG, "BEGIN: creating record -> GUID map.");
+    final long now = System.currentTimeMillis();
     // TODO: we should be able to do this entire thing with string concatenations within SQL.
     // Also consider whether it's better to fetch and process every record in the DB into
     // memory, or run a query per record to do the same thing.
     Cursor cur = dbHelper.fetchAll();
+    recordToGuid = new RecordStringIndex(cur.getCount());
+    recordToGuidGeneration = 0;
+    addToRecordToGuidMap(cur);
+    Logger.info(LOG_TAG, "END: creating record -> GUID map with " + recordToGuid.size() + " entries.");
+
+    if (store != null) {
+      recordToGuidGeneration = store.save(getRecordStringVersion(), recordToGuid, now);
+      recordToGuidCoveredUntil = now;
+      unsavedCount = 0;
+    }
+  }
+
+  /**
+   * Add every record in <code>cur</code> to the record string index, then close it.
+   */
+  protected void addToRecordToGuidMap(Cursor cur) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
     try {
       if (!cur.moveToFirst()) {
         return;
@@ -700,55 +797,53 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
       while (!cur.isAfterLast()) {
         Record record = retrieveDuringStore(cur);
         if (record != null) {
-          final String recordString = buildRecordString(record);
-          if (recordString != null) {
-            recordToGuid.put(Integer.valueOf(recordString.hashCode()), record.guid);
-          }
+          putRecordToGuidMap(buildRecordString(record), record.guid);
         }
         cur.moveToNext();
       }
     } finally {
       cur.close();
     }
-    Logger.info(LOG_TAG, "END: creating record -> GUID map.");
   }
 
   /**
-   * Search the local database for a record with the same "record string".
-   * <p>
-   * We expect to do this only in the unlikely event of a hash
-   * collision, so we iterate the database completely.  Since we want
-   * to include information about the parents of bookmarks, it is
-   * difficult to do better purely using the
-   * <code>ContentProvider</code> interface.
-   *
-   * @param recordString
-   *          the "record string" to search for; must be n
-   * @return a <code>Record</code> with the same "record string", or
-   *         <code>null</code> if none is present.
-   * @throws ParentNotFoundException
-   * @throws NullCursorException
-   * @throws NoGuidForIdException
+   * Apply entries added and removed during this session to the saved record
+   * string index. Safe to call more than once.
    */
-  protected Record findByRecordString(String recordString) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
-    Cursor cur = dbHelper.fetchAll();
-    try {
-      if (!cur.moveToFirst()) {
-        return null;
-      }
-      while (!cur.isAfterLast()) {
-        Record record = retrieveDuringStore(cur);
-        if (record != null) {
-          final String storedRecordString = buildRecordString(record);
-          if (recordString.equals(storedRecordString)) {
-            return record;
-          }
-        }
-        cur.moveToNext();
-      }
-      return null;
-    } finally {
-      cur.close();
+  protected void saveRecordToGuidMap() {
+    if (recordToGuidGeneration == 0) {
+      return;
+    }
+    final RecordStringIndexStore store = getRecordStringIndexStore();
+    if (store == null) {
+      return;
+    }
+    if (removedCount > 0 && !store.remove(recordToGuidGeneration, removedHashes, removedGuids, removedCount)) {
+      recordToGuidGeneration = 0;
+    }
+    removedCount = 0;
+    if (recordToGuidGeneration == 0) {
+      unsavedCount = 0;
+      return;
+    }
+    if (!store.append(recordToGuidGeneration, unsavedHashes, unsavedGuids, unsavedCount, recordToGuidCoveredUntil)) {
+      // Replaced or invalidated since we loaded it; the next session will rebuild.
+      recordToGuidGeneration = 0;
+    }
+    unsavedCount = 0;
+  }
+
+  /**
+   * Forget the record string index, here and wherever it is kept.
+   */
+  protected void invalidateRecordToGuidMap() {
+    recordToGuid = null;
+    recordToGuidGeneration = 0;
+    unsavedCount = 0;
+    removedCount = 0;
+    final RecordStringIndexStore store = getRecordStringIndexStore();
+    if (store != null) {
+      store.invalidate();
     }
   }
 
@@ -760,7 +855,74 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     if (recordToGuid == null) {
       createRecordToGuidMap();
     }
-    recordToGuid.put(Integer.valueOf(recordString.hashCode()), guid);
+    final long hash = RecordStringIndex.hash(recordString);
+    if (!recordToGuid.putHash(hash, guid) || recordToGuidGeneration == 0) {
+      return;
+    }
+    // If removed this session, it's still saved.
+    final int removed = indexOfEntry(removedHashes, removedGuids, removedCount, hash, guid);
+    if (removed >= 0) {
+      removedCount -= 1;
+      removedHashes[removed] = removedHashes[removedCount];
+      removedGuids[removed] = removedGuids[removedCount];
+      removedGuids[removedCount] = null;
+      return;
+    }
+    if (unsavedCount == unsavedHashes.length) {
+      unsavedHashes = doubled(unsavedHashes, unsavedCount);
+      unsavedGuids = doubled(unsavedGuids, unsavedCount);
+    }
+    unsavedHashes[unsavedCount] = hash;
+    unsavedGuids[unsavedCount] = guid;
+    unsavedCount += 1;
+  }
+
+  /**
+   * Forget that the local record <code>guid</code> has the record string
+   * whose hash is <code>hash</code>.
+   */
+  protected void removeFromRecordToGuidMap(long hash, String guid) {
+    if (!recordToGuid.removeHash(hash, guid) || recordToGuidGeneration == 0) {
+      return;
+    }
+    // If added this session, it was never saved.
+    final int unsaved = indexOfEntry(unsavedHashes, unsavedGuids, unsavedCount, hash, guid);
+    if (unsaved >= 0) {
+      unsavedCount -= 1;
+      unsavedHashes[unsaved] = unsavedHashes[unsavedCount];
+      unsavedGuids[unsaved] = unsavedGuids[unsavedCount];
+      unsavedGuids[unsavedCount] = null;
+      return;
+    }
+    if (removedCount == removedHashes.length) {
+      removedHashes = doubled(removedHashes, removedCount);
+      removedGuids = doubled(removedGuids, removedCount);
+    }
+    removedHashes[removedCount] = hash;
+    removedGuids[removedCount] = guid;
+    removedCount += 1;
+  }
+
+  protected static int indexOfEntry(long[] hashes, String[] guids, int count, long hash, String guid) {
+    for (int i = 0; i < count; i++) {
+      if (hashes[i] == hash && guids[i].equals(guid)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // No java.util.Arrays.copyOf in older Android SDKs.
+  protected static long[] doubled(long[] array, int count) {
+    final long[] out = new long[2 * array.length];
+    System.arraycopy(array, 0, out, 0, count);
+    return out;
+  }
+
+  protected static String[] doubled(String[] array, int count) {
+    final String[] out = new String[2 * array.length];
+    System.arraycopy(array, 0, out, 0, count);
+    return out;
   }
 
   protected abstract Record prepareRecord(Record record);
@@ -795,6 +957,7 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
         return;
       }
       dbHelper.wipe();
+      invalidateRecordToGuidMap();
       delegate.onWipeSucceeded();
     }
   }
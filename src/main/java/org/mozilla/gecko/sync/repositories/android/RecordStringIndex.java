@@ -0,0 +1,291 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories.android;
+
+/**
+ * Maps "record strings" (see
+ * <code>AndroidBrowserRepositorySession.buildRecordString</code>) to the GUIDs
+ * of the local records that produced them.
+ * <p>
+ * Only a 64-bit hash of each record string is kept, in an open-addressing
+ * table, so the index costs a few words per record rather than a copy of every
+ * record string. Every GUID added under a hash is kept until it is removed: a
+ * lookup returns all candidates, and the caller verifies each against the
+ * stored record, removing those that no longer match. So
+ * long as every local record has been added, a record string that matches no
+ * candidate matches no local record.
+ * <p>
+ * Because only hashes are kept, an index can be saved and reloaded without
+ * rebuilding any record strings; see {@link RecordStringIndexStore}.
+ * <p>
+ * Not thread-safe; sessions use it only from their store work queue.
+ */
+public class RecordStringIndex {
+  /**
+   * Visits every (hash, GUID) pair in an index.
+   */
+  public interface EntryVisitor {
+    public void visit(long hash, String guid);
+  }
+
+  private static final String[] NO_GUIDS = new String[0];
+
+  // Keep the table at most half full, so that probe sequences stay short.
+  private static final int MIN_CAPACITY = 16;
+
+  // 0 marks an empty slot; see hash().
+  protected long[] hashes;
+
+  // Each entry is a String, or a String[] ordered newest first.
+  protected Object[] guids;
+
+  protected int usedSlots = 0;
+  protected int size = 0;
+
+  public RecordStringIndex() {
+    this(0);
+  }
+
+  /**
+   * @param expectedSize the number of record strings expected.
+   */
+  public RecordStringIndex(int expectedSize) {
+    int capacity = MIN_CAPACITY;
+    while (capacity < 2 * expectedSize) {
+      capacity <<= 1;
+    }
+    hashes = new long[capacity];
+    guids = new Object[capacity];
+  }
+
+  /**
+   * A 64-bit FNV-1a hash of the string's UTF-16 code units, finished with the
+   * MurmurHash3 mixing function so that the low bits are well distributed.
+   * Never returns 0.
+   */
+  public static long hash(String recordString) {
+    long h = 0xcbf29ce484222325L;
+    final int length = recordString.length();
+    for (int i = 0; i < length; i++) {
+      final char c = recordString.charAt(i);
+      h ^= (c & 0xff);
+      h *= 0x100000001b3L;
+      h ^= (c >>> 8);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return (h == 0) ? 1 : h;
+  }
+
+  protected int slotFor(long hash) {
+    final int mask = hashes.length - 1;
+    int slot = (int) hash & mask;
+    while (hashes[slot] != 0 && hashes[slot] != hash) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /**
+   * Note that the local record with GUID <code>guid</code> has record string
+   * <code>recordString</code>. Adding the same pair twice has no effect.
+   *
+   * @return true if the pair was not already in the index.
+   */
+  public boolean put(String recordString, String guid) {
+    if (recordString == null) {
+      return false;
+    }
+    return putHash(hash(recordString), guid);
+  }
+
+  /**
+   * As {@link #put(String, String)}, for a hash previously returned by
+   * {@link #hash(String)}.
+   */
+  public boolean putHash(long hash, String guid) {
+    if (hash == 0 || guid == null) {
+      return false;
+    }
+    final int slot = slotFor(hash);
+    final Object existing = guids[slot];
+
+    if (existing == null) {
+      hashes[slot] = hash;
+      guids[slot] = guid;
+      size += 1;
+      usedSlots += 1;
+      if (2 * usedSlots > hashes.length) {
+        resize();
+      }
+      return true;
+    }
+
+    if (existing instanceof String) {
+      if (existing.equals(guid)) {
+        return false;
+      }
+      guids[slot] = new String[] { guid, (String) existing };
+      size += 1;
+      return true;
+    }
+
+    final String[] list = (String[]) existing;
+    for (String candidate : list) {
+      if (candidate.equals(guid)) {
+        return false;
+      }
+    }
+    final String[] grown = new String[list.length + 1];
+    grown[0] = guid;
+    System.arraycopy(list, 0, grown, 1, list.length);
+    guids[slot] = grown;
+    size += 1;
+    return true;
+  }
+
+  /**
+   * Forget that the local record with GUID <code>guid</code> has the record
+   * string whose hash is <code>hash</code>, for instance because the record
+   * was deleted.
+   *
+   * @return true if the pair was in the index.
+   */
+  public boolean removeHash(long hash, String guid) {
+    if (hash == 0 || guid == null) {
+      return false;
+    }
+    final int slot = slotFor(hash);
+    final Object existing = guids[slot];
+    if (existing == null) {
+      return false;
+    }
+
+    if (existing instanceof String) {
+      if (!existing.equals(guid)) {
+        return false;
+      }
+      clearSlot(slot);
+      size -= 1;
+      usedSlots -= 1;
+      return true;
+    }
+
+    final String[] list = (String[]) existing;
+    int found = -1;
+    for (int i = 0; i < list.length; i++) {
+      if (list[i].equals(guid)) {
+        found = i;
+        break;
+      }
+    }
+    if (found < 0) {
+      return false;
+    }
+    if (list.length == 2) {
+      guids[slot] = list[1 - found];
+    } else {
+      final String[] shrunk = new String[list.length - 1];
+      System.arraycopy(list, 0, shrunk, 0, found);
+      System.arraycopy(list, found + 1, shrunk, found, shrunk.length - found);
+      guids[slot] = shrunk;
+    }
+    size -= 1;
+    return true;
+  }
+
+  /**
+   * Empty <code>slot</code>, moving back any later entries that probing would
+   * no longer reach.
+   */
+  protected void clearSlot(int slot) {
+    final int mask = hashes.length - 1;
+    int empty = slot;
+    int next = slot;
+    while (true) {
+      next = (next + 1) & mask;
+      if (hashes[next] == 0) {
+        break;
+      }
+      // An entry stays put if its home slot lies cyclically in (empty, next].
+      final int home = (int) hashes[next] & mask;
+      final boolean reachable = (empty <= next) ? (empty < home && home <= next)
+                                                : (empty < home || home <= next);
+      if (reachable) {
+        continue;
+      }
+      hashes[empty] = hashes[next];
+      guids[empty] = guids[next];
+      empty = next;
+    }
+    hashes[empty] = 0;
+    guids[empty] = null;
+  }
+
+  /**
+   * @return the GUIDs of local records that might have record string
+   *         <code>recordString</code>, newest first; never null.
+   */
+  public String[] get(String recordString) {
+    if (recordString == null) {
+      return NO_GUIDS;
+    }
+    final Object found = guids[slotFor(hash(recordString))];
+    if (found == null) {
+      return NO_GUIDS;
+    }
+    if (found instanceof String) {
+      return new String[] { (String) found };
+    }
+    return ((String[]) found).clone();
+  }
+
+  /**
+   * @return the number of (record string, GUID) pairs in the index.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Visit every pair in the index. Pairs sharing a hash are visited oldest
+   * first, so that adding them to an empty index in visiting order reproduces
+   * this one.
+   */
+  public void forEach(EntryVisitor visitor) {
+    for (int i = 0; i < hashes.length; i++) {
+      final Object entry = guids[i];
+      if (entry == null) {
+        continue;
+      }
+      if (entry instanceof String) {
+        visitor.visit(hashes[i], (String) entry);
+        continue;
+      }
+      final String[] list = (String[]) entry;
+      for (int j = list.length - 1; j >= 0; j--) {
+        visitor.visit(hashes[i], list[j]);
+      }
+    }
+  }
+
+  protected void resize() {
+    final long[] oldHashes = hashes;
+    final Object[] oldGuids = guids;
+    hashes = new long[oldHashes.length << 1];
+    guids = new Object[oldGuids.length << 1];
+    for (int i = 0; i < oldHashes.length; i++) {
+      if (oldHashes[i] != 0) {
+        final int slot = slotFor(oldHashes[i]);
+        hashes[slot] = oldHashes[i];
+        guids[slot] = oldGuids[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories.android;
+
+/**
+ * Keeps a {@link RecordStringIndex} between sessions, so that a session need
+ * not scan every local record to rebuild it.
+ * <p>
+ * A saved index has a generation, which changes whenever the index is saved
+ * afresh or invalidated. Entries are only ever appended to the generation a
+ * session loaded, so a session can never add to an index that has since been
+ * wiped or replaced.
+ * <p>
+ * A saved index covers every local record modified before its
+ * <code>coveredUntil</code> timestamp. Records modified since must be added
+ * by the session that loads it.
+ */
+public interface RecordStringIndexStore {
+  public static class SavedIndex {
+    public final RecordStringIndex index;
+    public final long generation;
+    public final long coveredUntil;
+
+    public SavedIndex(RecordStringIndex index, long generation, long coveredUntil) {
+      this.index = index;
+      this.generation = generation;
+      this.coveredUntil = coveredUntil;
+    }
+  }
+
+  /**
+   * @param version
+   *          the version of the record strings the caller builds.
+   * @return the saved index, or null if there is none valid for
+   *         <code>version</code>.
+   */
+  public SavedIndex load(int version);
+
+  /**
+   * Replace whatever is saved with <code>index</code>.
+   *
+   * @return the new generation, or 0 if the index could not be saved.
+   */
+  public long save(int version, RecordStringIndex index, long coveredUntil);
+
+  /**
+   * Add entries to the saved index, if it is still at generation
+   * <code>generation</code>, and advance its <code>coveredUntil</code>.
+   *
+   * @return true if the entries were saved.
+   */
+  public boolean append(long generation, long[] hashes, String[] guids, int count, long coveredUntil);
+
+  /**
+   * Remove entries that no longer describe a local record from the saved
+   * index, if it is still at generation <code>generation</code>.
+   *
+   * @return true if the entries were removed.
+   */
+  public boolean remove(long generation, long[] hashes, String[] guids, int count);
+
+  /**
+   * Discard the saved index, for instance because the local store was wiped.
+   */
+  public void invalidate();
+}
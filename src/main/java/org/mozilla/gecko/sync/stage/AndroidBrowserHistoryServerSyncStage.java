@@ -7,7 +7,7 @@ package org.mozilla.gecko.sync.stage;
 import java.net.URISyntaxException;
 
 import org.mozilla.gecko.sync.MetaGlobalException;
-import org.mozilla.gecko.sync.repositories.ConstrainedServer11Repository;
+import org.mozilla.gecko.sync.repositories.PagedServer11Repository;
 import org.mozilla.gecko.sync.repositories.RecordFactory;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.android.AndroidBrowserHistoryRepository;
@@ -22,6 +22,11 @@ public class AndroidBrowserHistoryServerSyncStage extends ServerSyncStage {
   private static final String HISTORY_SORT          = "index";
   private static final long   HISTORY_REQUEST_LIMIT = 250;
 
+  // Fetch a page of HISTORY_REQUEST_LIMIT records at a time until we run out
+  // of records or budget, and carry on from there next sync.
+  private static final long   HISTORY_FETCH_TIME_BUDGET = 2 * 60 * 1000;     // Milliseconds.
+  private static final long   HISTORY_FETCH_BYTE_BUDGET = 4 * 1024 * 1024;
+
   @Override
   protected String getCollection() {
     return "history";
@@ -45,12 +50,14 @@ public class AndroidBrowserHistoryServerSyncStage extends ServerSyncStage {
   @Override
   protected Repository getRemoteRepository() throws URISyntaxException {
     String collection = getCollection();
-    return new ConstrainedServer11Repository(
-                                             collection,
-                                             session.config.storageURL(),
-                                             session.getAuthHeaderProvider(),
-                                             HISTORY_REQUEST_LIMIT,
-                                             HISTORY_SORT);
+    return new PagedServer11Repository(
+                                       collection,
+                                       session.config.storageURL(),
+                                       session.getAuthHeaderProvider(),
+                                       HISTORY_REQUEST_LIMIT,
+                                       HISTORY_SORT,
+                                       HISTORY_FETCH_TIME_BUDGET,
+                                       HISTORY_FETCH_BYTE_BUDGET);
   }
 
   @Override
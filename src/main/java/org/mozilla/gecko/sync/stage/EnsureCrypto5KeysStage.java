@@ -52,11 +52,23 @@ implements SyncStorageRequestDelegate {
       Logger.trace(LOG_TAG, "Failed to use persisted collection keys for this session.");
     }
 
-    // We need an update: fetch fresh keys.
-    Logger.debug(LOG_TAG, "Fetching fresh collection keys for this session.");
+    // We need an update: fetch fresh keys. Something in the crypto collection
+    // changed, but crypto/keys itself may not have, so if we have keys we ask
+    // for them only if they're newer than ours.
+    fetchKeys(pck.persistedKeysExist() ? lastModified : -1);
+  }
+
+  /**
+   * @param ifModifiedSince server timestamp in milliseconds, or -1 to fetch
+   *        unconditionally.
+   */
+  protected void fetchKeys(long ifModifiedSince) {
+    Logger.debug(LOG_TAG, "Fetching fresh collection keys for this session" +
+        (ifModifiedSince > 0 ? " if modified since " + ifModifiedSince + "." : "."));
     try {
       SyncStorageRecordRequest request = new SyncStorageRecordRequest(session.wboURI(CRYPTO_COLLECTION, "keys"));
       request.delegate = this;
+      request.setIfModifiedSince(ifModifiedSince);
       request.get();
     } catch (URISyntaxException e) {
       session.abort(e, "Invalid URI.");
@@ -126,6 +138,21 @@ implements SyncStorageRequestDelegate {
   public void handleRequestSuccess(SyncStorageResponse response) {
     // Take the timestamp from the response since it is later than the timestamp from info/collections.
     long responseTimestamp = response.normalizedWeaveTimestamp();
+    if (response.wasNotModified()) {
+      PersistedCrypto5Keys pck = session.config.persistedCryptoKeys();
+      CollectionKeys persistedKeys = pck.keys();
+      if (persistedKeys == null) {
+        Logger.warn(LOG_TAG, "crypto/keys not modified, but persisted keys are unusable. Fetching keys.");
+        fetchKeys(-1);
+        return;
+      }
+      Logger.trace(LOG_TAG, "crypto/keys not modified; using persisted keys and persisting only last modified.");
+      session.config.setCollectionKeys(persistedKeys);
+      pck.persistLastModified(responseTimestamp);
+      session.advance();
+      return;
+    }
+
     CollectionKeys keys = new CollectionKeys();
     try {
       ExtendedJSONObject body = response.jsonObjectBody();
@@ -6,18 +6,22 @@ package org.mozilla.gecko.sync.stage;
 
 import java.net.URISyntaxException;
 
+import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
 import org.mozilla.gecko.sync.InfoCollections;
+import org.mozilla.gecko.sync.InfoConfiguration;
 import org.mozilla.gecko.sync.delegates.JSONRecordFetchDelegate;
 import org.mozilla.gecko.sync.net.SyncStorageResponse;
 
 public class FetchInfoCollectionsStage extends AbstractNonRepositorySyncStage {
+  private static final String LOG_TAG = "FetchInfoCollStage";
+
   public class StageInfoCollectionsDelegate implements JSONRecordFetchDelegate {
 
     @Override
     public void handleSuccess(ExtendedJSONObject global) {
       session.config.infoCollections = new InfoCollections(global);
-      session.advance();
+      fetchInfoConfiguration();
     }
 
     @Override
@@ -32,6 +36,41 @@ public class FetchInfoCollectionsStage extends AbstractNonRepositorySyncStage {
 
   }
 
+  /**
+   * Not every server provides <code>info/configuration</code>, so failing to
+   * fetch it just means we have no advertised limits.
+   */
+  public class StageInfoConfigurationDelegate implements JSONRecordFetchDelegate {
+
+    @Override
+    public void handleSuccess(ExtendedJSONObject body) {
+      session.config.infoConfiguration = new InfoConfiguration(body);
+      session.advance();
+    }
+
+    @Override
+    public void handleFailure(SyncStorageResponse response) {
+      Logger.debug(LOG_TAG, "No info/configuration: got HTTP " + response.getStatusCode() + ".");
+      session.config.infoConfiguration = null;
+      session.advance();
+    }
+
+    @Override
+    public void handleError(Exception e) {
+      Logger.warn(LOG_TAG, "Error fetching info/configuration; ignoring.", e);
+      session.config.infoConfiguration = null;
+      session.advance();
+    }
+  }
+
+  protected void fetchInfoConfiguration() {
+    try {
+      session.fetchInfoConfiguration(new StageInfoConfigurationDelegate());
+    } catch (URISyntaxException e) {
+      session.abort(e, "Invalid URI.");
+    }
+  }
+
   @Override
   public void execute() throws NoSuchStageException {
     try {
@@ -25,9 +25,13 @@ public class FetchMetaGlobalStage extends AbstractNonRepositorySyncStage {
 
     @Override
     public void handleSuccess(MetaGlobal global, SyncStorageResponse response) {
-      Logger.trace(LOG_TAG, "Persisting fetched meta/global and last modified.");
       PersistedMetaGlobal pmg = session.config.persistedMetaGlobal();
-      pmg.persistMetaGlobal(global);
+      if (response.wasNotModified()) {
+        Logger.info(LOG_TAG, "meta/global not modified; using persisted meta/global for this session.");
+      } else {
+        Logger.trace(LOG_TAG, "Persisting fetched meta/global and last modified.");
+        pmg.persistMetaGlobal(global);
+      }
       // Take the timestamp from the response since it is later than the timestamp from info/collections.
       pmg.persistLastModified(response.normalizedWeaveTimestamp());
 
@@ -59,18 +63,29 @@ public class FetchMetaGlobalStage extends AbstractNonRepositorySyncStage {
     }
 
     long lastModified = session.config.persistedMetaGlobal().lastModified();
+    MetaGlobal persisted = null;
+    if (lastModified > 0) {
+      persisted = session.config.persistedMetaGlobal().metaGlobal(session.config.metaURL(), session.getAuthHeaderProvider());
+    }
     if (!infoCollections.updateNeeded(META_COLLECTION, lastModified)) {
       // Try to use our local collection keys for this session.
       Logger.info(LOG_TAG, "Trying to use persisted meta/global for this session.");
-      MetaGlobal global = session.config.persistedMetaGlobal().metaGlobal(session.config.metaURL(), session.getAuthHeaderProvider());
-      if (global != null) {
+      if (persisted != null) {
         Logger.info(LOG_TAG, "Using persisted meta/global for this session.");
-        session.processMetaGlobal(global); // Calls session.advance().
+        session.processMetaGlobal(persisted); // Calls session.advance().
         return;
       }
       Logger.info(LOG_TAG, "Failed to use persisted meta/global for this session.");
     }
 
+    // Something in the meta collection changed, but meta/global itself may
+    // not have: ask for it only if it's newer than our persisted copy.
+    if (persisted != null) {
+      Logger.info(LOG_TAG, "Fetching meta/global for this session if modified since " + lastModified + ".");
+      persisted.fetch(new StageMetaGlobalDelegate(session), lastModified);
+      return;
+    }
+
     // We need an update: fetch or upload meta/global as necessary.
     Logger.info(LOG_TAG, "Fetching fresh meta/global for this session.");
     MetaGlobal global = new MetaGlobal(session.config.metaURL(), session.getAuthHeaderProvider());
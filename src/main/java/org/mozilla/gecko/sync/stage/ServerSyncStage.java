@@ -59,6 +59,12 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
   protected long stageStartTimestamp = -1;
   protected long stageCompleteTimestamp = -1;
 
+  /**
+   * The remote repository used by this stage, if it talks to a Sync 1.1
+   * server. Used to report upload statistics.
+   */
+  protected Server11Repository serverRepository = null;
+
   /**
    * Override these in your subclasses.
    *
@@ -160,7 +166,14 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
   protected Repository wrappedServerRepo() throws NoCollectionKeysSetException, URISyntaxException {
     String collection = this.getCollection();
     KeyBundle collectionKey = session.keyBundleForCollection(collection);
-    Crypto5MiddlewareRepository cryptoRepo = new Crypto5MiddlewareRepository(getRemoteRepository(), collectionKey);
+    Repository remote = getRemoteRepository();
+    if (remote instanceof Server11Repository) {
+      serverRepository = (Server11Repository) remote;
+      serverRepository.setInfoConfiguration(session.config.infoConfiguration);
+      // Lets the synchronizer skip this stage if neither side has changed.
+      serverRepository.setInfoCollections(session.config.infoCollections);
+    }
+    Crypto5MiddlewareRepository cryptoRepo = new Crypto5MiddlewareRepository(remote, collectionKey);
     cryptoRepo.recordFactory = getRecordFactory();
     return cryptoRepo;
   }
@@ -216,6 +229,8 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
     }
     config.localBundle.setTimestamp(0L);
     config.remoteBundle.setTimestamp(0L);
+    // A partly completed paged fetch would resume from its old timestamp.
+    config.remoteBundle.setFetchCursor(null);
     persistConfig(config);
     Logger.info(LOG_TAG, "Reset timestamps for " + this);
   }
@@ -574,6 +589,14 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
     return Utils.formatDuration(stageStartTimestamp, stageCompleteTimestamp);
   }
 
+  protected void logUploadStats() {
+    if (serverRepository == null) {
+      return;
+    }
+    Logger.info(LOG_TAG, "Stage " + getEngineName() + " uploaded " + serverRepository.getUploadStats() +
+        " Final " + serverRepository.getUploadBatchSizer() + ".");
+  }
+
   /**
    * We synced this engine!  Persist timestamps and advance the session.
    *
@@ -597,6 +620,7 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
     Logger.info(LOG_TAG, "Stage " + getEngineName() +
         " received " + inboundCount + " and sent " + outboundCount +
         " records in " + getStageDurationString() + ".");
+    logUploadStats();
     Logger.info(LOG_TAG, "Advancing session.");
     session.advance();
   }
@@ -626,6 +650,7 @@ public abstract class ServerSyncStage extends AbstractSessionManagingSyncStage i
       }
     }
 
+    logUploadStats();
     Logger.info(LOG_TAG, "Advancing session even though stage failed (took " + getStageDurationString() +
         "). Timestamps not persisted.");
     session.advance();
@@ -0,0 +1,184 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.synchronizer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+
+/**
+ * Consume records from a fixed-size buffer inside a RecordsChannel.
+ * <p>
+ * Unlike {@link ConcurrentRecordConsumer}, the buffer is bounded: when the
+ * source gets <code>capacity</code> records ahead of the sink,
+ * {@link #enqueue(Record)} blocks the fetching thread until the sink catches
+ * up. The consumer thread blocks in <code>take</code> and is woken only by new
+ * records or by an end-of-stream marker, so it never polls or times out.
+ */
+class BoundedRecordConsumer extends RecordConsumer {
+  private static final String LOG_TAG = "BRecordConsumer";
+
+  public static final int MIN_CAPACITY = 2;
+
+  /**
+   * Marks the end of the stream. Queued after the last record by
+   * {@link #queueFilled()}, or in place of remaining records by {@link #halt()}.
+   */
+  private static final Record END_OF_STREAM = new EndOfStreamRecord();
+
+  private static final class EndOfStreamRecord extends Record {
+    public EndOfStreamRecord() {
+      super(null, null, 0, false);
+    }
+
+    @Override
+    protected void populatePayload(ExtendedJSONObject payload) {
+    }
+
+    @Override
+    protected void initFromPayload(ExtendedJSONObject payload) {
+    }
+
+    @Override
+    public Record copyWithIDs(String guid, long androidID) {
+      return this;
+    }
+  }
+
+  protected final BlockingQueue<Record> buffer;
+  protected final int capacity;
+
+  protected volatile boolean allRecordsQueued = false;
+  protected final AtomicLong counter = new AtomicLong();
+  protected volatile int peakBuffered = 0;
+
+  public BoundedRecordConsumer(RecordsConsumerDelegate delegate, int capacity) {
+    this.delegate = delegate;
+    // A halt must always find room for the end-of-stream marker, even with a
+    // racing fetch; see halt().
+    this.capacity = Math.max(MIN_CAPACITY, capacity);
+    this.buffer = new ArrayBlockingQueue<Record>(this.capacity);
+  }
+
+  /**
+   * Queue a record for storing, blocking while the buffer is full.
+   * Records arriving after a halt are dropped.
+   * <p>
+   * Callers must not call this concurrently; see {@link #halt()}.
+   */
+  @Override
+  public void enqueue(Record record) {
+    if (stopImmediately) {
+      return;
+    }
+    try {
+      buffer.put(record);
+    } catch (InterruptedException e) {
+      Logger.warn(LOG_TAG, "Interrupted queuing record; dropping it.", e);
+      Thread.currentThread().interrupt();
+      return;
+    }
+    final int size = buffer.size();
+    if (size > peakBuffered) {
+      peakBuffered = size;
+    }
+  }
+
+  @Override
+  public void doNotify() {
+    // Nothing to do: consumers are woken by the buffer itself.
+  }
+
+  @Override
+  public void queueFilled() {
+    Logger.debug(LOG_TAG, "Queue filled.");
+    allRecordsQueued = true;
+    if (stopImmediately) {
+      // Already halted; never block on a consumer that has gone away.
+      buffer.offer(END_OF_STREAM);
+      return;
+    }
+    try {
+      buffer.put(END_OF_STREAM);
+    } catch (InterruptedException e) {
+      Logger.warn(LOG_TAG, "Interrupted queuing end of stream; halting.", e);
+      Thread.currentThread().interrupt();
+      halt();
+    }
+  }
+
+  /**
+   * Stop as soon as possible, discarding buffered records.
+   * <p>
+   * Callers serialize {@link #enqueue(Record)}, even when records are fetched
+   * or decrypted on several threads, so at most one <code>put</code> can race
+   * with this; clearing first leaves room for both that record and the marker.
+   */
+  @Override
+  public void halt() {
+    stopImmediately = true;
+    buffer.clear();
+    buffer.offer(END_OF_STREAM);
+  }
+
+  @Override
+  public void stored() {
+    counter.incrementAndGet();
+  }
+
+  /**
+   * @return the most records this consumer has held at once.
+   */
+  public int getPeakBuffered() {
+    return peakBuffered;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  private void consumerIsDone() {
+    final long count = counter.get();
+    Logger.debug(LOG_TAG, "Consumer is done. Processed " + count + ((count == 1) ? " record." : " records.") +
+                          " Buffered at most " + peakBuffered + " of " + capacity + ".");
+    delegate.consumerIsDone(!allRecordsQueued || stopImmediately);
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      final Record record;
+      try {
+        record = buffer.take();
+      } catch (InterruptedException e) {
+        Logger.warn(LOG_TAG, "Interrupted waiting for records. Stopping.", e);
+        stopImmediately = true;
+        buffer.clear();
+        consumerIsDone();
+        return;
+      }
+
+      if (record == END_OF_STREAM || stopImmediately) {
+        if (stopImmediately) {
+          Logger.debug(LOG_TAG, "Told to stop immediately. Clearing queue.");
+          buffer.clear();
+        }
+        consumerIsDone();
+        return;
+      }
+
+      try {
+        delegate.store(record);
+      } catch (Exception e) {
+        // TODO: Bug 709371: track records that failed to apply.
+        Logger.error(LOG_TAG, "Caught error in store.", e);
+      }
+    }
+  }
+}
@@ -4,6 +4,8 @@
 
 package org.mozilla.gecko.sync.synchronizer;
 
+import org.mozilla.gecko.sync.repositories.domain.Record;
+
 public abstract class RecordConsumer implements Runnable {
 
   public abstract void stored();
@@ -17,6 +19,15 @@ public abstract class RecordConsumer implements Runnable {
 
   public abstract void doNotify();
 
+  /**
+   * Hand a fetched record to this consumer. By default records are added to
+   * the delegate's unbounded queue.
+   */
+  public void enqueue(Record record) {
+    delegate.getQueue().add(record);
+    doNotify();
+  }
+
   protected boolean stopImmediately = false;
   protected RecordsConsumerDelegate delegate;
 
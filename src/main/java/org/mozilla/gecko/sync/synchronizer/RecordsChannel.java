@@ -9,6 +9,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.FlowController;
 import org.mozilla.gecko.sync.ThreadPool;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
 import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
@@ -67,6 +68,12 @@ public class RecordsChannel implements
   RepositorySessionBeginDelegate {
 
   private static final String LOG_TAG = "RecordsChannel";
+
+  /**
+   * Pass as <code>queueCapacity</code> to buffer fetched records without limit.
+   */
+  public static final int UNBOUNDED = 0;
+
   public RepositorySession source;
   public RepositorySession sink;
   private RecordsChannelDelegate delegate;
@@ -78,11 +85,35 @@ public class RecordsChannel implements
   protected final AtomicInteger numStored = new AtomicInteger();
   protected final AtomicInteger numStoreFailed = new AtomicInteger();
 
+  /**
+   * If positive, the most fetched records to buffer before the fetch blocks
+   * waiting for the sink to catch up. Otherwise, the buffer is unbounded.
+   */
+  protected final int queueCapacity;
+
+  /**
+   * If set, limits how far the source's fetch can get ahead of the sink,
+   * counting both records buffered here and store work queued by the sink.
+   */
+  protected volatile FlowController flowController;
+
   public RecordsChannel(RepositorySession source, RepositorySession sink, RecordsChannelDelegate delegate) {
+    this(source, sink, delegate, UNBOUNDED);
+  }
+
+  /**
+   * @param queueCapacity
+   *          if positive, records are handed to the sink through a bounded
+   *          buffer of this size, and a source that gets ahead of the sink
+   *          blocks in <code>onFetchedRecord</code>. Use <code>UNBOUNDED</code>
+   *          for the original behaviour.
+   */
+  public RecordsChannel(RepositorySession source, RepositorySession sink, RecordsChannelDelegate delegate, int queueCapacity) {
     this.source    = source;
     this.sink      = sink;
     this.delegate  = delegate;
     this.timestamp = source.lastSyncTimestamp;
+    this.queueCapacity = queueCapacity;
   }
 
   /*
@@ -94,7 +125,7 @@ public class RecordsChannel implements
    * and wait for the sink to tell us that storing is done.
    * Then we notify our delegate of completion.
    */
-  private RecordConsumer consumer;
+  private volatile RecordConsumer consumer;
   private boolean waitingForQueueDone = false;
   private ConcurrentLinkedQueue<Record> toProcess = new ConcurrentLinkedQueue<Record>();
 
@@ -103,6 +134,67 @@ public class RecordsChannel implements
     return toProcess;
   }
 
+  /**
+   * Apply end-to-end flow control to the next flow. Must be called before
+   * {@link #flow()}.
+   *
+   * @param flowController a new controller, or null for none.
+   */
+  public void setFlowController(FlowController flowController) {
+    this.flowController = flowController;
+  }
+
+  public FlowController getFlowController() {
+    return flowController;
+  }
+
+  protected void startFlowControl() {
+    final FlowController controller = this.flowController;
+    if (controller == null) {
+      return;
+    }
+    final RepositorySession sink = this.sink;
+    controller.setBacklog(new FlowController.Backlog() {
+      @Override
+      public int getBacklog() {
+        return sink.getStoreBacklog();
+      }
+    });
+    source.setFlowController(controller);
+    sink.setFlowController(controller);
+  }
+
+  protected void stopFlowControl() {
+    final FlowController controller = this.flowController;
+    if (controller == null) {
+      return;
+    }
+    controller.close();
+    source.setFlowController(null);
+    sink.setFlowController(null);
+  }
+
+  protected RecordConsumer createConsumer() {
+    if (queueCapacity > 0) {
+      return new BoundedRecordConsumer(this, queueCapacity);
+    }
+    return new ConcurrentRecordConsumer(this);
+  }
+
+  /**
+   * Get the most fetched records buffered at once during the current or last
+   * flow, or -1 if the buffer is unbounded and not tracked.
+   *
+   * @return peak number of buffered records.
+   */
+  public int getPeakBufferedCount() {
+    final RecordConsumer current = this.consumer;
+    if (current instanceof BoundedRecordConsumer) {
+      return ((BoundedRecordConsumer) current).getPeakBuffered();
+    }
+    return -1;
+  }
+
   protected boolean isReady() {
     return source.isActive() && sink.isActive();
   }
@@ -161,8 +253,9 @@ public class RecordsChannel implements
     numStored.set(0);
     numStoreFailed.set(0);
     // Start a consumer thread.
-    this.consumer = new ConcurrentRecordConsumer(this);
+    this.consumer = createConsumer();
     ThreadPool.run(this.consumer);
+    startFlowControl();
     waitingForQueueDone = true;
     source.fetchSince(timestamp, this);
   }
@@ -184,6 +277,11 @@ public class RecordsChannel implements
     } catch (NoStoreDelegateException e) {
       Logger.error(LOG_TAG, "Got NoStoreDelegateException in RecordsChannel.store(). This should not occur. Aborting.", e);
       delegate.onFlowStoreFailed(this, e, record.guid);
+    } finally {
+      final FlowController controller = this.flowController;
+      if (controller != null) {
+        controller.handedOff();
+      }
     }
   }
 
@@ -191,15 +289,17 @@ public class RecordsChannel implements
   public void onFetchFailed(Exception ex, Record record) {
     Logger.warn(LOG_TAG, "onFetchFailed. Calling for immediate stop.", ex);
     numFetchFailed.incrementAndGet();
-    this.consumer.halt();
+    // Tell our delegate before halting: halting can complete the flow.
     delegate.onFlowFetchFailed(this, ex);
+    this.consumer.halt();
+    // Nothing more will be stored, so don't hold up the rest of the fetch.
+    stopFlowControl();
   }
 
   @Override
   public void onFetchedRecord(Record record) {
     numFetched.incrementAndGet();
-    this.toProcess.add(record);
-    this.consumer.doNotify();
+    this.consumer.enqueue(record);
   }
 
   @Override
@@ -229,6 +329,7 @@ public class RecordsChannel implements
   @Override
   public void consumerIsDone(boolean allRecordsQueued) {
     Logger.trace(LOG_TAG, "Consumer is done. Are we waiting for it? " + waitingForQueueDone);
+    stopFlowControl();
     if (waitingForQueueDone) {
       waitingForQueueDone = false;
       this.sink.storeDone();                 // Now we'll be waiting for onStoreCompleted.
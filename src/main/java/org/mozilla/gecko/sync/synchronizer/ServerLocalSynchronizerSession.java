@@ -5,6 +5,7 @@
 package org.mozilla.gecko.sync.synchronizer;
 
 import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.FlowController;
 import org.mozilla.gecko.sync.repositories.FetchFailedException;
 import org.mozilla.gecko.sync.repositories.StoreFailedException;
 
@@ -19,15 +20,36 @@ import org.mozilla.gecko.sync.repositories.StoreFailedException;
  * <li>Local fetch failures abort.</li>
  * <li>Remote store failures abort.</li>
  * </ul>
+ * <p>
+ * Remote fetches pause while too many fetched records are waiting to be
+ * stored locally, so that large collections are downloaded in bounded memory.
  */
 public class ServerLocalSynchronizerSession extends SynchronizerSession {
   protected static final String LOG_TAG = "ServLocSynchronizerSess";
 
+  public static final long FLOW_HIGH_WATER_RECORDS = 500;
+  public static final long FLOW_HIGH_WATER_BYTES   = 2 * 1024 * 1024;     // 2MB.
+
   public ServerLocalSynchronizerSession(Synchronizer synchronizer, SynchronizerSessionDelegate delegate) {
     super(synchronizer, delegate);
   }
 
+  @Override
+  protected FlowController createFlowController(boolean firstFlow) {
+    if (!firstFlow) {
+      // Local fetches are cheap, and remote stores are already bounded by
+      // the number of uploads in flight.
+      return null;
+    }
+    return new FlowController(FLOW_HIGH_WATER_RECORDS, FLOW_HIGH_WATER_BYTES);
+  }
+
   public void onFirstFlowCompleted(RecordsChannel recordsChannel, long fetchEnd, long storeEnd) {
+    final FlowController flowController = recordsChannel.getFlowController();
+    if (flowController != null) {
+      Logger.info(LOG_TAG, "Remote fetch flow control: " + flowController);
+    }
+
     // Fetch failures always abort.
     int numRemoteFetchFailed = recordsChannel.getFetchFailureCount();
     if (numRemoteFetchFailed > 0) {
@@ -9,6 +9,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.FlowController;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
@@ -163,7 +164,8 @@ implements RecordsChannelDelegate,
 
     // This is the *second* record channel to flow.
     // I, SynchronizerSession, am the delegate for the *second* flow.
-    channelBToA = new RecordsChannel(this.sessionB, this.sessionA, this);
+    channelBToA = new RecordsChannel(this.sessionB, this.sessionA, this, getRecordsChannelQueueCapacity());
+    channelBToA.setFlowController(createFlowController(false));
 
     // This is the delegate for the *first* flow.
     RecordsChannelDelegate channelAToBDelegate = new RecordsChannelDelegate() {
@@ -195,7 +197,8 @@ implements RecordsChannelDelegate,
     };
 
     // This is the *first* channel to flow.
-    channelAToB = new RecordsChannel(this.sessionA, this.sessionB, channelAToBDelegate);
+    channelAToB = new RecordsChannel(this.sessionA, this.sessionB, channelAToBDelegate, getRecordsChannelQueueCapacity());
+    channelAToB.setFlowController(createFlowController(true));
 
     Logger.trace(LOG_TAG, "Starting A to B flow. Channel is " + channelAToB);
     try {
@@ -205,6 +208,27 @@ implements RecordsChannelDelegate,
     }
   }
 
+  /**
+   * Override this to bound the number of fetched records each flow buffers
+   * before the fetch waits for the store to catch up.
+   *
+   * @return a positive capacity, or <code>RecordsChannel.UNBOUNDED</code>.
+   */
+  protected int getRecordsChannelQueueCapacity() {
+    return RecordsChannel.UNBOUNDED;
+  }
+
+  /**
+   * Override this to limit, end to end, how far the fetch in a flow can get
+   * ahead of the store.
+   *
+   * @param firstFlow true for the flow from A to B.
+   * @return a new controller, or null for no limit.
+   */
+  protected FlowController createFlowController(boolean firstFlow) {
+    return null;
+  }
+
   /**
    * Called after the first flow completes.
    * <p>
@@ -22,6 +22,7 @@ import org.mozilla.gecko.sync.net.AuthHeaderProvider;
 import org.mozilla.gecko.sync.net.BaseResource;
 import org.mozilla.gecko.sync.net.BaseResourceDelegate;
 import org.mozilla.gecko.sync.net.BrowserIDAuthHeaderProvider;
+import org.mozilla.gecko.sync.net.HttpTiming;
 import org.mozilla.gecko.sync.net.SyncResponse;
 import org.mozilla.gecko.tokenserver.TokenServerException.TokenServerConditionsRequiredException;
 import org.mozilla.gecko.tokenserver.TokenServerException.TokenServerInvalidCredentialsException;
@@ -317,6 +318,7 @@ public class TokenServerClient {
                                              final String clientState,
                                              final TokenServerClientDelegate delegate) {
     final BaseResource resource = new BaseResource(this.uri);
+    resource.setEndpoint(HttpTiming.Endpoint.TOKEN);
     resource.delegate = new TokenFetchResourceDelegate(this, resource, delegate,
                                                        assertion, clientState,
                                                        conditionsAccepted);
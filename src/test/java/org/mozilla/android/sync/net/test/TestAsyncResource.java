@@ -0,0 +1,170 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.net.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
+import org.mozilla.android.sync.test.helpers.MockResourceDelegate;
+import org.mozilla.android.sync.test.helpers.MockServer;
+import org.mozilla.gecko.sync.net.BaseResource;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+import ch.boye.httpclientandroidlib.HttpResponse;
+
+public class TestAsyncResource {
+  private static final int    TEST_PORT   = HTTPServerTestHelper.getTestPort();
+  private static final String TEST_SERVER = "http://localhost:" + TEST_PORT;
+
+  private HTTPServerTestHelper data = new HTTPServerTestHelper();
+
+  protected ExecutorService requestExecutor;
+  protected ExecutorService callbackExecutor;
+  protected Thread callbackThread;
+
+  @Before
+  public void setUp() throws Exception {
+    BaseResource.rewriteLocalhost = false;
+    requestExecutor = Executors.newFixedThreadPool(2);
+    callbackExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        callbackThread = new Thread(r, "callbacks");
+        return callbackThread;
+      }
+    });
+  }
+
+  @After
+  public void tearDown() {
+    requestExecutor.shutdownNow();
+    callbackExecutor.shutdownNow();
+    data.stopHTTPServer();
+  }
+
+  /**
+   * Records which threads callbacks ran on.
+   */
+  public static class LatchedDelegate extends MockResourceDelegate {
+    public final CountDownLatch done;
+    public final Set<Thread> callbackThreads = Collections.synchronizedSet(new HashSet<Thread>());
+    public final AtomicInteger responses = new AtomicInteger(0);
+    public final AtomicInteger errors = new AtomicInteger(0);
+
+    public LatchedDelegate(int count) {
+      done = new CountDownLatch(count);
+    }
+
+    @Override
+    public void handleHttpResponse(HttpResponse response) {
+      callbackThreads.add(Thread.currentThread());
+      assertEquals(200, response.getStatusLine().getStatusCode());
+      BaseResource.consumeEntity(response);
+      responses.incrementAndGet();
+      done.countDown();
+    }
+
+    @Override
+    public void handleHttpIOException(IOException e) {
+      callbackThreads.add(Thread.currentThread());
+      errors.incrementAndGet();
+      done.countDown();
+    }
+  }
+
+  /**
+   * Counts requests being handled at once.
+   */
+  public static class ConcurrencyCountingServer extends MockServer {
+    public final AtomicInteger inFlight = new AtomicInteger(0);
+    public final AtomicInteger peak = new AtomicInteger(0);
+
+    @Override
+    public void handle(Request request, Response response) {
+      final int now = inFlight.incrementAndGet();
+      synchronized (peak) {
+        if (now > peak.get()) {
+          peak.set(now);
+        }
+      }
+      try {
+        Thread.sleep(20);
+      } catch (InterruptedException e) {
+        // Respond anyway.
+      }
+      inFlight.decrementAndGet();
+      super.handle(request, response);
+    }
+  }
+
+  @Test
+  public void testManyRequestsOnFewThreads() throws Exception {
+    final ConcurrencyCountingServer server = new ConcurrencyCountingServer();
+    data.startHTTPServer(server);
+
+    final int count = 20;
+    final LatchedDelegate delegate = new LatchedDelegate(count);
+    final Thread testThread = Thread.currentThread();
+    for (int i = 0; i < count; i++) {
+      final BaseResource r = new BaseResource(TEST_SERVER + "/foo/" + i);
+      r.delegate = delegate;
+      r.setAsynchronous(requestExecutor, callbackExecutor);
+      assertTrue(r.isAsynchronous());
+      r.get();
+    }
+
+    assertTrue(delegate.done.await(30, TimeUnit.SECONDS));
+    assertEquals(count, delegate.responses.get());
+    assertEquals(1, delegate.callbackThreads.size());
+    assertTrue(delegate.callbackThreads.contains(callbackThread));
+    assertFalse(delegate.callbackThreads.contains(testThread));
+    // Two request threads, so never more than two requests at the server.
+    assertTrue(server.peak.get() <= 2);
+  }
+
+  @Test
+  public void testErrorsAreDeliveredOnCallbackExecutor() throws Exception {
+    // Nothing is listening.
+    final LatchedDelegate delegate = new LatchedDelegate(1);
+    final BaseResource r = new BaseResource(TEST_SERVER + "/foo");
+    r.delegate = delegate;
+    r.setAsynchronous(requestExecutor, callbackExecutor);
+    r.get();
+
+    assertTrue(delegate.done.await(30, TimeUnit.SECONDS));
+    assertEquals(1, delegate.errors.get());
+    assertTrue(delegate.callbackThreads.contains(callbackThread));
+  }
+
+  @Test
+  public void testGetBlockingWaitsForCallback() throws URISyntaxException {
+    data.startHTTPServer();
+    final LatchedDelegate delegate = new LatchedDelegate(1);
+    final BaseResource r = new BaseResource(TEST_SERVER + "/foo");
+    r.delegate = delegate;
+    r.setAsynchronous(requestExecutor, callbackExecutor);
+    r.getBlocking();
+
+    assertEquals(1, delegate.responses.get());
+    assertTrue(delegate.callbackThreads.contains(callbackThread));
+  }
+}
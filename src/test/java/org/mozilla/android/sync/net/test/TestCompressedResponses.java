@@ -0,0 +1,219 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.net.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
+import org.mozilla.android.sync.test.helpers.MockServer;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+import org.mozilla.gecko.sync.net.AuthHeaderProvider;
+import org.mozilla.gecko.sync.net.BaseResource;
+import org.mozilla.gecko.sync.net.ResponseByteCounter;
+import org.mozilla.gecko.sync.net.SyncStorageCollectionRequest;
+import org.mozilla.gecko.sync.net.SyncStorageResponse;
+import org.mozilla.gecko.sync.net.WBOCollectionRequestDelegate;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+public class TestCompressedResponses {
+  private static final int    TEST_PORT   = HTTPServerTestHelper.getTestPort();
+  private static final String TEST_SERVER = "http://localhost:" + TEST_PORT;
+  private static final String STORAGE_URL = TEST_SERVER + "/1.1/c6o7dvmr2c4ud2fyv6woz2u4zi22bcyd/storage/history?full=1";
+
+  private static final int RECORD_COUNT = 500;
+
+  private HTTPServerTestHelper data = new HTTPServerTestHelper();
+
+  @SuppressWarnings("static-method")
+  @Before
+  public void setUp() {
+    BaseResource.rewriteLocalhost = false;
+  }
+
+  @After
+  public void tearDown() {
+    data.stopHTTPServer();
+  }
+
+  protected static String records(int count) {
+    final StringBuilder out = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      out.append("{\"id\": \"record").append(i).append("\", \"modified\": 1326254123.65, ");
+      out.append("\"payload\": \"{\\\"ciphertext\\\":\\\"AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA\\\",");
+      out.append("\\\"IV\\\":\\\"v/0BFgicqYQsd70T39rraA==\\\",\\\"hmac\\\":\\\"59605ed696f6e0e6\\\"}\"}\n");
+    }
+    return out.toString();
+  }
+
+  /**
+   * Serves records, compressed with the requested encoding if the request
+   * accepts it.
+   */
+  public static class CompressingMockServer extends MockServer {
+    public final String encoding;
+    public final byte[] records;
+    public String acceptEncoding;
+    // Some servers send a bare deflate stream rather than a zlib stream.
+    public boolean rawDeflate = false;
+
+    public CompressingMockServer(String encoding, String records) throws IOException {
+      this.encoding = encoding;
+      this.records = records.getBytes("UTF-8");
+    }
+
+    protected byte[] encode() throws IOException {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final OutputStream out;
+      if ("gzip".equals(encoding)) {
+        out = new GZIPOutputStream(bytes);
+      } else {
+        out = new DeflaterOutputStream(bytes, new Deflater(Deflater.DEFAULT_COMPRESSION, rawDeflate));
+      }
+      out.write(records);
+      out.close();
+      return bytes.toByteArray();
+    }
+
+    @Override
+    public void handle(Request request, Response response) {
+      acceptEncoding = request.getValue("Accept-Encoding");
+      try {
+        final boolean compress = encoding != null && acceptEncoding != null && acceptEncoding.contains(encoding);
+        final byte[] out = compress ? encode() : records;
+        if (compress) {
+          response.set("Content-Encoding", encoding);
+        }
+        response.setContentLength(out.length);
+        final PrintStream bodyStream = this.handleBasicHeaders(request, response, 200, "application/newlines");
+        bodyStream.write(out);
+        bodyStream.close();
+      } catch (IOException e) {
+        fail("Couldn't respond.");
+      }
+    }
+  }
+
+  public static class RecordingDelegate extends WBOCollectionRequestDelegate {
+    public final ArrayList<CryptoRecord> records = new ArrayList<CryptoRecord>();
+    public SyncStorageResponse success;
+
+    @Override
+    public KeyBundle keyBundle() {
+      return null;
+    }
+
+    @Override
+    public void handleWBO(CryptoRecord record) {
+      records.add(record);
+    }
+
+    @Override
+    public AuthHeaderProvider getAuthHeaderProvider() {
+      return null;
+    }
+
+    @Override
+    public String ifUnmodifiedSince() {
+      return null;
+    }
+
+    @Override
+    public void handleRequestSuccess(SyncStorageResponse response) {
+      success = response;
+    }
+
+    @Override
+    public void handleRequestFailure(SyncStorageResponse response) {
+      BaseResource.consumeEntity(response);
+      fail("Should not be called.");
+    }
+
+    @Override
+    public void handleRequestError(Exception ex) {
+      fail("Should not be called: " + ex);
+    }
+  }
+
+  protected ResponseByteCounter fetch(CompressingMockServer server, boolean acceptCompressed) throws Exception {
+    data.startHTTPServer(server);
+    final RecordingDelegate delegate = new RecordingDelegate();
+    final SyncStorageCollectionRequest request = new SyncStorageCollectionRequest(new URI(STORAGE_URL));
+    request.delegate = delegate;
+    request.setAcceptCompressedResponses(acceptCompressed);
+    request.get();
+
+    assertTrue(delegate.success != null);
+    assertEquals(RECORD_COUNT, delegate.records.size());
+    assertEquals("record0", delegate.records.get(0).guid);
+    assertEquals("record" + (RECORD_COUNT - 1), delegate.records.get(RECORD_COUNT - 1).guid);
+    return request.getResponseByteCounter();
+  }
+
+  @Test
+  public void testGzip() throws Exception {
+    final CompressingMockServer server = new CompressingMockServer("gzip", records(RECORD_COUNT));
+    final ResponseByteCounter counter = fetch(server, true);
+
+    assertEquals(ResponseByteCounter.ACCEPT_ENCODING, server.acceptEncoding);
+    assertEquals("gzip", counter.getEncoding());
+    assertEquals(server.records.length, counter.getDecodedBytes());
+    assertEquals(server.encode().length, counter.getWireBytes());
+    assertTrue(counter.getWireBytes() < counter.getDecodedBytes());
+  }
+
+  @Test
+  public void testDeflate() throws Exception {
+    final CompressingMockServer server = new CompressingMockServer("deflate", records(RECORD_COUNT));
+    final ResponseByteCounter counter = fetch(server, true);
+
+    assertEquals("deflate", counter.getEncoding());
+    assertEquals(server.records.length, counter.getDecodedBytes());
+    assertTrue(counter.getWireBytes() < counter.getDecodedBytes());
+  }
+
+  @Test
+  public void testRawDeflate() throws Exception {
+    final CompressingMockServer server = new CompressingMockServer("deflate", records(RECORD_COUNT));
+    server.rawDeflate = true;
+    final ResponseByteCounter counter = fetch(server, true);
+
+    assertEquals(server.records.length, counter.getDecodedBytes());
+    assertEquals(server.encode().length, counter.getWireBytes());
+  }
+
+  @Test
+  public void testUnencodedResponse() throws Exception {
+    final CompressingMockServer server = new CompressingMockServer(null, records(RECORD_COUNT));
+    final ResponseByteCounter counter = fetch(server, true);
+
+    assertNull(counter.getEncoding());
+    assertEquals(server.records.length, counter.getDecodedBytes());
+    assertEquals(server.records.length, counter.getWireBytes());
+  }
+
+  @Test
+  public void testNotRequested() throws Exception {
+    final CompressingMockServer server = new CompressingMockServer("gzip", records(RECORD_COUNT));
+    assertNull(fetch(server, false));
+    assertNull(server.acceptEncoding);
+  }
+}
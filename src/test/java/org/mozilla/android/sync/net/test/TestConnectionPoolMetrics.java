@@ -0,0 +1,158 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.net.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.android.sync.net.test.TestHttpClientPool.CountingDelegate;
+import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
+import org.mozilla.gecko.sync.net.AdaptiveConnectionPoolPolicy;
+import org.mozilla.gecko.sync.net.BaseResource;
+import org.mozilla.gecko.sync.net.ConnectionPoolMetrics;
+import org.mozilla.gecko.sync.net.ConnectionPoolMetrics.RouteMetrics;
+import org.mozilla.gecko.sync.net.ConnectionPoolObserver;
+import org.mozilla.gecko.sync.net.InstrumentedClientConnManager;
+
+import ch.boye.httpclientandroidlib.HttpHost;
+import ch.boye.httpclientandroidlib.conn.ManagedClientConnection;
+import ch.boye.httpclientandroidlib.conn.routing.HttpRoute;
+import ch.boye.httpclientandroidlib.conn.scheme.PlainSocketFactory;
+import ch.boye.httpclientandroidlib.conn.scheme.Scheme;
+import ch.boye.httpclientandroidlib.conn.scheme.SchemeRegistry;
+
+public class TestConnectionPoolMetrics {
+  private static final int    TEST_PORT   = HTTPServerTestHelper.getTestPort();
+  private static final String TEST_SERVER = "http://localhost:" + TEST_PORT;
+
+  private HTTPServerTestHelper data = new HTTPServerTestHelper();
+
+  @SuppressWarnings("static-method")
+  @Before
+  public void setUp() {
+    BaseResource.rewriteLocalhost = false;
+    BaseResource.shutdownConnectionManager();
+  }
+
+  @After
+  public void tearDown() {
+    data.stopHTTPServer();
+    BaseResource.setConnectionPoolObserver(null);
+  }
+
+  public static class CountingObserver implements ConnectionPoolObserver {
+    public int leases = 0;
+    public int releases = 0;
+
+    @Override
+    public synchronized void observeConnectionLease(HttpRoute route, boolean reused, boolean waited, long waitMillis) {
+      leases += 1;
+    }
+
+    @Override
+    public synchronized void observeConnectionRelease(HttpRoute route, boolean reusable) {
+      releases += 1;
+    }
+
+    @Override
+    public void observeIdleConnectionsClosed(int closed, long idleTimeoutMillis) {
+    }
+
+    @Override
+    public void observeRouteLimit(HttpRoute route, int maxConnections) {
+    }
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testPolicy() {
+    final AdaptiveConnectionPoolPolicy policy = new AdaptiveConnectionPoolPolicy(2, 8, 1000, 8000);
+    assertEquals(4, policy.limitAfterWait(2));
+    assertEquals(8, policy.limitAfterWait(6));
+    assertEquals(6, policy.limitAfterReap(6, 6));
+    assertEquals(5, policy.limitAfterReap(6, 1));
+    assertEquals(5, policy.limitAfterReap(6, 5));
+    assertEquals(2, policy.limitAfterReap(2, 0));
+    assertEquals(8000, policy.idleTimeoutAfterReap(1000, true));
+    assertEquals(4000, policy.idleTimeoutAfterReap(8000, false));
+    assertEquals(1000, policy.idleTimeoutAfterReap(1500, false));
+  }
+
+  @Test
+  public void testSequentialRequestsReuseConnection() throws Exception {
+    data.startHTTPServer();
+    final CountingObserver observer = new CountingObserver();
+    BaseResource.setConnectionPoolObserver(observer);
+
+    final CountingDelegate delegate = new CountingDelegate();
+    final int count = 5;
+    for (int i = 0; i < count; i++) {
+      final BaseResource r = new BaseResource(TEST_SERVER + "/foo/bar/" + i);
+      r.delegate = delegate;
+      r.get();
+    }
+    assertEquals(count, delegate.responses);
+    assertEquals(count, observer.leases);
+    assertEquals(count, observer.releases);
+
+    final ConnectionPoolMetrics metrics = BaseResource.getConnectionPoolMetrics();
+    assertNotNull(metrics);
+    assertEquals(1, metrics.getRouteMetrics().size());
+    final RouteMetrics route = metrics.getRouteMetrics().values().iterator().next();
+    assertEquals(count, route.leases);
+    assertEquals(count - 1, route.reused);
+    assertEquals(0, route.waits);
+    assertEquals(0, route.inFlight);
+    assertEquals(1, route.peakInFlight);
+    assertTrue(route.getReuseRatio() > 0.5);
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testLimitsAdaptToConcurrency() throws Exception {
+    final SchemeRegistry schemeRegistry = new SchemeRegistry();
+    schemeRegistry.register(new Scheme("http", 80, new PlainSocketFactory()));
+    final AdaptiveConnectionPoolPolicy policy = new AdaptiveConnectionPoolPolicy(1, 4, 1000, 8000);
+    final InstrumentedClientConnManager cm = new InstrumentedClientConnManager(schemeRegistry, policy);
+    cm.setDefaultMaxPerRoute(1);
+    final HttpRoute route = new HttpRoute(new HttpHost("localhost", TEST_PORT));
+    try {
+      final ManagedClientConnection first = cm.requestConnection(route, null).getConnection(1, TimeUnit.SECONDS);
+      assertEquals(1, cm.getMaxForRoute(route));
+
+      // The route is full, so it grows rather than making us wait.
+      final ManagedClientConnection second = cm.requestConnection(route, null).getConnection(1, TimeUnit.SECONDS);
+      assertEquals(2, cm.getMaxForRoute(route));
+      assertFalse(second.isOpen());
+
+      cm.releaseConnection(first, -1, TimeUnit.MILLISECONDS);
+      cm.releaseConnection(second, -1, TimeUnit.MILLISECONDS);
+      final RouteMetrics metrics = cm.getMetrics().getRouteMetrics(route);
+      assertEquals(2, metrics.leases);
+      assertEquals(0, metrics.reused);
+      assertEquals(1, metrics.waits);
+      assertEquals(0, metrics.inFlight);
+      assertEquals(2, metrics.peakInFlight);
+
+      // Both connections were in use at once since the last reap.
+      cm.reap();
+      assertEquals(2, cm.getMaxForRoute(route));
+      assertEquals(8000, cm.getIdleTimeoutMillis());
+
+      // Neither was since.
+      cm.reap();
+      assertEquals(1, cm.getMaxForRoute(route));
+      assertEquals(4000, cm.getIdleTimeoutMillis());
+    } finally {
+      cm.shutdown();
+    }
+  }
+}
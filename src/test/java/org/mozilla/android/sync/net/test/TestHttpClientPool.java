@@ -0,0 +1,162 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.net.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URISyntaxException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
+import org.mozilla.android.sync.test.helpers.MockResourceDelegate;
+import org.mozilla.gecko.sync.SyncConstants;
+import org.mozilla.gecko.sync.net.BaseResource;
+import org.mozilla.gecko.sync.net.HttpClientPool;
+
+import ch.boye.httpclientandroidlib.HttpResponse;
+import ch.boye.httpclientandroidlib.conn.ClientConnectionManager;
+import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
+import ch.boye.httpclientandroidlib.params.CoreProtocolPNames;
+import ch.boye.httpclientandroidlib.params.HttpConnectionParams;
+import ch.boye.httpclientandroidlib.params.HttpProtocolParams;
+
+public class TestHttpClientPool {
+  private static final int    TEST_PORT   = HTTPServerTestHelper.getTestPort();
+  private static final String TEST_SERVER = "http://localhost:" + TEST_PORT;
+
+  private HTTPServerTestHelper data = new HTTPServerTestHelper();
+
+  @SuppressWarnings("static-method")
+  @Before
+  public void setUp() {
+    BaseResource.rewriteLocalhost = false;
+  }
+
+  @After
+  public void tearDown() {
+    data.stopHTTPServer();
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testReuseByConfiguration() throws Exception {
+    final ClientConnectionManager cm = BaseResource.getConnectionManager();
+    final HttpClientPool pool = new HttpClientPool(2);
+    final HttpClientPool.Configuration short1 = new HttpClientPool.Configuration(1000, 2000, "utf-8");
+    final HttpClientPool.Configuration short2 = new HttpClientPool.Configuration(1000, 2000, "utf-8");
+    final HttpClientPool.Configuration other = new HttpClientPool.Configuration(1000, 5000, "utf-8");
+
+    final DefaultHttpClient client = pool.acquire(cm, short1);
+    assertEquals(1000, HttpConnectionParams.getConnectionTimeout(client.getParams()));
+    assertEquals(2000, HttpConnectionParams.getSoTimeout(client.getParams()));
+    assertEquals("utf-8", HttpProtocolParams.getContentCharset(client.getParams()));
+    assertFalse(HttpConnectionParams.isStaleCheckingEnabled(client.getParams()));
+    pool.release(client, short1);
+
+    assertSame(client, pool.acquire(cm, short2));
+    final DefaultHttpClient otherClient = pool.acquire(cm, other);
+    assertNotSame(client, otherClient);
+    assertEquals(5000, HttpConnectionParams.getSoTimeout(otherClient.getParams()));
+    assertEquals(2, pool.getCreatedCount());
+    assertEquals(1, pool.getReusedCount());
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testReleaseRestoresParameters() throws Exception {
+    final ClientConnectionManager cm = BaseResource.getConnectionManager();
+    final HttpClientPool pool = new HttpClientPool(2);
+    final HttpClientPool.Configuration configuration = new HttpClientPool.Configuration(1000, 2000, "utf-8");
+
+    final DefaultHttpClient client = pool.acquire(cm, configuration);
+    final Object defaultUserAgent = client.getParams().getParameter(CoreProtocolPNames.USER_AGENT);
+    client.getParams().setParameter(CoreProtocolPNames.USER_AGENT, SyncConstants.SYNC_USER_AGENT);
+    HttpConnectionParams.setSoTimeout(client.getParams(), 1);
+    pool.release(client, configuration);
+
+    final DefaultHttpClient reused = pool.acquire(cm, configuration);
+    assertSame(client, reused);
+    assertEquals(defaultUserAgent, reused.getParams().getParameter(CoreProtocolPNames.USER_AGENT));
+    assertEquals(2000, HttpConnectionParams.getSoTimeout(reused.getParams()));
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testIdleLimitAndClear() throws Exception {
+    final ClientConnectionManager cm = BaseResource.getConnectionManager();
+    final HttpClientPool pool = new HttpClientPool(1);
+    final HttpClientPool.Configuration configuration = new HttpClientPool.Configuration(1000, 2000, "utf-8");
+
+    final DefaultHttpClient first = pool.acquire(cm, configuration);
+    final DefaultHttpClient second = pool.acquire(cm, configuration);
+    pool.release(first, configuration);
+    pool.release(second, configuration);
+    assertEquals(1, pool.getIdleCount());
+
+    final DefaultHttpClient leased = pool.acquire(cm, configuration);
+    pool.clear();
+    assertEquals(0, pool.getIdleCount());
+
+    // Clients acquired before a clear aren't taken back.
+    pool.release(leased, configuration);
+    assertEquals(0, pool.getIdleCount());
+  }
+
+  /**
+   * Issues requests synchronously on the calling thread, counting responses.
+   */
+  public static class CountingDelegate extends MockResourceDelegate {
+    public int responses = 0;
+
+    @Override
+    public void handleHttpResponse(HttpResponse response) {
+      assertEquals(200, response.getStatusLine().getStatusCode());
+      BaseResource.consumeEntity(response);
+      responses += 1;
+    }
+  }
+
+  public static class UnpooledResource extends BaseResource {
+    public UnpooledResource(String uri) throws URISyntaxException {
+      super(uri);
+    }
+
+    @Override
+    protected HttpClientPool getClientPool() {
+      return null;
+    }
+  }
+
+  protected static void makeRequests(boolean pooled, int count) throws URISyntaxException {
+    final CountingDelegate delegate = new CountingDelegate();
+    for (int i = 0; i < count; i++) {
+      final String uri = TEST_SERVER + "/foo/bar/" + i;
+      final BaseResource r = pooled ? new BaseResource(uri) : new UnpooledResource(uri);
+      r.delegate = delegate;
+      r.get();
+    }
+    assertEquals(count, delegate.responses);
+  }
+
+  @Test
+  public void testSequentialRequestsShareOneClient() throws Exception {
+    data.startHTTPServer();
+    final HttpClientPool pool = BaseResource.getSharedClientPool();
+
+    final long createdBefore = pool.getCreatedCount();
+    makeRequests(true, 20);
+    assertTrue(pool.getCreatedCount() - createdBefore <= 1);
+
+    // Unpooled requests work, and leave the pool alone.
+    final long createdAfter = pool.getCreatedCount();
+    makeRequests(false, 5);
+    assertEquals(createdAfter, pool.getCreatedCount());
+  }
+}
@@ -0,0 +1,151 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.android.sync.net.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mozilla.android.sync.net.test.TestHttpClientPool.CountingDelegate;
+import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
+import org.mozilla.android.sync.test.helpers.MockResourceDelegate;
+import org.mozilla.gecko.sync.net.BaseResource;
+import org.mozilla.gecko.sync.net.HttpTiming;
+import org.mozilla.gecko.sync.net.HttpTimingHistograms;
+import org.mozilla.gecko.sync.net.HttpTimingHistograms.EndpointHistograms;
+import org.mozilla.gecko.sync.net.HttpTimingObserver;
+import org.mozilla.gecko.sync.net.LatencyHistogram;
+
+public class TestHttpTiming {
+  private static final int    TEST_PORT   = HTTPServerTestHelper.getTestPort();
+  private static final String TEST_SERVER = "http://localhost:" + TEST_PORT;
+
+  private HTTPServerTestHelper data = new HTTPServerTestHelper();
+  private HttpTimingHistograms histograms;
+
+  @Before
+  public void setUp() {
+    BaseResource.rewriteLocalhost = false;
+    BaseResource.shutdownConnectionManager();
+    histograms = new HttpTimingHistograms();
+    BaseResource.addHttpTimingObserver(histograms);
+  }
+
+  @After
+  public void tearDown() {
+    BaseResource.removeHttpTimingObserver(histograms);
+    data.stopHTTPServer();
+  }
+
+  public static class RecordingObserver implements HttpTimingObserver {
+    public final ArrayList<HttpTiming> timings = new ArrayList<HttpTiming>();
+
+    @Override
+    public synchronized void observeHttpTiming(HttpTiming timing) {
+      timings.add(timing);
+    }
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testLatencyHistogram() {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-1);
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getPercentileMillis(0.5));
+
+    histogram.record(0);
+    histogram.record(1);
+    histogram.record(3);
+    histogram.record(100);
+    histogram.record(200000);
+    assertEquals(5, histogram.getCount());
+    assertEquals(200000, histogram.getMaxMillis());
+    assertEquals(40020, histogram.getMeanMillis());
+
+    final long[] counts = histogram.getCounts();
+    assertEquals(1, counts[0]);
+    assertEquals(1, counts[1]);
+    assertEquals(1, counts[2]);
+    assertEquals(1, counts[7]);     // 64 to 127ms.
+    assertEquals(1, counts[LatencyHistogram.BUCKETS - 1]);
+
+    assertEquals(3, histogram.getPercentileMillis(0.5));
+    assertEquals(127, histogram.getPercentileMillis(0.8));
+    assertEquals(200000, histogram.getPercentileMillis(1.0));
+  }
+
+  @Test
+  public void testRequestsAreTimedPerEndpoint() throws Exception {
+    data.startHTTPServer();
+    final RecordingObserver observer = new RecordingObserver();
+    BaseResource.addHttpTimingObserver(observer);
+    BaseResource.addHttpTimingObserver(observer);
+    try {
+      final CountingDelegate delegate = new CountingDelegate();
+      for (int i = 0; i < 3; i++) {
+        final BaseResource r = new BaseResource(TEST_SERVER + "/foo/bar/" + i);
+        r.setEndpoint(i == 0 ? HttpTiming.Endpoint.TOKEN : HttpTiming.Endpoint.STORAGE);
+        r.delegate = delegate;
+        r.get();
+      }
+      assertEquals(3, delegate.responses);
+    } finally {
+      BaseResource.removeHttpTimingObserver(observer);
+    }
+
+    // Each observer hears about each request once.
+    assertEquals(3, observer.timings.size());
+    final HttpTiming first = observer.timings.get(0);
+    assertEquals("GET", first.method);
+    assertEquals(200, first.getStatusCode());
+    assertEquals("Hello World\n".length(), first.getResponseBytes());
+    assertTrue(first.getDNSMillis() >= 0);
+    assertTrue(first.getConnectMillis() >= 0);
+    assertEquals(-1, first.getTLSMillis());
+    assertTrue(first.getFirstByteMillis() >= 0);
+    assertTrue(first.getTotalMillis() >= first.getFirstByteMillis());
+
+    // Later requests reuse the first connection.
+    assertEquals(-1, observer.timings.get(2).getConnectMillis());
+
+    final EndpointHistograms token = histograms.getHistograms(HttpTiming.Endpoint.TOKEN);
+    assertEquals(1, token.getRequests());
+    assertEquals(1, token.connect.getCount());
+    assertEquals(1, token.total.getCount());
+
+    final EndpointHistograms storage = histograms.getHistograms(HttpTiming.Endpoint.STORAGE);
+    assertEquals(2, storage.getRequests());
+    assertEquals(0, storage.getFailures());
+    assertEquals(0, storage.connect.getCount());
+    assertEquals(2, storage.firstByte.getCount());
+    assertEquals(2 * "Hello World\n".length(), storage.getResponseBytes());
+    assertEquals(0, histograms.getHistograms(HttpTiming.Endpoint.OTHER).getRequests());
+  }
+
+  @Test
+  public void testFailuresAreTimed() throws Exception {
+    // No server is listening.
+    final BaseResource r = new BaseResource(TEST_SERVER + "/foo/bar");
+    r.setEndpoint(HttpTiming.Endpoint.FXA);
+    r.delegate = new MockResourceDelegate() {
+      @Override
+      public void handleHttpIOException(java.io.IOException e) {
+        // Expected.
+      }
+    };
+    r.get();
+
+    // The request is retried once.
+    final EndpointHistograms fxa = histograms.getHistograms(HttpTiming.Endpoint.FXA);
+    assertEquals(2, fxa.getRequests());
+    assertEquals(2, fxa.getFailures());
+    assertEquals(0, fxa.firstByte.getCount());
+    assertEquals(2, fxa.total.getCount());
+  }
+}
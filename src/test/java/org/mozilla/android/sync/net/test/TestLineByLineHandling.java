@@ -108,4 +108,38 @@ public class TestLineByLineHandling {
     r.get();
     // Server is stopped in the callback.
   }
+
+  @Test
+  public void testBytesReadCountsBytes() throws Exception {
+    BaseResource.rewriteLocalhost = false;
+
+    // Two-, three- and four-byte characters.
+    final String line = "caf\u00e9 \u2603 \ud83d\ude00";
+    final byte[] bodyBytes = (line + "\n" + line + "\n").getBytes("UTF-8");
+    data.startHTTPServer(new MockServer() {
+      @Override
+      public void handle(Request request, Response response) {
+        try {
+          PrintStream bodyStream = this.handleBasicHeaders(request, response, 200, "application/newlines");
+          bodyStream.write(bodyBytes);
+          bodyStream.close();
+        } catch (IOException e) {
+          fail("Couldn't write body.");
+        }
+      }
+    });
+    try {
+      SyncStorageCollectionRequest r = new SyncStorageCollectionRequest(new URI(STORAGE_URL));
+      r.delegate = new BaseLineByLineDelegate() {
+        @Override
+        public void handleRequestSuccess(SyncStorageResponse res) {
+          assertEquals(2, lines.size());
+        }
+      };
+      r.get();
+      assertEquals(bodyBytes.length, r.getBytesRead());
+    } finally {
+      data.stopHTTPServer();
+    }
+  }
 }
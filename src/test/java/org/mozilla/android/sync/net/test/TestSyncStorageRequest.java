@@ -4,6 +4,9 @@
 package org.mozilla.android.sync.net.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -16,6 +19,9 @@ import org.junit.Test;
 import org.mozilla.android.sync.test.helpers.BaseTestStorageRequestDelegate;
 import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
 import org.mozilla.android.sync.test.helpers.MockServer;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.JSONRecordFetcher;
+import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.net.AuthHeaderProvider;
 import org.mozilla.gecko.sync.net.BaseResource;
 import org.mozilla.gecko.sync.net.BasicAuthHeaderProvider;
@@ -262,4 +268,103 @@ public class TestSyncStorageRequest {
     r.delete();
     // Server is stopped in the callback.
   }
+
+  /**
+   * Responds 304 to conditional requests made at or after
+   * <code>lastModified</code>.
+   */
+  public static class ConditionalMockServer extends MockServer {
+    public final long lastModified;
+    public String ifModifiedSince;
+    public int requests = 0;
+
+    public ConditionalMockServer(long lastModified) {
+      super(200, "{\"meta\": 1234567890.12}");
+      this.lastModified = lastModified;
+    }
+
+    @Override
+    public void handle(Request request, Response response) {
+      requests += 1;
+      ifModifiedSince = request.getValue("X-If-Modified-Since");
+      if (ifModifiedSince != null && Utils.decimalSecondsToMilliseconds(ifModifiedSince) >= lastModified) {
+        try {
+          this.handleBasicHeaders(request, response, 304, "application/json", lastModified + 1000).close();
+        } catch (IOException e) {
+          fail("Couldn't respond.");
+        }
+        return;
+      }
+      super.handle(request, response);
+    }
+  }
+
+  public class NotModifiedDelegate extends BaseTestStorageRequestDelegate {
+    public SyncStorageResponse response;
+
+    public NotModifiedDelegate(AuthHeaderProvider authHeaderProvider) {
+      super(authHeaderProvider);
+    }
+
+    @Override
+    public void handleRequestSuccess(SyncStorageResponse res) {
+      response = res;
+      BaseResource.consumeEntity(res);
+    }
+  }
+
+  @Test
+  public void testIfModifiedSince() throws URISyntaxException {
+    BaseResource.rewriteLocalhost = false;
+    final long lastModified = 1400000000000L;
+    final ConditionalMockServer server = new ConditionalMockServer(lastModified);
+    data.startHTTPServer(server);
+    try {
+      final NotModifiedDelegate delegate = new NotModifiedDelegate(authHeaderProvider);
+      SyncStorageRecordRequest r = new SyncStorageRecordRequest(new URI(LOCAL_META_URL));
+      r.delegate = delegate;
+      r.setIfModifiedSince(lastModified);
+      r.get();
+      assertEquals(Utils.millisecondsToDecimalSecondsString(lastModified), server.ifModifiedSince);
+      assertTrue(delegate.response.wasNotModified());
+
+      final NotModifiedDelegate unconditional = new NotModifiedDelegate(authHeaderProvider);
+      r = new SyncStorageRecordRequest(new URI(LOCAL_META_URL));
+      r.delegate = unconditional;
+      r.get();
+      assertNull(server.ifModifiedSince);
+      assertTrue(unconditional.response.wasSuccessful());
+    } finally {
+      data.stopHTTPServer();
+    }
+  }
+
+  @Test
+  public void testConditionalJSONRecordFetcher() throws Exception {
+    BaseResource.rewriteLocalhost = false;
+    // Our first fetch's response is timestamped now, so later fetches aren't modified.
+    final ConditionalMockServer server = new ConditionalMockServer(System.currentTimeMillis() - 60000);
+    final String uri = TEST_SERVER + "/1.1/c6o7dvmr2c4ud2fyv6woz2u4zi22bcyd/info/collections";
+    data.startHTTPServer(server);
+    try {
+      final JSONRecordFetcher fetcher = new JSONRecordFetcher(uri, authHeaderProvider);
+      fetcher.setConditional(true);
+      final ExtendedJSONObject first = fetcher.fetchBlocking();
+      assertNull(server.ifModifiedSince);
+      assertEquals(1234567890.12, ((Number) first.get("meta")).doubleValue(), 0.001);
+
+      final JSONRecordFetcher again = new JSONRecordFetcher(uri, authHeaderProvider);
+      again.setConditional(true);
+      final ExtendedJSONObject second = again.fetchBlocking();
+      assertFalse(server.ifModifiedSince == null);
+      assertSame(first, second);
+
+      // Unconditional fetchers always fetch.
+      new JSONRecordFetcher(uri, authHeaderProvider).fetchBlocking();
+      assertNull(server.ifModifiedSince);
+      assertEquals(3, server.requests);
+    } finally {
+      data.stopHTTPServer();
+    }
+  }
 }
@@ -7,24 +7,43 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.IOException;
+import java.io.PrintStream;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Test;
 import org.mozilla.android.sync.test.SynchronizerHelpers.FailFetchWBORepository;
+import org.mozilla.android.sync.test.SynchronizerHelpers.TrackingWBORepository;
 import org.mozilla.android.sync.test.helpers.ExpectSuccessRepositorySessionCreationDelegate;
 import org.mozilla.android.sync.test.helpers.ExpectSuccessRepositorySessionFinishDelegate;
+import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
+import org.mozilla.android.sync.test.helpers.MockServer;
 import org.mozilla.gecko.background.testhelpers.WBORepository;
 import org.mozilla.gecko.background.testhelpers.WaitHelper;
+import org.mozilla.gecko.sync.FlowController;
+import org.mozilla.gecko.sync.net.BaseResource;
+import org.mozilla.gecko.sync.net.BasicAuthHeaderProvider;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
+import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
 import org.mozilla.gecko.sync.repositories.RepositorySessionBundle;
+import org.mozilla.gecko.sync.repositories.Server11Repository;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
 import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
+import org.mozilla.gecko.sync.repositories.domain.Record;
 import org.mozilla.gecko.sync.synchronizer.RecordsChannel;
 import org.mozilla.gecko.sync.synchronizer.RecordsChannelDelegate;
 
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+import android.content.Context;
+
 public class TestRecordsChannel {
 
   protected WBORepository remote;
@@ -40,7 +59,14 @@ public class TestRecordsChannel {
   protected AtomicBoolean flowBeginFailed;
   protected AtomicBoolean flowFinishFailed;
 
+  protected RecordsChannel channel;
+  protected FlowController flowController;
+
   public void doFlow(final Repository remote, final Repository local) throws Exception {
+    doFlow(remote, local, RecordsChannel.UNBOUNDED);
+  }
+
+  public void doFlow(final Repository remote, final Repository local, final int queueCapacity) throws Exception {
     WaitHelper.getTestWaiter().performWait(new Runnable() {
       @Override
       public void run() {
@@ -117,7 +143,9 @@ public class TestRecordsChannel {
       }
     };
 
-    final RecordsChannel rc = new RecordsChannel(source,  sink, rcDelegate);
+    final RecordsChannel rc = new RecordsChannel(source,  sink, rcDelegate, queueCapacity);
+    channel = rc;
+    rc.setFlowController(flowController);
     WaitHelper.getTestWaiter().performWait(new Runnable() {
       @Override
       public void run() {
@@ -223,4 +251,234 @@ public class TestRecordsChannel {
     assertEquals(6, numFlowStoreFailed.get()); // One (big) batch fails.
     assertEquals(0, sink.wbos.size()); // No batches succeed.
   }
+
+  @Test
+  public void testBoundedSuccess() throws Exception {
+    WBORepository source = full();
+    WBORepository sink = empty();
+    doFlow(source, sink, 2);
+    assertEquals(1, numFlowCompleted.get());
+    assertEquals(0, numFlowFetchFailed.get());
+    assertEquals(0, numFlowStoreFailed.get());
+    assertEquals(source.wbos, sink.wbos);
+    assertTrue(channel.getPeakBufferedCount() <= 2);
+  }
+
+  @Test
+  public void testBoundedFetchFail() throws Exception {
+    WBORepository source = failingFetch();
+    WBORepository sink = empty();
+    doFlow(source, sink, 2);
+    assertEquals(1, numFlowCompleted.get());
+    assertTrue(numFlowFetchFailed.get() > 0);
+    assertEquals(0, numFlowStoreFailed.get());
+    assertTrue(sink.wbos.size() < 6);
+  }
+
+  @Test
+  public void testBoundedStoreSerialFail() throws Exception {
+    WBORepository source = full();
+    WBORepository sink = new SynchronizerHelpers.SerialFailStoreWBORepository();
+    doFlow(source, sink, 2);
+    assertEquals(1, numFlowCompleted.get());
+    assertEquals(0, numFlowFetchFailed.get());
+    assertEquals(1, numFlowStoreFailed.get());
+    assertEquals(5, sink.wbos.size());
+  }
+
+  @Test
+  public void testBoundedStoreBatchesFail() throws Exception {
+    WBORepository source = full();
+    WBORepository sink = new SynchronizerHelpers.BatchFailStoreWBORepository(3);
+    doFlow(source, sink, 2);
+    assertEquals(1, numFlowCompleted.get());
+    assertEquals(0, numFlowFetchFailed.get());
+    assertEquals(3, numFlowStoreFailed.get()); // One batch fails.
+    assertEquals(3, sink.wbos.size()); // One batch succeeds.
+  }
+
+  /**
+   * Generates large records as they're fetched, so that only the channel holds
+   * references to records that haven't been stored yet.
+   */
+  public static class GeneratingWBORepository extends WBORepository {
+    protected final int count;
+    protected final String description;
+
+    public GeneratingWBORepository(int count, int recordSize) {
+      this.count = count;
+      StringBuilder sb = new StringBuilder(recordSize);
+      for (int i = 0; i < recordSize; i++) {
+        sb.append('x');
+      }
+      this.description = sb.toString();
+    }
+
+    @Override
+    public void createSession(RepositorySessionCreationDelegate delegate, Context context) {
+      delegate.deferredCreationDelegate().onSessionCreated(new WBORepositorySession(this) {
+        @Override
+        public void fetchSince(long timestamp, RepositorySessionFetchRecordsDelegate delegate) {
+          for (int i = 0; i < count; i++) {
+            BookmarkRecord record = new BookmarkRecord("generated" + i, "bookmarks", 1, false);
+            // Copy, so that each record costs its own memory.
+            record.description = new String(description.toCharArray());
+            delegate.deferredFetchDelegate(delegateExecutor).onFetchedRecord(record);
+          }
+          delegate.deferredFetchDelegate(delegateExecutor).onFetchCompleted(now());
+        }
+      });
+    }
+  }
+
+  /**
+   * Counts stored records without keeping them, pausing every so often to
+   * simulate a sink that's slower than its source.
+   */
+  public static class SlowCountingWBORepository extends WBORepository {
+    public final AtomicLong stored = new AtomicLong();
+
+    @Override
+    public void createSession(RepositorySessionCreationDelegate delegate, Context context) {
+      delegate.deferredCreationDelegate().onSessionCreated(new WBORepositorySession(this) {
+        @Override
+        public void store(Record record) throws NoStoreDelegateException {
+          if (delegate == null) {
+            throw new NoStoreDelegateException();
+          }
+          if (stored.incrementAndGet() % 20 == 0) {
+            try {
+              Thread.sleep(1);
+            } catch (InterruptedException e) {
+              // Keep going.
+            }
+          }
+          delegate.deferredStoreDelegate(delegateExecutor).onRecordStoreSucceeded(record.guid);
+        }
+      });
+    }
+  }
+
+  @Test
+  public void testBoundedBufferNeverExceedsCapacity() throws Exception {
+    final int count = 2000;
+    final int capacity = 64;
+    final SlowCountingWBORepository sink = new SlowCountingWBORepository();
+    doFlow(new GeneratingWBORepository(count, 1024), sink, capacity);
+    assertEquals(1, numFlowCompleted.get());
+    assertEquals(count, sink.stored.get());
+    assertTrue(channel.getPeakBufferedCount() <= capacity);
+  }
+
+  /**
+   * Stores each record on the session's store work queue, slowly, so that
+   * store work backs up behind a fast fetch.
+   */
+  public static class SlowAsyncStoreWBORepository extends TrackingWBORepository {
+    public final AtomicInteger maxBacklog = new AtomicInteger(0);
+
+    public class SlowAsyncStoreWBORepositorySession extends WBORepositorySession {
+      public SlowAsyncStoreWBORepositorySession(WBORepository repository) {
+        super(repository);
+      }
+
+      protected void storeNow(Record record) throws NoStoreDelegateException {
+        super.store(record);
+      }
+
+      protected void storeDoneNow(long end) {
+        super.storeDone(end);
+      }
+
+      @Override
+      public void store(final Record record) throws NoStoreDelegateException {
+        if (delegate == null) {
+          throw new NoStoreDelegateException();
+        }
+        storeWorkQueue.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              Thread.sleep(1);
+              storeNow(record);
+            } catch (Exception e) {
+              delegate.onRecordStoreFailed(e, record.guid);
+            }
+          }
+        });
+        final int backlog = getStoreBacklog();
+        synchronized (maxBacklog) {
+          if (backlog > maxBacklog.get()) {
+            maxBacklog.set(backlog);
+          }
+        }
+      }
+
+      @Override
+      public void storeDone(final long end) {
+        storeWorkQueue.execute(new Runnable() {
+          @Override
+          public void run() {
+            storeDoneNow(end);
+          }
+        });
+      }
+    }
+
+    @Override
+    public void createSession(RepositorySessionCreationDelegate delegate, Context context) {
+      delegate.deferredCreationDelegate().onSessionCreated(new SlowAsyncStoreWBORepositorySession(this));
+    }
+  }
+
+  @Test
+  public void testFlowControlPausesNetworkFetch() throws Exception {
+    final int count = 300;
+    final int highWater = 20;
+
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      sb.append("{\"id\":\"record" + i + "\",\"modified\":1.0,\"payload\":\"{}\"}\n");
+    }
+    final String records = sb.toString();
+    final MockServer server = new MockServer() {
+      @Override
+      public void handle(Request request, Response response) {
+        try {
+          PrintStream bodyStream = this.handleBasicHeaders(request, response, 200, "application/newlines");
+          bodyStream.print(records);
+          bodyStream.close();
+        } catch (IOException e) {
+          System.err.println("Oops.");
+        }
+      }
+    };
+
+    final HTTPServerTestHelper data = new HTTPServerTestHelper();
+    final String url = "http://localhost:" + HTTPServerTestHelper.getTestPort() + "/1.1/user/storage/test";
+    final Server11Repository remote = new Server11Repository("test", url, new BasicAuthHeaderProvider("user", "pass"));
+    final SlowAsyncStoreWBORepository sink = new SlowAsyncStoreWBORepository();
+
+    BaseResource.rewriteLocalhost = false;
+    flowController = new FlowController(highWater, 0);
+    data.startHTTPServer(server);
+    try {
+      doFlow(remote, sink);
+    } finally {
+      flowController = null;
+      data.stopHTTPServer();
+    }
+
+    assertEquals(1, numFlowCompleted.get());
+    assertEquals(0, numFlowFetchFailed.get());
+    assertEquals(0, numFlowStoreFailed.get());
+    assertEquals(count, sink.wbos.size());
+
+    final FlowController controller = channel.getFlowController();
+    assertTrue(controller.isClosed());
+    assertTrue(controller.getPauseCount() > 0);
+    // Allow for the record being handed off when the peak was measured.
+    assertTrue(controller.getPeakRecords() <= highWater + 1);
+    assertTrue(sink.maxBacklog.get() <= highWater + 1);
+  }
 }
@@ -4,21 +4,50 @@
 package org.mozilla.android.sync.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
 
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
 import org.junit.Test;
 import org.mozilla.android.sync.test.SynchronizerHelpers.TrackingWBORepository;
 import org.mozilla.android.sync.test.helpers.BaseTestStorageRequestDelegate;
 import org.mozilla.android.sync.test.helpers.HTTPServerTestHelper;
 import org.mozilla.android.sync.test.helpers.MockServer;
 import org.mozilla.gecko.background.testhelpers.MockRecord;
+import org.mozilla.gecko.background.testhelpers.WBORepository;
 import org.mozilla.gecko.background.testhelpers.WaitHelper;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.HTTPFailureException;
+import org.mozilla.gecko.sync.InfoCollections;
+import org.mozilla.gecko.sync.InfoConfiguration;
 import org.mozilla.gecko.sync.JSONRecordFetcher;
 import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
@@ -28,13 +57,21 @@ import org.mozilla.gecko.sync.net.BaseResource;
 import org.mozilla.gecko.sync.net.BasicAuthHeaderProvider;
 import org.mozilla.gecko.sync.net.SyncStorageRecordRequest;
 import org.mozilla.gecko.sync.net.SyncStorageResponse;
+import org.mozilla.gecko.sync.repositories.FetchCursor;
 import org.mozilla.gecko.sync.repositories.FetchFailedException;
+import org.mozilla.gecko.sync.repositories.PagedServer11Repository;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
+import org.mozilla.gecko.sync.repositories.RepositorySessionBundle;
 import org.mozilla.gecko.sync.repositories.Server11Repository;
 import org.mozilla.gecko.sync.repositories.Server11RepositorySession;
 import org.mozilla.gecko.sync.repositories.StoreFailedException;
+import org.mozilla.gecko.sync.repositories.UploadBatchSizer;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionGuidsSinceDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionWipeDelegate;
 import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
 import org.mozilla.gecko.sync.repositories.domain.BookmarkRecordFactory;
 import org.mozilla.gecko.sync.repositories.domain.Record;
@@ -45,6 +82,7 @@ import org.simpleframework.http.ContentType;
 import org.simpleframework.http.Request;
 import org.simpleframework.http.Response;
 
+import android.content.Context;
 import ch.boye.httpclientandroidlib.HttpEntity;
 
 public class TestServer11RepositorySession {
@@ -151,9 +189,12 @@ public class TestServer11RepositorySession {
 
   protected Exception doSynchronize(MockServer server) throws Exception {
     final String COLLECTION = "test";
-
-    final TrackingWBORepository local = getLocal(100);
     final Server11Repository remote = new Server11Repository(COLLECTION, getCollectionURL(COLLECTION), authHeaderProvider);
+    return doSynchronize(server, remote, 100);
+  }
+
+  protected Exception doSynchronize(MockServer server, Server11Repository remote, int numLocalRecords) throws Exception {
+    final TrackingWBORepository local = getLocal(numLocalRecords);
     KeyBundle collectionKey = new KeyBundle(TEST_USERNAME, SYNC_KEY);
     Crypto5MiddlewareRepository cryptoRepo = new Crypto5MiddlewareRepository(remote, collectionKey);
     cryptoRepo.recordFactory = new BookmarkRecordFactory();
@@ -210,6 +251,998 @@ public class TestServer11RepositorySession {
     assertEquals(StoreFailedException.class, e.getClass());
   }
 
+  @Test
+  public void testConcurrentUploads() throws Exception {
+    final AtomicInteger posts = new AtomicInteger(0);
+    final AtomicInteger inFlight = new AtomicInteger(0);
+    final AtomicInteger maxInFlight = new AtomicInteger(0);
+    MockServer server = new MockServer() {
+      public void handle(Request request, Response response) {
+        if (!request.getMethod().equals("POST")) {
+          this.handle(request, response, 200, "");
+          return;
+        }
+        posts.incrementAndGet();
+        final int now = inFlight.incrementAndGet();
+        synchronized (maxInFlight) {
+          if (now > maxInFlight.get()) {
+            maxInFlight.set(now);
+          }
+        }
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          // Respond anyway.
+        }
+        inFlight.decrementAndGet();
+        this.handle(request, response, 200, "{\"modified\": " + Utils.millisecondsToDecimalSeconds(System.currentTimeMillis()) + ", " +
+            "\"success\": [], " +
+            "\"failed\": {}}");
+      }
+    };
+
+    final String COLLECTION = "test";
+    final Server11Repository remote = new Server11Repository(COLLECTION, getCollectionURL(COLLECTION), authHeaderProvider) {
+      // Keep batches at 50 records, however quickly they're accepted.
+      private final UploadBatchSizer fixedSizer = new UploadBatchSizer() {
+        @Override
+        public synchronized void onBatchSucceeded(int records, int failedRecords, long latency) {
+          // Never adapt.
+        }
+      };
+
+      @Override
+      protected int getMaxConcurrentUploads() {
+        return 4;
+      }
+
+      @Override
+      public UploadBatchSizer getUploadBatchSizer() {
+        return fixedSizer;
+      }
+    };
+
+    // 500 records is 10 batches of 50.
+    Exception e = doSynchronize(server, remote, 500);
+    assertNull(e);
+    assertEquals(10, posts.get());
+    assertTrue(maxInFlight.get() > 1);
+    assertTrue(maxInFlight.get() <= 4);
+  }
+
+  @Test
+  public void testTooLargeUploadsAreSplit() throws Exception {
+    final int MAX_RECORDS = 10;
+    final AtomicInteger accepted = new AtomicInteger(0);
+    final AtomicInteger refused = new AtomicInteger(0);
+    MockServer server = new MockServer() {
+      public void handle(Request request, Response response) {
+        if (!request.getMethod().equals("POST")) {
+          this.handle(request, response, 200, "");
+          return;
+        }
+        int count;
+        try {
+          count = ((JSONArray) new JSONParser().parse(request.getContent())).size();
+        } catch (Exception e) {
+          this.handle(request, response, 400, "\"bad body\"");
+          return;
+        }
+        if (count > MAX_RECORDS) {
+          refused.incrementAndGet();
+          this.handle(request, response, 413, "\"too large\"");
+          return;
+        }
+        accepted.addAndGet(count);
+        this.handle(request, response, 200, "{\"modified\": " + Utils.millisecondsToDecimalSeconds(System.currentTimeMillis()) + ", " +
+            "\"success\": [], " +
+            "\"failed\": {}}");
+      }
+    };
+
+    final String COLLECTION = "test";
+    final Server11Repository remote = new Server11Repository(COLLECTION, getCollectionURL(COLLECTION), authHeaderProvider);
+    Exception e = doSynchronize(server, remote, 100);
+    assertNull(e);
+    assertEquals(100, accepted.get());
+    assertTrue(refused.get() > 0);
+    assertTrue(remote.getUploadBatchSizer().getItemLimit() <= MAX_RECORDS);
+  }
+
+  /**
+   * Implements server-side upload batches: records POSTed with
+   * <code>batch=true</code> or <code>batch=ID</code> are staged, and only
+   * written to the collection when a POST with <code>commit=true</code>
+   * arrives.
+   */
+  public static class BatchingServer extends MockServer {
+    public final Set<String> committed = Collections.synchronizedSet(new HashSet<String>());
+    public final AtomicInteger posts = new AtomicInteger(0);
+    public final AtomicInteger commits = new AtomicInteger(0);
+    public final AtomicInteger inFlight = new AtomicInteger(0);
+    public final AtomicInteger maxInFlight = new AtomicInteger(0);
+    public volatile boolean supportsBatches = true;
+    public volatile int failPost = -1;
+    public volatile int maxTotalRecords = -1;
+    public final AtomicInteger largestBatch = new AtomicInteger(0);
+
+    protected final ArrayList<String> staged = new ArrayList<String>();
+    protected String batch;
+    protected int batches = 0;
+
+    @Override
+    public void handle(Request request, Response response) {
+      if (!request.getMethod().equals("POST")) {
+        this.handle(request, response, 200, "");
+        return;
+      }
+      final int post = posts.incrementAndGet();
+      final int now = inFlight.incrementAndGet();
+      synchronized (maxInFlight) {
+        if (now > maxInFlight.get()) {
+          maxInFlight.set(now);
+        }
+      }
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        // Respond anyway.
+      }
+      inFlight.decrementAndGet();
+
+      final JSONArray ids = new JSONArray();
+      try {
+        for (Object o : (JSONArray) new JSONParser().parse(request.getContent())) {
+          ids.add(((JSONObject) o).get("id"));
+        }
+      } catch (Exception e) {
+        this.handle(request, response, 400, "\"bad body\"");
+        return;
+      }
+      if (post == failPost) {
+        this.handle(request, response, 500, "\"failed\"");
+        return;
+      }
+
+      final String requested = supportsBatches ? request.getQuery().get("batch") : null;
+      final boolean commit = "true".equals(request.getQuery().get("commit"));
+      if (requested == null) {
+        for (Object id : ids) {
+          committed.add((String) id);
+        }
+        this.handle(request, response, 200, uploadResponse(null, ids));
+        return;
+      }
+
+      synchronized (this) {
+        if (requested.equals("true")) {
+          assertNull(batch);
+          batches += 1;
+          batch = "batch" + batches;
+        } else if (!requested.equals(batch)) {
+          this.handle(request, response, 400, "\"no such batch\"");
+          return;
+        }
+        for (Object id : ids) {
+          staged.add((String) id);
+        }
+        if (maxTotalRecords > 0 && staged.size() > maxTotalRecords) {
+          this.handle(request, response, 400, "\"size-limit-exceeded\"");
+          return;
+        }
+        if (staged.size() > largestBatch.get()) {
+          largestBatch.set(staged.size());
+        }
+        if (!commit) {
+          this.handle(request, response, 202, uploadResponse(batch, ids));
+          return;
+        }
+        commits.incrementAndGet();
+        committed.addAll(staged);
+        staged.clear();
+        batch = null;
+      }
+      this.handle(request, response, 200, uploadResponse(null, ids));
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static String uploadResponse(String batch, JSONArray success) {
+      final JSONObject body = new JSONObject();
+      body.put("modified", Utils.millisecondsToDecimalSeconds(System.currentTimeMillis()));
+      body.put("success", success);
+      body.put("failed", new JSONObject());
+      if (batch != null) {
+        body.put("batch", batch);
+      }
+      return body.toJSONString();
+    }
+  }
+
+  protected Exception doAtomicSynchronize(BatchingServer server, int numLocalRecords) throws Exception {
+    return doAtomicSynchronize(server, numLocalRecords, null);
+  }
+
+  protected Exception doAtomicSynchronize(BatchingServer server, int numLocalRecords, InfoConfiguration infoConfiguration) throws Exception {
+    final String COLLECTION = "test";
+    final Server11Repository remote = new Server11Repository(COLLECTION, getCollectionURL(COLLECTION), authHeaderProvider) {
+      @Override
+      protected int getMaxConcurrentUploads() {
+        return 4;
+      }
+
+      @Override
+      protected boolean getAtomicUploads() {
+        return true;
+      }
+    };
+    remote.setInfoConfiguration(infoConfiguration);
+    return doSynchronize(server, remote, numLocalRecords);
+  }
+
+  @Test
+  public void testAtomicUploads() throws Exception {
+    final BatchingServer server = new BatchingServer();
+    Exception e = doAtomicSynchronize(server, 500);
+    assertNull(e);
+    assertEquals(500, server.committed.size());
+    assertEquals(1, server.commits.get());
+    assertTrue(server.posts.get() > 1);
+    // Once the batch is open, POSTs into it go concurrently.
+    assertTrue(server.maxInFlight.get() > 1);
+    assertTrue(server.maxInFlight.get() <= 4);
+  }
+
+  @Test
+  public void testAtomicUploadsRespectBatchLimits() throws Exception {
+    final BatchingServer server = new BatchingServer();
+    server.maxTotalRecords = 200;
+    final ExtendedJSONObject limits = new ExtendedJSONObject();
+    limits.put(InfoConfiguration.MAX_TOTAL_RECORDS, 200L);
+    Exception e = doAtomicSynchronize(server, 500, new InfoConfiguration(limits));
+    assertNull(e);
+    assertEquals(500, server.committed.size());
+    // Each full batch is committed, and a new one opened.
+    assertTrue(server.commits.get() >= 2);
+    assertEquals(200, server.largestBatch.get());
+  }
+
+  @Test
+  public void testAtomicUploadFailureWritesNothing() throws Exception {
+    final BatchingServer server = new BatchingServer();
+    server.failPost = 3;
+    Exception e = doAtomicSynchronize(server, 500);
+    assertNotNull(e);
+    assertEquals(StoreFailedException.class, e.getClass());
+    assertEquals(0, server.commits.get());
+    assertEquals(0, server.committed.size());
+  }
+
+  @Test
+  public void testAtomicUploadsWithoutServerSupport() throws Exception {
+    final BatchingServer server = new BatchingServer();
+    server.supportsBatches = false;
+    Exception e = doAtomicSynchronize(server, 500);
+    assertNull(e);
+    assertEquals(500, server.committed.size());
+    assertEquals(0, server.commits.get());
+  }
+
+  @Test
+  public void testSingleAtomicUploadIsNotBatched() throws Exception {
+    final BatchingServer server = new BatchingServer();
+    Exception e = doAtomicSynchronize(server, 10);
+    assertNull(e);
+    assertEquals(10, server.committed.size());
+    assertEquals(1, server.posts.get());
+    assertEquals(0, server.commits.get());
+  }
+
+  /**
+   * Counts uploaded records and body bytes, and checks that what arrives is
+   * what was declared.
+   */
+  public static class UploadCountingServer extends MockServer {
+    public final AtomicInteger records = new AtomicInteger(0);
+    public final AtomicLong wireBytes = new AtomicLong(0);
+    public volatile boolean lengthsMatched = true;
+    public volatile String contentEncoding;
+
+    protected static byte[] readAll(InputStream in) throws Exception {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[4096];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        out.write(buffer, 0, n);
+      }
+      return out.toByteArray();
+    }
+
+    @Override
+    public void handle(Request request, Response response) {
+      if (!request.getMethod().equals("POST")) {
+        this.handle(request, response, 200, "");
+        return;
+      }
+      try {
+        final byte[] wire = readAll(request.getInputStream());
+        wireBytes.addAndGet(wire.length);
+        final String declared = request.getValue("Content-Length");
+        if (declared == null || Long.parseLong(declared) != wire.length) {
+          lengthsMatched = false;
+        }
+        contentEncoding = request.getValue("Content-Encoding");
+        InputStream body = new ByteArrayInputStream(wire);
+        if ("gzip".equals(contentEncoding)) {
+          body = new GZIPInputStream(body);
+        }
+        final JSONArray posted = (JSONArray) new JSONParser().parse(new InputStreamReader(body, "UTF-8"));
+        records.addAndGet(posted.size());
+      } catch (Exception e) {
+        this.handle(request, response, 400, "\"bad body\"");
+        return;
+      }
+      this.handle(request, response, 200, "{\"modified\": " + Utils.millisecondsToDecimalSeconds(System.currentTimeMillis()) + ", " +
+          "\"success\": [], " +
+          "\"failed\": {}}");
+    }
+  }
+
+  protected void upload(UploadCountingServer server, final boolean compress, int count) throws Exception {
+    final String COLLECTION = "test";
+    final Server11Repository remote = new Server11Repository(COLLECTION, getCollectionURL(COLLECTION), authHeaderProvider) {
+      @Override
+      protected boolean getCompressUploads() {
+        return compress;
+      }
+    };
+    Exception e = doSynchronize(server, remote, count);
+    assertNull(e);
+    assertEquals(count, server.records.get());
+    assertTrue(server.lengthsMatched);
+  }
+
+  /**
+   * Encrypted records don't compress much, but their Base64 and JSON
+   * envelopes do.
+   */
+  @Test
+  public void testCompressedUploads() throws Exception {
+    final int count = 1000;
+
+    final UploadCountingServer plain = new UploadCountingServer();
+    upload(plain, false, count);
+    assertNull(plain.contentEncoding);
+
+    final UploadCountingServer gzipped = new UploadCountingServer();
+    upload(gzipped, true, count);
+    assertEquals("gzip", gzipped.contentEncoding);
+
+    assertTrue(gzipped.wireBytes.get() < plain.wireBytes.get());
+  }
+
+  /**
+   * A local repository whose sessions report no changes.
+   */
+  public static class UnchangedWBORepository extends WBORepository {
+    @Override
+    public void createSession(RepositorySessionCreationDelegate delegate, Context context) {
+      delegate.deferredCreationDelegate().onSessionCreated(new WBORepositorySession(this) {
+        @Override
+        public boolean dataAvailable() {
+          return false;
+        }
+      });
+    }
+  }
+
+  protected long remoteTimestampAfterSync = -1;
+
+  protected int countRequestsForIdleSync(long serverModified, long lastSynced) throws Exception {
+    final AtomicInteger requests = new AtomicInteger(0);
+    final MockServer server = new MockServer() {
+      @Override
+      public void handle(Request request, Response response) {
+        requests.incrementAndGet();
+        this.handle(request, response, 200, "");
+      }
+    };
+
+    final String COLLECTION = "test";
+    final Server11Repository remote = new Server11Repository(COLLECTION, getCollectionURL(COLLECTION), authHeaderProvider);
+    final ExtendedJSONObject info = new ExtendedJSONObject();
+    info.put(COLLECTION, Double.valueOf(serverModified / 1000.0));
+    remote.setInfoCollections(new InfoCollections(info));
+
+    final Crypto5MiddlewareRepository cryptoRepo = new Crypto5MiddlewareRepository(remote, new KeyBundle(TEST_USERNAME, SYNC_KEY));
+    cryptoRepo.recordFactory = new BookmarkRecordFactory();
+    final Synchronizer synchronizer = new ServerLocalSynchronizer();
+    synchronizer.repositoryA = cryptoRepo;
+    synchronizer.repositoryB = new UnchangedWBORepository();
+    synchronizer.bundleA = new RepositorySessionBundle(lastSynced);
+    synchronizer.bundleB = new RepositorySessionBundle(lastSynced);
+
+    data.startHTTPServer(server);
+    try {
+      assertNull(TestServerLocalSynchronizer.doSynchronize(synchronizer));
+    } finally {
+      data.stopHTTPServer();
+    }
+    remoteTimestampAfterSync = synchronizer.bundleA.getTimestamp();
+    return requests.get();
+  }
+
+  @Test
+  public void testUnchangedCollectionIsNotFetched() throws Exception {
+    final long lastSynced = 1400000000000L;
+    assertEquals(0, countRequestsForIdleSync(lastSynced - 10000, lastSynced));
+    // Skipping a sync doesn't lose our place.
+    assertEquals(lastSynced, remoteTimestampAfterSync);
+    assertEquals(0, countRequestsForIdleSync(lastSynced, lastSynced));
+  }
+
+  @Test
+  public void testChangedCollectionIsFetched() throws Exception {
+    final long lastSynced = 1400000000000L;
+    assertEquals(1, countRequestsForIdleSync(lastSynced + 10000, lastSynced));
+  }
+
+  /**
+   * Serves encrypted records in a fixed order, honouring newer, older, limit
+   * and offset, as of a server clock the test controls.
+   */
+  public static class PagingServer extends MockServer {
+    public final ArrayList<String> guids = new ArrayList<String>();
+    public final ArrayList<Long> modified = new ArrayList<Long>();
+    public final ArrayList<String> bodies = new ArrayList<String>();
+    public final ArrayList<String> queries = new ArrayList<String>();
+    public volatile long now;
+
+    public PagingServer(long now) {
+      this.now = now;
+    }
+
+    public void addRecord(String guid, long modifiedTime) throws Exception {
+      final BookmarkRecord record = new BookmarkRecord(guid, "bookmarks", modifiedTime, false);
+      record.title = "Record " + guid;
+      final CryptoRecord encrypted = record.getEnvelope();
+      encrypted.keyBundle = new KeyBundle(TEST_USERNAME, SYNC_KEY);
+      final JSONObject json = encrypted.encrypt().toJSONObject();
+      json.put("modified", Double.valueOf(modifiedTime / 1000.0));
+      guids.add(guid);
+      modified.add(modifiedTime);
+      bodies.add(json.toJSONString());
+    }
+
+    protected static long getTimestamp(Request request, String name) {
+      final String value = request.getQuery().get(name);
+      return (value == null) ? -1 : Utils.decimalSecondsToMilliseconds(value);
+    }
+
+    @Override
+    public synchronized void handle(Request request, Response response) {
+      if (!request.getMethod().equals("GET")) {
+        this.handle(request, response, 200, "{\"modified\": " + Utils.millisecondsToDecimalSeconds(now) + ", " +
+            "\"success\": [], " +
+            "\"failed\": {}}");
+        return;
+      }
+      queries.add(request.getPath().getPath() + "?" + request.getQuery());
+      final long newer = getTimestamp(request, "newer");
+      final long older = getTimestamp(request, "older");
+      final String limit = request.getQuery().get("limit");
+      final String offset = request.getQuery().get("offset");
+      final int first = (offset == null) ? 0 : Integer.parseInt(offset);
+      final int count = (limit == null) ? Integer.MAX_VALUE : Integer.parseInt(limit);
+
+      try {
+        final PrintStream out = this.handleBasicHeaders(request, response, 200, "application/newlines", now);
+        int matched = 0;
+        int served = 0;
+        for (int i = 0; i < bodies.size() && served < count; i++) {
+          final long m = modified.get(i);
+          if (m <= newer || (older >= 0 && m >= older)) {
+            continue;
+          }
+          if (matched++ < first) {
+            continue;
+          }
+          out.println(bodies.get(i));
+          served += 1;
+        }
+        out.close();
+      } catch (IOException e) {
+        fail("Couldn't respond.");
+      }
+    }
+  }
+
+  /**
+   * Syncs a history-like collection a page at a time, carrying the remote
+   * bundle from one sync to the next.
+   */
+  protected class PagedSyncer {
+    public final PagingServer server;
+    public final TrackingWBORepository local = new TrackingWBORepository();
+    public RepositorySessionBundle bundleA = new RepositorySessionBundle(0);
+    public RepositorySessionBundle bundleB = new RepositorySessionBundle(0);
+    protected final long byteBudget;
+
+    public PagedSyncer(PagingServer server, long byteBudget) {
+      this.server = server;
+      this.byteBudget = byteBudget;
+    }
+
+    public int sync() throws Exception {
+      final String COLLECTION = "test";
+      final PagedServer11Repository remote = new PagedServer11Repository(COLLECTION, getCollectionURL(COLLECTION), authHeaderProvider, 10, "index", -1, byteBudget);
+      final Crypto5MiddlewareRepository cryptoRepo = new Crypto5MiddlewareRepository(remote, new KeyBundle(TEST_USERNAME, SYNC_KEY));
+      cryptoRepo.recordFactory = new BookmarkRecordFactory();
+      final Synchronizer synchronizer = new ServerLocalSynchronizer();
+      synchronizer.repositoryA = cryptoRepo;
+      synchronizer.repositoryB = local;
+      synchronizer.bundleA = bundleA;
+      synchronizer.bundleB = bundleB;
+
+      final int before = server.queries.size();
+      data.startHTTPServer(server);
+      try {
+        assertNull(TestServerLocalSynchronizer.doSynchronize(synchronizer));
+      } finally {
+        data.stopHTTPServer();
+      }
+      // Round-trip through JSON, as persisting the configuration would.
+      bundleA = new RepositorySessionBundle(synchronizer.bundleA.toJSONString());
+      bundleB = synchronizer.bundleB;
+      return server.queries.size() - before;
+    }
+  }
+
+  @Test
+  public void testPagedFetch() throws Exception {
+    final long now = 1400000000000L;
+    final PagingServer server = new PagingServer(now);
+    for (int i = 0; i < 25; i++) {
+      server.addRecord("pagedrecord" + (char) ('a' + i), now - 100000 + i * 1000);
+    }
+
+    final PagedSyncer syncer = new PagedSyncer(server, -1);
+    assertEquals(3, syncer.sync());
+    assertEquals(25, syncer.local.wbos.size());
+    assertNull(syncer.bundleA.getFetchCursor());
+    assertTrue(syncer.bundleA.getTimestamp() >= now);
+
+    // Later pages don't see records changed since the walk began.
+    final String older = "older=" + Utils.millisecondsToDecimalSecondsString(now);
+    assertFalse(server.queries.get(0).contains(older));
+    assertTrue(server.queries.get(1).contains(older));
+    assertTrue(server.queries.get(1).contains("offset=10"));
+    assertTrue(server.queries.get(2).contains("offset=20"));
+  }
+
+  @Test
+  public void testPagedFetchResumes() throws Exception {
+    final long start = 1400000000000L;
+    final PagingServer server = new PagingServer(start);
+    for (int i = 0; i < 25; i++) {
+      server.addRecord("pagedrecord" + (char) ('a' + i), start - 100000 + i * 1000);
+    }
+
+    // A budget of one byte fetches one page per sync.
+    final PagedSyncer syncer = new PagedSyncer(server, 1);
+    assertEquals(1, syncer.sync());
+    assertEquals(10, syncer.local.wbos.size());
+    FetchCursor cursor = syncer.bundleA.getFetchCursor();
+    assertNotNull(cursor);
+    assertEquals(0, cursor.newer);
+    assertEquals(start, cursor.older);
+    assertEquals("10", cursor.offset);
+
+    // Another client uploads a record between our syncs.
+    server.addRecord("pagednewrec1", start + 1000);
+    server.now = start + 2000;
+
+    assertEquals(1, syncer.sync());
+    assertEquals(20, syncer.local.wbos.size());
+    assertEquals("20", syncer.bundleA.getFetchCursor().offset);
+
+    // The old walk finishes; what changed since it began is still to come.
+    assertEquals(1, syncer.sync());
+    assertEquals(25, syncer.local.wbos.size());
+    cursor = syncer.bundleA.getFetchCursor();
+    assertNotNull(cursor);
+    assertEquals(start, cursor.newer);
+    assertFalse(cursor.isStarted());
+
+    assertEquals(1, syncer.sync());
+    assertEquals(26, syncer.local.wbos.size());
+    assertNull(syncer.bundleA.getFetchCursor());
+
+    // Up to date: the next sync fetches nothing new.
+    assertEquals(1, syncer.sync());
+    assertEquals(26, syncer.local.wbos.size());
+    assertNull(syncer.bundleA.getFetchCursor());
+  }
+
+  /**
+   * Serves requested records by ID, holding the first requests until two have
+   * arrived, so that concurrent requests overlap. Each response is timestamped
+   * a second earlier than the last.
+   */
+  public static class IDsServer extends MockServer {
+    public final CountDownLatch overlapping = new CountDownLatch(2);
+    public final AtomicInteger requests = new AtomicInteger(0);
+    public final AtomicInteger inFlight = new AtomicInteger(0);
+    public final AtomicInteger maxInFlight = new AtomicInteger(0);
+    public final AtomicInteger longestURI = new AtomicInteger(0);
+    public final long now;
+
+    public IDsServer(long now) {
+      this.now = now;
+    }
+
+    @Override
+    public void handle(Request request, Response response) {
+      final int index = requests.getAndIncrement();
+      final int current = inFlight.incrementAndGet();
+      synchronized (maxInFlight) {
+        maxInFlight.set(Math.max(maxInFlight.get(), current));
+        longestURI.set(Math.max(longestURI.get(), request.getTarget().length()));
+      }
+      try {
+        overlapping.countDown();
+        overlapping.await(SHORT_TIMEOUT, TimeUnit.MILLISECONDS);
+        final PrintStream out = this.handleBasicHeaders(request, response, 200, "application/newlines", now - index * 1000);
+        for (String id : request.getQuery().get("ids").split(",")) {
+          out.println("{\"id\": \"" + id + "\", \"payload\": \"{}\"}");
+        }
+        out.close();
+      } catch (Exception e) {
+        fail("Couldn't respond.");
+      } finally {
+        inFlight.decrementAndGet();
+      }
+    }
+  }
+
+  public static class CollectingFetchDelegate implements RepositorySessionFetchRecordsDelegate {
+    public final CountDownLatch done = new CountDownLatch(1);
+    public final Set<String> guids = Collections.synchronizedSet(new HashSet<String>());
+    public final AtomicInteger fetched = new AtomicInteger(0);
+    public final AtomicInteger completions = new AtomicInteger(0);
+    public final AtomicInteger failures = new AtomicInteger(0);
+    public volatile long fetchEnd = -1;
+    public volatile Exception failure;
+
+    @Override
+    public void onFetchFailed(Exception ex, Record record) {
+      failure = ex;
+      failures.incrementAndGet();
+      done.countDown();
+    }
+
+    @Override
+    public void onFetchedRecord(Record record) {
+      fetched.incrementAndGet();
+      guids.add(record.guid);
+    }
+
+    @Override
+    public void onFetchCompleted(long fetchEnd) {
+      this.fetchEnd = fetchEnd;
+      completions.incrementAndGet();
+      done.countDown();
+    }
+
+    @Override
+    public RepositorySessionFetchRecordsDelegate deferredFetchDelegate(ExecutorService executor) {
+      return this;
+    }
+  }
+
+  /**
+   * Lets tests wait for fetch requests made on the session's own threads.
+   */
+  public static class DrainableServer11RepositorySession extends Server11RepositorySession {
+    public DrainableServer11RepositorySession(Repository repository) {
+      super(repository);
+    }
+
+    public boolean awaitFetchRequests(long timeoutMillis) throws InterruptedException {
+      final ThreadPoolExecutor executor = getFetchExecutor();
+      executor.shutdown();
+      return executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  protected static Server11RepositorySession beginSession(Server11Repository remote) throws Exception {
+    return beginSession(new Server11RepositorySession(remote));
+  }
+
+  protected static <T extends Server11RepositorySession> T beginSession(final T session) throws Exception {
+    // Beginning is synchronous; only the callback is deferred.
+    session.begin(new RepositorySessionBeginDelegate() {
+      @Override
+      public void onBeginSucceeded(RepositorySession session) {
+      }
+
+      @Override
+      public void onBeginFailed(Exception ex) {
+        fail("Begin failed.");
+      }
+
+      @Override
+      public RepositorySessionBeginDelegate deferredBeginDelegate(ExecutorService executor) {
+        return this;
+      }
+    });
+    return session;
+  }
+
+  @Test
+  public void testChunkedFetchByIDs() throws Exception {
+    final long now = 1400000000000L;
+    final IDsServer server = new IDsServer(now);
+    final String COLLECTION = "test";
+    final Server11Repository remote = new Server11Repository(COLLECTION, getCollectionURL(COLLECTION), authHeaderProvider);
+    final Server11RepositorySession session = beginSession(remote);
+
+    // 450 IDs is five requests of at most 100.
+    final String[] guids = new String[450];
+    for (int i = 0; i < guids.length; i++) {
+      guids[i] = Utils.generateGuid();
+    }
+    final CollectingFetchDelegate delegate = new CollectingFetchDelegate();
+    data.startHTTPServer(server);
+    try {
+      session.fetch(guids, delegate);
+      assertTrue(delegate.done.await(SHORT_TIMEOUT, TimeUnit.MILLISECONDS));
+    } finally {
+      data.stopHTTPServer();
+    }
+
+    assertNull(delegate.failure);
+    assertEquals(1, delegate.completions.get());
+    assertEquals(guids.length, delegate.fetched.get());
+    assertEquals(guids.length, delegate.guids.size());
+    assertEquals(5, server.requests.get());
+    assertTrue(server.maxInFlight.get() > 1);
+    assertTrue(server.maxInFlight.get() <= 4);
+    assertTrue(server.longestURI.get() < 2000);
+    // The earliest response's timestamp.
+    assertEquals(now - 4000, delegate.fetchEnd);
+  }
+
+  @Test
+  public void testChunkedFetchReportsOnlyTheFirstFailure() throws Exception {
+    final CollectingFetchDelegate delegate = new CollectingFetchDelegate();
+    final CountDownLatch overlapping = new CountDownLatch(2);
+    final AtomicInteger requests = new AtomicInteger(0);
+    final MockServer server = new MockServer() {
+      @Override
+      public void handle(Request request, Response response) {
+        final int index = requests.getAndIncrement();
+        try {
+          // Fail the first two requests together. Answer the rest only once
+          // the failure has been reported.
+          overlapping.countDown();
+          overlapping.await(SHORT_TIMEOUT, TimeUnit.MILLISECONDS);
+          if (index < 2) {
+            this.handle(request, response, 500, "error");
+            return;
+          }
+          delegate.done.await(SHORT_TIMEOUT, TimeUnit.MILLISECONDS);
+          final PrintStream out = this.handleBasicHeaders(request, response, 200, "application/newlines");
+          for (String id : request.getQuery().get("ids").split(",")) {
+            out.println("{\"id\": \"" + id + "\", \"payload\": \"{}\"}");
+          }
+          out.close();
+        } catch (Exception e) {
+          fail("Couldn't respond.");
+        }
+      }
+    };
+
+    final String COLLECTION = "test";
+    final Server11Repository remote = new Server11Repository(COLLECTION, getCollectionURL(COLLECTION), authHeaderProvider);
+    final DrainableServer11RepositorySession session = beginSession(new DrainableServer11RepositorySession(remote));
+    final String[] guids = new String[450];
+    for (int i = 0; i < guids.length; i++) {
+      guids[i] = Utils.generateGuid();
+    }
+    data.startHTTPServer(server);
+    try {
+      session.fetch(guids, delegate);
+      assertTrue(delegate.done.await(SHORT_TIMEOUT, TimeUnit.MILLISECONDS));
+      assertTrue(session.awaitFetchRequests(SHORT_TIMEOUT));
+    } finally {
+      data.stopHTTPServer();
+    }
+
+    assertEquals(1, delegate.failures.get());
+    assertEquals(0, delegate.completions.get());
+    assertEquals(0, delegate.fetched.get());
+  }
+
+  @Test
+  public void testGuidsSince() throws Exception {
+    final long since = 1400000000000L;
+    final AtomicReference<String> query = new AtomicReference<String>();
+    final MockServer server = new MockServer() {
+      @Override
+      public void handle(Request request, Response response) {
+        query.set(request.getTarget());
+        try {
+          final PrintStream out = this.handleBasicHeaders(request, response, 200, "application/newlines");
+          out.println("\"abcdefghijkl\"");
+          out.println("\"mnopqrstuvwx\"");
+          out.println("\"escaped\\u0041\"");
+          out.close();
+        } catch (IOException e) {
+          fail("Couldn't respond.");
+        }
+      }
+    };
+
+    final String COLLECTION = "test";
+    final Server11RepositorySession session = beginSession(new Server11Repository(COLLECTION, getCollectionURL(COLLECTION), authHeaderProvider));
+    final AtomicReference<String[]> guids = new AtomicReference<String[]>();
+    data.startHTTPServer(server);
+    try {
+      session.guidsSince(since, new RepositorySessionGuidsSinceDelegate() {
+        @Override
+        public void onGuidsSinceSucceeded(String[] result) {
+          guids.set(result);
+        }
+
+        @Override
+        public void onGuidsSinceFailed(Exception ex) {
+          fail("guidsSince failed: " + ex);
+        }
+      });
+    } finally {
+      data.stopHTTPServer();
+    }
+
+    // IDs only: no payloads.
+    assertFalse(query.get().contains("full=1"));
+    assertTrue(query.get().contains("newer=" + Utils.millisecondsToDecimalSecondsString(since)));
+    assertNotNull(guids.get());
+    assertEquals(3, guids.get().length);
+    assertEquals("abcdefghijkl", guids.get()[0]);
+    assertEquals("mnopqrstuvwx", guids.get()[1]);
+    assertEquals("escapedA", guids.get()[2]);
+  }
+
+  @Test
+  public void testGuidsSinceFailure() throws Exception {
+    final String COLLECTION = "test";
+    final Server11RepositorySession session = beginSession(new Server11Repository(COLLECTION, getCollectionURL(COLLECTION), authHeaderProvider));
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    data.startHTTPServer(new MockServer(503, "\"unavailable\""));
+    try {
+      session.guidsSince(-1, new RepositorySessionGuidsSinceDelegate() {
+        @Override
+        public void onGuidsSinceSucceeded(String[] result) {
+          fail("Should not succeed.");
+        }
+
+        @Override
+        public void onGuidsSinceFailed(Exception ex) {
+          failure.set(ex);
+        }
+      });
+    } finally {
+      data.stopHTTPServer();
+    }
+    assertNotNull(failure.get());
+    assertEquals(HTTPFailureException.class, failure.get().getClass());
+  }
+
+  /**
+   * Records each DELETE request's target and confirmation header.
+   */
+  public static class DeleteRecordingServer extends MockServer {
+    public final ArrayList<String> targets = new ArrayList<String>();
+    public final ArrayList<String> confirmations = new ArrayList<String>();
+    public volatile int failAfter = Integer.MAX_VALUE;
+
+    @Override
+    public synchronized void handle(Request request, Response response) {
+      assertEquals("DELETE", request.getMethod());
+      targets.add(request.getTarget());
+      confirmations.add(request.getValue("X-Confirm-Delete"));
+      if (targets.size() > failAfter) {
+        this.handle(request, response, 503, "\"unavailable\"");
+        return;
+      }
+      this.handle(request, response, 200, "{}");
+    }
+  }
+
+  public static class RecordingWipeDelegate implements RepositorySessionWipeDelegate {
+    public boolean succeeded = false;
+    public Exception failure;
+
+    @Override
+    public void onWipeSucceeded() {
+      succeeded = true;
+    }
+
+    @Override
+    public void onWipeFailed(Exception ex) {
+      failure = ex;
+    }
+
+    @Override
+    public RepositorySessionWipeDelegate deferredWipeDelegate(ExecutorService executor) {
+      return this;
+    }
+  }
+
+  protected RecordingWipeDelegate deleteFromServer(DeleteRecordingServer server, String[] guids) throws Exception {
+    final String COLLECTION = "test";
+    final Server11RepositorySession session = beginSession(new Server11Repository(COLLECTION, getCollectionURL(COLLECTION), authHeaderProvider));
+    final RecordingWipeDelegate delegate = new RecordingWipeDelegate();
+    data.startHTTPServer(server);
+    try {
+      if (guids == null) {
+        session.wipe(delegate);
+      } else {
+        session.delete(guids, delegate);
+      }
+    } finally {
+      data.stopHTTPServer();
+    }
+    return delegate;
+  }
+
+  @Test
+  public void testWipe() throws Exception {
+    final DeleteRecordingServer server = new DeleteRecordingServer();
+    final RecordingWipeDelegate delegate = deleteFromServer(server, null);
+    assertTrue(delegate.succeeded);
+    assertEquals(1, server.targets.size());
+    // The whole collection: no IDs.
+    assertTrue(server.targets.get(0).endsWith("/test"));
+    assertFalse(server.targets.get(0).contains("?"));
+    assertEquals("1", server.confirmations.get(0));
+  }
+
+  @Test
+  public void testDeleteByIDs() throws Exception {
+    final String[] guids = new String[250];
+    for (int i = 0; i < guids.length; i++) {
+      guids[i] = Utils.generateGuid();
+    }
+
+    final DeleteRecordingServer server = new DeleteRecordingServer();
+    final RecordingWipeDelegate delegate = deleteFromServer(server, guids);
+    assertTrue(delegate.succeeded);
+    assertNull(delegate.failure);
+    assertEquals(3, server.targets.size());
+    int named = 0;
+    for (String target : server.targets) {
+      assertTrue(target.contains("?ids="));
+      named += target.split(",").length;
+    }
+    assertEquals(guids.length, named);
+  }
+
+  @Test
+  public void testDeleteByIDsStopsAtFailure() throws Exception {
+    final String[] guids = new String[250];
+    for (int i = 0; i < guids.length; i++) {
+      guids[i] = Utils.generateGuid();
+    }
+
+    final DeleteRecordingServer server = new DeleteRecordingServer();
+    server.failAfter = 1;
+    final RecordingWipeDelegate delegate = deleteFromServer(server, guids);
+    assertFalse(delegate.succeeded);
+    assertEquals(HTTPFailureException.class, delegate.failure.getClass());
+    assertEquals(2, server.targets.size());
+  }
+
   @Test
   public void testConstraints() throws Exception {
     MockServer server = new MockServer() {
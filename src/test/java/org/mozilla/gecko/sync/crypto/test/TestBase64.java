@@ -0,0 +1,168 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.crypto.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+import org.mozilla.apache.commons.codec.binary.Base64;
+
+public class TestBase64 {
+  protected static byte[] randomBytes(Random random, int length) {
+    final byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  @Test
+  public void testEncodeMatchesCodec() {
+    final Random random = new Random(1);
+    for (int length = 0; length < 100; length++) {
+      final byte[] data = randomBytes(random, length);
+      final byte[] expected = Base64.encodeBase64(data);
+      assertEquals(expected.length, Base64.encodedLength(length));
+
+      // Write into the middle of a larger array.
+      final byte[] out = new byte[expected.length + 4];
+      assertEquals(expected.length, Base64.encodeBase64(data, 0, length, out, 2));
+      final byte[] written = new byte[expected.length];
+      System.arraycopy(out, 2, written, 0, written.length);
+      assertArrayEquals(expected, written);
+    }
+  }
+
+  @Test
+  public void testDecodeMatchesCodec() throws Exception {
+    final Random random = new Random(2);
+    for (int length = 0; length < 100; length++) {
+      final byte[] data = randomBytes(random, length);
+      final String encoded = Base64.encodeBase64String(data);
+      final byte[] encodedBytes = encoded.getBytes("US-ASCII");
+
+      assertEquals(length, Base64.decodedLength(encoded));
+      assertEquals(length, Base64.decodedLength(encodedBytes, 0, encodedBytes.length));
+
+      final byte[] fromChars = new byte[length];
+      assertEquals(length, Base64.decodeBase64(encoded, fromChars, 0));
+      assertArrayEquals(data, fromChars);
+
+      final byte[] fromBytes = new byte[length];
+      assertEquals(length, Base64.decodeBase64(encodedBytes, 0, encodedBytes.length, fromBytes, 0));
+      assertArrayEquals(data, fromBytes);
+    }
+  }
+
+  @Test
+  public void testDecodeIgnoresNonAlphabet() throws Exception {
+    final String encoded = "Zm9v\r\nYmFy YQ==";
+    final byte[] expected = "foobara".getBytes("US-ASCII");
+    assertArrayEquals(expected, Base64.decodeBase64(encoded));
+    assertEquals(expected.length, Base64.decodedLength(encoded));
+    final byte[] out = new byte[expected.length];
+    assertEquals(expected.length, Base64.decodeBase64(encoded, out, 0));
+    assertArrayEquals(expected, out);
+
+    // URL-safe characters decode too.
+    final byte[] data = new byte[] { (byte) 0xfb, (byte) 0xff };
+    final byte[] urlSafe = new byte[2];
+    assertEquals(2, Base64.decodeBase64("-_8", urlSafe, 0));
+    assertArrayEquals(data, urlSafe);
+  }
+
+  @Test
+  public void testOutputTooSmall() {
+    try {
+      Base64.encodeBase64(new byte[] { 1, 2, 3 }, 0, 3, new byte[3], 0);
+      fail("Expected IllegalArgumentException.");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    try {
+      Base64.decodeBase64("Zm9vYmFy", new byte[5], 0);
+      fail("Expected IllegalArgumentException.");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testByteBuffers() throws Exception {
+    final byte[] data = "foobarbaz!".getBytes("US-ASCII");
+    final byte[] expected = Base64.encodeBase64(data);
+
+    for (boolean direct : new boolean[] { false, true }) {
+      final ByteBuffer in = direct ? ByteBuffer.allocateDirect(data.length) : ByteBuffer.allocate(data.length);
+      in.put(data).flip();
+      final ByteBuffer encoded = direct ? ByteBuffer.allocateDirect(32) : ByteBuffer.allocate(32);
+      encoded.position(1);
+      assertEquals(expected.length, Base64.encodeBase64(in, encoded));
+      assertEquals(0, in.remaining());
+      assertEquals(1 + expected.length, encoded.position());
+
+      encoded.flip();
+      encoded.position(1);
+      final byte[] encodedBytes = new byte[encoded.remaining()];
+      encoded.duplicate().get(encodedBytes);
+      assertArrayEquals(expected, encodedBytes);
+
+      final ByteBuffer decoded = ByteBuffer.allocate(data.length);
+      assertEquals(data.length, Base64.decodeBase64(encoded, decoded));
+      assertEquals(0, encoded.remaining());
+      assertArrayEquals(data, decoded.array());
+    }
+
+    // The limit, not the backing array, bounds the output.
+    final ByteBuffer small = ByteBuffer.allocate(32);
+    small.limit(4);
+    try {
+      Base64.decodeBase64(ByteBuffer.wrap(expected), small);
+      fail("Expected IllegalArgumentException.");
+    } catch (IllegalArgumentException e) {
+      assertEquals(0, small.position());
+    }
+  }
+
+  @Test
+  public void testMacEncoder() throws Exception {
+    final Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(new byte[32], "HmacSHA256"));
+    final Random random = new Random(3);
+
+    // Lengths either side of the encoder's chunk size.
+    for (int length : new int[] { 0, 1, 2, 3, 4, 767, 768, 769, 770, 5000 }) {
+      final byte[] data = randomBytes(random, length);
+      final byte[] expected = mac.doFinal(Base64.encodeBase64(data));
+
+      final Base64.MacEncoder encoder = new Base64.MacEncoder(mac);
+      encoder.update(data).finish();
+      assertArrayEquals(expected, mac.doFinal());
+
+      // Fed in uneven pieces.
+      int pos = 0;
+      int piece = 1;
+      while (pos < length) {
+        final int len = Math.min(piece, length - pos);
+        encoder.update(data, pos, len);
+        pos += len;
+        piece = (piece % 7) + 1;
+      }
+      encoder.finish();
+      assertArrayEquals(expected, mac.doFinal());
+
+      // Input abandoned part way is discarded by reset.
+      encoder.update(data, 0, length / 2);
+      encoder.reset();
+      encoder.update(data).finish();
+      assertArrayEquals(expected, encoder.getMac().doFinal());
+    }
+  }
+}
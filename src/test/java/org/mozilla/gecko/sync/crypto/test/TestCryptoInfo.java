@@ -4,18 +4,26 @@
 package org.mozilla.gecko.sync.crypto.test;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Mac;
 
 import org.junit.Test;
 import org.mozilla.apache.commons.codec.binary.Base64;
 import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.crypto.CryptoException;
 import org.mozilla.gecko.sync.crypto.CryptoInfo;
+import org.mozilla.gecko.sync.crypto.HKDF;
+import org.mozilla.gecko.sync.crypto.HMACVerificationException;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 
 public class TestCryptoInfo {
@@ -138,4 +146,47 @@ public class TestCryptoInfo {
     assertArrayEquals(Base64.decodeBase64(base64CipherText), encrypted.getMessage());
     assertArrayEquals(Utils.hex2Byte(base16Hmac), encrypted.getHMAC());
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testIncrementalHMACMatchesEncodedHMAC() throws Exception {
+    KeyBundle kb = KeyBundle.withRandomKeys();
+    Random random = new Random(1234);
+    int[] lengths = new int[] { 0, 1, 2, 3, 4, 5, 767, 768, 769, 770, 3000 };
+    for (int length : lengths) {
+      byte[] message = new byte[length];
+      random.nextBytes(message);
+
+      Mac mac = HKDF.makeHMACHasher(kb.getHMACKey());
+      byte[] expected = mac.doFinal(Base64.encodeBase64(message));
+      assertArrayEquals(expected, CryptoInfo.generatedHMACFor(message, kb));
+    }
+  }
+
+  @Test
+  public void testCachedHMACHasherTracksKeyChanges() throws Exception {
+    KeyBundle kb = KeyBundle.withRandomKeys();
+    byte[] message = "ciphertext".getBytes("UTF-8");
+    byte[] before = CryptoInfo.generatedHMACFor(message, kb);
+    assertArrayEquals(before, CryptoInfo.generatedHMACFor(message, kb));
+
+    kb.setHMACKey(KeyBundle.withRandomKeys().getHMACKey());
+    byte[] after = CryptoInfo.generatedHMACFor(message, kb);
+    assertFalse(Arrays.equals(before, after));
+    assertArrayEquals(HKDF.makeHMACHasher(kb.getHMACKey()).doFinal(Base64.encodeBase64(message)), after);
+  }
+
+  @Test
+  public void testTamperedHMACIsRejected() throws Exception {
+    KeyBundle kb = KeyBundle.withRandomKeys();
+    CryptoInfo encrypted = CryptoInfo.encrypt("plaintext".getBytes("UTF-8"), kb);
+    byte[] hmac = encrypted.getHMAC().clone();
+    hmac[hmac.length - 1] ^= 1;
+    try {
+      CryptoInfo.decrypt(encrypted.getMessage(), encrypted.getIV(), hmac, kb);
+      fail("Expected HMAC verification failure.");
+    } catch (HMACVerificationException e) {
+      // Expected.
+    }
+  }
+}
+
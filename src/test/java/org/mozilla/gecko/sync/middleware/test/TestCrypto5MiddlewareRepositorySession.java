@@ -10,6 +10,8 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
 
 import junit.framework.AssertionFailedError;
 
@@ -35,7 +37,9 @@ import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
 import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
 import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
+import org.mozilla.gecko.sync.repositories.domain.BookmarkRecordFactory;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
 public class TestCrypto5MiddlewareRepositorySession {
@@ -287,4 +291,178 @@ public class TestCrypto5MiddlewareRepositorySession {
     assertTrue(record1.title.equals(decryptedRecord1.title) || record1.title.equals(decryptedRecord2.title));
     assertTrue(record2.title.equals(decryptedRecord1.title) || record2.title.equals(decryptedRecord2.title));
   }
+
+  @Test
+  /**
+   * Store then fetch many records through the middleware, which encrypts and
+   * then decrypts every record.
+   */
+  public void testRoundTrip() {
+    final int count = 1000;
+    final BookmarkRecord[] records = new BookmarkRecord[count];
+    for (int i = 0; i < count; i++) {
+      records[i] = new BookmarkRecord("guid" + (100000000 + i), "coll", System.currentTimeMillis(), false);
+      records[i].title = "Bookmark title number " + i;
+      records[i].bookmarkURI = "http://example.com/" + i;
+    }
+
+    runInOnBeginSucceeded(new Runnable() {
+      @Override public void run() {
+        try {
+          try {
+            cmwSession.setStoreDelegate(new ExpectSuccessRepositorySessionStoreDelegate(getTestWaiter()));
+            for (BookmarkRecord record : records) {
+              cmwSession.store(record);
+            }
+          } catch (NoStoreDelegateException e) {
+            getTestWaiter().performNotify(new AssertionFailedError("Should not happen."));
+          }
+          cmwSession.storeDone();
+          cmwSession.finish(new ExpectSuccessRepositorySessionFinishDelegate(getTestWaiter()));
+        } catch (InactiveSessionException e) {
+          performNotify(e);
+        }
+      }
+    });
+    assertEquals(count, wboRepo.wbos.size());
+
+    // Records stored in a session aren't fetched by it, so fetch in a new one.
+    final ExpectSuccessRepositorySessionFetchRecordsDelegate fetchAllRecordsDelegate = new ExpectSuccessRepositorySessionFetchRecordsDelegate(getTestWaiter());
+    runInOnBeginSucceeded(new Runnable() {
+      @Override public void run() {
+        cmwSession.fetchAll(fetchAllRecordsDelegate);
+      }
+    });
+    assertEquals(count, fetchAllRecordsDelegate.fetchedRecords.size());
+
+    performWait(onThreadRunnable(new Runnable() {
+      @Override public void run() {
+        try {
+          cmwSession.finish(new ExpectSuccessRepositorySessionFinishDelegate(getTestWaiter()));
+        } catch (InactiveSessionException e) {
+          performNotify(e);
+        }
+      }
+    }));
+    for (Record record : fetchAllRecordsDelegate.fetchedRecords) {
+      assertTrue(((CryptoRecord) record).payload.getString("title").startsWith("Bookmark title number "));
+    }
+  }
+
+  /**
+   * Records the sequence of fetch callbacks as strings, so that sequential and
+   * parallel fetches can be compared.
+   */
+  protected static class EventRecordingFetchDelegate implements RepositorySessionFetchRecordsDelegate {
+    public final ArrayList<String> events = new ArrayList<String>();
+    public final ArrayList<Record> fetchedRecords = new ArrayList<Record>();
+
+    @Override
+    public synchronized void onFetchFailed(Exception ex, Record record) {
+      events.add("failed " + record.guid);
+    }
+
+    @Override
+    public synchronized void onFetchedRecord(Record record) {
+      events.add("fetched " + record.guid);
+      fetchedRecords.add(record);
+    }
+
+    @Override
+    public synchronized void onFetchCompleted(long end) {
+      events.add("completed");
+      getTestWaiter().performNotify();
+    }
+
+    @Override
+    public RepositorySessionFetchRecordsDelegate deferredFetchDelegate(ExecutorService executor) {
+      return this;
+    }
+  }
+
+  protected void putEncryptedBookmarks(int count, KeyBundle bundle) throws UnsupportedEncodingException, CryptoException {
+    for (int i = 0; i < count; i++) {
+      BookmarkRecord record = new BookmarkRecord("guid" + (100000000 + i), "coll", System.currentTimeMillis(), false);
+      record.title = "Bookmark title number " + i;
+      CryptoRecord encrypted = record.getEnvelope();
+      encrypted.keyBundle = bundle;
+      wboRepo.wbos.put(record.guid, encrypted.encrypt());
+    }
+  }
+
+  protected EventRecordingFetchDelegate fetchAllEvents(final int decryptionThreads) {
+    cmwRepo = new Crypto5MiddlewareRepository(wboRepo, keyBundle) {
+      @Override
+      protected int getDecryptionThreads() {
+        return decryptionThreads;
+      }
+    };
+    cmwRepo.recordFactory = new BookmarkRecordFactory();
+
+    final EventRecordingFetchDelegate delegate = new EventRecordingFetchDelegate();
+    runInOnBeginSucceeded(new Runnable() {
+      @Override public void run() {
+        cmwSession.fetchAll(delegate);
+      }
+    });
+    performWait(onThreadRunnable(new Runnable() {
+      @Override public void run() {
+        try {
+          cmwSession.finish(new ExpectSuccessRepositorySessionFinishDelegate(getTestWaiter()));
+        } catch (InactiveSessionException e) {
+          performNotify(e);
+        }
+      }
+    }));
+    return delegate;
+  }
+
+  @Test
+  /**
+   * Verify that decrypting on a worker pool delivers the same records, in the
+   * same order, as decrypting on the fetching thread, with completion last.
+   */
+  public void testParallelFetchPreservesOrder() throws UnsupportedEncodingException, CryptoException {
+    final int count = 500;
+
+    // Decryption happens in place, so each fetch needs freshly encrypted records.
+    putEncryptedBookmarks(count, keyBundle);
+    EventRecordingFetchDelegate sequential = fetchAllEvents(0);
+    putEncryptedBookmarks(count, keyBundle);
+    EventRecordingFetchDelegate parallel = fetchAllEvents(4);
+
+    assertEquals(count + 1, sequential.events.size());
+    assertEquals(sequential.events, parallel.events);
+    assertEquals("completed", parallel.events.get(count));
+    for (Record record : parallel.fetchedRecords) {
+      assertTrue(record instanceof BookmarkRecord);
+      assertTrue(((BookmarkRecord) record).title.startsWith("Bookmark title number "));
+    }
+  }
+
+  @Test
+  /**
+   * Verify that records that fail to decrypt on a worker pool are reported in
+   * order with the records around them.
+   */
+  public void testParallelFetchReportsFailuresInOrder() throws UnsupportedEncodingException, CryptoException {
+    final KeyBundle wrongKeys = KeyBundle.withRandomKeys();
+    final BookmarkRecord bad = new BookmarkRecord("badbadbadbad", "coll", System.currentTimeMillis(), false);
+
+    EventRecordingFetchDelegate[] results = new EventRecordingFetchDelegate[2];
+    int[] threads = new int[] { 0, 3 };
+    for (int i = 0; i < 2; i++) {
+      putEncryptedBookmarks(50, keyBundle);
+      CryptoRecord encrypted = bad.getEnvelope();
+      encrypted.keyBundle = wrongKeys;
+      wboRepo.wbos.put(bad.guid, encrypted.encrypt());
+      results[i] = fetchAllEvents(threads[i]);
+    }
+    EventRecordingFetchDelegate sequential = results[0];
+    EventRecordingFetchDelegate parallel = results[1];
+
+    assertEquals(52, parallel.events.size());
+    assertTrue(parallel.events.contains("failed " + bad.guid));
+    assertEquals(sequential.events, parallel.events);
+  }
 }
@@ -4,8 +4,10 @@
 package org.mozilla.gecko.sync.net.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.security.InvalidKeyException;
@@ -19,6 +21,8 @@ import ch.boye.httpclientandroidlib.client.methods.HttpGet;
 import ch.boye.httpclientandroidlib.client.methods.HttpPost;
 import ch.boye.httpclientandroidlib.client.methods.HttpRequestBase;
 import ch.boye.httpclientandroidlib.client.methods.HttpUriRequest;
+import ch.boye.httpclientandroidlib.entity.ContentProducer;
+import ch.boye.httpclientandroidlib.entity.EntityTemplate;
 import ch.boye.httpclientandroidlib.entity.StringEntity;
 import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
 import ch.boye.httpclientandroidlib.message.BasicHeader;
@@ -115,6 +119,24 @@ public class TestHawkAuthHeaderProvider {
     assertEquals(expected, header.getValue());
   }
 
+  @Test
+  public void testPayloadHashOfTemplateEntity() throws Exception {
+    // Entities that only implement writeTo, like upload bodies, hash the same.
+    LeakyHawkAuthHeaderProvider provider = new LeakyHawkAuthHeaderProvider("dh37fgj492je", "werxhqb98rpaxn39848xrunpaw3489ruxnpa98w4rxn".getBytes("UTF-8"));
+    URI uri = new URI("http://example.com:8000/resource/1?b=1&a=2");
+    HttpPost req = new HttpPost(uri);
+    EntityTemplate entity = new EntityTemplate(new ContentProducer() {
+      @Override
+      public void writeTo(OutputStream out) throws IOException {
+        out.write("Thank you for flying Hawk".getBytes("UTF-8"));
+      }
+    });
+    entity.setContentType("text/plain");
+    req.setEntity(entity);
+    Header header = provider.getAuthHeader(req, null, null, 1353832234L, "j4h3g2", "some-app-ext-data", true);
+    assertTrue(header.getValue().contains("hash=\"Yi9LfIIFRtBEPt74PVmbTF/xVAwPn7ub15ePICfgnuY=\""));
+  }
+
   @Test
   public void testSpecAuthorizationHeader() throws Exception {
     LeakyHawkAuthHeaderProvider provider = new LeakyHawkAuthHeaderProvider("dh37fgj492je", "werxhqb98rpaxn39848xrunpaw3489ruxnpa98w4rxn".getBytes("UTF-8"));
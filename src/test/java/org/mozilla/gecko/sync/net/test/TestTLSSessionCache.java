@@ -0,0 +1,61 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.net.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.net.TLSSessionCache;
+
+public class TestTLSSessionCache {
+  protected static final byte[] SESSION_A = new byte[] { 1, 2, 3 };
+  protected static final byte[] SESSION_B = new byte[] { 4, 5, 6 };
+
+  @Test
+  public void testHitsAndMisses() {
+    final TLSSessionCache cache = new TLSSessionCache(4);
+    assertFalse(cache.recordSession("example.com", 443, SESSION_A));
+    assertTrue(cache.recordSession("example.com", 443, new byte[] { 1, 2, 3 }));
+    // Same session ID, different port: not a resumption.
+    assertFalse(cache.recordSession("example.com", 8443, SESSION_A));
+    // New session replaces the old one.
+    assertFalse(cache.recordSession("example.com", 443, SESSION_B));
+    assertTrue(cache.recordSession("example.com", 443, SESSION_B));
+    assertEquals(2, cache.getHits());
+    assertEquals(3, cache.getMisses());
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void testUnresumableSession() {
+    final TLSSessionCache cache = new TLSSessionCache(4);
+    assertFalse(cache.recordSession("example.com", 443, SESSION_A));
+    assertFalse(cache.recordSession("example.com", 443, new byte[0]));
+    assertEquals(0, cache.size());
+    assertFalse(cache.recordSession("example.com", 443, null));
+    assertFalse(cache.recordSession("example.com", 443, SESSION_A));
+    assertEquals(0, cache.getHits());
+    assertEquals(4, cache.getMisses());
+  }
+
+  @Test
+  public void testBounded() {
+    final TLSSessionCache cache = new TLSSessionCache(2);
+    cache.recordSession("a.example.com", 443, SESSION_A);
+    cache.recordSession("b.example.com", 443, SESSION_A);
+    // Touch a, so that b is the least recently connected.
+    assertTrue(cache.recordSession("a.example.com", 443, SESSION_A));
+    cache.recordSession("c.example.com", 443, SESSION_A);
+    assertEquals(2, cache.size());
+    assertTrue(cache.recordSession("a.example.com", 443, SESSION_A));
+    assertFalse(cache.recordSession("b.example.com", 443, SESSION_A));
+
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getHits());
+    assertEquals(0, cache.getMisses());
+  }
+}
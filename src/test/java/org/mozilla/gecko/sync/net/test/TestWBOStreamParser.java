@@ -0,0 +1,112 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.net.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+
+import org.json.simple.JSONArray;
+import org.junit.Test;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.net.WBOStreamParser;
+import org.mozilla.gecko.sync.repositories.domain.RecordParseException;
+
+public class TestWBOStreamParser {
+  // A raw record from a real Sync account; see TestCryptoRecord.
+  protected static final String RECORD = "{\"sortindex\": 131, \"payload\": \"{\\\"ciphertext\\\":\\\"YJB4dr0vZEIWPirfU2FCJvfzeSLiOP5QWasol2R6ILUxdHsJWuUuvTZVhxYQfTVNou6hVV67jfAvi5Cs+bqhhQsv7icZTiZhPTiTdVGt+uuMotxauVA5OryNGVEZgCCTvT3upzhDFdDbJzVd9O3/gU/b7r/CmAHykX8bTlthlbWeZ8oz6gwHJB5tPRU15nM/m/qW1vyKIw5pw/ZwtAy630AieRehGIGDk+33PWqsfyuT4EUFY9/Ly+8JlnqzxfiBCunIfuXGdLuqTjJOxgrK8mI4wccRFEdFEnmHvh5x7fjl1ID52qumFNQl8zkB75C8XK25alXqwvRR6/AQSP+BgQ==\\\",\\\"IV\\\":\\\"v/0BFgicqYQsd70T39rraA==\\\",\\\"hmac\\\":\\\"59605ed696f6e0e6e062a03510cff742bf6b50d695c042e8372a93f4c2d37dac\\\"}\", \"id\": \"0-P9fabp9vJD\", \"modified\": 1326254123.65}";
+
+  protected static WBOStreamParser parserFor(String body, int bufferSize) throws Exception {
+    return new WBOStreamParser(new ByteArrayInputStream(body.getBytes("UTF-8")), bufferSize);
+  }
+
+  protected static void assertSameRecord(CryptoRecord expected, CryptoRecord actual) {
+    assertNotNull(actual);
+    assertEquals(expected.guid, actual.guid);
+    assertEquals(expected.collection, actual.collection);
+    assertEquals(expected.lastModified, actual.lastModified);
+    assertEquals(expected.sortIndex, actual.sortIndex);
+    assertEquals(expected.ttl, actual.ttl);
+    assertEquals(expected.payload, actual.payload);
+  }
+
+  @Test
+  public void testMatchesFromJSONRecord() throws Exception {
+    CryptoRecord expected = CryptoRecord.fromJSONRecord(RECORD);
+    WBOStreamParser parser = parserFor(RECORD + "\n", WBOStreamParser.DEFAULT_BUFFER_SIZE);
+    assertSameRecord(expected, parser.next());
+    assertNull(parser.next());
+    assertEquals(1, parser.getRecordsParsed());
+    assertEquals(RECORD.length() + 1, parser.getBytesRead());
+  }
+
+  @Test
+  public void testLinesSpanningReads() throws Exception {
+    CryptoRecord expected = CryptoRecord.fromJSONRecord(RECORD);
+
+    // A tiny buffer forces every line to span many reads, and the lines to grow.
+    WBOStreamParser parser = parserFor(RECORD + "\n\n" + RECORD + "\r\n" + RECORD, 7);
+    for (int i = 0; i < 3; i++) {
+      assertSameRecord(expected, parser.next());
+    }
+    assertNull(parser.next());
+    assertEquals(3, parser.getRecordsParsed());
+  }
+
+  @Test
+  public void testEscapesAndNonASCII() throws Exception {
+    String line = "{\"id\":\"abc\\u00e9\",\"collection\":\"hé\",\"modified\":12,\"ttl\":5," +
+                  "\"extra\":[1,2.5,true,false,null,{\"x\":\"y\"}]," +
+                  "\"payload\":\"{\\\"title\\\":\\\"Café \\\\\\\"quoted\\\\\\\" \\\\u2603\\\",\\\"n\\\":[-3,1e2]}\"}";
+    CryptoRecord expected = CryptoRecord.fromJSONRecord(line);
+    CryptoRecord actual = parserFor(line, 16).next();
+    assertSameRecord(expected, actual);
+    assertEquals("abcé", actual.guid);
+    assertEquals(12000L, actual.lastModified);
+    assertEquals("Café \"quoted\" ☃", actual.payload.getString("title"));
+    JSONArray n = actual.payload.getArray("n");
+    assertEquals(Long.valueOf(-3), n.get(0));
+    assertEquals(Double.valueOf(100), n.get(1));
+  }
+
+  @Test
+  public void testMissingOrNullFieldsAreRejected() throws Exception {
+    final String[] lines = new String[] {
+      "{\"id\":\"abc\"}",
+      "{\"id\":\"abc\",\"payload\":null}",
+      "{\"id\":\"abc\",\"payload\":\"{}\",\"modified\":null}",
+      "{\"id\":\"abc\",\"payload\":\"{}\",\"sortindex\":null}",
+      "{\"id\":\"abc\",\"payload\":\"{}\",\"ttl\":null}",
+    };
+    for (String line : lines) {
+      try {
+        parserFor(line, 16).next();
+        fail("Expected RecordParseException for " + line);
+      } catch (RecordParseException e) {
+        // Expected.
+      }
+    }
+  }
+
+  @Test
+  public void testBadLinesAreSkippable() throws Exception {
+    WBOStreamParser parser = parserFor("{\"id\":\n[]\n{\"id\":\"x\",\"payload\":\"{}\",\"sortindex\":1.5}\n{\"id\":\"ok\",\"payload\":\"{}\"}\n", 16);
+    for (int i = 0; i < 3; i++) {
+      try {
+        parser.next();
+        fail("Expected exception.");
+      } catch (RecordParseException e) {
+        assertEquals(2, i);
+      } catch (Exception e) {
+        assertTrue(i < 2);
+      }
+    }
+    assertEquals("ok", parser.next().guid);
+    assertNull(parser.next());
+  }
+}
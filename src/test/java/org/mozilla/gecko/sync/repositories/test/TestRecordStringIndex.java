@@ -0,0 +1,172 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.repositories.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.repositories.android.RecordStringIndex;
+
+public class TestRecordStringIndex {
+  @Test
+  public void testPutAndGet() {
+    RecordStringIndex index = new RecordStringIndex();
+    assertEquals(0, index.get("http://example.com/").length);
+
+    index.put("http://example.com/", "guid1");
+    index.put("http://example.org/", "guid2");
+    assertArrayEquals(new String[] { "guid1" }, index.get("http://example.com/"));
+    assertArrayEquals(new String[] { "guid2" }, index.get("http://example.org/"));
+    assertEquals(0, index.get("http://example.net/").length);
+    assertEquals(0, index.get(null).length);
+
+    // Repeats have no effect.
+    index.put("http://example.com/", "guid1");
+    assertEquals(2, index.size());
+  }
+
+  @Test
+  public void testDuplicateRecordStringsKeepAllGuidsNewestFirst() {
+    RecordStringIndex index = new RecordStringIndex();
+    index.put("bmenu/http://example.com/:Example", "guid1");
+    index.put("bmenu/http://example.com/:Example", "guid2");
+    index.put("bmenu/http://example.com/:Example", "guid3");
+    index.put("bmenu/http://example.com/:Example", "guid2");
+    assertArrayEquals(new String[] { "guid3", "guid2", "guid1" }, index.get("bmenu/http://example.com/:Example"));
+    assertEquals(3, index.size());
+
+    // Callers can't modify the index through a result.
+    index.get("bmenu/http://example.com/:Example")[0] = "oops";
+    assertEquals("guid3", index.get("bmenu/http://example.com/:Example")[0]);
+  }
+
+  @Test
+  public void testJavaHashCollisionsAreDistinguished() {
+    // "Aa" and "BB" share a String.hashCode(), which is what the SparseArray
+    // this replaces was keyed by.
+    assertEquals("Aa".hashCode(), "BB".hashCode());
+    RecordStringIndex index = new RecordStringIndex();
+    index.put("Aa", "guid1");
+    index.put("BB", "guid2");
+    assertArrayEquals(new String[] { "guid1" }, index.get("Aa"));
+    assertArrayEquals(new String[] { "guid2" }, index.get("BB"));
+  }
+
+  @Test
+  public void testRoundTripThroughHashes() {
+    final RecordStringIndex index = new RecordStringIndex();
+    assertTrue(index.put("http://example.com/", "guid1"));
+    assertTrue(index.put("http://example.com/", "guid2"));
+    assertTrue(index.put("http://example.org/", "guid3"));
+    assertFalse(index.put("http://example.org/", "guid3"));
+
+    // As if saved and loaded again.
+    final RecordStringIndex copy = new RecordStringIndex(index.size());
+    final int[] visited = new int[1];
+    index.forEach(new RecordStringIndex.EntryVisitor() {
+      @Override
+      public void visit(long hash, String guid) {
+        assertTrue(copy.putHash(hash, guid));
+        visited[0] += 1;
+      }
+    });
+    assertEquals(3, visited[0]);
+    assertEquals(3, copy.size());
+    assertArrayEquals(new String[] { "guid2", "guid1" }, copy.get("http://example.com/"));
+    assertArrayEquals(new String[] { "guid3" }, copy.get("http://example.org/"));
+    assertFalse(copy.putHash(RecordStringIndex.hash("http://example.org/"), "guid3"));
+  }
+
+  @Test
+  public void testGrowth() {
+    RecordStringIndex index = new RecordStringIndex();
+    for (int i = 0; i < 10000; i++) {
+      index.put(historyURI(i), "guid" + i);
+    }
+    assertEquals(10000, index.size());
+    for (int i = 0; i < 10000; i++) {
+      assertArrayEquals(new String[] { "guid" + i }, index.get(historyURI(i)));
+    }
+  }
+
+  @Test
+  public void testRemove() {
+    final RecordStringIndex index = new RecordStringIndex();
+    final long shared = RecordStringIndex.hash("http://example.com/");
+    index.put("http://example.com/", "guid1");
+    index.put("http://example.com/", "guid2");
+    index.put("http://example.com/", "guid3");
+    index.put("http://example.org/", "guid4");
+
+    assertFalse(index.removeHash(shared, "guid4"));
+    assertTrue(index.removeHash(shared, "guid2"));
+    assertFalse(index.removeHash(shared, "guid2"));
+    assertArrayEquals(new String[] { "guid3", "guid1" }, index.get("http://example.com/"));
+    assertTrue(index.removeHash(shared, "guid3"));
+    assertArrayEquals(new String[] { "guid1" }, index.get("http://example.com/"));
+    assertTrue(index.removeHash(shared, "guid1"));
+    assertEquals(0, index.get("http://example.com/").length);
+    assertEquals(1, index.size());
+
+    // A removed string can be added again.
+    assertTrue(index.put("http://example.com/", "guid5"));
+    assertArrayEquals(new String[] { "guid5" }, index.get("http://example.com/"));
+    assertEquals(2, index.size());
+  }
+
+  @Test
+  public void testRemoveKeepsOtherEntriesReachable() {
+    // Enough entries that probe sequences run into one another.
+    final int count = 5000;
+    final RecordStringIndex index = new RecordStringIndex();
+    for (int i = 0; i < count; i++) {
+      index.put(historyURI(i), "guid" + i);
+    }
+    for (int i = 0; i < count; i += 3) {
+      assertTrue(index.removeHash(RecordStringIndex.hash(historyURI(i)), "guid" + i));
+    }
+    for (int i = 0; i < count; i++) {
+      if (i % 3 == 0) {
+        assertEquals(0, index.get(historyURI(i)).length);
+      } else {
+        assertArrayEquals(new String[] { "guid" + i }, index.get(historyURI(i)));
+      }
+    }
+    assertEquals(count - (count + 2) / 3, index.size());
+  }
+
+  protected static String historyURI(int i) {
+    return "http://www.example" + (i % 997) + ".com/some/fairly/typical/path/" + i + "?query=" + (i * 31);
+  }
+
+  protected static String bookmarkString(int i) {
+    return "b" + "folder" + (i % 50) + "/" + historyURI(i) + ":" + "A bookmark title " + i;
+  }
+
+  @Test
+  public void testManyDistinctStrings() {
+    final int count = 100000;
+    for (boolean bookmarks : new boolean[] { false, true }) {
+      final RecordStringIndex index = new RecordStringIndex(count);
+      for (int i = 0; i < count; i++) {
+        index.put(bookmarks ? bookmarkString(i) : historyURI(i), "guid" + i);
+      }
+      assertEquals(count, index.size());
+
+      // No 64-bit collisions among 100k distinct strings.
+      final HashSet<Long> hashes = new HashSet<Long>();
+      for (int i = 0; i < count; i++) {
+        final String recordString = bookmarks ? bookmarkString(i) : historyURI(i);
+        hashes.add(Long.valueOf(RecordStringIndex.hash(recordString)));
+        assertArrayEquals(new String[] { "guid" + i }, index.get(recordString));
+      }
+      assertEquals(count, hashes.size());
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.repositories.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.InfoConfiguration;
+import org.mozilla.gecko.sync.repositories.UploadBatchSizer;
+
+public class TestUploadBatchSizer {
+  protected static InfoConfiguration limits(String json) throws Exception {
+    return new InfoConfiguration(ExtendedJSONObject.parseJSONObject(json));
+  }
+
+  @Test
+  public void testDefaults() {
+    UploadBatchSizer sizer = new UploadBatchSizer();
+    assertEquals(UploadBatchSizer.DEFAULT_ITEM_LIMIT, sizer.getItemLimit());
+    assertEquals(UploadBatchSizer.DEFAULT_BYTE_LIMIT, sizer.getByteLimit());
+  }
+
+  @Test
+  public void testServerLimits() throws Exception {
+    UploadBatchSizer sizer = new UploadBatchSizer(limits("{\"max_post_records\": 20, \"max_post_bytes\": 262144}"));
+    assertEquals(20, sizer.getItemLimit());
+    assertEquals(262144, sizer.getByteLimit());
+
+    // Never grow beyond what the server advertises.
+    for (int i = 0; i < 10; i++) {
+      sizer.onBatchSucceeded(sizer.getItemLimit(), 0, 10);
+    }
+    assertEquals(20, sizer.getItemLimit());
+    assertEquals(262144, sizer.getByteLimit());
+  }
+
+  @Test
+  public void testSmallServerByteLimitIsACeiling() throws Exception {
+    UploadBatchSizer sizer = new UploadBatchSizer(limits("{\"max_post_bytes\": 10000}"));
+    assertEquals(10000, sizer.getByteLimit());
+
+    for (int i = 0; i < 10; i++) {
+      sizer.onBatchSucceeded(sizer.getItemLimit(), 0, 10);
+    }
+    assertEquals(10000, sizer.getByteLimit());
+
+    // Shrinking doesn't raise the limit to our usual minimum.
+    sizer.onBatchSucceeded(sizer.getItemLimit(), 0, UploadBatchSizer.SLOW_LATENCY_MSEC + 1);
+    sizer.onBatchTooLarge(sizer.getItemLimit(), 10000);
+    assertEquals(10000, sizer.getByteLimit());
+  }
+
+  @Test
+  public void testGrowsWhenFastAndFull() {
+    UploadBatchSizer sizer = new UploadBatchSizer();
+
+    // Partial batches tell us nothing about larger ones.
+    sizer.onBatchSucceeded(3, 0, 10);
+    assertEquals(UploadBatchSizer.DEFAULT_ITEM_LIMIT, sizer.getItemLimit());
+
+    int last = sizer.getItemLimit();
+    sizer.onBatchSucceeded(last, 0, 10);
+    assertTrue(sizer.getItemLimit() > last);
+
+    for (int i = 0; i < 20; i++) {
+      sizer.onBatchSucceeded(sizer.getItemLimit(), 0, 10);
+    }
+    assertEquals(UploadBatchSizer.DEFAULT_MAX_ITEMS, sizer.getItemLimit());
+  }
+
+  @Test
+  public void testShrinksWhenSlowOrFailing() {
+    UploadBatchSizer sizer = new UploadBatchSizer();
+    sizer.onBatchSucceeded(50, 0, UploadBatchSizer.SLOW_LATENCY_MSEC + 1);
+    assertEquals(25, sizer.getItemLimit());
+
+    // One failure in 25 is tolerable; several aren't.
+    sizer.onBatchSucceeded(25, 1, 2000);
+    assertEquals(25, sizer.getItemLimit());
+    sizer.onBatchSucceeded(25, 5, 2000);
+    assertEquals(12, sizer.getItemLimit());
+
+    sizer.onServerUnavailable();
+    assertEquals(6, sizer.getItemLimit());
+
+    for (int i = 0; i < 20; i++) {
+      sizer.onServerUnavailable();
+    }
+    assertEquals(UploadBatchSizer.MIN_ITEMS, sizer.getItemLimit());
+    assertEquals(UploadBatchSizer.MIN_BYTES, sizer.getByteLimit());
+  }
+
+  @Test
+  public void testTooLargeLowersCeiling() {
+    UploadBatchSizer sizer = new UploadBatchSizer();
+    sizer.onBatchTooLarge(50, 40000);
+    assertEquals(25, sizer.getItemLimit());
+
+    // We can grow again, but never back to the size that was refused.
+    for (int i = 0; i < 20; i++) {
+      sizer.onBatchSucceeded(sizer.getItemLimit(), 0, 10);
+    }
+    assertEquals(49, sizer.getItemLimit());
+  }
+}
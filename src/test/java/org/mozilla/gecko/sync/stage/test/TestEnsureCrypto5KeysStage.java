@@ -8,6 +8,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -25,6 +26,7 @@ import org.mozilla.gecko.sync.CryptoRecord;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
 import org.mozilla.gecko.sync.GlobalSession;
 import org.mozilla.gecko.sync.InfoCollections;
+import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.stage.EnsureCrypto5KeysStage;
 import org.mozilla.gecko.sync.stage.GlobalSyncStage.Stage;
@@ -131,6 +133,40 @@ public class TestEnsureCrypto5KeysStage {
     assertTrue(CollectionKeys.differences(session.config.collectionKeys, keys).isEmpty());
   }
 
+  @Test
+  public void testDownloadNotModifiedUsesPersisted() throws Exception {
+    // Something in the crypto collection changed, but not crypto/keys.
+    session.config.infoCollections = new InfoCollections(ExtendedJSONObject.parseJSONObject(TEST_JSON_NEW_CRYPTO));
+    final long lastModified = System.currentTimeMillis();
+    session.config.persistedCryptoKeys().persistLastModified(lastModified);
+
+    assertNull(session.config.collectionKeys);
+    final CollectionKeys keys = CollectionKeys.generateCollectionKeys();
+    keys.setDefaultKeyBundle(syncKeyBundle);
+    session.config.persistedCryptoKeys().persistKeys(keys);
+
+    final ArrayList<String> ifModifiedSince = new ArrayList<String>();
+    MockServer server = new MockServer() {
+      public void handle(Request request, Response response) {
+        ifModifiedSince.add(request.getValue("X-If-Modified-Since"));
+        try {
+          this.handleBasicHeaders(request, response, 304, "application/json").close();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+
+    doSession(server);
+
+    assertTrue(callback.calledSuccess);
+    assertEquals(1, ifModifiedSince.size());
+    assertEquals(Utils.millisecondsToDecimalSecondsString(lastModified), ifModifiedSince.get(0));
+    assertNotNull(session.config.collectionKeys);
+    assertTrue(session.config.collectionKeys.equals(keys));
+    assertTrue(session.config.persistedCryptoKeys().lastModified() >= lastModified);
+  }
+
   @Test
   public void testDownloadFetchesNew() throws Exception {
     session.config.infoCollections = new InfoCollections(ExtendedJSONObject.parseJSONObject(TEST_JSON_NEW_CRYPTO));
@@ -223,6 +223,38 @@ public class TestFetchMetaGlobalStage {
     assertEquals(TEST_SYNC_ID, session.config.syncID);
   }
 
+  @Test
+  public void testFetchNotModifiedUsesPersisted() throws Exception {
+    session.config.syncID = TEST_SYNC_ID;
+
+    MetaGlobal mg = new MetaGlobal(null, null);
+    mg.setSyncID(TEST_SYNC_ID);
+    mg.setStorageVersion(Long.valueOf(TEST_STORAGE_VERSION));
+    final long lastModified = System.currentTimeMillis();
+    session.config.persistedMetaGlobal().persistMetaGlobal(mg);
+    session.config.persistedMetaGlobal().persistLastModified(lastModified);
+
+    final AtomicBoolean conditional = new AtomicBoolean(false);
+    MockServer server = new MockServer() {
+      @Override
+      public void handle(Request request, Response response) {
+        conditional.set(request.getValue("X-If-Modified-Since") != null);
+        try {
+          this.handleBasicHeaders(request, response, 304, "application/json").close();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    doSession(server);
+
+    assertTrue(conditional.get());
+    assertTrue(callback.calledSuccess);
+    assertFalse(calledResetAllStages);
+    assertEquals(TEST_SYNC_ID, session.config.metaGlobal.getSyncID());
+    assertEquals(TEST_STORAGE_VERSION, session.config.metaGlobal.getStorageVersion().longValue());
+  }
+
   @Test
   public void testFetchMissing() throws Exception {
     MockServer server = new MockServer(404, "missing");
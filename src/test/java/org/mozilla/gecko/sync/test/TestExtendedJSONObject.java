@@ -189,4 +189,58 @@ public class TestExtendedJSONObject {
     assertException(o, new String[] { "missing" }, null);
     assertException(o, new String[] { "string", "int" }, String.class); // Irritating, but...
   }
+
+  @Test
+  public void testParserIsReusedOnThread() throws Exception {
+    // Make sure this thread has a parser.
+    new ExtendedJSONObject(exampleJSON);
+
+    final long allocatedBefore = ExtendedJSONObject.getJSONParsersAllocated();
+    final long parsesBefore = ExtendedJSONObject.getJSONParses();
+    for (int i = 0; i < 100; i++) {
+      ExtendedJSONObject o = ExtendedJSONObject.parseJSONObject(exampleJSON);
+      assertEquals(Long.valueOf(1233702554250L), o.getTimestamp("modified"));
+      assertEquals(6, ExtendedJSONObject.parseJSONArray("[1, 2, 3, 4, 5, 6]").size());
+    }
+    assertEquals(allocatedBefore, ExtendedJSONObject.getJSONParsersAllocated());
+    assertTrue(ExtendedJSONObject.getJSONParses() >= parsesBefore + 200);
+
+    // A failed parse mustn't poison the next one.
+    try {
+      new ExtendedJSONObject("{\"broken\":");
+      fail();
+    } catch (ParseException e) {
+      // Expected.
+    }
+    assertEquals(Long.valueOf(1233702554000L), new ExtendedJSONObject(exampleIntegral).getTimestamp("modified"));
+  }
+
+  @Test
+  public void testConcurrentParsing() throws Exception {
+    final int threadCount = 4;
+    final Throwable[] errors = new Throwable[threadCount];
+    final Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      final int index = i;
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < 500; j++) {
+              ExtendedJSONObject o = new ExtendedJSONObject("{\"thread\":" + index + ",\"j\":" + j + "}");
+              assertEquals(Long.valueOf(index), o.getLong("thread"));
+              assertEquals(Long.valueOf(j), o.getLong("j"));
+            }
+          } catch (Throwable e) {
+            errors[index] = e;
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (int i = 0; i < threadCount; i++) {
+      threads[i].join();
+      assertNull(errors[i]);
+    }
+  }
 }
@@ -0,0 +1,179 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.sync.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.mozilla.gecko.sync.FlowController;
+
+public class TestFlowController {
+  protected static class Producer extends Thread {
+    protected final FlowController controller;
+    protected final int count;
+    protected final long bytes;
+    public final AtomicInteger produced = new AtomicInteger(0);
+    public final CountDownLatch done = new CountDownLatch(1);
+
+    public Producer(FlowController controller, int count, long bytes) {
+      this.controller = controller;
+      this.count = count;
+      this.bytes = bytes;
+    }
+
+    @Override
+    public void run() {
+      for (int i = 0; i < count; i++) {
+        controller.acquire(bytes);
+        produced.incrementAndGet();
+      }
+      done.countDown();
+    }
+  }
+
+  protected static void waitForProduced(Producer producer, int expected) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (producer.produced.get() < expected && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(expected, producer.produced.get());
+  }
+
+  @Test
+  public void testPausesAtHighWaterAndResumesAtLowWater() throws Exception {
+    final FlowController controller = new FlowController(10, 0);
+    final Producer producer = new Producer(controller, 20, 100);
+    producer.start();
+
+    waitForProduced(producer, 10);
+    Thread.sleep(50);
+    assertEquals(10, producer.produced.get());
+    assertEquals(10, controller.getOutstandingRecords());
+
+    // Still above the low-water mark of 5.
+    for (int i = 0; i < 4; i++) {
+      controller.handedOff();
+    }
+    Thread.sleep(50);
+    assertEquals(10, producer.produced.get());
+
+    controller.handedOff();
+    waitForProduced(producer, 15);
+
+    for (int i = 0; i < 10; i++) {
+      controller.handedOff();
+    }
+    assertTrue(producer.done.await(5, TimeUnit.SECONDS));
+    assertEquals(2, controller.getPauseCount());
+    assertEquals(10, controller.getPeakRecords());
+  }
+
+  @Test
+  public void testBacklogCountsAsOutstanding() throws Exception {
+    final AtomicInteger backlog = new AtomicInteger(0);
+    final FlowController controller = new FlowController(10, 0);
+    controller.setBacklog(new FlowController.Backlog() {
+      @Override
+      public int getBacklog() {
+        return backlog.get();
+      }
+    });
+
+    final Producer producer = new Producer(controller, 20, 100);
+    producer.start();
+    waitForProduced(producer, 10);
+
+    // Hand everything off, but leave it queued downstream.
+    for (int i = 0; i < 10; i++) {
+      controller.handedOff();
+      backlog.incrementAndGet();
+    }
+    Thread.sleep(50);
+    assertEquals(10, producer.produced.get());
+    assertEquals(1000, controller.getOutstandingBytes());
+
+    backlog.set(0);
+    controller.signal();
+    assertTrue(producer.done.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testByteHighWater() throws Exception {
+    final FlowController controller = new FlowController(0, 1000);
+    final Producer producer = new Producer(controller, 5, 400);
+    producer.start();
+
+    // 3 * 400 bytes crosses the high-water mark.
+    waitForProduced(producer, 3);
+    Thread.sleep(50);
+    assertEquals(3, producer.produced.get());
+
+    controller.handedOff();
+    controller.handedOff();
+    assertTrue(producer.done.await(5, TimeUnit.SECONDS));
+  }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testOutstandingBytesTrackHandOffOrder() {
+    final FlowController controller = new FlowController(0, 0);
+    long expected = 0;
+    int oldest = 0;
+    int next = 0;
+    // Interleave so that the queue wraps around, then grows while wrapped.
+    for (int round = 0; round < 10; round++) {
+      for (int i = 0; i < 5 * round; i++) {
+        next += 1;
+        controller.acquire(next);
+        expected += next;
+      }
+      for (int i = 0; i < 2 * round; i++) {
+        oldest += 1;
+        controller.handedOff();
+        expected -= oldest;
+      }
+      assertEquals(next - oldest, controller.getOutstandingRecords());
+      assertEquals(expected, controller.getOutstandingBytes());
+    }
+    while (oldest < next) {
+      controller.handedOff();
+      oldest += 1;
+    }
+    assertEquals(0, controller.getOutstandingRecords());
+    assertEquals(0, controller.getOutstandingBytes());
+  }
+
+  @Test
+  public void testOversizedRecordIsAdmitted() throws Exception {
+    final FlowController controller = new FlowController(10, 1000);
+    final Producer producer = new Producer(controller, 2, 5000);
+    producer.start();
+
+    waitForProduced(producer, 1);
+    Thread.sleep(50);
+    assertEquals(1, producer.produced.get());
+
+    controller.handedOff();
+    assertTrue(producer.done.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testCloseReleasesProducer() throws Exception {
+    final FlowController controller = new FlowController(1, 0);
+    final Producer producer = new Producer(controller, 100, 1);
+    producer.start();
+    waitForProduced(producer, 1);
+    assertFalse(controller.isClosed());
+
+    controller.close();
+    assertTrue(producer.done.await(5, TimeUnit.SECONDS));
+    assertEquals(0, controller.getOutstandingRecords());
+  }
+}
@@ -11,11 +11,12 @@ import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 import org.mozilla.gecko.sync.ExtendedJSONObject;
 import org.mozilla.gecko.sync.InfoCollections;
+import org.mozilla.gecko.sync.InfoConfiguration;
 import org.mozilla.gecko.sync.InfoCounts;
 import org.mozilla.gecko.sync.Utils;
 
 /**
- * Test both info/collections and info/collection_counts.
+ * Test info/collections, info/collection_counts, and info/configuration.
  */
 public class TestInfoCollections {
   public static final String TEST_COLLECTIONS_JSON =
@@ -95,4 +96,23 @@ public class TestInfoCollections {
     assertTrue(infoCollections.updateNeeded("missing", same));
     assertTrue(infoCollections.updateNeeded("missing", future));
   }
+
+  @SuppressWarnings("static-method")
+  @Test
+  public void testSetConfigurationFromRecord() throws Exception {
+    InfoConfiguration empty = new InfoConfiguration(new ExtendedJSONObject("{}"));
+    assertEquals(-1, empty.getMaxPostRecords());
+    assertEquals(-1, empty.getMaxPostBytes());
+
+    InfoConfiguration full = new InfoConfiguration(ExtendedJSONObject.parseJSONObject(
+        "{\"max_request_bytes\": 2101248, \"max_post_records\": 100, \"max_post_bytes\": 2097152, \"max_total_records\": 10000}"));
+    assertEquals(100, full.getMaxPostRecords());
+    assertEquals(2097152, full.getMaxPostBytes());
+
+    // The smaller of the two byte limits wins, and junk is ignored.
+    InfoConfiguration odd = new InfoConfiguration(ExtendedJSONObject.parseJSONObject(
+        "{\"max_request_bytes\": 1000000, \"max_post_records\": \"lots\", \"max_post_bytes\": 2097152}"));
+    assertEquals(-1, odd.getMaxPostRecords());
+    assertEquals(1000000, odd.getMaxPostBytes());
+  }
 }